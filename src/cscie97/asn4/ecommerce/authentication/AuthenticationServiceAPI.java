@@ -5,6 +5,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
 
+import cscie97.asn4.ecommerce.csv.*;
+import cscie97.asn4.ecommerce.journal.*;
+
 /**
  * {@code AuthenticationServiceAPI} is responsible for maintaining the
  * inventory of Services, Users, Roles, and Permissions in the Mobile
@@ -21,10 +24,15 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 	private Map<String, AccessToken> tokenMap;
 	private Map<String, String> sessionMap;
 	private long timeoutSpan;
-	private String delims;
 	private Service superService;
 	private User superUser;
 	private Credential superCred;
+	// Journal of Service, User, Role, Permission, Credential, and entitlement changes; null when
+	// changes are not journaled
+	private MutationJournal journal;
+	
+	// Service name the authentication changes are journaled under
+	static final String JOURNAL_SERVICE = "authentication";
 	
 	/**
 	 * Private AuthenticationServiceAPI constructor
@@ -40,7 +48,6 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		this.tokenMap = new TreeMap<String, AccessToken>();
 		this.sessionMap = new TreeMap<String, String>();
 		this.timeoutSpan = 3600000;
-		this.delims = "(?<!\\\\),"; // negative lookbehind regex for comma not preceded by backslash
 		this.superService = new Service("super_service", "Super Service", "Super User Access");
 		this.serviceMap.put(this.superService.getId(), this.superService);
 		this.superUser = new User("super_user", "Super User");
@@ -202,8 +209,10 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		}
 		BufferedReader br = new BufferedReader(fr);
 		String line;
+		CsvTokenizer csv = new CsvTokenizer();
         String[] parsed;
         String command;
+        long journaled = 0;
         
         try {
 			while((line = br.readLine()) != null){
@@ -212,35 +221,36 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 			        continue;     
 			    }
 			
-			    parsed = line.trim().split(this.delims);
-			    command = parsed[0];
+			    parsed = csv.split(line);
+			    command = parsed[0].trim();
 			    
 			    if(command.equalsIgnoreCase("define_service")){
-			    	addService(accessToken, line);
+			    	journaled = Math.max(journaled, defineService(accessToken, line, parsed));
 			    }
 			    else if(command.equalsIgnoreCase("define_permission")){
-			    	addPermission(accessToken, line);
+			    	journaled = Math.max(journaled, definePermission(accessToken, line, parsed));
 			    }
 			    else if(command.equalsIgnoreCase("define_role")){
-			    	addRole(accessToken, line);
+			    	journaled = Math.max(journaled, defineRole(accessToken, line, parsed));
 			    }
 			    else if(command.equalsIgnoreCase("add_entitlement_to_role")){
-			    	addRoleEntitlement(accessToken, line);
+			    	journaled = Math.max(journaled, addEntitlementToRole(accessToken, line, parsed));
 			    }
 			    else if(command.equalsIgnoreCase("create_user")){
-			    	addUser(accessToken, line);
+			    	journaled = Math.max(journaled, createUser(accessToken, line, parsed));
 			    }
 			    else if(command.equalsIgnoreCase("add_credential")){
-			    	addCredential(accessToken, line);
+			    	journaled = Math.max(journaled, addUserCredential(accessToken, line, parsed));
 			    }
 			    else if(command.equalsIgnoreCase("add_entitlement_to_user")){
-			    	addUserEntitlement(accessToken, line);
+			    	journaled = Math.max(journaled, addEntitlementToUser(accessToken, line, parsed));
 			    }
 			    else{
 			    	throw new AuthenticationImportException("Unrecognized import command",
 			    											fileName, line);
 			    }
 			}
+			commitJournal(journaled, fileName);
 		} 
 		catch (IOException e) {
 			throw new AuthenticationImportException(e.getMessage(), fileName, null);
@@ -264,6 +274,17 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 	@Override
 	public void addService(String accessToken, String serviceData)
 			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException{
+		String[] parsed = new CsvTokenizer().split(serviceData);
+		commitJournal(defineService(accessToken, serviceData, parsed), serviceData);
+	}
+
+	/**
+	 * Creates a new Service, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long defineService(String accessToken, String serviceData, String[] parsed)
+			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException{
 		try{
 			String perm = "define_service";
 			boolean hasAccess = verifyAccess(accessToken, perm);
@@ -276,12 +297,22 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}
-		String[] parsed;
+		return putService(serviceData, parsed) ? journal("define_service", serviceData, serviceData) : 0;
+	}
+
+	/**
+	 * Parses a line of Service data and applies it, without checking access or journaling it.
+	 * 
+	 * @param serviceData line of Service data to process
+	 * @param parsed fields of the line
+	 * @return true if the Service was added
+	 * @throws AuthenticationDataException on error parsing or validating the data
+	 */
+	private boolean putService(String serviceData, String[] parsed) throws AuthenticationDataException{
 		String id;
 		String name;	
 		String description;
 		
-		parsed = serviceData.split(this.delims);
 		if(parsed.length != 4){
 			throw new AuthenticationDataException("Incorrect number of fields", 
 												  serviceData);
@@ -295,9 +326,11 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 			Service s = new Service(id, name, description);
 			this.serviceMap.put(id, s);
 			System.out.println("Service " + id + " was added!");
+			return true;
 		}
 		else{
 			System.out.println("Service " + id + " is already in the system.");
+			return false;
 		}	
 	}
 
@@ -316,6 +349,17 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 	@Override
 	public void addUser(String accessToken, String userData)
 			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().split(userData);
+		commitJournal(createUser(accessToken, userData, parsed), userData);
+	}
+
+	/**
+	 * Creates a new User, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long createUser(String accessToken, String userData, String[] parsed)
+			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
 		try{
 			String perm = "create_user";
 			boolean hasAccess = verifyAccess(accessToken, perm);
@@ -328,11 +372,21 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}
-		String[] parsed;
+		return putUser(userData, parsed) ? journal("create_user", userData, userData) : 0;
+	}
+
+	/**
+	 * Parses a line of User data and applies it, without checking access or journaling it.
+	 * 
+	 * @param userData line of User data to process
+	 * @param parsed fields of the line
+	 * @return true if the User was added
+	 * @throws AuthenticationDataException on error parsing or validating the data
+	 */
+	private boolean putUser(String userData, String[] parsed) throws AuthenticationDataException{
 		String id;
 		String name;	
 		
-		parsed = userData.split(this.delims);
 		if(parsed.length != 3){
 			throw new AuthenticationDataException("Incorrect number of fields", 
 												  userData);
@@ -345,9 +399,11 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 			User u = new User(id, name);
 			this.userMap.put(id, u);
 			System.out.println("User " + id + " was added!");
+			return true;
 		}
 		else{
 			System.out.println("User " + id + " is already in the system.");
+			return false;
 		}
 	}
 
@@ -366,6 +422,17 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 	@Override
 	public void addRole(String accessToken, String roleData)
 			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().split(roleData);
+		commitJournal(defineRole(accessToken, roleData, parsed), roleData);
+	}
+
+	/**
+	 * Creates a new Role, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long defineRole(String accessToken, String roleData, String[] parsed)
+			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
 		try{
 			String perm = "define_role";
 			boolean hasAccess = verifyAccess(accessToken, perm);
@@ -378,12 +445,22 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}
-		String[] parsed;
+		return putRole(roleData, parsed) ? journal("define_role", roleData, roleData) : 0;
+	}
+
+	/**
+	 * Parses a line of Role data and applies it, without checking access or journaling it.
+	 * 
+	 * @param roleData line of Role data to process
+	 * @param parsed fields of the line
+	 * @return true if the Role was added
+	 * @throws AuthenticationDataException on error parsing or validating the data
+	 */
+	private boolean putRole(String roleData, String[] parsed) throws AuthenticationDataException{
 		String id;
 		String name;	
 		String description;
 		
-		parsed = roleData.split(this.delims);
 		if(parsed.length != 4){
 			throw new AuthenticationDataException("Incorrect number of fields", 
 												  roleData);
@@ -397,9 +474,11 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 			Role r = new Role(id, name, description);
 			this.roleMap.put(id, r);
 			System.out.println("Role " + id + " was added!");
+			return true;
 		}
 		else{
 			System.out.println("Role " + id + " is already in the system.");
+			return false;
 		}	
 	}
 
@@ -418,6 +497,17 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 	@Override
 	public void addPermission(String accessToken, String permissionData)
 			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().split(permissionData);
+		commitJournal(definePermission(accessToken, permissionData, parsed), permissionData);
+	}
+
+	/**
+	 * Creates a new Permission, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long definePermission(String accessToken, String permissionData, String[] parsed)
+			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
 		try{
 			String perm = "define_permission";
 			boolean hasAccess = verifyAccess(accessToken, perm);
@@ -430,13 +520,23 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}
-		String[] parsed;
+		return putPermission(permissionData, parsed) ? journal("define_permission", permissionData, permissionData) : 0;
+	}
+
+	/**
+	 * Parses a line of Permission data and applies it, without checking access or journaling it.
+	 * 
+	 * @param permissionData line of Permission data to process
+	 * @param parsed fields of the line
+	 * @return true if the Permission was added
+	 * @throws AuthenticationDataException on error parsing or validating the data
+	 */
+	private boolean putPermission(String permissionData, String[] parsed) throws AuthenticationDataException{
 		String id;
 		String name;	
 		String description;
 		String serviceId;
 		
-		parsed = permissionData.split(this.delims);
 		if(parsed.length != 5){
 			throw new AuthenticationDataException("Incorrect number of fields", 
 												  permissionData);
@@ -456,9 +556,11 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 			this.permissionMap.put(id, p);
 			this.serviceMap.get(serviceId).setPermissions(p);
 			System.out.println("Permission " + id + " was added!");
+			return true;
 		}
 		else{
 			System.out.println("Permission " + id + " is already in the system.");
+			return false;
 		}
 	}
 
@@ -477,6 +579,17 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 	@Override
 	public void addCredential(String accessToken, String credentialData)
 			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().split(credentialData);
+		commitJournal(addUserCredential(accessToken, credentialData, parsed), credentialData);
+	}
+
+	/**
+	 * Creates and adds a Credential to an existing User, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long addUserCredential(String accessToken, String credentialData, String[] parsed)
+			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
 		try{
 			String perm = "add_credential_to_user";
 			boolean hasAccess = verifyAccess(accessToken, perm);
@@ -489,12 +602,29 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}
-		String[] parsed;
+		Credential c = putCredential(credentialData, parsed);
+		if(c == null){
+			return 0;
+		}
+		// the password is journaled only as its salted hash
+		return journal("add_credential_hash", credentialData, c.getUserId(), c.getUserName(),
+					   Base64.getEncoder().encodeToString(c.getPasswordHash()),
+					   Base64.getEncoder().encodeToString(c.getSalt()));
+	}
+
+	/**
+	 * Parses a line of Credential data and applies it, without checking access or journaling it.
+	 * 
+	 * @param credentialData line of Credential data to process
+	 * @param parsed fields of the line
+	 * @return the added Credential, or null if it already exists
+	 * @throws AuthenticationDataException on error parsing or validating the data
+	 */
+	private Credential putCredential(String credentialData, String[] parsed) throws AuthenticationDataException{
 		String userId;
 		String userName;	
 		String password;
 		
-		parsed = credentialData.split(this.delims);
 		if(parsed.length != 4){
 			throw new AuthenticationDataException("Incorrect number of fields", 
 												  credentialData);
@@ -520,6 +650,7 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 				this.credentialMap.put(userName, c);
 				this.userMap.get(userId).setCredentials(c);
 				System.out.println("Credential " + userName + " was added!");
+				return c;
 			} catch (UnsupportedEncodingException e) {
 				throw new AuthenticationDataException("System is unable to " +
 					"securely store password", credentialData);
@@ -533,6 +664,7 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		}
 		else{
 			System.out.println("Credential " + userName + " is already in the system.");
+			return null;
 		}
 	}
 
@@ -551,6 +683,17 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 	@Override
 	public void addRoleEntitlement(String accessToken, String entitlementData)
 			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().split(entitlementData);
+		commitJournal(addEntitlementToRole(accessToken, entitlementData, parsed), entitlementData);
+	}
+
+	/**
+	 * Adds an existing entitlement to an existing Role, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long addEntitlementToRole(String accessToken, String entitlementData, String[] parsed)
+			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
 		try{
 			String perm = "add_entitlement_to_role";
 			boolean hasAccess = verifyAccess(accessToken, perm);
@@ -563,11 +706,21 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}
-		String[] parsed;
+		return putRoleEntitlement(entitlementData, parsed) ? journal("add_entitlement_to_role", entitlementData, entitlementData) : 0;
+	}
+
+	/**
+	 * Parses a line of entitlement data and applies it, without checking access or journaling it.
+	 * 
+	 * @param entitlementData line of entitlement data to process
+	 * @param parsed fields of the line
+	 * @return true, as adding an entitlement always changes the data
+	 * @throws AuthenticationDataException on error parsing or validating the data
+	 */
+	private boolean putRoleEntitlement(String entitlementData, String[] parsed) throws AuthenticationDataException{
 		String roleId;
 		String entitlementId;
 		
-		parsed = entitlementData.split(this.delims);
 		if(parsed.length != 3){
 			throw new AuthenticationDataException("Incorrect number of fields", 
 												  entitlementData);
@@ -593,6 +746,7 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		}
 		System.out.println("Entitlement " + entitlementId + " was added to role " +
 				   roleId + "!");
+		return true;
 	}
 
 	/**
@@ -610,6 +764,17 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 	@Override
 	public void addUserEntitlement(String accessToken, String entitlementData)
 			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().split(entitlementData);
+		commitJournal(addEntitlementToUser(accessToken, entitlementData, parsed), entitlementData);
+	}
+
+	/**
+	 * Adds an existing entitlement to an existing User, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long addEntitlementToUser(String accessToken, String entitlementData, String[] parsed)
+			throws AuthenticationDataException, PermissionException, InvalidAccessTokenException {
 		try{
 			String perm = "add_entitlement_to_user";
 			boolean hasAccess = verifyAccess(accessToken, perm);
@@ -622,11 +787,21 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}
-		String[] parsed;
+		return putUserEntitlement(entitlementData, parsed) ? journal("add_entitlement_to_user", entitlementData, entitlementData) : 0;
+	}
+
+	/**
+	 * Parses a line of entitlement data and applies it, without checking access or journaling it.
+	 * 
+	 * @param entitlementData line of entitlement data to process
+	 * @param parsed fields of the line
+	 * @return true, as adding an entitlement always changes the data
+	 * @throws AuthenticationDataException on error parsing or validating the data
+	 */
+	private boolean putUserEntitlement(String entitlementData, String[] parsed) throws AuthenticationDataException{
 		String userId;
 		String entitlementId;
 		
-		parsed = entitlementData.split(this.delims);
 		if(parsed.length != 3){
 			throw new AuthenticationDataException("Incorrect number of fields", 
 												  entitlementData);
@@ -652,6 +827,129 @@ public class AuthenticationServiceAPI implements AuthenticationService{
 		}
 		System.out.println("Entitlement " + entitlementId + " was added to user " +
 						   userId + "!");
+		return true;
+	}
+
+	/**
+	 * Journals Service, User, Role, Permission, Credential, and entitlement changes from now on,
+	 * and registers the service to replay the journal's authentication records on restart.
+	 * Credentials are journaled as their salted password hash, never their password.
+	 * 
+	 * @param journal journal to record changes in
+	 */
+	public void setJournal(MutationJournal journal){
+		this.journal = journal;
+		journal.register(JOURNAL_SERVICE, new MutationJournal.Replayer(){
+			private final CsvTokenizer csv = new CsvTokenizer();
+
+			@Override
+			public void replay(long sequence, String operation, String[] fields) throws JournalException{
+				replayChange(sequence, operation, fields, this.csv);
+			}
+
+			@Override
+			public void endBatch(){
+			}
+		});
+	}
+
+	/**
+	 * Reapplies one journaled change without checking access or journaling it again, splitting
+	 * the journaled line with the replaying reader's tokenizer.
+	 */
+	private void replayChange(long sequence, String operation, String[] fields, CsvTokenizer csv)
+			throws JournalException{
+		try{
+			if(operation.equals("define_service")){
+				putService(fields[0], csv.split(fields[0]));
+			}
+			else if(operation.equals("create_user")){
+				putUser(fields[0], csv.split(fields[0]));
+			}
+			else if(operation.equals("define_role")){
+				putRole(fields[0], csv.split(fields[0]));
+			}
+			else if(operation.equals("define_permission")){
+				putPermission(fields[0], csv.split(fields[0]));
+			}
+			else if(operation.equals("add_credential_hash")){
+				restoreCredential(fields[0], fields[1], Base64.getDecoder().decode(fields[2]),
+								  Base64.getDecoder().decode(fields[3]));
+			}
+			else if(operation.equals("add_entitlement_to_role")){
+				putRoleEntitlement(fields[0], csv.split(fields[0]));
+			}
+			else if(operation.equals("add_entitlement_to_user")){
+				putUserEntitlement(fields[0], csv.split(fields[0]));
+			}
+			else{
+				throw new JournalException("Error replaying journal: unknown authentication operation " +
+										   operation + " at record " + sequence, null);
+			}
+		} catch(AuthenticationDataException e){
+			throw new JournalException("Error replaying journal: " + e.getMessage() + " at record " +
+									   sequence, null);
+		} catch(IllegalArgumentException e){
+			throw new JournalException("Error replaying journal: malformed credential at record " +
+									   sequence, null);
+		}
+	}
+
+	/**
+	 * Adds a Credential whose password was already hashed to an existing User.
+	 */
+	private void restoreCredential(String userId, String userName, byte[] passwordHash, byte[] salt)
+			throws AuthenticationDataException{
+		if(!this.userMap.containsKey(userId)){
+			throw new AuthenticationDataException("User " + userId +
+				"does not exist", userName);
+		}
+		if(!this.credentialMap.containsKey(userName)){
+			Credential c = new Credential(userId, userName, passwordHash, salt);
+			this.credentialMap.put(userName, c);
+			this.userMap.get(userId).setCredentials(c);
+			System.out.println("Credential " + userName + " was added!");
+		}
+	}
+
+	/**
+	 * Appends a change to the journal, if there is one.
+	 * 
+	 * @param operation operation that made the change
+	 * @param data line of data the change was made from
+	 * @param fields fields to journal
+	 * @return sequence number of the record, or 0 if there is no journal
+	 * @throws AuthenticationDataException when the record cannot be journaled
+	 */
+	private long journal(String operation, String data, String... fields)
+			throws AuthenticationDataException{
+		if(this.journal == null){
+			return 0;
+		}
+		try{
+			return this.journal.append(JOURNAL_SERVICE, operation, fields);
+		} catch(JournalException e){
+			throw new AuthenticationDataException("Unable to journal change: " + e.getMessage(), data);
+		}
+	}
+
+	/**
+	 * Makes journaled changes durable.
+	 * 
+	 * @param sequence sequence number of the last change to make durable; 0 if nothing was
+	 * 		   journaled
+	 * @param data line or file the changes were made from
+	 * @throws AuthenticationDataException when the records cannot be written
+	 */
+	private void commitJournal(long sequence, String data) throws AuthenticationDataException{
+		if(this.journal == null || sequence == 0){
+			return;
+		}
+		try{
+			this.journal.commit(sequence);
+		} catch(JournalException e){
+			throw new AuthenticationDataException("Unable to journal change: " + e.getMessage(), data);
+		}
 	}
 
 	/**
@@ -34,6 +34,17 @@ public class Credential {
 		this.password = hashPassword(password);
 	}
 	
+	/**
+	 * Credential constructor for a password that was already hashed, such as one replayed
+	 * from the mutation journal.
+	 */
+	Credential(String userId, String userName, byte[] passwordHash, byte[] salt){
+		this.userId = userId;
+		this.userName = userName;
+		this.salt = salt.clone();
+		this.password = passwordHash.clone();
+	}
+	
 	/**
 	 * Generates salt for the hashing.
 	 * 
@@ -87,4 +98,12 @@ public class Credential {
 	public String getUserName() {
 		return userName;
 	}
+
+	byte[] getPasswordHash() {
+		return password.clone();
+	}
+
+	byte[] getSalt() {
+		return salt.clone();
+	}
 }
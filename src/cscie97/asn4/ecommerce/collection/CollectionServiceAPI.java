@@ -5,6 +5,8 @@ import java.util.*;
 
 import cscie97.asn4.ecommerce.product.*;
 import cscie97.asn4.ecommerce.authentication.*;
+import cscie97.asn4.ecommerce.csv.*;
+import cscie97.asn4.ecommerce.journal.*;
 
 /**
  * {@code CollectionServiceAPI} is responsible for creating and updating Collections, and providing
@@ -18,6 +20,14 @@ public class CollectionServiceAPI implements CollectionService {
     private Map<String, Product> productMap;
     // The lookup map for text search criteria
     private Map<String, Set<Collection>> searchTextMap;
+    // Type-ahead completions over the text search terms; null until the next completion request
+    // after searchTextMap changes
+    private CompletionIndex textCompletions;
+    // Journal of Collection changes; null when changes are not journaled
+    private MutationJournal journal;
+    
+    // Service name the Collection changes are journaled under
+    static final String JOURNAL_SERVICE = "collection";
     
     /**
      * Private CollectionServiceAPI constructor
@@ -53,21 +63,11 @@ public class CollectionServiceAPI implements CollectionService {
      */
     private void updateSearchTextMap(Collection c){
 
-    	String delims = " +"; // whitespace regex
-    	String punc = "\\p{P}"; // punctuation regex
-    	
-    	// remove punctuation from collection name and description, parse on whitespace,
-    	// and create a set from the two arrays so we that we only check and add unique words
-    	String[]textName = c.getName().toLowerCase().replaceAll(punc, "").split(delims);
-    	String[] textDesc = c.getDescription().toLowerCase().replaceAll(punc, "").split(delims);
-
+    	// analyze the collection name and description with the same analyzer the Product Catalog
+    	// uses, and create a set from the terms so that we only check and add unique words
     	Set<String> textCombined = new HashSet<String>();
-    	for(String t:textName){
-    		textCombined.add(t);
-    	}
-    	for(String t:textDesc){
-    		textCombined.add(t);
-    	}
+    	textCombined.addAll(TextAnalyzer.STANDARD.analyze(c.getName()));
+    	textCombined.addAll(TextAnalyzer.STANDARD.analyze(c.getDescription()));
 
     	for(String str: textCombined){
         	// add the collection to the searchTextMap for each word
@@ -81,6 +81,40 @@ public class CollectionServiceAPI implements CollectionService {
     			this.searchTextMap.get(word).add(c);
     		}
     	}
+    	this.textCompletions = null;
+    }
+
+    /**
+     * Completes a partially typed word against the terms of Collection names and descriptions,
+     * ranked by the number of Collections containing them. Only the last word of the prefix is
+     * completed, and it is folded to lowercase with its punctuation removed.
+     * 
+     * @param prefix text typed so far
+     * @param n maximum number of completions
+     * @return up to N terms, best first
+     */
+    public List<String> completeText(String prefix, int n){
+    	List<String> typed = TextAnalyzer.SIMPLE.analyze(prefix);
+    	String last = typed.isEmpty() ? "" : typed.get(typed.size() - 1);
+    	return getTextCompletions().complete(last, n, CompletionIndex.Ranking.DOC_FREQUENCY);
+    }
+
+    /**
+     * Returns the completion index over the text search terms, rebuilding it if searchTextMap
+     * has changed since it was last built.
+     * 
+     * @return completion index over the text search terms
+     */
+    private synchronized CompletionIndex getTextCompletions(){
+    	if(this.textCompletions == null){
+    		List<String> terms = new ArrayList<String>(this.searchTextMap.keySet());
+    		int[] docFreqs = new int[terms.size()];
+    		for(int i = 0; i < terms.size(); i++){
+    			docFreqs[i] = this.searchTextMap.get(terms.get(i)).size();
+    		}
+    		this.textCompletions = new CompletionIndex(terms, docFreqs, null);
+    	}
+    	return this.textCompletions;
     }
     
     /**
@@ -154,6 +188,96 @@ public class CollectionServiceAPI implements CollectionService {
     	}
     }
     
+    /**
+     * Journals Collection changes from now on, and registers the service to replay the
+     * journal's Collection records on restart. Collection records are replayed after the
+     * catalog records journaled before them, so the Products they add exist.
+     * 
+     * @param journal journal to record changes in
+     */
+    public void setJournal(MutationJournal journal){
+    	this.journal = journal;
+    	journal.register(JOURNAL_SERVICE, new MutationJournal.Replayer(){
+    		private final CsvTokenizer csv = new CsvTokenizer();
+
+    		@Override
+    		public void replay(long sequence, String operation, String[] fields) throws JournalException{
+    			replayChange(sequence, operation, fields, this.csv);
+    		}
+
+    		@Override
+    		public void endBatch(){
+    		}
+    	});
+    }
+    
+    /**
+     * Reapplies one journaled change without checking access or journaling it again, splitting
+     * the journaled line with the replaying reader's tokenizer.
+     */
+    private void replayChange(long sequence, String operation, String[] fields, CsvTokenizer csv)
+    		throws JournalException{
+    	try{
+    		if(operation.equals("define_collection")){
+    			putCollection(fields[0], csv.split(fields[0]));
+    		}
+    		else if(operation.equals("add_collection_content")){
+    			putCollectionContent(fields[0], csv.split(fields[0]));
+    		}
+    		else if(operation.equals("set_dynamic_criteria")){
+    			putCriteria(fields[0], csv.splitAll(fields[0]));
+    		}
+    		else{
+    			throw new JournalException("Error replaying journal: unknown collection operation " + 
+    									   operation + " at record " + sequence, null);
+    		}
+    	}
+    	catch(CollectibleException ce){
+    		throw new JournalException("Error replaying journal: " + ce.getMessage() + " at record " + 
+    								   sequence, null);
+    	}
+    }
+    
+    /**
+     * Appends a change to the journal, if there is one.
+     * 
+     * @param operation operation that made the change
+     * @param data line of data the change was made from
+     * @return sequence number of the record, or 0 if there is no journal
+     * @throws CollectibleException when the record cannot be journaled
+     */
+    private long journal(String operation, String data) throws CollectibleException{
+    	if(this.journal == null){
+    		return 0;
+    	}
+    	try{
+    		return this.journal.append(JOURNAL_SERVICE, operation, data);
+    	}
+    	catch(JournalException je){
+    		throw new CollectibleException("Error journaling Collection change: " + je.getMessage(), data);
+    	}
+    }
+    
+    /**
+     * Makes journaled changes durable.
+     * 
+     * @param sequence sequence number of the last change to make durable; 0 if nothing was
+     *        journaled
+     * @param data line or file the changes were made from
+     * @throws CollectibleException when the records cannot be written
+     */
+    private void commitJournal(long sequence, String data) throws CollectibleException{
+    	if(this.journal == null || sequence == 0){
+    		return;
+    	}
+    	try{
+    		this.journal.commit(sequence);
+    	}
+    	catch(JournalException je){
+    		throw new CollectibleException("Error journaling Collection change: " + je.getMessage(), data);
+    	}
+    }
+    
     /**
      * Recursively builds a depth-first list of child Collections and Products.
      * 
@@ -264,9 +388,10 @@ public class CollectionServiceAPI implements CollectionService {
 	        BufferedReader br = new BufferedReader(fr);
 	       
 	        String line;
-	        String delims = "(?<!\\\\),"; // negative lookbehind regex for comma not preceded by backslash
+	        CsvTokenizer csv = new CsvTokenizer();
 	        String[] parsed;
 	        String command;
+	        long journaled = 0;
 	       
 	        try {
 				while((line = br.readLine()) != null){
@@ -274,18 +399,21 @@ public class CollectionServiceAPI implements CollectionService {
 				    if((line.trim()).equals("") || line.trim().startsWith("#")){
 				        continue;
 				    }
-				    parsed = line.trim().split(delims);
-				    command = parsed[0].toLowerCase();
+				    // criteria keep their trailing blank fields; the other commands drop them
+				    parsed = csv.splitAll(line);
+				    command = parsed[0].trim().toLowerCase();
 				    
 				    // look at command and delegate to appropriate method
 				    if(command.equals("define_collection")){
-				    	createCollection(accessToken, line);
+				    	journaled = Math.max(journaled, defineCollection(accessToken, line,
+				    										CsvTokenizer.dropTrailing(parsed)));
 				    }
 				    else if(command.equals("add_collection_content")){
-				    	addContent(accessToken, line);
+				    	journaled = Math.max(journaled, addCollectionContent(accessToken, line,
+				    										CsvTokenizer.dropTrailing(parsed)));
 				    }
 				    else if(command.equals("set_dynamic_criteria")){
-				    	setCriteria(accessToken, line);
+				    	journaled = Math.max(journaled, setDynamicCriteria(accessToken, line, parsed));
 				    }
 				    else if(command.equals("search_collection")){
 				    	searchCollections(line);
@@ -296,6 +424,7 @@ public class CollectionServiceAPI implements CollectionService {
 				    										line + ".", line, fileName);
 				    }  
 				}
+				commitJournal(journaled, fileName);
 			} catch (IOException ioe) {
 				System.out.println(ioe.getMessage());
 				System.exit(1);
@@ -314,6 +443,17 @@ public class CollectionServiceAPI implements CollectionService {
 	@Override
 	public void createCollection(String accessToken, String collectionData)
 			throws CollectibleException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().split(collectionData);
+		commitJournal(defineCollection(accessToken, collectionData, parsed), collectionData);
+	}
+
+	/**
+	 * Creates a new Collection, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long defineCollection(String accessToken, String collectionData, String[] parsed)
+			throws CollectibleException, PermissionException, InvalidAccessTokenException {
 		try{
 	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
 			String perm = "create_collection";
@@ -326,14 +466,23 @@ public class CollectionServiceAPI implements CollectionService {
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}   
-		String delims = "(?<!\\\\),"; // negative lookbehind regex for comma not preceded by backslash
-		String[] parsed;
+		return putCollection(collectionData, parsed) ? journal("define_collection", collectionData) : 0;
+	}
+
+	/**
+	 * Parses a line of Collection data and applies it, without checking access or journaling it.
+	 * 
+	 * @param collectionData line of Collection data to process
+	 * @param parsed fields of the line
+	 * @return true if the Collection was added
+	 * @throws CollectibleException on error parsing or validating the data
+	 */
+	private boolean putCollection(String collectionData, String[] parsed) throws CollectibleException{
 		String type;
 		String id;
 		String name;
 		String desc;
 
-		parsed = collectionData.split(delims);
 		if(parsed.length != 5){
 			throw new CollectibleException("Error encountered creating Collection: Incorrect number of " +
 										   "fields (5) in line \"" + collectionData + "\"", collectionData);
@@ -352,6 +501,7 @@ public class CollectionServiceAPI implements CollectionService {
 				this.collectionMap.put(id, sc);
 				updateSearchTextMap(sc);
 				System.out.println("Collection " + id + " was added!");
+				return true;
 				
 			}
 			else if (type.equals("dynamic")){
@@ -359,6 +509,7 @@ public class CollectionServiceAPI implements CollectionService {
 				this.collectionMap.put(id, dc);
 				updateSearchTextMap(dc);
 				System.out.println("Collection " + id + " was added!");
+				return true;
 			}
 			else{
 				throw new CollectibleException("Error encountered creating Collection: Invalid type of " +
@@ -367,12 +518,24 @@ public class CollectionServiceAPI implements CollectionService {
 		}
 		else{
 			System.out.println("Collection " + id + " is already in the system.");
+			return false;
 		}
 	}	
 
 	@Override
 	public void addContent(String accessToken, String contentData)
 			throws CollectibleException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().split(contentData);
+		commitJournal(addCollectionContent(accessToken, contentData, parsed), contentData);
+	}
+
+	/**
+	 * Adds a Product or child Collection to a Collection, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long addCollectionContent(String accessToken, String contentData, String[] parsed)
+			throws CollectibleException, PermissionException, InvalidAccessTokenException {
 		try{
 	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
 			String perm = "add_content";
@@ -385,13 +548,22 @@ public class CollectionServiceAPI implements CollectionService {
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}   		
-		String delims = "(?<!\\\\),"; // negative lookbehind regex for comma not preceded by backslash
-		String[] parsed;
+		return putCollectionContent(contentData, parsed) ? journal("add_collection_content", contentData) : 0;
+	}
+
+	/**
+	 * Parses a line of Collection content data and applies it, without checking access or journaling it.
+	 * 
+	 * @param contentData line of Collection content data to process
+	 * @param parsed fields of the line
+	 * @return true, as the data always changes the Collection
+	 * @throws CollectibleException on error parsing or validating the data
+	 */
+	private boolean putCollectionContent(String contentData, String[] parsed) throws CollectibleException{
 		String collId;
 		String type;
 		String contId;
 
-		parsed = contentData.split(delims);
 		if(parsed.length != 4){
 			throw new CollectibleException("Error encountered adding content to Collection: Incorrect " +
 										   "number of fields (4) in line \"" + contentData +
@@ -434,11 +606,23 @@ public class CollectionServiceAPI implements CollectionService {
 										   "Collection in line \"" + contentData + "\" does not exist in system", 
 										   contentData);
 		}
+		return true;
 	}
 
 	@Override
 	public void setCriteria(String accessToken, String criteriaData)
 			throws CollectibleException, PermissionException, InvalidAccessTokenException {
+		String[] parsed = new CsvTokenizer().splitAll(criteriaData);
+		commitJournal(setDynamicCriteria(accessToken, criteriaData, parsed), criteriaData);
+	}
+
+	/**
+	 * Sets the search criteria of a dynamic Collection, journaling the change.
+	 * 
+	 * @return sequence number of the journaled change, or 0 if nothing was journaled
+	 */
+	private long setDynamicCriteria(String accessToken, String criteriaData, String[] parsed)
+			throws CollectibleException, PermissionException, InvalidAccessTokenException {
 		try{
 	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
 			String perm = "add_content";
@@ -451,11 +635,20 @@ public class CollectionServiceAPI implements CollectionService {
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}   
-        String delims = "(?<!\\\\),"; // negative lookbehind regex for comma not preceded by backslash
-        String parsed[];
+		return putCriteria(criteriaData, parsed) ? journal("set_dynamic_criteria", criteriaData) : 0;
+	}
+
+	/**
+	 * Parses a line of dynamic criteria data and applies it, without checking access or journaling it.
+	 * 
+	 * @param criteriaData line of dynamic criteria data to process
+	 * @param parsed fields of the line
+	 * @return true, as the data always changes the Collection
+	 * @throws CollectibleException on error parsing or validating the data
+	 */
+	private boolean putCriteria(String criteriaData, String[] parsed) throws CollectibleException{
         String collId;
         
-        parsed = criteriaData.split(delims, -1); //we want to keep trailing blanks
 		if(parsed.length != 10){
 			throw new CollectibleException("Error encountered adding criteria to Collection: Incorrect " +
 										   "number of fields (10) in line \"" + criteriaData +
@@ -474,20 +667,27 @@ public class CollectionServiceAPI implements CollectionService {
 	    	}
 	    	else{
 	    		String criteria[] = Arrays.copyOfRange(parsed, 2, 10);
-	    		((DynamicCollection) this.collectionMap.get(collId)).setCriteria(criteria);
+	    		try{
+	    			((DynamicCollection) this.collectionMap.get(collId)).setCriteria(criteria);
+	    		}
+	    		catch(SearchEngineException see){
+	    			throw new CollectibleException("Error encountered adding criteria to Collection: " +
+	    										   see.getMessage() + " in line \"" + criteriaData + 
+	    										   "\"", criteriaData);
+	    		}
 	    		System.out.println("Search criteria has been added to collection " +
 	    						   collId);
 	    	}
-		} 
+		}
+		return true;
 	}
 
 	@Override
 	public Set<Collection> searchCollections(String searchData)
 			throws CollectionSearchException {
     	String lineDelims = ",";
-    	String wordDelims = " +"; // whitespace regex
     	String[] parsed;
-    	String[] words;
+    	List<String> words;
     	Set<Collection> results = new HashSet<Collection>();
     	
     	parsed = searchData.split(lineDelims, -1); // we want to keep trailing blanks
@@ -498,15 +698,14 @@ public class CollectionServiceAPI implements CollectionService {
 		}
 		else{
 			System.out.println("\nprocessing " + searchData + "\n");
-			words = parsed[1].toLowerCase().trim().split(wordDelims); 
-	    	if(words[0].equals("")){ // blank criteria returns all collections
+	    	if(parsed[1].trim().equals("")){ // blank criteria returns all collections
 	    		for(Object c : this.collectionMap.values()){
 	    			results.add((Collection) c);
 	    		}
 	    	}
 	    	else{
-	    		for(int i = 0; i < words.length; i++){
-	    			String w = words[i];
+	    		words = TextAnalyzer.STANDARD.analyze(parsed[1]);
+	    		for(String w : words){
 	    			if(this.searchTextMap.get(w) != null){
 	    				results.addAll(this.searchTextMap.get(w));
 	    			}
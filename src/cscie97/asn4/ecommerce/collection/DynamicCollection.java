@@ -10,8 +10,8 @@ import java.util.*;
  */
 public class DynamicCollection extends Collection{
 
-	// DynamicCollection's product criteria
-	private String[] criteria;
+	// DynamicCollection's product criteria, parsed once when set
+	private ProductQuery query;
 	
 	/**
 	 * Default DynamicCollection Constructor
@@ -31,29 +31,36 @@ public class DynamicCollection extends Collection{
 	
 	/**
 	 * Interacts with the Product Service API to return the set of Content objects that match the
-	 * DynamicCollection's search criteria.
+	 * DynamicCollection's search criteria. The criteria were parsed when they were set, so each
+	 * call only executes the compiled query.
 	 * 
 	 * @return Set of Content objects matching the search criteria
 	 */
 	public Set<Content> getProducts(){
-		Set<Content> products = new HashSet<Content>();
     	ProductCatalog pc = ProductCatalog.getInstance();
-    	try {
-			products = pc.executeSearch(this.criteria);
-		} catch (SearchEngineException see) {
-			System.out.println("Error encountered querying Product API with search criteria");
-			see.getMessage();
-			System.exit(1);
-		}
-		return products;
+		return pc.executeSearch(this.query);
 	}
 	
-	public void setCriteria(String[] criteria) {
-		this.criteria = criteria;
+	/**
+	 * Parses and sets the DynamicCollection's search criteria.
+	 * 
+	 * @param criteria search criteria fields
+	 * @throws SearchEngineException when the criteria are empty or malformed
+	 */
+	public void setCriteria(String[] criteria) throws SearchEngineException {
+		this.query = ProductQuery.parse(criteria).compile();
 	}
 
 	public String[] getCriteria() {
-		return criteria;
+		return this.query == null ? null : this.query.getCriteria();
+	}
+	
+	public void setQuery(ProductQuery query) {
+		this.query = query;
+	}
+
+	public ProductQuery getQuery() {
+		return this.query;
 	}
 
 }
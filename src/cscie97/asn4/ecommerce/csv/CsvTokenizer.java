@@ -0,0 +1,160 @@
+package cscie97.asn4.ecommerce.csv;
+
+import java.util.*;
+
+/**
+ * {@code CsvTokenizer} splits the lines of the Mobile Application Store's CSV files into fields.
+ * A comma separates fields unless it is escaped by a backslash; the backslash is kept in the
+ * field, as the services' data has always been read. List fields are separated further on pipes
+ * with {@link #splitList(String)}.
+ *
+ * The tokenizer is a two-state scanner over the line's characters, so no regular expression is
+ * compiled or run per line. The field offsets it records are kept between lines, so a tokenizer
+ * should be created once per file being read and used by one thread at a time.
+ */
+public class CsvTokenizer {
+
+    // Separates fields, unless escaped
+    private static final char DELIMITER = ',';
+
+    // Escapes the delimiter that follows it
+    private static final char ESCAPE = '\\';
+
+    // Separates the values of a list field
+    private static final char LIST_DELIMITER = '|';
+
+    // Start and end offsets of each field of the line being split; grown as needed, and reused
+    // for every line
+    private int[] starts;
+    private int[] ends;
+
+    /**
+     * Default CsvTokenizer constructor
+     */
+    public CsvTokenizer(){
+        this.starts = new int[16];
+        this.ends = new int[16];
+    }
+
+    /**
+     * Splits a line into fields. Like {@code line.split("(?<!\\\\),")}, trailing empty fields are
+     * dropped, and a line without a delimiter is one field.
+     *
+     * @param line line to split
+     * @return the fields
+     */
+    public String[] split(String line){
+        return split(line, false);
+    }
+
+    /**
+     * Splits a line into fields, keeping trailing empty fields, like
+     * {@code line.split("(?<!\\\\),", -1)}.
+     *
+     * @param line line to split
+     * @return the fields
+     */
+    public String[] splitAll(String line){
+        return split(line, true);
+    }
+
+    /**
+     * Drops the trailing empty fields of a line split with {@link #splitAll(String)}, giving the
+     * fields {@link #split(String)} would have returned for the line without splitting it again.
+     *
+     * @param fields fields of a line, including trailing empty fields
+     * @return the fields without the trailing empty fields
+     */
+    public static String[] dropTrailing(String[] fields){
+        if(fields.length == 1){
+            return fields;
+        }
+        int count = fields.length;
+        while(count > 0 && fields[count - 1].isEmpty()){
+            count--;
+        }
+        return count == fields.length ? fields : Arrays.copyOf(fields, count);
+    }
+
+    private String[] split(String line, boolean keepTrailing){
+        int n = line.length();
+        int count = 0;
+        int start = 0;
+        boolean escaped = false;
+        for(int i = 0; i < n; i++){
+            char ch = line.charAt(i);
+            if(ch == DELIMITER && !escaped){
+                record(count++, start, i);
+                start = i + 1;
+            }
+            escaped = ch == ESCAPE;
+        }
+        if(count == 0){
+            return new String[]{line};
+        }
+        record(count++, start, n);
+        if(!keepTrailing){
+            while(count > 0 && this.starts[count - 1] == this.ends[count - 1]){
+                count--;
+            }
+        }
+        String[] fields = new String[count];
+        for(int i = 0; i < count; i++){
+            fields[i] = line.substring(this.starts[i], this.ends[i]);
+        }
+        return fields;
+    }
+
+    private void record(int field, int start, int end){
+        if(field == this.starts.length){
+            int[] grownStarts = new int[field * 2];
+            int[] grownEnds = new int[field * 2];
+            System.arraycopy(this.starts, 0, grownStarts, 0, field);
+            System.arraycopy(this.ends, 0, grownEnds, 0, field);
+            this.starts = grownStarts;
+            this.ends = grownEnds;
+        }
+        this.starts[field] = start;
+        this.ends[field] = end;
+    }
+
+    /**
+     * Splits a list field into its values. Like {@code field.split("\\|")}, trailing empty values
+     * are dropped, and a field without a pipe is one value.
+     *
+     * @param field list field to split
+     * @return the values
+     */
+    public static String[] splitList(String field){
+        int n = field.length();
+        int count = 0;
+        for(int i = 0; i < n; i++){
+            if(field.charAt(i) == LIST_DELIMITER){
+                count++;
+            }
+        }
+        if(count == 0){
+            return new String[]{field};
+        }
+        // drop trailing empty values
+        int end = n;
+        while(end > 0 && field.charAt(end - 1) == LIST_DELIMITER){
+            end--;
+            count--;
+        }
+        if(end == 0){
+            return new String[0];
+        }
+        String[] values = new String[count + 1];
+        int start = 0;
+        int v = 0;
+        for(int i = 0; i < end; i++){
+            if(field.charAt(i) == LIST_DELIMITER){
+                values[v++] = field.substring(start, i);
+                start = i + 1;
+            }
+        }
+        values[v] = field.substring(start, end);
+        return values;
+    }
+}
@@ -0,0 +1,38 @@
+package cscie97.asn4.ecommerce.journal;
+
+/**
+ * {@code JournalException} is an exception for errors encountered writing, reading, or replaying
+ * a mutation journal (ex. the journal file cannot be forced to disk).
+ */
+public class JournalException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	// Journal file being accessed
+	private String fileName;
+
+	/*
+	 * Default JournalException constructor
+	 */
+	public JournalException(){
+		super();
+	}
+
+	/*
+	 * JournalException constructor with details
+	 */
+	public JournalException(String msg, String fileName){
+		super(msg);
+		this.setFileName(fileName);
+	}
+
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public String getFileName() {
+		if(fileName == null){
+			fileName = "";
+		}
+		return fileName;
+	}
+}
@@ -0,0 +1,590 @@
+package cscie97.asn4.ecommerce.journal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * {@code MutationJournal} is an append-only log of the mutations applied to the Mobile Application
+ * Store's services, so that changes made since the last checkpoint survive a restart. Each record
+ * holds a sequence number, the service and operation that made the change, and the operation's
+ * fields, and is protected by a CRC32 checksum.
+ *
+ * Appending a record only buffers it; {@link #commit(long)} makes it durable. Threads committing
+ * at the same time share one write and one fsync: the first becomes the leader and forces every
+ * record buffered so far, while the others wait for it and return once their record is covered.
+ *
+ * On restart a service registers a {@link Replayer} and {@link #replay()} hands it its records in
+ * sequence order. A service that checkpoints its state drops the records the checkpoint covers
+ * with {@link #compact(String, long)}, so recovery replays only the journal tail.
+ */
+public class MutationJournal {
+
+    // Identifies a journal file ("JRNL")
+    private static final int MAGIC = 0x4A524E4C;
+
+    // Format version written; files of other versions are rejected
+    static final int FORMAT_VERSION = 1;
+
+    // Magic, version, and the sequence number records continue from
+    private static final int HEADER_SIZE = 16;
+
+    // Largest record accepted when reading; a longer length is a torn or corrupt record
+    private static final int MAX_RECORD_SIZE = 1 << 26;
+
+    // Encoding of every string in the file
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Journal file
+    private final Path path;
+
+    // Open journal file, positioned at its end
+    private FileChannel channel;
+
+    // Guards every field below; held while appending, never while a leader writes
+    private final ReentrantLock lock;
+
+    // Signalled whenever a leader finishes a write
+    private final Condition flushed;
+
+    // Records appended but not yet written
+    private ByteArrayOutputStream buffer;
+
+    // Sequence number of the last record appended
+    private long appendedSequence;
+
+    // Sequence number of the last record forced to disk
+    private long durableSequence;
+
+    // True while a leader is writing and forcing a batch
+    private boolean flushing;
+
+    // Set when a write fails; records appended since may be lost, so nothing more is accepted
+    private IOException failure;
+
+    // Replayer of each service's records
+    private final Map<String, Replayer> replayers;
+
+    /**
+     * {@code Replayer} reapplies one service's journaled mutations during {@link #replay()}.
+     * Replaying must not journal the mutations again.
+     */
+    public interface Replayer {
+
+        /**
+         * Reapplies one journaled mutation.
+         *
+         * @param sequence sequence number of the record
+         * @param operation operation that made the change
+         * @param fields fields of the operation
+         * @throws JournalException when the mutation cannot be reapplied
+         */
+        void replay(long sequence, String operation, String[] fields) throws JournalException;
+
+        /**
+         * Called when a run of the service's records ends: before a record of another service
+         * is replayed, and after the last record. A service that batches replayed changes
+         * publishes them here.
+         *
+         * @throws JournalException when the batched changes cannot be applied
+         */
+        void endBatch() throws JournalException;
+    }
+
+    /**
+     * Private MutationJournal constructor; see {@link #open(String)}.
+     */
+    private MutationJournal(Path path, FileChannel channel, long lastSequence){
+        this.path = path;
+        this.channel = channel;
+        this.lock = new ReentrantLock();
+        this.flushed = this.lock.newCondition();
+        this.buffer = new ByteArrayOutputStream(1 << 16);
+        this.appendedSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        this.flushing = false;
+        this.replayers = new HashMap<String, Replayer>();
+    }
+
+    /**
+     * Opens a journal file, creating it if it does not exist. A record left incomplete or
+     * corrupt by a crash ends the journal: it and anything after it are truncated away, since
+     * their mutations were never acknowledged.
+     *
+     * @param fileName journal file
+     * @return the open journal, positioned to append after its last intact record
+     * @throws JournalException when the file cannot be opened or is not a journal
+     */
+    public static MutationJournal open(String fileName) throws JournalException{
+        Path path = Paths.get(fileName);
+        try{
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE);
+            try{
+                long lastSequence;
+                long end;
+                if(channel.size() == 0){
+                    writeFully(channel, header(0));
+                    channel.force(true);
+                    lastSequence = 0;
+                    end = HEADER_SIZE;
+                }
+                else{
+                    RecordReader reader = new RecordReader(path);
+                    try{
+                        lastSequence = reader.baseSequence;
+                        while(reader.next()){
+                            lastSequence = reader.sequence;
+                        }
+                        end = reader.end;
+                    }
+                    finally{
+                        reader.close();
+                    }
+                    if(end < channel.size()){
+                        channel.truncate(end);
+                        channel.force(true);
+                    }
+                }
+                channel.position(end);
+                return new MutationJournal(path, channel, lastSequence);
+            }
+            catch(IOException ioe){
+                channel.close();
+                throw ioe;
+            }
+        }
+        catch(IOException ioe){
+            throw new JournalException("Error opening journal: " + ioe.getMessage(), fileName);
+        }
+    }
+
+    /**
+     * Registers the replayer of a service's records.
+     *
+     * @param service service name the records are journaled under
+     * @param replayer replayer of the records
+     */
+    public void register(String service, Replayer replayer){
+        this.lock.lock();
+        try{
+            this.replayers.put(service, replayer);
+        }
+        finally{
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Buffers a mutation record. The record is not durable until a commit covers its sequence
+     * number.
+     *
+     * @param service service that made the change
+     * @param operation operation that made the change
+     * @param fields fields of the operation
+     * @return sequence number of the record
+     * @throws JournalException when an earlier write failed
+     */
+    public long append(String service, String operation, String... fields) throws JournalException{
+        this.lock.lock();
+        try{
+            checkFailure();
+            long sequence = this.appendedSequence + 1;
+            byte[] record = encode(sequence, service, operation, fields);
+            this.buffer.write(record, 0, record.length);
+            this.appendedSequence = sequence;
+            return sequence;
+        }
+        finally{
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Makes every record up to a sequence number durable, writing and forcing them to disk
+     * together with any other records buffered meanwhile.
+     *
+     * @param sequence sequence number to make durable; 0 or less returns at once
+     * @throws JournalException when the records cannot be written
+     */
+    public void commit(long sequence) throws JournalException{
+        this.lock.lock();
+        try{
+            while(this.durableSequence < sequence){
+                checkFailure();
+                if(this.flushing){
+                    // a leader is writing; its batch or the next one covers this record
+                    this.flushed.awaitUninterruptibly();
+                    continue;
+                }
+                this.flushing = true;
+                byte[] batch = this.buffer.toByteArray();
+                this.buffer.reset();
+                long through = this.appendedSequence;
+                this.lock.unlock();
+                IOException error = null;
+                try{
+                    writeFully(this.channel, batch);
+                    this.channel.force(false);
+                }
+                catch(IOException ioe){
+                    error = ioe;
+                }
+                finally{
+                    this.lock.lock();
+                    this.flushing = false;
+                    if(error == null){
+                        this.durableSequence = through;
+                    }
+                    else{
+                        this.failure = error;
+                    }
+                    this.flushed.signalAll();
+                }
+            }
+        }
+        finally{
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Replays every intact record to the replayer of its service, in sequence order. Called on
+     * restart, after the services have registered their replayers and loaded their
+     * checkpoints, and before any new mutation is journaled.
+     *
+     * @return number of records replayed
+     * @throws JournalException when the journal cannot be read, a record's service has no
+     *         replayer, or a replayer fails
+     */
+    public long replay() throws JournalException{
+        commit(lastSequence());
+        long count = 0;
+        Replayer current = null;
+        try{
+            RecordReader reader = new RecordReader(this.path);
+            try{
+                while(reader.next()){
+                    Replayer replayer;
+                    this.lock.lock();
+                    try{
+                        replayer = this.replayers.get(reader.service);
+                    }
+                    finally{
+                        this.lock.unlock();
+                    }
+                    if(replayer == null){
+                        throw new JournalException("Error replaying journal: no replayer for service " +
+                                                   reader.service + " at record " + reader.sequence,
+                                                   this.path.toString());
+                    }
+                    if(current != null && current != replayer){
+                        current.endBatch();
+                    }
+                    current = replayer;
+                    replayer.replay(reader.sequence, reader.operation, reader.fields);
+                    count++;
+                }
+            }
+            finally{
+                reader.close();
+            }
+        }
+        catch(IOException ioe){
+            throw new JournalException("Error replaying journal: " + ioe.getMessage(), this.path.toString());
+        }
+        finally{
+            if(current != null){
+                current.endBatch();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops a service's records up to a sequence number, once a checkpoint of the service's
+     * state covers them. The journal is rewritten to a temporary file that atomically replaces
+     * it, so a crash leaves either the old or the compacted journal. Appends wait meanwhile.
+     *
+     * @param service service whose records the checkpoint covers
+     * @param throughSequence last sequence number the checkpoint covers
+     * @throws JournalException when the journal cannot be rewritten
+     */
+    public void compact(String service, long throughSequence) throws JournalException{
+        this.lock.lock();
+        try{
+            while(this.flushing){
+                this.flushed.awaitUninterruptibly();
+            }
+            checkFailure();
+            Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+            try{
+                writeFully(this.channel, this.buffer.toByteArray());
+                this.buffer.reset();
+                this.channel.force(false);
+                this.durableSequence = this.appendedSequence;
+
+                FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING);
+                try{
+                    ByteArrayOutputStream kept = new ByteArrayOutputStream(1 << 16);
+                    kept.write(header(this.appendedSequence));
+                    RecordReader reader = new RecordReader(this.path);
+                    try{
+                        while(reader.next()){
+                            if(!reader.service.equals(service) || reader.sequence > throughSequence){
+                                kept.write(reader.record);
+                            }
+                            if(kept.size() >= 1 << 16){
+                                writeFully(out, kept.toByteArray());
+                                kept.reset();
+                            }
+                        }
+                    }
+                    finally{
+                        reader.close();
+                    }
+                    writeFully(out, kept.toByteArray());
+                    out.force(true);
+                }
+                finally{
+                    out.close();
+                }
+                this.channel.close();
+                Files.move(tmp, this.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                syncDirectory(this.path);
+                this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.channel.position(this.channel.size());
+            }
+            catch(IOException ioe){
+                this.failure = ioe;
+                throw new JournalException("Error compacting journal: " + ioe.getMessage(),
+                                           this.path.toString());
+            }
+        }
+        finally{
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last record appended.
+     *
+     * @return last sequence number, or 0 if nothing has been journaled
+     */
+    public long lastSequence(){
+        this.lock.lock();
+        try{
+            return this.appendedSequence;
+        }
+        finally{
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Commits every buffered record and closes the journal file.
+     *
+     * @throws JournalException when the records cannot be written
+     */
+    public void close() throws JournalException{
+        commit(lastSequence());
+        this.lock.lock();
+        try{
+            this.channel.close();
+        }
+        catch(IOException ioe){
+            throw new JournalException("Error closing journal: " + ioe.getMessage(), this.path.toString());
+        }
+        finally{
+            this.lock.unlock();
+        }
+    }
+
+    private void checkFailure() throws JournalException{
+        if(this.failure != null){
+            throw new JournalException("Journal is unusable after a failed write: " + this.failure.getMessage(),
+                                       this.path.toString());
+        }
+    }
+
+    private static byte[] header(long baseSequence){
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putLong(baseSequence);
+        return header.array();
+    }
+
+    /**
+     * Encodes a record: its body length and CRC32, then the body of sequence number, service,
+     * operation, and fields.
+     */
+    private static byte[] encode(long sequence, String service, String operation, String[] fields){
+        try{
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream body = new DataOutputStream(bytes);
+            body.writeInt(0);
+            body.writeInt(0);
+            body.writeLong(sequence);
+            writeString(body, service);
+            writeString(body, operation);
+            body.writeInt(fields.length);
+            for(String field : fields){
+                writeString(body, field);
+            }
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, record.length - 8);
+            ByteBuffer head = ByteBuffer.wrap(record);
+            head.putInt(record.length - 8);
+            head.putInt((int) crc.getValue());
+            return record;
+        }
+        catch(IOException ioe){
+            // writing to a byte array cannot fail
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException{
+        byte[] bytes = (s == null ? "" : s).getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException{
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        while(data.hasRemaining()){
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Forces a directory entry change, such as a rename, to disk where the platform allows it.
+     */
+    private static void syncDirectory(Path file){
+        Path dir = file.toAbsolutePath().getParent();
+        try{
+            FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+            try{
+                channel.force(true);
+            }
+            finally{
+                channel.close();
+            }
+        }
+        catch(IOException ioe){
+            // not every platform can open a directory; the rename is still atomic
+        }
+    }
+
+    /**
+     * {@code RecordReader} reads a journal file's records in order, stopping at the first record
+     * that is incomplete or fails its checksum.
+     */
+    private static class RecordReader {
+        private final DataInputStream in;
+        final long baseSequence;
+
+        // Offset just past the last intact record
+        long end;
+
+        // The record just read
+        long sequence;
+        String service;
+        String operation;
+        String[] fields;
+        byte[] record;
+
+        RecordReader(Path path) throws IOException{
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            try{
+                if(this.in.readInt() != MAGIC){
+                    throw new IOException("File is not a mutation journal");
+                }
+                int version = this.in.readInt();
+                if(version != FORMAT_VERSION){
+                    throw new IOException("Unsupported journal version " + version);
+                }
+                this.baseSequence = this.in.readLong();
+            }
+            catch(EOFException eofe){
+                this.in.close();
+                throw new IOException("File is not a mutation journal");
+            }
+            catch(IOException ioe){
+                this.in.close();
+                throw ioe;
+            }
+            this.end = HEADER_SIZE;
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return false at the end of the journal or at a torn or corrupt record
+         */
+        boolean next() throws IOException{
+            byte[] record;
+            try{
+                int length = this.in.readInt();
+                int checksum = this.in.readInt();
+                if(length < 20 || length > MAX_RECORD_SIZE){
+                    return false;
+                }
+                record = new byte[length + 8];
+                this.in.readFully(record, 8, length);
+                CRC32 crc = new CRC32();
+                crc.update(record, 8, length);
+                if((int) crc.getValue() != checksum){
+                    return false;
+                }
+                ByteBuffer head = ByteBuffer.wrap(record);
+                head.putInt(length);
+                head.putInt(checksum);
+            }
+            catch(EOFException eofe){
+                return false;
+            }
+            try{
+                ByteBuffer body = ByteBuffer.wrap(record, 8, record.length - 8);
+                long sequence = body.getLong();
+                String service = readString(body);
+                String operation = readString(body);
+                String[] fields = new String[body.getInt()];
+                for(int i = 0; i < fields.length; i++){
+                    fields[i] = readString(body);
+                }
+                this.sequence = sequence;
+                this.service = service;
+                this.operation = operation;
+                this.fields = fields;
+            }
+            catch(RuntimeException re){
+                // a checksummed body that does not decode was not written by this journal
+                throw new IOException("Journal record is corrupt: " + re);
+            }
+            this.record = record;
+            this.end += record.length;
+            return true;
+        }
+
+        private static String readString(ByteBuffer body){
+            int length = body.getInt();
+            String s = new String(body.array(), body.arrayOffset() + body.position(), length, UTF8);
+            body.position(body.position() + length);
+            return s;
+        }
+
+        void close() throws IOException{
+            this.in.close();
+        }
+    }
+}
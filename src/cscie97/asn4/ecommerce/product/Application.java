@@ -31,6 +31,16 @@ public class Application extends Content{
 		super(id, name, desc, cats, auth, rating, price, langs, url, countries, devices);
 		this.size = size;
 	}
+	
+	private Application(Application a, float price, int rating){
+		super(a, price, rating);
+		this.size = a.size;
+	}
+	
+	@Override
+	Content repriced(float price, int rating) {
+		return new Application(this, price, rating);
+	}
 
 	public byte getSize() {
 		return size;
@@ -0,0 +1,151 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@code AttributeDictionary} assigns compact integer codes to the values of a low-cardinality
+ * Content attribute, such as its categories or languages. A value keeps the code it was first
+ * given for the life of the catalog, so Content can store its attribute values as sorted code
+ * arrays and share one copy of each value. Codes are handed out in order from 0.
+ *
+ * Encoding is synchronized; looking up a value's code and decoding a code handed out earlier take
+ * no lock.
+ *
+ * @param <V> type of the attribute values
+ */
+class AttributeDictionary<V> {
+
+    // Code of each value; written under the dictionary's lock, read without it
+    private final ConcurrentHashMap<V, Integer> codes;
+
+    // Value of each code; replaced on every append so readers see the appended value
+    private volatile Object[] values;
+
+    // Number of codes handed out
+    private int size;
+
+    /**
+     * Default AttributeDictionary constructor
+     */
+    AttributeDictionary(){
+        this.codes = new ConcurrentHashMap<V, Integer>();
+        this.values = new Object[16];
+        this.size = 0;
+    }
+
+    /**
+     * Returns the code of a value, assigning the next code if the value is new.
+     *
+     * @param value attribute value
+     * @return code of the value
+     */
+    synchronized int encode(V value){
+        Integer code = this.codes.get(value);
+        if(code == null){
+            code = this.size;
+            Object[] grown = this.size < this.values.length ? this.values
+                                                            : Arrays.copyOf(this.values, this.size * 2);
+            grown[code] = value;
+            this.values = grown;
+            // published after the values array, so a code looked up can always be decoded
+            this.codes.put(value, code);
+            this.size++;
+        }
+        return code;
+    }
+
+    /**
+     * Encodes a collection of values.
+     *
+     * @param values attribute values
+     * @return codes of the distinct values, in ascending order
+     */
+    int[] encodeAll(Collection<V> values){
+        int[] out = new int[values.size()];
+        int n = 0;
+        for(V value : values){
+            out[n++] = encode(value);
+        }
+        Arrays.sort(out);
+        int distinct = 0;
+        for(int i = 0; i < n; i++){
+            if(distinct == 0 || out[distinct - 1] != out[i]){
+                out[distinct++] = out[i];
+            }
+        }
+        return distinct == out.length ? out : Arrays.copyOf(out, distinct);
+    }
+
+    /**
+     * Looks up the code of a value without assigning one or locking.
+     *
+     * @param value attribute value
+     * @return code of the value, or -1 if it has none
+     */
+    int lookup(Object value){
+        if(value == null){
+            return -1;
+        }
+        Integer code = this.codes.get(value);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Returns the value of a code.
+     *
+     * @param code code handed out by {@link #encode(Object)}
+     * @return the attribute value
+     */
+    @SuppressWarnings("unchecked")
+    V decode(int code){
+        return (V) this.values[code];
+    }
+
+    /**
+     * Returns a read-only set view of the values of a sorted code array. The view decodes the
+     * codes as it is read and holds no copy of the values.
+     *
+     * @param codes codes in ascending order, without duplicates
+     * @return set of the values
+     */
+    Set<V> view(final int[] codes){
+        return new AbstractSet<V>(){
+            @Override
+            public Iterator<V> iterator(){
+                return new Iterator<V>(){
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext(){
+                        return this.next < codes.length;
+                    }
+
+                    @Override
+                    public V next(){
+                        if(this.next >= codes.length){
+                            throw new NoSuchElementException();
+                        }
+                        return decode(codes[this.next++]);
+                    }
+
+                    @Override
+                    public void remove(){
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size(){
+                return codes.length;
+            }
+
+            @Override
+            public boolean contains(Object o){
+                int code = lookup(o);
+                return code >= 0 && Arrays.binarySearch(codes, code) >= 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,1093 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * {@code CatalogSnapshot} is one immutable generation of the Product Catalog's Content and
+ * search indexes. Searches read whichever snapshot is current when they start and see that
+ * catalog version throughout, without locking, while an import builds the next generation with
+ * a {@code Builder}.
+ *
+ * A builder starts from the current snapshot and shares its posting lists; a posting list is
+ * copied the first time the builder adds to it, so the published snapshot is never modified.
+ *
+ * Content keeps its doc ID for as long as it is in the catalog, and doc IDs are never reused.
+ * Removed Content is first tombstoned: it leaves the content map at once, and searches drop its
+ * doc ID from their results, but its postings stay until a builder purges the tombstones. The
+ * purged doc ID is then retired: its slot in the content list is null and no posting or column
+ * filter matches it.
+ */
+class CatalogSnapshot {
+
+    // Highest possible Content rating
+    static final int MAX_RATING = 5;
+
+    // Positions left between a Content's name and description, so phrases do not span the two
+    private static final int POSITION_GAP = 100;
+
+    // A completion index is rebuilt rather than reweighted once more than one in this many of
+    // its terms have changed
+    private static final int REWEIGHT_RATIO = 8;
+
+    // Catalog version; each published snapshot has a higher generation than the last
+    final long generation;
+
+    // Content by identifier
+    final ChunkedHashTable<String, Content> contentMap;
+
+    // Content indexed by doc ID; null for a retired doc ID
+    final List<Content> contentList;
+
+    // Doc IDs of removed Content whose postings have not been purged yet
+    final DocIdBitmap tombstones;
+
+    // The lookup maps for search criteria; each posting list is a bitmap of doc IDs
+    final Map<String, DocIdBitmap> searchCatMap;
+    final NavigableMap<String, DocIdBitmap> searchTextMap;
+    // Cumulative rating lists: searchRatingMap[r] holds every doc ID rated r or higher
+    final DocIdBitmap[] searchRatingMap;
+    final NavigableMap<Float, DocIdBitmap> searchPriceMap;
+    final Map<String, DocIdBitmap> searchLangMap;
+    final Map<String, DocIdBitmap> searchCountryMap;
+    final Map<String, DocIdBitmap> searchDeviceMap;
+    final Map<String, DocIdBitmap> searchTypeMap;
+
+    // Term frequencies, positions, and document lengths for ranked text and phrase search
+    final TextIndex textIndex;
+
+    // Price, rating, and type columns for scanning unselective filters
+    final ContentColumns columns;
+
+    // For each text term code, the number of live Content at each rating containing the term;
+    // null for a term no live Content contains
+    private final List<int[]> termRatings;
+
+    // Type-ahead completions over the text terms, built on the first completion request
+    private volatile CompletionIndex textCompletions;
+
+    // The completion index of an earlier generation, and the codes of the terms whose rating
+    // counts changed since it; the first completion request reweights those terms in a copy of it
+    // rather than rebuilding the index. Both are null when the index must be rebuilt.
+    private final CompletionIndex staleCompletions;
+    private final TermChanges termChanges;
+
+    /**
+     * Creates the empty generation 0 snapshot.
+     */
+    CatalogSnapshot(){
+        this.generation = 0;
+        this.contentMap = new ChunkedHashTable<String, Content>();
+        this.contentList = new ChunkedList<Content>();
+        this.tombstones = new DocIdBitmap();
+        this.searchCatMap = new PersistentTreeMap<String, DocIdBitmap>();
+        this.searchTextMap = new PersistentTreeMap<String, DocIdBitmap>();
+        this.searchRatingMap = new DocIdBitmap[MAX_RATING + 1];
+        for(int i = 0; i <= MAX_RATING; i++){
+            this.searchRatingMap[i] = new DocIdBitmap();
+        }
+        this.searchPriceMap = new PersistentTreeMap<Float, DocIdBitmap>();
+        this.searchLangMap = new PersistentTreeMap<String, DocIdBitmap>();
+        this.searchCountryMap = new PersistentTreeMap<String, DocIdBitmap>();
+        this.searchDeviceMap = new PersistentTreeMap<String, DocIdBitmap>();
+        this.searchTypeMap = new PersistentTreeMap<String, DocIdBitmap>();
+        this.textIndex = new TextIndex();
+        this.columns = new ContentColumns();
+        this.termRatings = new ChunkedList<int[]>();
+        this.staleCompletions = null;
+        this.termChanges = null;
+    }
+
+    /**
+     * Creates a snapshot from structures read from a snapshot file. The content map, columns, and
+     * term rating counts are rebuilt from the Content; the posting lists are used as given.
+     *
+     * @param generation catalog generation of the snapshot
+     * @param contentList Content indexed by doc ID, with doc IDs, type codes, and term codes set;
+     *        null for a retired doc ID
+     * @param searchCatMap category postings
+     * @param searchTextMap text term postings
+     * @param searchRatingMap cumulative rating postings
+     * @param searchPriceMap price postings
+     * @param searchLangMap language postings
+     * @param searchCountryMap country postings
+     * @param searchDeviceMap device postings
+     * @param searchTypeMap content type postings
+     * @param textIndex positional text postings
+     */
+    CatalogSnapshot(long generation, List<Content> contentList, Map<String, DocIdBitmap> searchCatMap,
+                    NavigableMap<String, DocIdBitmap> searchTextMap, DocIdBitmap[] searchRatingMap,
+                    NavigableMap<Float, DocIdBitmap> searchPriceMap, Map<String, DocIdBitmap> searchLangMap,
+                    Map<String, DocIdBitmap> searchCountryMap, Map<String, DocIdBitmap> searchDeviceMap,
+                    Map<String, DocIdBitmap> searchTypeMap, TextIndex textIndex){
+        this.generation = generation;
+        this.contentMap = new ChunkedHashTable<String, Content>();
+        this.termRatings = new ChunkedList<int[]>();
+        ContentColumns cols = new ContentColumns();
+        for(Content c : contentList){
+            if(c != null){
+                this.contentMap.put(c.getId(), c);
+                int bucket = ratingBucket(c.getRating());
+                for(int code : c.getTermCodes()){
+                    while(this.termRatings.size() <= code){
+                        this.termRatings.add(null);
+                    }
+                    if(this.termRatings.get(code) == null){
+                        this.termRatings.set(code, new int[MAX_RATING + 1]);
+                    }
+                    this.termRatings.get(code)[bucket]++;
+                }
+            }
+            cols = cols.append(true, c);
+        }
+        this.contentList = contentList;
+        this.tombstones = new DocIdBitmap();
+        this.columns = cols;
+        this.searchCatMap = searchCatMap;
+        this.searchTextMap = searchTextMap;
+        this.searchRatingMap = searchRatingMap;
+        this.searchPriceMap = searchPriceMap;
+        this.searchLangMap = searchLangMap;
+        this.searchCountryMap = searchCountryMap;
+        this.searchDeviceMap = searchDeviceMap;
+        this.searchTypeMap = searchTypeMap;
+        this.textIndex = textIndex;
+        this.staleCompletions = null;
+        this.termChanges = null;
+    }
+
+    /**
+     * Creates a snapshot from the structures a builder finished.
+     *
+     * @param b builder holding the next generation
+     */
+    private CatalogSnapshot(Builder b){
+        this.generation = b.generation;
+        this.contentMap = b.contentMap;
+        this.contentList = b.contentList;
+        this.tombstones = b.tombstones;
+        this.searchCatMap = b.searchCatMap;
+        this.searchTextMap = b.searchTextMap;
+        this.searchRatingMap = b.searchRatingMap;
+        this.searchPriceMap = b.searchPriceMap;
+        this.searchLangMap = b.searchLangMap;
+        this.searchCountryMap = b.searchCountryMap;
+        this.searchDeviceMap = b.searchDeviceMap;
+        this.searchTypeMap = b.searchTypeMap;
+        this.textIndex = b.textIndex;
+        this.columns = b.columns;
+        this.termRatings = b.termRatings;
+        if(b.staleCompletions != null && b.termChanges == null){
+            // no term changed, so the earlier index is this generation's index
+            this.textCompletions = b.staleCompletions;
+            this.staleCompletions = null;
+            this.termChanges = null;
+        }
+        else if(b.staleCompletions != null
+                && b.termChanges.count <= b.staleCompletions.size() / REWEIGHT_RATIO){
+            this.staleCompletions = b.staleCompletions;
+            this.termChanges = b.termChanges;
+        }
+        else{
+            this.staleCompletions = null;
+            this.termChanges = null;
+        }
+    }
+
+    /**
+     * Drops the doc IDs of tombstoned Content from a search result.
+     *
+     * @param docIds doc IDs found through the posting lists or columns; not modified
+     * @return the doc IDs of Content still in the catalog
+     */
+    DocIdBitmap live(DocIdBitmap docIds){
+        if(this.tombstones.isEmpty() || docIds.andCardinality(this.tombstones) == 0){
+            return docIds;
+        }
+        DocIdBitmap result = docIds.copy();
+        int[] removed = this.tombstones.toArray();
+        for(int i = 0; i < removed.length; i++){
+            result.remove(removed[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the rating count bucket of a rating; out of range ratings count as the nearest
+     * rating in range, as they do in the cumulative rating lists.
+     */
+    static int ratingBucket(int rating){
+        return Math.max(0, Math.min(rating, MAX_RATING));
+    }
+
+    /**
+     * Returns the completion index over the text terms, building it on first use. Readers
+     * racing to build it may each build one; any of them is correct for this snapshot. Terms
+     * are counted over the Content still in the catalog, from the term rating counts, and terms
+     * only tombstoned Content contains are left out.
+     *
+     * When an earlier generation's index was built, only the terms whose counts changed since
+     * are reweighted in a copy of it; the index is rebuilt when a term is new to it, or when too
+     * many terms changed for reweighting them one by one to pay.
+     *
+     * @return completion index over the text terms
+     */
+    CompletionIndex getTextCompletions(){
+        CompletionIndex completions = this.textCompletions;
+        if(completions == null){
+            if(this.staleCompletions != null){
+                completions = reweightCompletions();
+            }
+            if(completions == null){
+                completions = buildCompletions();
+            }
+            this.textCompletions = completions;
+        }
+        return completions;
+    }
+
+    /**
+     * Reweights the changed terms in a copy of the earlier generation's completion index.
+     *
+     * @return the reweighted index, or null if it must be rebuilt
+     */
+    private CompletionIndex reweightCompletions(){
+        int[] codes = new int[this.termChanges.count];
+        int n = 0;
+        for(TermChanges changes = this.termChanges; changes != null; changes = changes.older){
+            System.arraycopy(changes.codes, 0, codes, n, changes.codes.length);
+            n += changes.codes.length;
+        }
+        Arrays.sort(codes);
+        List<String> terms = new ArrayList<String>();
+        int[] docFreqs = new int[codes.length];
+        int[] bestRatings = new int[codes.length];
+        for(int i = 0; i < codes.length; i++){
+            if(i > 0 && codes[i] == codes[i - 1]){
+                continue;
+            }
+            int[] counts = this.termRatings.get(codes[i]);
+            int docFreq = 0;
+            int best = -1;
+            for(int r = 0; r <= MAX_RATING; r++){
+                docFreq += counts[r];
+                best = counts[r] > 0 ? r : best;
+            }
+            docFreqs[terms.size()] = docFreq;
+            bestRatings[terms.size()] = best;
+            terms.add(Content.TERMS.decode(codes[i]));
+        }
+        return this.staleCompletions.reweighted(terms, docFreqs, bestRatings);
+    }
+
+    /**
+     * Builds the completion index from every text term's rating counts.
+     *
+     * @return completion index over the text terms
+     */
+    private CompletionIndex buildCompletions(){
+        List<String> terms = new ArrayList<String>(this.searchTextMap.size());
+        int[] docFreqs = new int[this.searchTextMap.size()];
+        int[] bestRatings = new int[this.searchTextMap.size()];
+        for(String term : this.searchTextMap.keySet()){
+            int code = Content.TERMS.lookup(term);
+            int[] counts = code >= 0 && code < this.termRatings.size() ? this.termRatings.get(code) : null;
+            if(counts == null){
+                continue;
+            }
+            int docFreq = 0;
+            int best = -1;
+            for(int r = 0; r <= MAX_RATING; r++){
+                docFreq += counts[r];
+                best = counts[r] > 0 ? r : best;
+            }
+            if(docFreq > 0){
+                docFreqs[terms.size()] = docFreq;
+                bestRatings[terms.size()] = best;
+                terms.add(term);
+            }
+        }
+        return new CompletionIndex(terms, Arrays.copyOf(docFreqs, terms.size()),
+                                   Arrays.copyOf(bestRatings, terms.size()));
+    }
+
+    /**
+     * Starts building the next generation from this snapshot.
+     *
+     * @return builder for the next generation
+     */
+    Builder toBuilder(){
+        return new Builder(this, 0);
+    }
+
+    /**
+     * Starts bulk loading the next generation from this snapshot. The builder only records the
+     * Content added to it, and builds the search indexes for all of it when the generation is
+     * built, one search field per worker.
+     *
+     * @param indexParallelism number of workers building the indexes
+     * @return builder for the next generation
+     */
+    Builder toBulkBuilder(int indexParallelism){
+        return new Builder(this, Math.max(1, indexParallelism));
+    }
+
+    /**
+     * {@code TermChanges} holds the codes of the terms whose rating counts one generation
+     * changed, linked to the changes of the generations before it, back to the generation whose
+     * completion index was built.
+     */
+    private static class TermChanges {
+        final int[] codes;
+        final TermChanges older;
+
+        // Number of codes in these and the older changes; a code may be counted more than once
+        final int count;
+
+        TermChanges(int[] codes, TermChanges older){
+            this.codes = codes;
+            this.older = older;
+            this.count = codes.length + (older == null ? 0 : older.count);
+        }
+    }
+
+    /**
+     * {@code Builder} adds Content to a private copy of a snapshot's structures. It records the
+     * posting keys and prices it modifies, so that cached search results reading them can be
+     * invalidated when the new generation is published.
+     *
+     * A bulk builder defers indexing: Content added to it gets its doc ID, columns, and content
+     * map entry at once, but its postings are built in {@link #build()}, each field's in one pass
+     * with every posting list allocated at its final size, rather than grown one doc ID at a
+     * time through the search maps.
+     */
+    static class Builder {
+        private final long generation;
+        private final ChunkedHashTable<String, Content> contentMap;
+        private final List<Content> contentList;
+        private DocIdBitmap tombstones;
+        private final Map<String, DocIdBitmap> searchCatMap;
+        private final NavigableMap<String, DocIdBitmap> searchTextMap;
+        private final DocIdBitmap[] searchRatingMap;
+        private final NavigableMap<Float, DocIdBitmap> searchPriceMap;
+        private final Map<String, DocIdBitmap> searchLangMap;
+        private final Map<String, DocIdBitmap> searchCountryMap;
+        private final Map<String, DocIdBitmap> searchDeviceMap;
+        private final Map<String, DocIdBitmap> searchTypeMap;
+        private final TextIndex textIndex;
+        private final List<int[]> termRatings;
+        private ContentColumns columns;
+
+        // Whether the columns were copied by this builder, so it may append to them in place
+        private boolean columnsOwned;
+
+        // Posting lists created or copied by this builder, which it may modify in place
+        private final Set<DocIdBitmap> owned;
+
+        // Term rating counts created or copied by this builder, which it may modify in place
+        private final Set<int[]> ownedRatings;
+
+        // The completion index the new generation may reweight, and the term changes since it
+        // made before this builder
+        private final CompletionIndex staleCompletions;
+        private TermChanges termChanges;
+
+        // Codes of the terms whose rating counts this builder changed; null when there is no
+        // completion index to reweight
+        private final List<Integer> changedTerms;
+
+        // Posting keys modified so far
+        private final Set<String> touched;
+
+        // Prices of the Content added so far
+        private final NavigableSet<Float> prices;
+
+        // Number of workers building deferred indexes; 0 if Content is indexed as it is added
+        private final int indexParallelism;
+
+        // Doc ID of the first Content added by this builder
+        private final int firstDocId;
+
+        // Analyzed text of each Content whose indexing is deferred, from the first doc ID on
+        private final List<List<String>> deferredWords;
+        private final List<List<Integer>> deferredPositions;
+
+        /**
+         * Default Builder constructor
+         *
+         * @param base snapshot the next generation starts from
+         * @param indexParallelism number of workers building deferred indexes, or 0 to index
+         *        Content as it is added
+         */
+        private Builder(CatalogSnapshot base, int indexParallelism){
+            this.generation = base.generation + 1;
+            this.contentMap = new ChunkedHashTable<String, Content>(base.contentMap);
+            this.contentList = ChunkedList.copyOf(base.contentList);
+            this.tombstones = base.tombstones;
+            this.searchCatMap = PersistentTreeMap.copyOf(base.searchCatMap);
+            this.searchTextMap = PersistentTreeMap.copyOf(base.searchTextMap);
+            this.searchRatingMap = base.searchRatingMap.clone();
+            this.searchPriceMap = PersistentTreeMap.copyOf(base.searchPriceMap);
+            this.searchLangMap = PersistentTreeMap.copyOf(base.searchLangMap);
+            this.searchCountryMap = PersistentTreeMap.copyOf(base.searchCountryMap);
+            this.searchDeviceMap = PersistentTreeMap.copyOf(base.searchDeviceMap);
+            this.searchTypeMap = PersistentTreeMap.copyOf(base.searchTypeMap);
+            this.textIndex = base.textIndex.copy();
+            this.termRatings = ChunkedList.copyOf(base.termRatings);
+            this.columns = base.columns;
+            this.columnsOwned = false;
+            this.owned = Collections.newSetFromMap(new IdentityHashMap<DocIdBitmap, Boolean>());
+            this.ownedRatings = Collections.newSetFromMap(new IdentityHashMap<int[], Boolean>());
+            CompletionIndex built = base.textCompletions;
+            this.staleCompletions = built != null ? built : base.staleCompletions;
+            this.termChanges = built != null ? null : base.termChanges;
+            this.changedTerms = this.staleCompletions != null ? new ArrayList<Integer>() : null;
+            this.touched = new HashSet<String>();
+            this.prices = new TreeSet<Float>();
+            this.indexParallelism = indexParallelism;
+            this.firstDocId = base.contentList.size();
+            this.deferredWords = new ArrayList<List<String>>();
+            this.deferredPositions = new ArrayList<List<Integer>>();
+        }
+
+        /**
+         * Retrieves Content by identifier, including Content added by this builder.
+         *
+         * @param id id of the Content
+         * @return Content having the id, or null
+         */
+        Content getContent(String id){
+            return this.contentMap.get(id);
+        }
+
+        /**
+         * Returns a posting list this builder may modify: the list itself if the builder owns
+         * it, otherwise a copy that the builder then owns.
+         */
+        private DocIdBitmap writable(DocIdBitmap posting){
+            if(posting == null || !this.owned.contains(posting)){
+                posting = posting == null ? new DocIdBitmap() : posting.copy();
+                this.owned.add(posting);
+            }
+            return posting;
+        }
+
+        /**
+         * Adds a doc ID to the posting list stored under a key in a search map.
+         *
+         * @param field search field of the map, used to name the touched posting key
+         * @param map search map to update
+         * @param key search key
+         * @param docId doc ID of the Content being indexed
+         */
+        private <K> void addPosting(String field, Map<K, DocIdBitmap> map, K key, int docId){
+            DocIdBitmap posting = map.get(key);
+            if(posting == null){
+                this.touched.add(SearchResultCache.newKeysDependency(field));
+            }
+            DocIdBitmap target = writable(posting);
+            if(target != posting){
+                map.put(key, target);
+            }
+            target.add(docId);
+            this.touched.add(field + ":" + key);
+        }
+
+        /**
+         * Removes a doc ID from the posting list stored under a key in a search map, dropping the
+         * key if its posting list is left empty.
+         *
+         * @param field search field of the map, used to name the touched posting key
+         * @param map search map to update
+         * @param key search key
+         * @param docId doc ID of the Content being unindexed
+         */
+        private <K> void removePosting(String field, Map<K, DocIdBitmap> map, K key, int docId){
+            DocIdBitmap posting = map.get(key);
+            if(posting == null){
+                return;
+            }
+            DocIdBitmap target = writable(posting);
+            target.remove(docId);
+            if(target.isEmpty()){
+                map.remove(key);
+                this.owned.remove(target);
+                this.touched.add(SearchResultCache.newKeysDependency(field));
+            }
+            else if(target != posting){
+                map.put(key, target);
+            }
+            this.touched.add(field + ":" + key);
+        }
+
+        /**
+         * Brings a search map's postings for one doc ID from its old keys to its new keys,
+         * modifying only the posting lists of keys it gained or lost.
+         *
+         * @param field search field of the map
+         * @param map search map to update
+         * @param before the doc's previous keys
+         * @param after the doc's new keys
+         * @param docId doc ID of the Content
+         */
+        private <K> void diffPostings(String field, Map<K, DocIdBitmap> map, Set<K> before, Set<K> after,
+                                      int docId){
+            for(K key : before){
+                if(!after.contains(key)){
+                    removePosting(field, map, key, docId);
+                }
+            }
+            for(K key : after){
+                if(!before.contains(key)){
+                    addPosting(field, map, key, docId);
+                }
+            }
+        }
+
+        /**
+         * Moves a doc ID between the cumulative rating lists, from the lists at or below its old
+         * rating to those at or below its new rating.
+         */
+        private void diffRatings(int before, int after, int docId){
+            int from = Math.min(before, MAX_RATING);
+            int to = Math.min(after, MAX_RATING);
+            for(int i = Math.max(0, Math.min(from, to) + 1); i <= Math.max(from, to); i++){
+                this.searchRatingMap[i] = writable(this.searchRatingMap[i]);
+                if(to > from){
+                    this.searchRatingMap[i].add(docId);
+                }
+                else{
+                    this.searchRatingMap[i].remove(docId);
+                }
+                this.touched.add("rating:" + i);
+            }
+        }
+
+        /**
+         * Returns the search keys of Content in each search field other than text and rating:
+         * category, language, country, device, and type keys.
+         */
+        private static List<Set<String>> keys(Content c, String type){
+            Set<String> cats = new HashSet<String>();
+            for(int code : c.getCategoryCodes()){
+                cats.add(Content.CATEGORIES.decode(code));
+            }
+            Set<String> langs = new HashSet<String>();
+            for(int code : c.getLanguageCodes()){
+                langs.add(Content.LANGUAGES.decode(code));
+            }
+            Set<String> countries = new HashSet<String>();
+            for(int code : c.getCountryCodes()){
+                countries.add(Content.COUNTRIES.decode(code).getCountryCode());
+            }
+            Set<String> devices = new HashSet<String>();
+            for(int code : c.getDeviceCodes()){
+                devices.add(Content.DEVICES.decode(code).getDeviceId());
+            }
+            return Arrays.asList(cats, langs, countries, devices, Collections.singleton(type));
+        }
+
+        /**
+         * Replaces Content with an updated version having the same id, keeping its doc ID. Each
+         * search map is diffed between the two versions, so only the posting lists of values the
+         * Content gained or lost are modified. Must not be used on a bulk builder.
+         *
+         * @param old Content currently in the catalog
+         * @param c updated Content
+         * @param type type of the updated Content
+         */
+        void update(Content old, Content c, String type){
+            int docId = old.getDocId();
+            c.setDocId(docId);
+            c.setTypeCode(Content.TYPES.encode(type));
+            this.columns = this.columns.set(this.columnsOwned, docId, c);
+            this.columnsOwned = true;
+            this.contentList.set(docId, c);
+            this.contentMap.put(c.getId(), c);
+
+            List<Set<String>> before = keys(old, Content.TYPES.decode(old.getTypeCode()));
+            List<Set<String>> after = keys(c, type);
+            diffPostings("category", this.searchCatMap, before.get(0), after.get(0), docId);
+            diffPostings("language", this.searchLangMap, before.get(1), after.get(1), docId);
+            diffPostings("country", this.searchCountryMap, before.get(2), after.get(2), docId);
+            diffPostings("device", this.searchDeviceMap, before.get(3), after.get(3), docId);
+            diffPostings("type", this.searchTypeMap, before.get(4), after.get(4), docId);
+            diffRatings(old.getRating(), c.getRating(), docId);
+            if(old.getPrice() != c.getPrice()){
+                removePosting("price", this.searchPriceMap, old.getPrice(), docId);
+                addPosting("price", this.searchPriceMap, c.getPrice(), docId);
+                this.prices.add(old.getPrice());
+                this.prices.add(c.getPrice());
+            }
+
+            if(!old.getName().equals(c.getName()) || !old.getDescription().equals(c.getDescription())){
+                List<String> oldWords = new ArrayList<String>();
+                List<Integer> oldPositions = new ArrayList<Integer>();
+                analyze(old, oldWords, oldPositions);
+                List<String> words = new ArrayList<String>();
+                List<Integer> positions = new ArrayList<Integer>();
+                analyze(c, words, positions);
+                diffPostings("text", this.searchTextMap, new HashSet<String>(oldWords), new HashSet<String>(words),
+                             docId);
+                this.textIndex.updateDocument(docId, oldWords, oldPositions, words, positions);
+                // phrase matches of the terms the Content kept may have moved
+                for(String word : words){
+                    this.touched.add("text:" + word);
+                }
+                c.setTermCodes(Content.TERMS.encodeAll(words));
+            }
+            else{
+                c.setTermCodes(old.getTermCodes());
+            }
+            countRatings(old.getTermCodes(), old.getRating(), -1);
+            countRatings(c.getTermCodes(), c.getRating(), 1);
+        }
+
+        /**
+         * Replaces Content's price and rating in place: the columns, the price posting lists, the
+         * cumulative rating lists, and the rating counts of its terms are updated for its doc ID.
+         * Its other postings and text are left as they are. Must not be used on a bulk builder.
+         *
+         * @param old Content currently in the catalog
+         * @param price new price
+         * @param rating new rating
+         */
+        void reprice(Content old, float price, int rating){
+            int docId = old.getDocId();
+            Content c = old.repriced(price, rating);
+            this.columns = this.columns.set(this.columnsOwned, docId, c);
+            this.columnsOwned = true;
+            this.contentList.set(docId, c);
+            this.contentMap.put(c.getId(), c);
+
+            if(rating != old.getRating()){
+                diffRatings(old.getRating(), rating, docId);
+            }
+            if(price != old.getPrice()){
+                removePosting("price", this.searchPriceMap, old.getPrice(), docId);
+                addPosting("price", this.searchPriceMap, price, docId);
+                this.prices.add(old.getPrice());
+                this.prices.add(price);
+            }
+            if(ratingBucket(rating) != ratingBucket(old.getRating())){
+                countRatings(old.getTermCodes(), old.getRating(), -1);
+                countRatings(c.getTermCodes(), rating, 1);
+            }
+        }
+
+        /**
+         * Adds to or subtracts from the count of live Content at a rating for each of a Content's
+         * terms. A term's best rating is its highest rating with a nonzero count, so a rating
+         * change moves one count per term and never rescans the term's Content.
+         *
+         * @param terms codes of the Content's terms
+         * @param rating the Content's rating
+         * @param delta 1 when the Content is counted, -1 when it stops being counted
+         */
+        private void countRatings(int[] terms, int rating, int delta){
+            int bucket = ratingBucket(rating);
+            for(int code : terms){
+                while(this.termRatings.size() <= code){
+                    this.termRatings.add(null);
+                }
+                int[] counts = this.termRatings.get(code);
+                if(counts == null || !this.ownedRatings.contains(counts)){
+                    counts = counts == null ? new int[MAX_RATING + 1] : counts.clone();
+                    this.ownedRatings.add(counts);
+                    this.termRatings.set(code, counts);
+                    if(this.changedTerms != null){
+                        this.changedTerms.add(code);
+                    }
+                }
+                counts[bucket] += delta;
+            }
+        }
+
+        /**
+         * Tombstones Content: it leaves the content map, and searches of the new generation drop
+         * its doc ID, but its postings are left for {@link #purgeTombstones()}. Its terms stop
+         * counting it at once.
+         *
+         * @param old Content to remove
+         */
+        void remove(Content old){
+            this.contentMap.remove(old.getId());
+            this.tombstones = writable(this.tombstones);
+            this.tombstones.add(old.getDocId());
+            countRatings(old.getTermCodes(), old.getRating(), -1);
+        }
+
+        /**
+         * Returns the number of tombstoned doc IDs whose postings have not been purged.
+         *
+         * @return number of tombstones
+         */
+        int getTombstoneCount(){
+            return this.tombstones.cardinality();
+        }
+
+        /**
+         * Removes the tombstoned Content from every posting list, the text index, and the
+         * columns, and retires its doc IDs. Term rating counts already leave the tombstoned
+         * Content out, so they are unchanged.
+         */
+        void purgeTombstones(){
+            int[] removed = this.tombstones.toArray();
+            for(int docId : removed){
+                Content old = this.contentList.get(docId);
+                String type = Content.TYPES.decode(old.getTypeCode());
+                List<Set<String>> before = keys(old, type);
+                Set<String> none = Collections.emptySet();
+                diffPostings("category", this.searchCatMap, before.get(0), none, docId);
+                diffPostings("language", this.searchLangMap, before.get(1), none, docId);
+                diffPostings("country", this.searchCountryMap, before.get(2), none, docId);
+                diffPostings("device", this.searchDeviceMap, before.get(3), none, docId);
+                diffPostings("type", this.searchTypeMap, before.get(4), none, docId);
+                diffRatings(old.getRating(), -1, docId);
+                removePosting("price", this.searchPriceMap, old.getPrice(), docId);
+                this.prices.add(old.getPrice());
+
+                List<String> words = new ArrayList<String>();
+                analyze(old, words, new ArrayList<Integer>());
+                Set<String> terms = new HashSet<String>(words);
+                diffPostings("text", this.searchTextMap, terms, none, docId);
+                this.textIndex.removeDocument(docId, words);
+
+                this.columns = this.columns.retire(this.columnsOwned, docId);
+                this.columnsOwned = true;
+                this.contentList.set(docId, null);
+            }
+            this.tombstones = new DocIdBitmap();
+        }
+
+        /**
+         * Analyzes the name and description of Content into the terms and positions its text
+         * postings are built from. Touches no builder state, so import workers may analyze rows
+         * ahead of the writer.
+         *
+         * @param c Content to analyze
+         * @param words receives the terms
+         * @param positions receives the position of each term
+         */
+        static void analyze(Content c, List<String> words, List<Integer> positions){
+            // the shared analyzer produces the same terms the text criterion is analyzed into
+            int nameEnd = TextAnalyzer.STANDARD.analyze(c.getName(), 0, words, positions);
+            TextAnalyzer.STANDARD.analyze(c.getDescription(), nameEnd + POSITION_GAP, words, positions);
+        }
+
+        /**
+         * Assigns the Content its doc ID and adds it to the content map and search maps.
+         *
+         * @param c Content to add
+         * @param type type of Content being added
+         */
+        void add(Content c, String type){
+            List<String> words = new ArrayList<String>();
+            List<Integer> positions = new ArrayList<Integer>();
+            analyze(c, words, positions);
+            add(c, type, words, positions);
+        }
+
+        /**
+         * Assigns the Content its doc ID and adds it to the content map and search maps, using
+         * text already analyzed by {@link #analyze(Content, List, List)}.
+         *
+         * @param c Content to add
+         * @param type type of Content being added
+         * @param words terms of the Content's text
+         * @param positions position of each term
+         */
+        void add(Content c, String type, List<String> words, List<Integer> positions){
+            int docId = this.contentList.size();
+            c.setDocId(docId);
+            c.setTypeCode(Content.TYPES.encode(type));
+            this.columns = this.columns.append(this.columnsOwned, c);
+            this.columnsOwned = true;
+            this.contentList.add(c);
+            this.contentMap.put(c.getId(), c);
+            if(this.indexParallelism > 0){
+                // term codes and rating counts are assigned by the deferred text indexer
+                this.deferredWords.add(words);
+                this.deferredPositions.add(positions);
+                this.prices.add(c.getPrice());
+                return;
+            }
+
+            // update category search map
+            for(int code : c.getCategoryCodes()){
+                addPosting("category", this.searchCatMap, Content.CATEGORIES.decode(code), docId);
+            }
+            // update text search map and the term frequencies used for ranking
+            for(String word : words){
+                addPosting("text", this.searchTextMap, word, docId);
+            }
+            this.textIndex.addDocument(docId, words, positions);
+            c.setTermCodes(Content.TERMS.encodeAll(words));
+            countRatings(c.getTermCodes(), c.getRating(), 1);
+            // update the cumulative rating lists for every rating at or below the Content's rating
+            for(int i = 0; i <= Math.min(c.getRating(), MAX_RATING); i++){
+                this.searchRatingMap[i] = writable(this.searchRatingMap[i]);
+                this.searchRatingMap[i].add(docId);
+                this.touched.add("rating:" + i);
+            }
+            // update price search map, keyed on the exact price
+            addPosting("price", this.searchPriceMap, c.getPrice(), docId);
+            this.prices.add(c.getPrice());
+            // update language search map
+            for(int code : c.getLanguageCodes()){
+                addPosting("language", this.searchLangMap, Content.LANGUAGES.decode(code), docId);
+            }
+            // update country search map
+            for(int code : c.getCountryCodes()){
+                addPosting("country", this.searchCountryMap, 
+                           Content.COUNTRIES.decode(code).getCountryCode(), docId);
+            }
+            // update device search map
+            for(int code : c.getDeviceCodes()){
+                addPosting("device", this.searchDeviceMap, Content.DEVICES.decode(code).getDeviceId(), 
+                           docId);
+            }
+            // update content type search map
+            addPosting("type", this.searchTypeMap, type, docId);
+        }
+
+        long getGeneration(){
+            return this.generation;
+        }
+
+        /**
+         * Returns the posting keys modified by this builder. A bulk builder knows them once the
+         * generation is built.
+         *
+         * @return touched posting keys
+         */
+        Set<String> getTouched(){
+            return this.touched;
+        }
+
+        /**
+         * Returns the prices of the Content added by this builder.
+         *
+         * @return added prices
+         */
+        NavigableSet<Float> getPrices(){
+            return this.prices;
+        }
+
+        /**
+         * Finishes the next generation, building the indexes of a bulk builder's Content. The
+         * builder must not be used afterwards, except to read its touched keys and prices.
+         *
+         * @return the new snapshot
+         */
+        CatalogSnapshot build(){
+            if(!this.deferredWords.isEmpty()){
+                indexDeferred();
+            }
+            if(this.changedTerms != null && !this.changedTerms.isEmpty()){
+                int[] codes = new int[this.changedTerms.size()];
+                for(int i = 0; i < codes.length; i++){
+                    codes[i] = this.changedTerms.get(i);
+                }
+                this.termChanges = new TermChanges(codes, this.termChanges);
+            }
+            return new CatalogSnapshot(this);
+        }
+
+        /**
+         * Builds the postings of the Content whose indexing was deferred. Each search field, and
+         * the positional text index, is built by its own task; the tasks share nothing but the
+         * Content they read.
+         */
+        private void indexDeferred(){
+            final List<FieldIndexer<?>> fields = new ArrayList<FieldIndexer<?>>();
+            fields.add(new FieldIndexer<String>("category", this.searchCatMap){
+                @Override
+                void keys(Content c, int index, List<String> out){
+                    for(int code : c.getCategoryCodes()){
+                        out.add(Content.CATEGORIES.decode(code));
+                    }
+                }
+            });
+            fields.add(new FieldIndexer<String>("text", this.searchTextMap){
+                @Override
+                void keys(Content c, int index, List<String> out){
+                    out.addAll(deferredWords.get(index));
+                }
+
+                @Override
+                protected void compute(){
+                    super.compute();
+                    for(int d = 0; d < deferredWords.size(); d++){
+                        Content c = contentList.get(firstDocId + d);
+                        c.setTermCodes(Content.TERMS.encodeAll(deferredWords.get(d)));
+                        countRatings(c.getTermCodes(), c.getRating(), 1);
+                    }
+                }
+            });
+            // the cumulative rating lists, keyed by rating while they are built
+            final Map<Integer, DocIdBitmap> ratingMap = new TreeMap<Integer, DocIdBitmap>();
+            for(int i = 0; i <= MAX_RATING; i++){
+                ratingMap.put(i, this.searchRatingMap[i]);
+            }
+            fields.add(new FieldIndexer<Integer>("rating", ratingMap){
+                @Override
+                void keys(Content c, int index, List<Integer> out){
+                    for(int i = 0; i <= Math.min(c.getRating(), MAX_RATING); i++){
+                        out.add(i);
+                    }
+                }
+            });
+            fields.add(new FieldIndexer<Float>("price", this.searchPriceMap){
+                @Override
+                void keys(Content c, int index, List<Float> out){
+                    out.add(c.getPrice());
+                }
+            });
+            fields.add(new FieldIndexer<String>("language", this.searchLangMap){
+                @Override
+                void keys(Content c, int index, List<String> out){
+                    for(int code : c.getLanguageCodes()){
+                        out.add(Content.LANGUAGES.decode(code));
+                    }
+                }
+            });
+            fields.add(new FieldIndexer<String>("country", this.searchCountryMap){
+                @Override
+                void keys(Content c, int index, List<String> out){
+                    for(int code : c.getCountryCodes()){
+                        out.add(Content.COUNTRIES.decode(code).getCountryCode());
+                    }
+                }
+            });
+            fields.add(new FieldIndexer<String>("device", this.searchDeviceMap){
+                @Override
+                void keys(Content c, int index, List<String> out){
+                    for(int code : c.getDeviceCodes()){
+                        out.add(Content.DEVICES.decode(code).getDeviceId());
+                    }
+                }
+            });
+            fields.add(new FieldIndexer<String>("type", this.searchTypeMap){
+                @Override
+                void keys(Content c, int index, List<String> out){
+                    out.add(Content.TYPES.decode(c.getTypeCode()));
+                }
+            });
+            final RecursiveAction text = new RecursiveAction(){
+                @Override
+                protected void compute(){
+                    textIndex.addDocuments(firstDocId, deferredWords, deferredPositions);
+                }
+            };
+
+            ForkJoinPool pool = new ForkJoinPool(this.indexParallelism);
+            try{
+                // waits for every field, even if this thread is interrupted
+                pool.invoke(new RecursiveAction(){
+                    @Override
+                    protected void compute(){
+                        List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(fields);
+                        tasks.add(text);
+                        invokeAll(tasks);
+                    }
+                });
+            }
+            finally{
+                pool.shutdown();
+            }
+            for(FieldIndexer<?> field : fields){
+                this.touched.addAll(field.touched);
+            }
+            for(int i = 0; i <= MAX_RATING; i++){
+                this.searchRatingMap[i] = ratingMap.get(i);
+            }
+            this.deferredWords.clear();
+            this.deferredPositions.clear();
+        }
+
+        /**
+         * {@code FieldIndexer} builds one search field's postings for the Content whose indexing
+         * was deferred. It counts the doc IDs under each key, allocates each key's doc ID array at
+         * its final size, fills the arrays in doc ID order, and merges the resulting posting
+         * lists into the field's search map.
+         */
+        private abstract class FieldIndexer<K> extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final String field;
+            private final Map<K, DocIdBitmap> map;
+
+            // Posting keys this field's indexing modified
+            final Set<String> touched;
+
+            FieldIndexer(String field, Map<K, DocIdBitmap> map){
+                this.field = field;
+                this.map = map;
+                this.touched = new HashSet<String>();
+            }
+
+            /**
+             * Adds the posting keys of one deferred Content to a list. A key may be added more
+             * than once.
+             *
+             * @param c Content being indexed
+             * @param index position of the Content among the deferred Content
+             * @param out receives the keys
+             */
+            abstract void keys(Content c, int index, List<K> out);
+
+            @Override
+            protected void compute(){
+                int count = deferredWords.size();
+                // for each key: doc IDs counted or filled so far, and the last Content counted
+                Map<K, int[]> counts = new HashMap<K, int[]>();
+                List<K> keys = new ArrayList<K>();
+                for(int d = 0; d < count; d++){
+                    keys.clear();
+                    keys(contentList.get(firstDocId + d), d, keys);
+                    for(K key : keys){
+                        int[] n = counts.get(key);
+                        if(n == null){
+                            n = new int[]{0, -1};
+                            counts.put(key, n);
+                        }
+                        if(n[1] != d){
+                            n[0]++;
+                            n[1] = d;
+                        }
+                    }
+                }
+                Map<K, int[]> docIds = new HashMap<K, int[]>(counts.size() * 2);
+                for(Map.Entry<K, int[]> e : counts.entrySet()){
+                    docIds.put(e.getKey(), new int[e.getValue()[0]]);
+                    e.getValue()[0] = 0;
+                    e.getValue()[1] = -1;
+                }
+                for(int d = 0; d < count; d++){
+                    keys.clear();
+                    keys(contentList.get(firstDocId + d), d, keys);
+                    for(K key : keys){
+                        int[] n = counts.get(key);
+                        if(n[1] != d){
+                            docIds.get(key)[n[0]++] = firstDocId + d;
+                            n[1] = d;
+                        }
+                    }
+                }
+                for(Map.Entry<K, int[]> e : docIds.entrySet()){
+                    DocIdBitmap added = DocIdBitmap.fromSorted(e.getValue(), e.getValue().length);
+                    DocIdBitmap posting = this.map.get(e.getKey());
+                    if(posting == null){
+                        this.touched.add(SearchResultCache.newKeysDependency(this.field));
+                        this.map.put(e.getKey(), added);
+                    }
+                    else{
+                        this.map.put(e.getKey(), posting.or(added));
+                    }
+                    this.touched.add(this.field + ":" + e.getKey());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * {@code CatalogSnapshotFile} writes a catalog generation to a versioned binary file and opens it
+ * again by memory mapping, so a restarted catalog serves searches without replaying its CSV
+ * imports or rebuilding its indexes.
+ *
+ * The file starts with a magic number, the format version, and the last mutation journal record
+ * the snapshot covers, followed by the serialized posting
+ * lists and text postings, then a directory holding the Countries, Devices, Content, term
+ * dictionary, and search map keys with the offset of each key's postings, and ends with the
+ * directory's offset. A retired doc ID is written as Content with an empty type, and Content
+ * lists its text terms by their position in the term dictionary. Opening the
+ * file reads only the directory; each posting list is decoded
+ * the first time a search touches it, so the operating system pages in just the postings used.
+ */
+class CatalogSnapshotFile {
+
+    // Identifies a catalog snapshot file ("CATS")
+    private static final int MAGIC = 0x43415453;
+
+    // Format version written; files of other versions are rejected
+    static final int FORMAT_VERSION = 4;
+
+    // Encoding of every string in the file
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * {@code Opened} is the catalog read from a snapshot file.
+     */
+    static class Opened {
+        final Map<String, Country> countries;
+        final Map<String, Device> devices;
+        final CatalogSnapshot snapshot;
+        final long journalSequence;
+
+        Opened(Map<String, Country> countries, Map<String, Device> devices, CatalogSnapshot snapshot,
+               long journalSequence){
+            this.countries = countries;
+            this.devices = devices;
+            this.snapshot = snapshot;
+            this.journalSequence = journalSequence;
+        }
+    }
+
+    private CatalogSnapshotFile(){
+    }
+
+    /**
+     * Writes a catalog generation with its Countries and Devices. The file is written beside its
+     * destination and forced to disk before it atomically replaces it, so a crash never leaves a
+     * partial snapshot, and a snapshot mapped from the old file stays readable.
+     *
+     * @param fileName file to write
+     * @param snapshot catalog generation to write; its tombstones must have been purged
+     * @param countries the catalog's Countries
+     * @param devices the catalog's Devices
+     * @param journalSequence sequence number of the last journaled mutation the snapshot holds
+     * @throws IOException when the file cannot be written, or is too large to be mapped
+     */
+    static void write(String fileName, CatalogSnapshot snapshot, Collection<Country> countries,
+                      Collection<Device> devices, long journalSequence) throws IOException{
+        Path target = Paths.get(fileName);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp.toFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+        try{
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(journalSequence);
+
+            // posting data; the directory records where each list starts and ends
+            List<int[]> catRefs = writePostings(out, snapshot.searchCatMap.values());
+            List<int[]> textRefs = writePostings(out, snapshot.searchTextMap.values());
+            List<int[]> termRefs = new ArrayList<int[]>();
+            Map<String, TextIndex.TermPostings> terms = snapshot.textIndex.getTerms();
+            for(String term : snapshot.searchTextMap.keySet()){
+                int start = out.size();
+                terms.get(term).writeTo(out);
+                termRefs.add(new int[]{start, out.size() - start});
+            }
+            List<int[]> ratingRefs = writePostings(out, Arrays.asList(snapshot.searchRatingMap));
+            List<int[]> priceRefs = writePostings(out, snapshot.searchPriceMap.values());
+            List<int[]> langRefs = writePostings(out, snapshot.searchLangMap.values());
+            List<int[]> countryRefs = writePostings(out, snapshot.searchCountryMap.values());
+            List<int[]> deviceRefs = writePostings(out, snapshot.searchDeviceMap.values());
+            List<int[]> typeRefs = writePostings(out, snapshot.searchTypeMap.values());
+
+            // directory
+            int directory = out.size();
+            out.writeInt(countries.size());
+            for(Country c : countries){
+                writeString(out, c.getCountryCode());
+                writeString(out, c.getCountryName());
+                writeString(out, c.getCountryStatus());
+            }
+            out.writeInt(devices.size());
+            for(Device d : devices){
+                writeString(out, d.getDeviceId());
+                writeString(out, d.getDeviceName());
+                writeString(out, d.getManufacturer());
+            }
+            Map<String, Integer> termIndexes = new HashMap<String, Integer>();
+            for(String term : snapshot.searchTextMap.keySet()){
+                termIndexes.put(term, termIndexes.size());
+            }
+            out.writeInt(snapshot.contentList.size());
+            for(Content c : snapshot.contentList){
+                writeContent(out, c, termIndexes);
+            }
+            writeKeys(out, snapshot.searchCatMap.keySet(), catRefs);
+            out.writeInt(textRefs.size());
+            int t = 0;
+            for(String term : snapshot.searchTextMap.keySet()){
+                writeString(out, term);
+                writeRef(out, textRefs.get(t));
+                writeRef(out, termRefs.get(t));
+                t++;
+            }
+            for(int[] ref : ratingRefs){
+                writeRef(out, ref);
+            }
+            out.writeInt(priceRefs.size());
+            int p = 0;
+            for(Float price : snapshot.searchPriceMap.keySet()){
+                out.writeFloat(price);
+                writeRef(out, priceRefs.get(p++));
+            }
+            writeKeys(out, snapshot.searchLangMap.keySet(), langRefs);
+            writeKeys(out, snapshot.searchCountryMap.keySet(), countryRefs);
+            writeKeys(out, snapshot.searchDeviceMap.keySet(), deviceRefs);
+            writeKeys(out, snapshot.searchTypeMap.keySet(), typeRefs);
+            int[] docLengths = snapshot.textIndex.getDocLengths();
+            out.writeInt(docLengths.length);
+            for(int length : docLengths){
+                out.writeInt(length);
+            }
+            out.writeLong(snapshot.textIndex.getTotalLength());
+
+            if(out.size() >= Integer.MAX_VALUE - 8){
+                throw new IOException("Catalog snapshot is too large to be mapped");
+            }
+            out.writeInt(directory);
+            out.writeInt(MAGIC);
+            out.flush();
+            file.getChannel().force(true);
+        }
+        finally{
+            out.close();
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Opens a snapshot file by memory mapping it. Countries, Devices, Content, and the search
+     * map keys are read now; posting lists are decoded when first used.
+     *
+     * @param fileName file to open
+     * @param generation catalog generation to give the opened snapshot
+     * @return the catalog read from the file
+     * @throws IOException when the file cannot be read or is not a snapshot of this version
+     */
+    static Opened open(String fileName, long generation) throws IOException{
+        ByteBuffer data;
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try{
+            FileChannel channel = file.getChannel();
+            if(channel.size() < 24 || channel.size() > Integer.MAX_VALUE){
+                throw new IOException("File is not a catalog snapshot");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            data = mapped;
+        }
+        finally{
+            // the mapping stays valid after the file is closed
+            file.close();
+        }
+        int end = data.limit();
+        if(data.getInt(0) != MAGIC || data.getInt(end - 4) != MAGIC){
+            throw new IOException("File is not a catalog snapshot");
+        }
+        if(data.getInt(4) != FORMAT_VERSION){
+            throw new IOException("Unsupported catalog snapshot version " + data.getInt(4));
+        }
+        ByteBuffer dir = data.duplicate();
+        try{
+            dir.position(data.getInt(end - 8));
+            return readDirectory(data, dir, generation, data.getLong(8));
+        }
+        catch(RuntimeException re){
+            // a truncated or corrupt directory reads out of bounds
+            throw new IOException("Catalog snapshot is corrupt: " + re);
+        }
+    }
+
+    private static Opened readDirectory(ByteBuffer data, ByteBuffer dir, long generation, long journalSequence){
+        Map<String, Country> countries = new TreeMap<String, Country>();
+        for(int n = dir.getInt(); n > 0; n--){
+            Country c = new Country(readString(dir), readString(dir), readString(dir));
+            countries.put(c.getCountryCode(), c);
+        }
+        Map<String, Device> devices = new TreeMap<String, Device>();
+        for(int n = dir.getInt(); n > 0; n--){
+            Device d = new Device(readString(dir), readString(dir), readString(dir));
+            devices.put(d.getDeviceId(), d);
+        }
+        int contentCount = dir.getInt();
+        List<Content> contentList = new ChunkedList<Content>();
+        int liveCount = 0;
+        for(int i = 0; i < contentCount; i++){
+            Content c = readContent(dir, i, countries, devices);
+            contentList.add(c);
+            liveCount += c == null ? 0 : 1;
+        }
+        Map<String, DocIdBitmap> catMap = readKeys(data, dir);
+        NavigableMap<String, DocIdBitmap> textMap = new PersistentTreeMap<String, DocIdBitmap>();
+        Map<String, TextIndex.TermPostings> terms = new HashMap<String, TextIndex.TermPostings>();
+        int[] termCodes = new int[dir.getInt()];
+        for(int i = 0; i < termCodes.length; i++){
+            String term = readString(dir);
+            textMap.put(term, DocIdBitmap.mapped(readRef(data, dir)));
+            terms.put(term, TextIndex.TermPostings.mapped(readRef(data, dir)));
+            termCodes[i] = Content.TERMS.encode(term);
+        }
+        // Content was read with the positions of its terms in the dictionary
+        for(Content c : contentList){
+            if(c != null){
+                int[] codes = c.getTermCodes();
+                for(int i = 0; i < codes.length; i++){
+                    codes[i] = termCodes[codes[i]];
+                }
+                Arrays.sort(codes);
+            }
+        }
+        DocIdBitmap[] ratingMap = new DocIdBitmap[CatalogSnapshot.MAX_RATING + 1];
+        for(int i = 0; i < ratingMap.length; i++){
+            ratingMap[i] = DocIdBitmap.mapped(readRef(data, dir));
+        }
+        NavigableMap<Float, DocIdBitmap> priceMap = new PersistentTreeMap<Float, DocIdBitmap>();
+        for(int n = dir.getInt(); n > 0; n--){
+            float price = dir.getFloat();
+            priceMap.put(price, DocIdBitmap.mapped(readRef(data, dir)));
+        }
+        Map<String, DocIdBitmap> langMap = readKeys(data, dir);
+        Map<String, DocIdBitmap> countryMap = readKeys(data, dir);
+        Map<String, DocIdBitmap> deviceMap = readKeys(data, dir);
+        Map<String, DocIdBitmap> typeMap = readKeys(data, dir);
+        int lengthCount = dir.getInt();
+        int[] docLengths = new int[Math.max(16, lengthCount)];
+        for(int i = 0; i < lengthCount; i++){
+            docLengths[i] = dir.getInt();
+        }
+        long totalLength = dir.getLong();
+        TextIndex textIndex = new TextIndex(terms, docLengths, lengthCount, liveCount, totalLength);
+
+        CatalogSnapshot snapshot = new CatalogSnapshot(generation, contentList, catMap, textMap, ratingMap,
+                                                       priceMap, langMap, countryMap, deviceMap, typeMap,
+                                                       textIndex);
+        return new Opened(countries, devices, snapshot, journalSequence);
+    }
+
+    private static List<int[]> writePostings(DataOutputStream out, Collection<DocIdBitmap> postings)
+        throws IOException{
+        List<int[]> refs = new ArrayList<int[]>(postings.size());
+        for(DocIdBitmap posting : postings){
+            int start = out.size();
+            posting.writeTo(out);
+            refs.add(new int[]{start, out.size() - start});
+        }
+        return refs;
+    }
+
+    private static void writeKeys(DataOutputStream out, Set<String> keys, List<int[]> refs)
+        throws IOException{
+        out.writeInt(keys.size());
+        int i = 0;
+        for(String key : keys){
+            writeString(out, key);
+            writeRef(out, refs.get(i++));
+        }
+    }
+
+    private static Map<String, DocIdBitmap> readKeys(ByteBuffer data, ByteBuffer dir){
+        Map<String, DocIdBitmap> map = new PersistentTreeMap<String, DocIdBitmap>();
+        for(int n = dir.getInt(); n > 0; n--){
+            String key = readString(dir);
+            map.put(key, DocIdBitmap.mapped(readRef(data, dir)));
+        }
+        return map;
+    }
+
+    private static void writeRef(DataOutputStream out, int[] ref) throws IOException{
+        out.writeInt(ref[0]);
+        out.writeInt(ref[1]);
+    }
+
+    /**
+     * Reads a postings reference from the directory and returns a view of the postings' bytes.
+     */
+    private static ByteBuffer readRef(ByteBuffer data, ByteBuffer dir){
+        int start = dir.getInt();
+        int length = dir.getInt();
+        ByteBuffer view = data.duplicate();
+        view.position(start);
+        view.limit(start + length);
+        return view.slice();
+    }
+
+    private static void writeContent(DataOutputStream out, Content c, Map<String, Integer> termIndexes)
+        throws IOException{
+        if(c == null){
+            writeString(out, "");
+            return;
+        }
+        String type = Content.TYPES.decode(c.getTypeCode());
+        writeString(out, type);
+        writeString(out, c.getId());
+        writeString(out, c.getName());
+        writeString(out, c.getDescription());
+        writeString(out, c.getAuthor());
+        out.writeInt(c.getRating());
+        out.writeFloat(c.getPrice());
+        writeString(out, c.getImageUrl());
+        out.writeByte(c instanceof Application ? ((Application) c).getSize() : 0);
+        writeStrings(out, c.getCategories());
+        writeStrings(out, c.getLanguages());
+        List<String> codes = new ArrayList<String>();
+        for(Country ctry : c.getCountries()){
+            codes.add(ctry.getCountryCode());
+        }
+        writeStrings(out, codes);
+        List<String> ids = new ArrayList<String>();
+        for(Device dev : c.getDevices()){
+            ids.add(dev.getDeviceId());
+        }
+        writeStrings(out, ids);
+        out.writeInt(c.getTermCodes().length);
+        for(int code : c.getTermCodes()){
+            out.writeInt(termIndexes.get(Content.TERMS.decode(code)));
+        }
+    }
+
+    private static Content readContent(ByteBuffer dir, int docId, Map<String, Country> countryMap,
+                                       Map<String, Device> deviceMap){
+        String type = readString(dir);
+        if(type.equals("")){
+            return null;
+        }
+        String id = readString(dir);
+        String name = readString(dir);
+        String desc = readString(dir);
+        String author = readString(dir);
+        int rating = dir.getInt();
+        float price = dir.getFloat();
+        String url = readString(dir);
+        byte size = dir.get();
+        Set<String> cats = new HashSet<String>(readStrings(dir));
+        Set<String> langs = new HashSet<String>(readStrings(dir));
+        Set<Country> countries = new HashSet<Country>();
+        for(String code : readStrings(dir)){
+            countries.add(countryMap.get(code));
+        }
+        Set<Device> devices = new HashSet<Device>();
+        for(String devId : readStrings(dir)){
+            devices.add(deviceMap.get(devId));
+        }
+        int[] termIndexes = new int[dir.getInt()];
+        for(int i = 0; i < termIndexes.length; i++){
+            termIndexes[i] = dir.getInt();
+        }
+        Content c;
+        if(type.equals("application")){
+            c = new Application(id, name, desc, cats, author, rating, price, langs, url, countries, devices,
+                                size);
+        }
+        else if(type.equals("ringtone")){
+            c = new RingTone(id, name, desc, cats, author, rating, price, langs, url, countries, devices);
+        }
+        else{
+            c = new Wallpaper(id, name, desc, cats, author, rating, price, langs, url, countries, devices);
+        }
+        c.setDocId(docId);
+        c.setTypeCode(Content.TYPES.encode(type));
+        c.setTermCodes(termIndexes);
+        return c;
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException{
+        out.writeInt(values.size());
+        for(String v : values){
+            writeString(out, v);
+        }
+    }
+
+    private static List<String> readStrings(ByteBuffer dir){
+        int n = dir.getInt();
+        List<String> values = new ArrayList<String>(n);
+        for(int i = 0; i < n; i++){
+            values.add(readString(dir));
+        }
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException{
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer dir){
+        byte[] bytes = new byte[dir.getInt()];
+        dir.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
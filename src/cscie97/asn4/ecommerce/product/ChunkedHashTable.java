@@ -0,0 +1,196 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code ChunkedHashTable} is a hash table stored in fixed-size chunks, whose copies share the
+ * chunks until they write to them, as a {@link ChunkedList} does. It looks up a key with a hash
+ * and a short linear probe rather than a descent through a tree, so a catalog builder finding the
+ * Content for each id of a large batch touches a few cache lines per id.
+ *
+ * Keys and values are stored side by side in open addressing slots, and a removed key's probe
+ * run is shifted back over its slot, so the table never holds deleted markers. Null keys and
+ * values are not allowed. Like a HashMap, the table is not synchronized, and must not be modified
+ * while it is being read.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+class ChunkedHashTable<K, V> {
+
+    // Number of slots in each chunk; each slot holds a key and its value
+    private static final int CHUNK_BITS = 9;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK - 1;
+
+    private Object[][] chunks;
+
+    // Whether this table created or copied each chunk, so it may write to it in place
+    private boolean[] owned;
+
+    // Number of slots minus one; the number of slots is a power of two
+    private int mask;
+
+    private int size;
+
+    /**
+     * Creates an empty table.
+     */
+    ChunkedHashTable(){
+        allocate(CHUNK);
+    }
+
+    /**
+     * Creates a copy sharing every chunk of another table. From then on neither table writes to
+     * the shared chunks in place.
+     *
+     * @param table table to copy
+     */
+    ChunkedHashTable(ChunkedHashTable<K, V> table){
+        this.chunks = table.chunks.clone();
+        this.owned = new boolean[this.chunks.length];
+        this.mask = table.mask;
+        this.size = table.size;
+        Arrays.fill(table.owned, false);
+    }
+
+    int size(){
+        return this.size;
+    }
+
+    /**
+     * Returns the value stored under a key.
+     *
+     * @param key key to look up
+     * @return the key's value, or null if the key is not in the table
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key){
+        for(int slot = home(key); ; slot = (slot + 1) & this.mask){
+            Object[] chunk = this.chunks[slot >>> CHUNK_BITS];
+            int i = (slot & CHUNK_MASK) << 1;
+            if(chunk[i] == null){
+                return null;
+            }
+            if(chunk[i].equals(key)){
+                return (V) chunk[i + 1];
+            }
+        }
+    }
+
+    /**
+     * Stores a value under a key, replacing any value the key had.
+     *
+     * @param key key to store
+     * @param value value to store
+     * @return the key's previous value, or null if the key was not in the table
+     */
+    @SuppressWarnings("unchecked")
+    V put(K key, V value){
+        for(int slot = home(key); ; slot = (slot + 1) & this.mask){
+            Object[] chunk = this.chunks[slot >>> CHUNK_BITS];
+            int i = (slot & CHUNK_MASK) << 1;
+            if(chunk[i] == null){
+                write(slot, key, value);
+                this.size++;
+                if(this.size * 2 > this.mask + 1){
+                    rehash((this.mask + 1) * 2);
+                }
+                return null;
+            }
+            if(chunk[i].equals(key)){
+                V old = (V) chunk[i + 1];
+                write(slot, key, value);
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Removes a key and its value. The keys probed past the removed slot are moved back into
+     * it where their probe would otherwise no longer reach them.
+     *
+     * @param key key to remove
+     * @return the key's value, or null if the key was not in the table
+     */
+    @SuppressWarnings("unchecked")
+    V remove(Object key){
+        int slot = home(key);
+        while(true){
+            Object[] chunk = this.chunks[slot >>> CHUNK_BITS];
+            int i = (slot & CHUNK_MASK) << 1;
+            if(chunk[i] == null){
+                return null;
+            }
+            if(chunk[i].equals(key)){
+                break;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        V old = (V) this.chunks[slot >>> CHUNK_BITS][((slot & CHUNK_MASK) << 1) + 1];
+        int hole = slot;
+        for(int next = (hole + 1) & this.mask; ; next = (next + 1) & this.mask){
+            Object[] chunk = this.chunks[next >>> CHUNK_BITS];
+            int i = (next & CHUNK_MASK) << 1;
+            if(chunk[i] == null){
+                break;
+            }
+            int h = home(chunk[i]);
+            // a key whose home lies cyclically after the hole, up to its own slot, stays put
+            boolean reachable = hole <= next ? hole < h && h <= next : hole < h || h <= next;
+            if(!reachable){
+                write(hole, chunk[i], chunk[i + 1]);
+                hole = next;
+            }
+        }
+        write(hole, null, null);
+        this.size--;
+        return old;
+    }
+
+    private int home(Object key){
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    private void write(int slot, Object key, Object value){
+        int c = slot >>> CHUNK_BITS;
+        if(!this.owned[c]){
+            this.chunks[c] = this.chunks[c].clone();
+            this.owned[c] = true;
+        }
+        int i = (slot & CHUNK_MASK) << 1;
+        this.chunks[c][i] = key;
+        this.chunks[c][i + 1] = value;
+    }
+
+    private void allocate(int slots){
+        int count = Math.max(1, slots >>> CHUNK_BITS);
+        this.chunks = new Object[count][];
+        this.owned = new boolean[count];
+        for(int c = 0; c < count; c++){
+            this.chunks[c] = new Object[CHUNK << 1];
+            this.owned[c] = true;
+        }
+        this.mask = count * CHUNK - 1;
+    }
+
+    /**
+     * Moves every key into a table with more slots. The new chunks are all owned by this table.
+     */
+    private void rehash(int slots){
+        Object[][] old = this.chunks;
+        allocate(slots);
+        for(Object[] chunk : old){
+            for(int i = 0; i < chunk.length; i += 2){
+                if(chunk[i] != null){
+                    int slot = home(chunk[i]);
+                    while(this.chunks[slot >>> CHUNK_BITS][(slot & CHUNK_MASK) << 1] != null){
+                        slot = (slot + 1) & this.mask;
+                    }
+                    write(slot, chunk[i], chunk[i + 1]);
+                }
+            }
+        }
+    }
+}
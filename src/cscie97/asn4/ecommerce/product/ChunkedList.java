@@ -0,0 +1,114 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code ChunkedList} is a list stored in fixed-size chunks, whose copies share the chunks until
+ * they write to them. Copying a list copies only its chunk directory, and the first write to a
+ * chunk copies only that chunk, so a catalog builder starting from the current generation's
+ * Content list pays for the doc IDs it changes rather than for the whole catalog.
+ *
+ * Elements can only be set and appended, which is all a doc ID indexed list needs. Like an
+ * ArrayList, the list is not synchronized, and must not be modified while it is being read.
+ */
+class ChunkedList<E> extends AbstractList<E> implements RandomAccess {
+
+    // Number of elements in each chunk
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK - 1;
+
+    private Object[][] chunks;
+
+    // Whether this list created or copied each chunk, so it may write to it in place
+    private boolean[] owned;
+
+    private int size;
+
+    /**
+     * Creates an empty list.
+     */
+    ChunkedList(){
+        this.chunks = new Object[8][];
+        this.owned = new boolean[8];
+    }
+
+    /**
+     * Creates a copy sharing every chunk of another list. From then on neither list writes to
+     * the shared chunks in place.
+     *
+     * @param list list to copy
+     */
+    ChunkedList(ChunkedList<E> list){
+        this.chunks = list.chunks.clone();
+        this.owned = new boolean[this.chunks.length];
+        this.size = list.size;
+        Arrays.fill(list.owned, false);
+    }
+
+    /**
+     * Copies a list, sharing its chunks if it is a {@code ChunkedList}.
+     *
+     * @param list list to copy
+     * @return the copy
+     */
+    static <E> ChunkedList<E> copyOf(List<E> list){
+        if(list instanceof ChunkedList){
+            return new ChunkedList<E>((ChunkedList<E>) list);
+        }
+        ChunkedList<E> copy = new ChunkedList<E>();
+        copy.addAll(list);
+        return copy;
+    }
+
+    @Override
+    public int size(){
+        return this.size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index){
+        if(index < 0 || index >= this.size){
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+        return (E) this.chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element){
+        if(index < 0 || index >= this.size){
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+        Object[] chunk = writableChunk(index >>> CHUNK_BITS);
+        E old = (E) chunk[index & CHUNK_MASK];
+        chunk[index & CHUNK_MASK] = element;
+        return old;
+    }
+
+    @Override
+    public boolean add(E element){
+        int c = this.size >>> CHUNK_BITS;
+        if(c == this.chunks.length){
+            this.chunks = Arrays.copyOf(this.chunks, c * 2);
+            this.owned = Arrays.copyOf(this.owned, c * 2);
+        }
+        if(this.chunks[c] == null){
+            this.chunks[c] = new Object[CHUNK];
+            this.owned[c] = true;
+        }
+        writableChunk(c)[this.size & CHUNK_MASK] = element;
+        this.size++;
+        this.modCount++;
+        return true;
+    }
+
+    private Object[] writableChunk(int c){
+        if(!this.owned[c]){
+            this.chunks[c] = this.chunks[c].clone();
+            this.owned[c] = true;
+        }
+        return this.chunks[c];
+    }
+}
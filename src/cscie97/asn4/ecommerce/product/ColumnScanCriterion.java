@@ -0,0 +1,72 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code ColumnScanCriterion} answers an unselective price criterion, together with the rating
+ * and content type criteria of the same search, with one fused scan over the catalog's columns
+ * instead of unioning the posting lists of every price in the range.
+ */
+class ColumnScanCriterion extends SearchCriterion {
+    // Columns of the catalog generation being searched
+    private final ContentColumns columns;
+
+    // Inclusive price bounds
+    private final float minPrice;
+    private final float maxPrice;
+
+    // Minimum rating; -1, which every doc passes, when the search has no rating criterion
+    private final int minRating;
+
+    // Bit i set for each accepted type code i; -1 when the search has no type criterion
+    private final long typeMask;
+
+    // Upper bound on the number of matches
+    private final int estimate;
+
+    /**
+     * Default ColumnScanCriterion constructor
+     *
+     * @param columns columns of the catalog generation being searched
+     * @param minPrice inclusive minimum price
+     * @param maxPrice inclusive maximum price
+     * @param minRating minimum rating
+     * @param typeMask bit i set for each accepted type code i
+     * @param estimate upper bound on the number of matches, from the fused criteria's estimates
+     */
+    ColumnScanCriterion(ContentColumns columns, float minPrice, float maxPrice, int minRating,
+                        long typeMask, int estimate){
+        super("price");
+        this.columns = columns;
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        this.minRating = minRating;
+        this.typeMask = typeMask;
+        this.estimate = estimate;
+    }
+
+    @Override
+    int estimate(){
+        return this.estimate;
+    }
+
+    @Override
+    int probeCost(){
+        return 1;
+    }
+
+    @Override
+    DocIdBitmap evaluate(){
+        return this.columns.scan(this.minPrice, this.maxPrice, this.minRating, this.typeMask);
+    }
+
+    @Override
+    boolean matches(int docId){
+        return this.columns.matches(docId, this.minPrice, this.maxPrice, this.minRating, this.typeMask);
+    }
+
+    @Override
+    int nextMatch(int from){
+        return this.columns.nextMatch(from, this.minPrice, this.maxPrice, this.minRating, this.typeMask);
+    }
+}
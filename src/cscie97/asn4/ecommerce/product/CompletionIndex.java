@@ -0,0 +1,334 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code CompletionIndex} answers type-ahead requests over a term dictionary. Terms are kept in
+ * sorted order with front coding: every {@code BLOCK_SIZE}th term is stored whole, and the terms
+ * between store only the characters that follow the prefix they share with the term before them.
+ * The terms starting with a prefix form one contiguous range of the dictionary, and a range
+ * maximum tree over the term weights yields that range's top N completions without scanning it or
+ * touching any postings.
+ *
+ * A {@code CompletionIndex} is immutable. When only some terms' weights change, an owner can make
+ * a reweighted copy that shares the front coded terms; otherwise it rebuilds the index. Terms
+ * without documents are never completed.
+ */
+public class CompletionIndex {
+
+    /**
+     * {@code Ranking} selects how completions are ordered.
+     */
+    public enum Ranking {
+        /** Most documents containing the term first */
+        DOC_FREQUENCY,
+        /** Best rating among the documents containing the term first, then document frequency */
+        BEST_RATING
+    }
+
+    // Number of terms per front coding block; the first term of each block is stored whole
+    private static final int BLOCK_SIZE = 16;
+
+    // Number of terms
+    private final int size;
+
+    // Suffix characters of every term, back to back
+    private final char[] data;
+
+    // Start of each term's suffix in data; offsets[size] is the end of the data
+    private final int[] offsets;
+
+    // Number of leading characters each term shares with the term before it
+    private final char[] shared;
+
+    // Range maximum trees of term indexes, one for each ranking
+    private final int[] frequencyTree;
+    private final int[] ratingTree;
+
+    // Sort keys for each ranking, indexed by term
+    private final long[] frequencyKeys;
+    private final long[] ratingKeys;
+
+    /**
+     * Builds a CompletionIndex.
+     *
+     * @param terms terms in ascending order, without duplicates
+     * @param docFreqs number of documents containing each term
+     * @param bestRatings best rating among the documents containing each term, or null when the
+     *                    documents have no rating
+     */
+    public CompletionIndex(List<String> terms, int[] docFreqs, int[] bestRatings){
+        this.size = terms.size();
+        this.offsets = new int[this.size + 1];
+        this.shared = new char[this.size];
+        StringBuilder chars = new StringBuilder();
+        String previous = "";
+        for(int i = 0; i < this.size; i++){
+            String term = terms.get(i);
+            int common = 0;
+            if(i % BLOCK_SIZE != 0){
+                int max = Math.min(Math.min(term.length(), previous.length()), Character.MAX_VALUE);
+                while(common < max && term.charAt(common) == previous.charAt(common)){
+                    common++;
+                }
+            }
+            this.shared[i] = (char) common;
+            this.offsets[i] = chars.length();
+            chars.append(term, common, term.length());
+            previous = term;
+        }
+        this.offsets[this.size] = chars.length();
+        this.data = new char[chars.length()];
+        chars.getChars(0, chars.length(), this.data, 0);
+
+        this.frequencyKeys = new long[this.size];
+        this.ratingKeys = new long[this.size];
+        for(int i = 0; i < this.size; i++){
+            this.frequencyKeys[i] = docFreqs[i];
+            int rating = bestRatings == null ? 0 : bestRatings[i];
+            this.ratingKeys[i] = ((long) rating << 32) | docFreqs[i];
+        }
+        this.frequencyTree = buildTree(this.frequencyKeys);
+        this.ratingTree = buildTree(this.ratingKeys);
+    }
+
+    /**
+     * Creates a copy of an index sharing its terms, with weights that can be changed in place
+     * until the copy is returned.
+     *
+     * @param index index to copy
+     */
+    private CompletionIndex(CompletionIndex index){
+        this.size = index.size;
+        this.data = index.data;
+        this.offsets = index.offsets;
+        this.shared = index.shared;
+        this.frequencyKeys = index.frequencyKeys.clone();
+        this.ratingKeys = index.ratingKeys.clone();
+        this.frequencyTree = index.frequencyTree.clone();
+        this.ratingTree = index.ratingTree.clone();
+    }
+
+    /**
+     * Returns a copy of the index with new weights for some of its terms. The copy shares the
+     * front coded terms, and each new weight updates one path of the range maximum trees, so
+     * the terms are neither decoded nor sorted again. A term given no documents stays in the
+     * copy but is no longer completed.
+     *
+     * @param terms terms whose weights changed
+     * @param docFreqs number of documents containing each term
+     * @param bestRatings best rating among the documents containing each term, or null when the
+     *                    documents have no rating
+     * @return the reweighted copy, or null if a term with documents is not in the index, in
+     *         which case the index must be rebuilt
+     */
+    public CompletionIndex reweighted(List<String> terms, int[] docFreqs, int[] bestRatings){
+        int[] positions = new int[terms.size()];
+        for(int t = 0; t < positions.length; t++){
+            int i = lowerBound(terms.get(t));
+            positions[t] = i < this.size && term(i).equals(terms.get(t)) ? i : -1;
+            if(positions[t] < 0 && docFreqs[t] > 0){
+                return null;
+            }
+        }
+        CompletionIndex copy = new CompletionIndex(this);
+        for(int t = 0; t < positions.length; t++){
+            int i = positions[t];
+            if(i >= 0){
+                int rating = bestRatings == null || docFreqs[t] == 0 ? 0 : bestRatings[t];
+                copy.frequencyKeys[i] = docFreqs[t];
+                copy.ratingKeys[i] = ((long) rating << 32) | docFreqs[t];
+            }
+        }
+        for(int t = 0; t < positions.length; t++){
+            if(positions[t] >= 0){
+                updateTree(copy.frequencyTree, copy.frequencyKeys, positions[t]);
+                updateTree(copy.ratingTree, copy.ratingKeys, positions[t]);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the number of terms in the dictionary.
+     *
+     * @return number of terms
+     */
+    public int size(){
+        return this.size;
+    }
+
+    /**
+     * Returns the term at a position in the dictionary.
+     *
+     * @param index position of the term, in ascending term order
+     * @return the term
+     */
+    public String term(int index){
+        int block = index - index % BLOCK_SIZE;
+        char[] buffer = new char[16];
+        int len = 0;
+        for(int i = block; i <= index; i++){
+            len = this.shared[i];
+            int suffix = this.offsets[i + 1] - this.offsets[i];
+            if(len + suffix > buffer.length){
+                buffer = Arrays.copyOf(buffer, Math.max(len + suffix, buffer.length * 2));
+            }
+            System.arraycopy(this.data, this.offsets[i], buffer, len, suffix);
+            len += suffix;
+        }
+        return new String(buffer, 0, len);
+    }
+
+    /**
+     * Returns the top N terms starting with a prefix. Ties keep dictionary order.
+     *
+     * @param prefix prefix the terms must start with; an empty prefix matches every term
+     * @param n maximum number of completions
+     * @param ranking how the completions are ordered
+     * @return up to N completions, best first
+     */
+    public List<String> complete(String prefix, int n, Ranking ranking){
+        List<String> completions = new ArrayList<String>();
+        int lo = lowerBound(prefix);
+        int hi = upperBound(prefix);
+        if(n <= 0 || lo >= hi){
+            return completions;
+        }
+        final long[] keys = ranking == Ranking.BEST_RATING ? this.ratingKeys : this.frequencyKeys;
+        int[] tree = ranking == Ranking.BEST_RATING ? this.ratingTree : this.frequencyTree;
+
+        // best-first walk: each queued range is represented by its best term, and taking a term
+        // splits its range into the two ranges on either side of it
+        PriorityQueue<int[]> ranges = new PriorityQueue<int[]>(11, new Comparator<int[]>(){
+            @Override
+            public int compare(int[] a, int[] b){
+                int c = Long.compare(keys[b[0]], keys[a[0]]);
+                return c != 0 ? c : Integer.compare(a[0], b[0]);
+            }
+        });
+        ranges.add(new int[]{rangeMax(tree, keys, lo, hi), lo, hi});
+        while(!ranges.isEmpty() && completions.size() < n){
+            int[] range = ranges.poll();
+            int best = range[0];
+            if(keys[best] == 0){
+                // the best term left has no documents, so neither has any other
+                break;
+            }
+            completions.add(term(best));
+            if(range[1] < best){
+                ranges.add(new int[]{rangeMax(tree, keys, range[1], best), range[1], best});
+            }
+            if(best + 1 < range[2]){
+                ranges.add(new int[]{rangeMax(tree, keys, best + 1, range[2]), best + 1, range[2]});
+            }
+        }
+        return completions;
+    }
+
+    /**
+     * Finds the position of the first term not less than a key.
+     *
+     * @param key key to search for
+     * @return position of the first term {@code >= key}, or size if there is none
+     */
+    private int lowerBound(String key){
+        // binary search the block heads for the last block starting before the key
+        int lo = 0;
+        int hi = (this.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(term(mid * BLOCK_SIZE).compareTo(key) < 0){
+                lo = mid + 1;
+            }
+            else{
+                hi = mid;
+            }
+        }
+        if(lo == 0){
+            return 0;
+        }
+        // then decode that block's terms in order until one reaches the key
+        int block = (lo - 1) * BLOCK_SIZE;
+        int end = Math.min(block + BLOCK_SIZE, this.size);
+        StringBuilder current = new StringBuilder();
+        for(int i = block; i < end; i++){
+            current.setLength(this.shared[i]);
+            current.append(this.data, this.offsets[i], this.offsets[i + 1] - this.offsets[i]);
+            if(current.toString().compareTo(key) >= 0){
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Finds the position after the last term starting with a prefix.
+     *
+     * @param prefix prefix to search for
+     * @return position of the first term greater than every term starting with the prefix
+     */
+    private int upperBound(String prefix){
+        // the smallest string greater than every string starting with the prefix
+        int last = prefix.length() - 1;
+        while(last >= 0 && prefix.charAt(last) == Character.MAX_VALUE){
+            last--;
+        }
+        if(last < 0){
+            return this.size;
+        }
+        return lowerBound(prefix.substring(0, last) + (char) (prefix.charAt(last) + 1));
+    }
+
+    /**
+     * Builds a range maximum tree over the term positions. Leaf i + n holds term i, and each
+     * inner node holds whichever of its children's terms has the greater key.
+     */
+    private int[] buildTree(long[] keys){
+        int n = keys.length;
+        int[] tree = new int[2 * n];
+        for(int i = 0; i < n; i++){
+            tree[n + i] = i;
+        }
+        for(int i = n - 1; i > 0; i--){
+            tree[i] = better(keys, tree[2 * i], tree[2 * i + 1]);
+        }
+        return tree;
+    }
+
+    /**
+     * Recomputes the inner nodes above one term's leaf after the term's key changed.
+     */
+    private void updateTree(int[] tree, long[] keys, int index){
+        int n = keys.length;
+        for(int i = (index + n) >> 1; i > 0; i >>= 1){
+            tree[i] = better(keys, tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    /**
+     * Finds the term with the greatest key in a range of positions.
+     *
+     * @return position of the best term in [lo, hi)
+     */
+    private int rangeMax(int[] tree, long[] keys, int lo, int hi){
+        int n = keys.length;
+        int best = lo;
+        for(lo += n, hi += n; lo < hi; lo >>= 1, hi >>= 1){
+            if((lo & 1) == 1){
+                best = better(keys, best, tree[lo++]);
+            }
+            if((hi & 1) == 1){
+                best = better(keys, best, tree[--hi]);
+            }
+        }
+        return best;
+    }
+
+    private static int better(long[] keys, int a, int b){
+        if(keys[a] != keys[b]){
+            return keys[a] > keys[b] ? a : b;
+        }
+        return Math.min(a, b);
+    }
+}
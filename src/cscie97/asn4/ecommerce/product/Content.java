@@ -5,8 +5,25 @@ import java.util.*;
 /**
  * {@code Content} is the abstract class for the different types of products that can be in the 
  * Product Catalog. 
+ * 
+ * Categories, languages, countries, and devices repeat across the catalog, so each Content stores
+ * them as sorted codes into catalog-wide dictionaries; the getters return read-only views that
+ * decode the codes as they are read.
+ * 
+ * Price and rating change far more often than the rest of the Content, so a repriced copy can be
+ * made that shares every other attribute with the original.
  */
 public abstract class Content {
+	// Catalog-wide dictionaries of the low-cardinality attributes
+	static final AttributeDictionary<String> CATEGORIES = new AttributeDictionary<String>();
+	static final AttributeDictionary<String> LANGUAGES = new AttributeDictionary<String>();
+	static final AttributeDictionary<Country> COUNTRIES = new AttributeDictionary<Country>();
+	static final AttributeDictionary<Device> DEVICES = new AttributeDictionary<Device>();
+	static final AttributeDictionary<String> TYPES = new AttributeDictionary<String>();
+	// Catalog-wide dictionary of the analyzed text terms
+	static final AttributeDictionary<String> TERMS = new AttributeDictionary<String>();
+	
+
 	// The Content's ID
 	private final String id;
 	
@@ -16,8 +33,8 @@ public abstract class Content {
 	// The Content's description
 	private final String description;
 	
-	// The categories to which the Content belongs
-	private final Set<String> categories;
+	// Codes of the categories to which the Content belongs
+	private final int[] categories;
 	
 	// The Content's author
 	private final String author;
@@ -28,17 +45,26 @@ public abstract class Content {
 	// The Content's price
 	private final float price;
 	
-	// The Content's supported languages
-	private final Set<String> languages;
+	// Codes of the Content's supported languages
+	private final int[] languages;
 	
 	// The Content's image URL
 	private final String image_url;
 	
-	// The countries that the Content can be distributed to
-	private final Set<Country> countries;
+	// Codes of the countries that the Content can be distributed to
+	private final int[] countries;
+	
+	// Codes of the devices that the Content is compatible with
+	private final int[] devices;
 	
-	// The devices that the Content is compatible with
-	private final Set<Device> devices;
+	// The Content's dense integer ID in the Product Catalog search maps
+	private int docId = -1;
+	
+	// Code of the Content's type; -1 until the Content is added to the catalog
+	private int typeCode = -1;
+	
+	// Codes of the terms the Content's text is analyzed into; null until the Content is indexed
+	private int[] terms;
 	
 	/**
 	 * Default Content constructor
@@ -61,14 +87,39 @@ public abstract class Content {
     	this.id = id;
     	this.name = name;
     	this.description = desc;
-    	this.categories= cats;
+    	this.categories = CATEGORIES.encodeAll(cats);
     	this.author = auth;
     	this.rating = rating;
     	this.price = price;
-    	this.languages = langs;
+    	this.languages = LANGUAGES.encodeAll(langs);
     	this.image_url = url;
-    	this.countries = countries;
-    	this.devices = devices;    	
+    	this.countries = COUNTRIES.encodeAll(countries);
+    	this.devices = DEVICES.encodeAll(devices);
+    }
+    
+	/**
+	 * Creates a copy of Content with a new price and rating, sharing all its other attributes
+	 * and keeping its doc ID, type code, and term codes.
+	 * 
+	 * @param c Content to copy
+	 * @param price new price
+	 * @param rating new rating
+	 */
+    protected Content(Content c, float price, int rating){
+    	this.id = c.id;
+    	this.name = c.name;
+    	this.description = c.description;
+    	this.categories = c.categories;
+    	this.author = c.author;
+    	this.rating = rating;
+    	this.price = price;
+    	this.languages = c.languages;
+    	this.image_url = c.image_url;
+    	this.countries = c.countries;
+    	this.devices = c.devices;
+    	this.docId = c.docId;
+    	this.typeCode = c.typeCode;
+    	this.terms = c.terms;
     }
     
     @Override
@@ -76,7 +127,7 @@ public abstract class Content {
     	String print = this.name + "\n";
     	print = print + "Description: " + this.description + "\n";
     	print = print + "Categories: ";
-    	Iterator<String> iCat = this.categories.iterator();
+    	Iterator<String> iCat = getCategories().iterator();
     	while(iCat.hasNext()){
     		print = print + iCat.next() +"|";
     	}
@@ -84,19 +135,19 @@ public abstract class Content {
     	print = print + "Rating: " + this.rating + "/5\n";
     	print = print + "Price: " + this.price + " BitCoin(s)\n";
     	print = print + "Languages: ";
-    	Iterator<String> iLang = this.languages.iterator();
+    	Iterator<String> iLang = getLanguages().iterator();
     	while(iLang.hasNext()){
     		print = print + iLang.next() + "|";
     	}
     	print = print + "\n";
     	print = print + "Countries: ";
-    	Iterator<Country> iCtry = this.countries.iterator();
+    	Iterator<Country> iCtry = getCountries().iterator();
     	while(iCtry.hasNext()){
     		print = print + iCtry.next().getCountryName() + "|";
     	}
     	print = print + "\n";
     	print = print + "Devices: ";
-    	Iterator<Device> iDev = this.devices.iterator();
+    	Iterator<Device> iDev = getDevices().iterator();
     	while(iDev.hasNext()){
     		print = print + iDev.next().getDeviceName() + "|";
     	}
@@ -118,7 +169,7 @@ public abstract class Content {
 	}
 
 	public Set<String> getCategories() {
-		return this.categories;
+		return CATEGORIES.view(this.categories);
 	}
 
 	public String getAuthor() {
@@ -134,7 +185,7 @@ public abstract class Content {
 	}
 
 	public Set<String> getLanguages() {
-		return this.languages;
+		return LANGUAGES.view(this.languages);
 	}
 
 	public String getImageUrl() {
@@ -142,10 +193,60 @@ public abstract class Content {
 	}
 
 	public Set<Country> getCountries() {
-		return this.countries;
+		return COUNTRIES.view(this.countries);
 	}
 
 	public Set<Device> getDevices() {
+		return DEVICES.view(this.devices);
+	}
+	
+	/**
+	 * Returns a copy of the Content with a new price and rating, sharing all other attributes and
+	 * keeping the doc ID and type code.
+	 * 
+	 * @param price new price
+	 * @param rating new rating
+	 * @return the repriced copy
+	 */
+	abstract Content repriced(float price, int rating);
+	
+	int[] getCategoryCodes() {
+		return this.categories;
+	}
+	
+	int[] getLanguageCodes() {
+		return this.languages;
+	}
+	
+	int[] getCountryCodes() {
+		return this.countries;
+	}
+	
+	int[] getDeviceCodes() {
 		return this.devices;
-	}	
+	}
+	
+	int getDocId() {
+		return this.docId;
+	}
+	
+	void setDocId(int docId) {
+		this.docId = docId;
+	}
+	
+	int getTypeCode() {
+		return this.typeCode;
+	}
+	
+	void setTypeCode(int typeCode) {
+		this.typeCode = typeCode;
+	}
+	
+	int[] getTermCodes() {
+		return this.terms;
+	}
+	
+	void setTermCodes(int[] terms) {
+		this.terms = terms;
+	}
 }
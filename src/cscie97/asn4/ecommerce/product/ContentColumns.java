@@ -0,0 +1,242 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code ContentColumns} stores the numeric Content attributes that searches filter on as
+ * primitive arrays indexed by doc ID: price, rating, and content type code. A filter matching a
+ * large share of the catalog, such as a wide price range, is answered faster by one sequential
+ * pass over these columns than by merging the many posting lists it covers.
+ *
+ * The scan loops are branch-free over fixed 64 doc groups, so the JIT can unroll and
+ * vectorize them. The columns are stored in blocks of doc IDs. Published columns are never
+ * modified: a builder copies the block directories before its first change, and copies a block
+ * before writing to it, so changing one doc costs one block rather than the whole catalog.
+ */
+class ContentColumns {
+
+    // Number of docs in each block; a multiple of the 64 docs a scan word covers
+    private static final int BLOCK_BITS = 12;
+    private static final int BLOCK = 1 << BLOCK_BITS;
+    private static final int BLOCK_MASK = BLOCK - 1;
+
+    // Number of docs in the columns
+    private int size;
+
+    // Price of each doc, by block
+    private float[][] price;
+
+    // Rating of each doc, clamped to [-1, MAX_RATING], or RETIRED, by block
+    private byte[][] rating;
+
+    // Rating of a retired doc ID, whose Content was removed from the catalog; below every
+    // minimum rating, so the doc never passes a filter
+    private static final byte RETIRED = Byte.MIN_VALUE;
+
+    // Content type code of each doc, by block
+    private byte[][] type;
+
+    // Whether these columns created or copied each block, so they may write to it in place
+    private boolean[] owned;
+
+    /**
+     * Creates empty columns.
+     */
+    ContentColumns(){
+        this(0, new float[4][], new byte[4][], new byte[4][]);
+    }
+
+    private ContentColumns(int size, float[][] price, byte[][] rating, byte[][] type){
+        this.size = size;
+        this.price = price;
+        this.rating = rating;
+        this.type = type;
+        this.owned = new boolean[price.length];
+    }
+
+    int size(){
+        return this.size;
+    }
+
+    float price(int docId){
+        return this.price[docId >>> BLOCK_BITS][docId & BLOCK_MASK];
+    }
+
+    int rating(int docId){
+        return this.rating[docId >>> BLOCK_BITS][docId & BLOCK_MASK];
+    }
+
+    int type(int docId){
+        return this.type[docId >>> BLOCK_BITS][docId & BLOCK_MASK];
+    }
+
+    /**
+     * Returns columns with one more doc appended. Columns a snapshot may hold are copied first,
+     * so earlier columns never see the appended doc.
+     *
+     * @param owned true if no published snapshot holds these columns, so they may be appended to
+     *        in place
+     * @param c Content being appended, or null for a retired doc ID; its doc ID must equal the
+     *        current size
+     * @return columns holding the appended doc
+     */
+    ContentColumns append(boolean owned, Content c){
+        ContentColumns target = owned ? this : copy();
+        int b = target.size >>> BLOCK_BITS;
+        if(b == target.price.length){
+            target.price = Arrays.copyOf(target.price, b * 2);
+            target.rating = Arrays.copyOf(target.rating, b * 2);
+            target.type = Arrays.copyOf(target.type, b * 2);
+            target.owned = Arrays.copyOf(target.owned, b * 2);
+        }
+        if(target.price[b] == null){
+            target.price[b] = new float[BLOCK];
+            target.rating[b] = new byte[BLOCK];
+            target.type[b] = new byte[BLOCK];
+            target.owned[b] = true;
+        }
+        target.size++;
+        if(c == null){
+            target.retireRow(target.size - 1);
+        }
+        else{
+            target.setRow(target.size - 1, c);
+        }
+        return target;
+    }
+
+    /**
+     * Returns columns with one doc's values replaced by those of updated Content.
+     *
+     * @param owned true if no published snapshot holds these columns, so they may be changed in
+     *        place
+     * @param docId doc ID of the Content
+     * @param c updated Content
+     * @return columns holding the updated values
+     */
+    ContentColumns set(boolean owned, int docId, Content c){
+        ContentColumns target = owned ? this : copy();
+        target.setRow(docId, c);
+        return target;
+    }
+
+    /**
+     * Returns columns in which a doc ID is retired, so that no filter matches it again.
+     *
+     * @param owned true if no published snapshot holds these columns, so they may be changed in
+     *        place
+     * @param docId doc ID of the removed Content
+     * @return columns with the doc ID retired
+     */
+    ContentColumns retire(boolean owned, int docId){
+        ContentColumns target = owned ? this : copy();
+        target.retireRow(docId);
+        return target;
+    }
+
+    /**
+     * Copies the block directories; the blocks stay shared until written to.
+     */
+    private ContentColumns copy(){
+        return new ContentColumns(this.size, this.price.clone(), this.rating.clone(), this.type.clone());
+    }
+
+    /**
+     * Makes the block holding a doc writable, copying it if these columns do not own it.
+     *
+     * @return index of the block
+     */
+    private int writableBlock(int docId){
+        int b = docId >>> BLOCK_BITS;
+        if(!this.owned[b]){
+            this.price[b] = this.price[b].clone();
+            this.rating[b] = this.rating[b].clone();
+            this.type[b] = this.type[b].clone();
+            this.owned[b] = true;
+        }
+        return b;
+    }
+
+    private void setRow(int docId, Content c){
+        int b = writableBlock(docId);
+        int i = docId & BLOCK_MASK;
+        this.price[b][i] = c.getPrice();
+        this.rating[b][i] = (byte) Math.max(-1, Math.min(c.getRating(), CatalogSnapshot.MAX_RATING));
+        this.type[b][i] = (byte) c.getTypeCode();
+    }
+
+    private void retireRow(int docId){
+        int b = writableBlock(docId);
+        int i = docId & BLOCK_MASK;
+        this.price[b][i] = 0;
+        this.rating[b][i] = RETIRED;
+        this.type[b][i] = 0;
+    }
+
+    /**
+     * Checks one doc against a fused price, rating, and type filter.
+     *
+     * @param docId doc ID to check
+     * @param minPrice inclusive minimum price
+     * @param maxPrice inclusive maximum price
+     * @param minRating minimum rating
+     * @param typeMask bit i set for each accepted type code i
+     * @return true if the doc passes every filter
+     */
+    boolean matches(int docId, float minPrice, float maxPrice, int minRating, long typeMask){
+        int b = docId >>> BLOCK_BITS;
+        int i = docId & BLOCK_MASK;
+        float p = this.price[b][i];
+        return p >= minPrice && p <= maxPrice && this.rating[b][i] >= minRating
+               && ((typeMask >>> this.type[b][i]) & 1L) != 0;
+    }
+
+    /**
+     * Scans the columns for the docs passing a fused price, rating, and type filter.
+     *
+     * @param minPrice inclusive minimum price
+     * @param maxPrice inclusive maximum price
+     * @param minRating minimum rating; -1 accepts every doc still in the catalog
+     * @param typeMask bit i set for each accepted type code i; -1 accepts every type
+     * @return bitmap of the matching doc IDs
+     */
+    DocIdBitmap scan(float minPrice, float maxPrice, int minRating, long typeMask){
+        long[] words = new long[(this.size + 63) >>> 6];
+        int full = this.size >>> 6;
+        for(int w = 0; w < full; w++){
+            int b = w >>> (BLOCK_BITS - 6);
+            float[] p = this.price[b];
+            byte[] r = this.rating[b];
+            byte[] t = this.type[b];
+            int base = (w << 6) & BLOCK_MASK;
+            long bits = 0;
+            for(int j = 0; j < 64; j++){
+                int i = base + j;
+                float v = p[i];
+                long hit = (v >= minPrice & v <= maxPrice & r[i] >= minRating) ? 1L : 0L;
+                bits |= (hit & (typeMask >>> t[i])) << j;
+            }
+            words[w] = bits;
+        }
+        for(int i = full << 6; i < this.size; i++){
+            if(matches(i, minPrice, maxPrice, minRating, typeMask)){
+                words[i >>> 6] |= 1L << i;
+            }
+        }
+        return DocIdBitmap.fromWords(words);
+    }
+
+    /**
+     * Finds the first doc at or after a starting point passing a fused filter.
+     *
+     * @return the next matching doc ID, or -1 if there is none
+     */
+    int nextMatch(int from, float minPrice, float maxPrice, int minRating, long typeMask){
+        for(int i = Math.max(0, from); i < this.size; i++){
+            if(matches(i, minPrice, maxPrice, minRating, typeMask)){
+                return i;
+            }
+        }
+        return -1;
+    }
+}
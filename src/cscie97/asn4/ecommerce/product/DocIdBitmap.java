@@ -0,0 +1,847 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * {@code DocIdBitmap} is a compressed bitmap of Content doc IDs and is used as the posting list
+ * for every ProductCatalog search map. Doc IDs are split into a 16-bit high key and a 16-bit low
+ * value. Each high key owns a container that stores its low values either as a sorted array
+ * (when sparse) or as a 65536-bit bitmap (when dense), in the manner of Roaring bitmaps, so unions
+ * and intersections are word-wise OR/AND operations rather than hashing.
+ *
+ * A bitmap read from a mapped catalog snapshot file keeps only its serialized bytes until it is
+ * first used, so postings that no search touches are never decoded.
+ */
+class DocIdBitmap {
+
+    // Containers holding more than this many values are stored as bitmaps
+    private static final int ARRAY_MAX = 4096;
+
+    // Sorted high 16-bit keys, one per container
+    private char[] keys;
+
+    // The containers for each high key
+    private Container[] containers;
+
+    // Number of containers in use
+    private int size;
+
+    // Serialized form not yet decoded into the containers; null once decoded
+    private volatile ByteBuffer source;
+
+    // Container kinds in the serialized form
+    private static final byte ARRAY_KIND = 0;
+    private static final byte BITMAP_KIND = 1;
+
+    /**
+     * Default DocIdBitmap constructor; creates an empty bitmap.
+     */
+    DocIdBitmap(){
+        this.keys = new char[4];
+        this.containers = new Container[4];
+        this.size = 0;
+    }
+
+    /**
+     * Adds a doc ID to the bitmap.
+     *
+     * @param docId doc ID to add
+     */
+    void add(int docId){
+        ensureLoaded();
+        char hi = (char) (docId >>> 16);
+        int i = findKey(hi);
+        if(i >= 0){
+            this.containers[i] = this.containers[i].add((char) docId);
+        }
+        else{
+            ArrayContainer ac = new ArrayContainer();
+            insertContainer(-i - 1, hi, ac.add((char) docId));
+        }
+    }
+
+    /**
+     * Removes a doc ID from the bitmap, if it is there.
+     *
+     * @param docId doc ID to remove
+     */
+    void remove(int docId){
+        ensureLoaded();
+        int i = findKey((char) (docId >>> 16));
+        if(i < 0){
+            return;
+        }
+        this.containers[i] = this.containers[i].remove((char) docId);
+        if(this.containers[i].cardinality() == 0){
+            System.arraycopy(this.keys, i + 1, this.keys, i, this.size - i - 1);
+            System.arraycopy(this.containers, i + 1, this.containers, i, this.size - i - 1);
+            this.size--;
+            this.containers[this.size] = null;
+        }
+    }
+
+    /**
+     * Checks whether the bitmap contains a doc ID.
+     *
+     * @param docId doc ID to look for
+     * @return true if the doc ID is in the bitmap
+     */
+    boolean contains(int docId){
+        ensureLoaded();
+        int i = findKey((char) (docId >>> 16));
+        return i >= 0 && this.containers[i].contains((char) docId);
+    }
+
+    /**
+     * Returns the number of doc IDs in the bitmap.
+     *
+     * @return cardinality of the bitmap
+     */
+    int cardinality(){
+        ensureLoaded();
+        int card = 0;
+        for(int i = 0; i < this.size; i++){
+            card += this.containers[i].cardinality();
+        }
+        return card;
+    }
+
+    boolean isEmpty(){
+        ensureLoaded();
+        return this.size == 0;
+    }
+
+    /**
+     * Returns a new bitmap holding the union of this bitmap and another.
+     *
+     * @param other bitmap to union with
+     * @return union of the two bitmaps
+     */
+    DocIdBitmap or(DocIdBitmap other){
+        DocIdBitmap result = copy();
+        result.orWith(other);
+        return result;
+    }
+
+    /**
+     * Unions another bitmap into this bitmap in place.
+     *
+     * @param other bitmap to union with
+     */
+    void orWith(DocIdBitmap other){
+        ensureLoaded();
+        other.ensureLoaded();
+        for(int j = 0; j < other.size; j++){
+            char hi = other.keys[j];
+            int i = findKey(hi);
+            if(i >= 0){
+                this.containers[i] = this.containers[i].or(other.containers[j]);
+            }
+            else{
+                insertContainer(-i - 1, hi, other.containers[j].copy());
+            }
+        }
+    }
+
+    /**
+     * Returns a new bitmap holding the union of many bitmaps. Each high key is accumulated in a
+     * single dense container, so the cost is linear in the total size of the inputs however many
+     * small posting lists are being merged.
+     *
+     * @param bitmaps bitmaps to union
+     * @return union of the bitmaps
+     */
+    static DocIdBitmap union(Collection<DocIdBitmap> bitmaps){
+        TreeMap<Character, BitmapContainer> acc = new TreeMap<Character, BitmapContainer>();
+        for(DocIdBitmap b : bitmaps){
+            b.ensureLoaded();
+            for(int i = 0; i < b.size; i++){
+                BitmapContainer bc = acc.get(b.keys[i]);
+                if(bc == null){
+                    bc = new BitmapContainer();
+                    acc.put(b.keys[i], bc);
+                }
+                bc.or(b.containers[i]);
+            }
+        }
+        DocIdBitmap result = new DocIdBitmap();
+        for(Map.Entry<Character, BitmapContainer> e : acc.entrySet()){
+            BitmapContainer bc = e.getValue();
+            result.insertContainer(result.size, e.getKey(), bc.card > ARRAY_MAX ? bc : bc.toArray());
+        }
+        return result;
+    }
+
+    /**
+     * Builds a bitmap from plain 64-bit words, in which bit j of word w is doc ID w * 64 + j.
+     *
+     * @param words bit words; not retained
+     * @return bitmap of the set bits
+     */
+    static DocIdBitmap fromWords(long[] words){
+        DocIdBitmap result = new DocIdBitmap();
+        for(int start = 0; start < words.length; start += 1024){
+            long[] chunk = new long[1024];
+            int len = Math.min(1024, words.length - start);
+            int card = 0;
+            for(int i = 0; i < len; i++){
+                chunk[i] = words[start + i];
+                card += Long.bitCount(chunk[i]);
+            }
+            if(card > 0){
+                BitmapContainer bc = new BitmapContainer(chunk, card);
+                result.insertContainer(result.size, (char) (start >>> 10), 
+                                       card > ARRAY_MAX ? bc : bc.toArray());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds a bitmap from doc IDs in ascending order. Each container is allocated at its final
+     * size, so building a large posting list does not repeatedly grow and shift arrays as adding
+     * its doc IDs one at a time does.
+     *
+     * @param docIds doc IDs in strictly ascending order; not retained
+     * @param n number of doc IDs to use from the array
+     * @return bitmap of the doc IDs
+     */
+    static DocIdBitmap fromSorted(int[] docIds, int n){
+        DocIdBitmap result = new DocIdBitmap();
+        int containerCount = 0;
+        for(int i = 0; i < n; i++){
+            if(i == 0 || (docIds[i] >>> 16) != (docIds[i - 1] >>> 16)){
+                containerCount++;
+            }
+        }
+        result.keys = new char[Math.max(4, containerCount)];
+        result.containers = new Container[result.keys.length];
+        int start = 0;
+        while(start < n){
+            char hi = (char) (docIds[start] >>> 16);
+            int end = start + 1;
+            while(end < n && (docIds[end] >>> 16) == hi){
+                end++;
+            }
+            int card = end - start;
+            Container c;
+            if(card > ARRAY_MAX){
+                long[] words = new long[1024];
+                for(int i = start; i < end; i++){
+                    words[(docIds[i] & 0xFFFF) >>> 6] |= 1L << docIds[i];
+                }
+                c = new BitmapContainer(words, card);
+            }
+            else{
+                char[] values = new char[Math.max(4, card)];
+                for(int i = start; i < end; i++){
+                    values[i - start] = (char) docIds[i];
+                }
+                c = new ArrayContainer(values, card);
+            }
+            result.keys[result.size] = hi;
+            result.containers[result.size] = c;
+            result.size++;
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new bitmap holding the intersection of this bitmap and another.
+     *
+     * @param other bitmap to intersect with
+     * @return intersection of the two bitmaps
+     */
+    DocIdBitmap and(DocIdBitmap other){
+        ensureLoaded();
+        other.ensureLoaded();
+        DocIdBitmap result = new DocIdBitmap();
+        int i = 0;
+        int j = 0;
+        while(i < this.size && j < other.size){
+            if(this.keys[i] < other.keys[j]){
+                i++;
+            }
+            else if(this.keys[i] > other.keys[j]){
+                j++;
+            }
+            else{
+                Container c = this.containers[i].and(other.containers[j]);
+                if(c.cardinality() > 0){
+                    result.insertContainer(result.size, this.keys[i], c);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts the doc IDs in both this bitmap and another, without building the intersection.
+     *
+     * @param other bitmap to intersect with
+     * @return cardinality of the intersection of the two bitmaps
+     */
+    int andCardinality(DocIdBitmap other){
+        ensureLoaded();
+        other.ensureLoaded();
+        int card = 0;
+        int i = 0;
+        int j = 0;
+        while(i < this.size && j < other.size){
+            if(this.keys[i] < other.keys[j]){
+                i++;
+            }
+            else if(this.keys[i] > other.keys[j]){
+                j++;
+            }
+            else{
+                card += this.containers[i].andCardinality(other.containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return card;
+    }
+
+    /**
+     * Creates a deep copy of the bitmap.
+     *
+     * @return copy of the bitmap
+     */
+    DocIdBitmap copy(){
+        ensureLoaded();
+        DocIdBitmap result = new DocIdBitmap();
+        result.keys = Arrays.copyOf(this.keys, Math.max(4, this.size));
+        result.containers = new Container[result.keys.length];
+        for(int i = 0; i < this.size; i++){
+            result.containers[i] = this.containers[i].copy();
+        }
+        result.size = this.size;
+        return result;
+    }
+
+    /**
+     * Finds the smallest doc ID in the bitmap at or after a starting point.
+     *
+     * @param from doc ID to start from
+     * @return the next doc ID in the bitmap, or -1 if there is none
+     */
+    int nextSetBit(int from){
+        ensureLoaded();
+        if(from < 0){
+            from = 0;
+        }
+        int i = findKey((char) (from >>> 16));
+        if(i >= 0){
+            int low = this.containers[i].next(from & 0xFFFF);
+            if(low >= 0){
+                return (this.keys[i] << 16) | low;
+            }
+            i++;
+        }
+        else{
+            i = -i - 1;
+        }
+        if(i < this.size){
+            return (this.keys[i] << 16) | this.containers[i].next(0);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the doc IDs in the bitmap in ascending order.
+     *
+     * @return sorted doc IDs
+     */
+    int[] toArray(){
+        ensureLoaded();
+        int[] out = new int[cardinality()];
+        int pos = 0;
+        for(int i = 0; i < this.size; i++){
+            pos = this.containers[i].fill(out, pos, this.keys[i] << 16);
+        }
+        return out;
+    }
+
+    /**
+     * Writes the bitmap in the serialized form read back by {@link #mapped(ByteBuffer)}.
+     *
+     * @param out output to write to
+     * @throws IOException when the output cannot be written
+     */
+    void writeTo(DataOutput out) throws IOException{
+        ensureLoaded();
+        out.writeInt(this.size);
+        for(int i = 0; i < this.size; i++){
+            out.writeChar(this.keys[i]);
+            Container c = this.containers[i];
+            if(c instanceof ArrayContainer){
+                ArrayContainer ac = (ArrayContainer) c;
+                out.writeByte(ARRAY_KIND);
+                out.writeInt(ac.card);
+                for(int j = 0; j < ac.card; j++){
+                    out.writeChar(ac.values[j]);
+                }
+            }
+            else{
+                BitmapContainer bc = (BitmapContainer) c;
+                out.writeByte(BITMAP_KIND);
+                out.writeInt(bc.card);
+                for(int j = 0; j < 1024; j++){
+                    out.writeLong(bc.words[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a bitmap over its serialized form, which is decoded on first use.
+     *
+     * @param data serialized bitmap, starting at position 0; must not be modified afterwards
+     * @return the bitmap
+     */
+    static DocIdBitmap mapped(ByteBuffer data){
+        DocIdBitmap result = new DocIdBitmap();
+        result.source = data;
+        return result;
+    }
+
+    /**
+     * Decodes the serialized form, if the bitmap still has one.
+     */
+    private void ensureLoaded(){
+        if(this.source != null){
+            load();
+        }
+    }
+
+    private synchronized void load(){
+        ByteBuffer data = this.source;
+        if(data == null){
+            return;
+        }
+        int pos = 0;
+        int n = data.getInt(pos);
+        pos += 4;
+        char[] k = new char[Math.max(4, n)];
+        Container[] c = new Container[k.length];
+        for(int i = 0; i < n; i++){
+            k[i] = data.getChar(pos);
+            byte kind = data.get(pos + 2);
+            int card = data.getInt(pos + 3);
+            pos += 7;
+            if(kind == ARRAY_KIND){
+                char[] values = new char[Math.max(4, card)];
+                for(int j = 0; j < card; j++){
+                    values[j] = data.getChar(pos);
+                    pos += 2;
+                }
+                c[i] = new ArrayContainer(values, card);
+            }
+            else{
+                long[] words = new long[1024];
+                for(int j = 0; j < 1024; j++){
+                    words[j] = data.getLong(pos);
+                    pos += 8;
+                }
+                c[i] = new BitmapContainer(words, card);
+            }
+        }
+        this.keys = k;
+        this.containers = c;
+        this.size = n;
+        this.source = null;
+    }
+
+    /**
+     * Binary search for a high key.
+     *
+     * @param hi high 16 bits of a doc ID
+     * @return index of the key, or (-(insertion point) - 1) if not present
+     */
+    private int findKey(char hi){
+        int lo = 0;
+        int high = this.size - 1;
+        while(lo <= high){
+            int mid = (lo + high) >>> 1;
+            if(this.keys[mid] < hi){
+                lo = mid + 1;
+            }
+            else if(this.keys[mid] > hi){
+                high = mid - 1;
+            }
+            else{
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private void insertContainer(int pos, char hi, Container c){
+        if(this.size == this.keys.length){
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            this.containers = Arrays.copyOf(this.containers, this.size * 2);
+        }
+        System.arraycopy(this.keys, pos, this.keys, pos + 1, this.size - pos);
+        System.arraycopy(this.containers, pos, this.containers, pos + 1, this.size - pos);
+        this.keys[pos] = hi;
+        this.containers[pos] = c;
+        this.size++;
+    }
+
+    /**
+     * {@code Container} holds the low 16 bits of the doc IDs sharing one high key.
+     */
+    private static abstract class Container {
+        abstract Container add(char x);
+        abstract Container remove(char x);
+        abstract boolean contains(char x);
+        abstract int cardinality();
+        abstract Container or(Container other);
+        abstract Container and(Container other);
+        abstract int andCardinality(Container other);
+        abstract Container copy();
+        abstract int fill(int[] out, int pos, int base);
+        // smallest low value at or after from, or -1
+        abstract int next(int from);
+    }
+
+    /**
+     * {@code ArrayContainer} stores a sparse container as a sorted array of low values.
+     */
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int card;
+
+        ArrayContainer(){
+            this.values = new char[4];
+        }
+
+        ArrayContainer(char[] values, int card){
+            this.values = values;
+            this.card = card;
+        }
+
+        @Override
+        Container add(char x){
+            int i = Arrays.binarySearch(this.values, 0, this.card, x);
+            if(i >= 0){
+                return this;
+            }
+            if(this.card >= ARRAY_MAX){
+                return toBitmap().add(x);
+            }
+            i = -i - 1;
+            if(this.card == this.values.length){
+                this.values = Arrays.copyOf(this.values, Math.min(ARRAY_MAX, this.card * 2));
+            }
+            System.arraycopy(this.values, i, this.values, i + 1, this.card - i);
+            this.values[i] = x;
+            this.card++;
+            return this;
+        }
+
+        @Override
+        Container remove(char x){
+            int i = Arrays.binarySearch(this.values, 0, this.card, x);
+            if(i >= 0){
+                System.arraycopy(this.values, i + 1, this.values, i, this.card - i - 1);
+                this.card--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char x){
+            return Arrays.binarySearch(this.values, 0, this.card, x) >= 0;
+        }
+
+        @Override
+        int cardinality(){
+            return this.card;
+        }
+
+        @Override
+        Container or(Container other){
+            if(other instanceof BitmapContainer){
+                return other.copy().or(this);
+            }
+            ArrayContainer o = (ArrayContainer) other;
+            char[] merged = new char[this.card + o.card];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while(i < this.card && j < o.card){
+                char a = this.values[i];
+                char b = o.values[j];
+                if(a < b){
+                    merged[k++] = a;
+                    i++;
+                }
+                else if(a > b){
+                    merged[k++] = b;
+                    j++;
+                }
+                else{
+                    merged[k++] = a;
+                    i++;
+                    j++;
+                }
+            }
+            while(i < this.card){
+                merged[k++] = this.values[i++];
+            }
+            while(j < o.card){
+                merged[k++] = o.values[j++];
+            }
+            ArrayContainer result = new ArrayContainer(merged, k);
+            return k > ARRAY_MAX ? result.toBitmap() : result;
+        }
+
+        @Override
+        Container and(Container other){
+            char[] out = new char[this.card];
+            int k = 0;
+            if(other instanceof BitmapContainer){
+                for(int i = 0; i < this.card; i++){
+                    if(other.contains(this.values[i])){
+                        out[k++] = this.values[i];
+                    }
+                }
+            }
+            else{
+                ArrayContainer o = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while(i < this.card && j < o.card){
+                    char a = this.values[i];
+                    char b = o.values[j];
+                    if(a < b){
+                        i++;
+                    }
+                    else if(a > b){
+                        j++;
+                    }
+                    else{
+                        out[k++] = a;
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return new ArrayContainer(out, k);
+        }
+
+        @Override
+        int andCardinality(Container other){
+            int k = 0;
+            if(other instanceof BitmapContainer){
+                for(int i = 0; i < this.card; i++){
+                    if(other.contains(this.values[i])){
+                        k++;
+                    }
+                }
+            }
+            else{
+                ArrayContainer o = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while(i < this.card && j < o.card){
+                    char a = this.values[i];
+                    char b = o.values[j];
+                    if(a < b){
+                        i++;
+                    }
+                    else if(a > b){
+                        j++;
+                    }
+                    else{
+                        k++;
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return k;
+        }
+
+        @Override
+        Container copy(){
+            return new ArrayContainer(Arrays.copyOf(this.values, Math.max(4, this.card)), this.card);
+        }
+
+        @Override
+        int fill(int[] out, int pos, int base){
+            for(int i = 0; i < this.card; i++){
+                out[pos++] = base | this.values[i];
+            }
+            return pos;
+        }
+
+        @Override
+        int next(int from){
+            int i = Arrays.binarySearch(this.values, 0, this.card, (char) from);
+            if(i < 0){
+                i = -i - 1;
+            }
+            return i < this.card ? this.values[i] : -1;
+        }
+
+        private BitmapContainer toBitmap(){
+            BitmapContainer bc = new BitmapContainer();
+            for(int i = 0; i < this.card; i++){
+                bc.words[this.values[i] >>> 6] |= 1L << this.values[i];
+            }
+            bc.card = this.card;
+            return bc;
+        }
+    }
+
+    /**
+     * {@code BitmapContainer} stores a dense container as 1024 64-bit words.
+     */
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int card;
+
+        BitmapContainer(){
+            this.words = new long[1024];
+        }
+
+        private BitmapContainer(long[] words, int card){
+            this.words = words;
+            this.card = card;
+        }
+
+        @Override
+        Container add(char x){
+            long before = this.words[x >>> 6];
+            long after = before | (1L << x);
+            if(before != after){
+                this.words[x >>> 6] = after;
+                this.card++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char x){
+            long before = this.words[x >>> 6];
+            long after = before & ~(1L << x);
+            if(before != after){
+                this.words[x >>> 6] = after;
+                this.card--;
+            }
+            return this.card > ARRAY_MAX ? this : toArray();
+        }
+
+        @Override
+        boolean contains(char x){
+            return (this.words[x >>> 6] & (1L << x)) != 0;
+        }
+
+        @Override
+        int cardinality(){
+            return this.card;
+        }
+
+        @Override
+        Container or(Container other){
+            if(other instanceof BitmapContainer){
+                long[] o = ((BitmapContainer) other).words;
+                int c = 0;
+                for(int i = 0; i < 1024; i++){
+                    this.words[i] |= o[i];
+                    c += Long.bitCount(this.words[i]);
+                }
+                this.card = c;
+            }
+            else{
+                ArrayContainer o = (ArrayContainer) other;
+                for(int i = 0; i < o.card; i++){
+                    add(o.values[i]);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        Container and(Container other){
+            if(other instanceof ArrayContainer){
+                return other.and(this);
+            }
+            long[] o = ((BitmapContainer) other).words;
+            long[] out = new long[1024];
+            int c = 0;
+            for(int i = 0; i < 1024; i++){
+                out[i] = this.words[i] & o[i];
+                c += Long.bitCount(out[i]);
+            }
+            BitmapContainer result = new BitmapContainer(out, c);
+            return c > ARRAY_MAX ? result : result.toArray();
+        }
+
+        @Override
+        int andCardinality(Container other){
+            if(other instanceof ArrayContainer){
+                return other.andCardinality(this);
+            }
+            long[] o = ((BitmapContainer) other).words;
+            int c = 0;
+            for(int i = 0; i < 1024; i++){
+                c += Long.bitCount(this.words[i] & o[i]);
+            }
+            return c;
+        }
+
+        @Override
+        Container copy(){
+            return new BitmapContainer(this.words.clone(), this.card);
+        }
+
+        @Override
+        int fill(int[] out, int pos, int base){
+            for(int i = 0; i < 1024; i++){
+                long w = this.words[i];
+                while(w != 0){
+                    out[pos++] = base | (i << 6) | Long.numberOfTrailingZeros(w);
+                    w &= w - 1;
+                }
+            }
+            return pos;
+        }
+
+        @Override
+        int next(int from){
+            int i = from >>> 6;
+            long w = this.words[i] & (-1L << from);
+            while(true){
+                if(w != 0){
+                    return (i << 6) | Long.numberOfTrailingZeros(w);
+                }
+                if(++i == 1024){
+                    return -1;
+                }
+                w = this.words[i];
+            }
+        }
+
+        private ArrayContainer toArray(){
+            char[] values = new char[Math.max(4, this.card)];
+            int k = 0;
+            for(int i = 0; i < 1024; i++){
+                long w = this.words[i];
+                while(w != 0){
+                    values[k++] = (char) ((i << 6) | Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            return new ArrayContainer(values, k);
+        }
+    }
+}
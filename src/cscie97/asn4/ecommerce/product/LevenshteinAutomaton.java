@@ -0,0 +1,161 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code LevenshteinAutomaton} accepts the strings within a maximum edit distance (insertions,
+ * deletions, and substitutions) of a word. Its states are the rows of the edit distance table
+ * against the word, with every entry above the maximum clamped, so there are finitely many; they
+ * and their transitions are built on first use. A transition depends only on which positions of
+ * the word hold the input character, so every character not in the word shares one transition.
+ *
+ * Walking a sorted term dictionary, the automaton rejects a term as soon as its prefix can no
+ * longer match, and the walk then seeks past every term sharing that prefix. The work is bounded
+ * by the prefixes the automaton can follow rather than by the size of the dictionary.
+ */
+class LevenshteinAutomaton {
+
+    // Transition target for input that can no longer lead to a match
+    private static final int DEAD = -1;
+
+    // Transition not built yet
+    private static final int UNKNOWN = -2;
+
+    private final String word;
+    private final int maxEdits;
+
+    // Distinct characters of the word; character class i is alphabet[i], and the last class is
+    // every other character
+    private final char[] alphabet;
+
+    // Edit distance table row of each state
+    private final List<int[]> rows;
+
+    // State number of each row, keyed on the row contents
+    private final Map<String, Integer> states;
+
+    // Transitions of each state, by character class
+    private final List<int[]> transitions;
+
+    /**
+     * Default LevenshteinAutomaton constructor
+     *
+     * @param word word the accepted strings are close to
+     * @param maxEdits maximum edit distance from the word
+     */
+    LevenshteinAutomaton(String word, int maxEdits){
+        this.word = word;
+        this.maxEdits = maxEdits;
+        SortedSet<Character> chars = new TreeSet<Character>();
+        for(int i = 0; i < word.length(); i++){
+            chars.add(word.charAt(i));
+        }
+        this.alphabet = new char[chars.size()];
+        int i = 0;
+        for(Character ch : chars){
+            this.alphabet[i++] = ch;
+        }
+        this.rows = new ArrayList<int[]>();
+        this.states = new HashMap<String, Integer>();
+        this.transitions = new ArrayList<int[]>();
+        int[] start = new int[word.length() + 1];
+        for(int j = 0; j <= word.length(); j++){
+            start[j] = Math.min(j, maxEdits + 1);
+        }
+        state(start);
+    }
+
+    /**
+     * Returns the state for an edit distance table row, creating it if needed.
+     */
+    private int state(int[] row){
+        String key = Arrays.toString(row);
+        Integer s = this.states.get(key);
+        if(s == null){
+            s = this.rows.size();
+            this.rows.add(row);
+            this.states.put(key, s);
+            int[] next = new int[this.alphabet.length + 1];
+            Arrays.fill(next, UNKNOWN);
+            this.transitions.add(next);
+        }
+        return s;
+    }
+
+    /**
+     * Follows the transition from a state on a character.
+     *
+     * @param state current state
+     * @param ch input character
+     * @return next state, or DEAD if no string continuing this way can be accepted
+     */
+    private int step(int state, char ch){
+        int cls = Arrays.binarySearch(this.alphabet, ch);
+        if(cls < 0){
+            cls = this.alphabet.length;
+        }
+        int[] next = this.transitions.get(state);
+        if(next[cls] == UNKNOWN){
+            int[] row = this.rows.get(state);
+            int[] out = new int[row.length];
+            out[0] = Math.min(row[0] + 1, this.maxEdits + 1);
+            int min = out[0];
+            for(int j = 1; j < row.length; j++){
+                int cost = this.word.charAt(j - 1) == ch ? 0 : 1;
+                int d = Math.min(Math.min(out[j - 1] + 1, row[j] + 1), row[j - 1] + cost);
+                out[j] = Math.min(d, this.maxEdits + 1);
+                min = Math.min(min, out[j]);
+            }
+            next[cls] = min > this.maxEdits ? DEAD : state(out);
+        }
+        return next[cls];
+    }
+
+    private boolean isAccepting(int state){
+        int[] row = this.rows.get(state);
+        return row[row.length - 1] <= this.maxEdits;
+    }
+
+    /**
+     * Finds the terms of a sorted dictionary accepted by the automaton.
+     *
+     * @param dictionary terms in ascending order
+     * @return accepted terms, in ascending order
+     */
+    List<String> expand(NavigableSet<String> dictionary){
+        List<String> matches = new ArrayList<String>();
+        String term = dictionary.isEmpty() ? null : dictionary.first();
+        while(term != null){
+            int state = 0;
+            int i = 0;
+            while(i < term.length() && state != DEAD){
+                state = step(state, term.charAt(i++));
+            }
+            if(state == DEAD){
+                // no term starting with term[0, i) can match; seek past all of them
+                term = seekPast(dictionary, term.substring(0, i));
+            }
+            else{
+                if(isAccepting(state)){
+                    matches.add(term);
+                }
+                term = dictionary.higher(term);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the first term that does not start with a prefix and sorts after it.
+     */
+    private static String seekPast(NavigableSet<String> dictionary, String prefix){
+        int last = prefix.length() - 1;
+        while(last >= 0 && prefix.charAt(last) == Character.MAX_VALUE){
+            last--;
+        }
+        if(last < 0){
+            return null;
+        }
+        return dictionary.ceiling(prefix.substring(0, last) + (char) (prefix.charAt(last) + 1));
+    }
+}
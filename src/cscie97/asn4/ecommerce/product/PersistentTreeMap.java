@@ -0,0 +1,1187 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code PersistentTreeMap} is a sorted map whose copies share structure. It is an AVL tree whose
+ * nodes are never modified once another map can reach them: copying a map takes constant time
+ * and shares the whole tree, and a put or remove copies only the nodes on the path to its key.
+ * A catalog builder therefore starts from the current generation's maps without copying them,
+ * and pays only for the keys it changes.
+ *
+ * Nodes a map created since it was last copied belong to it alone and are changed in place, so
+ * a run of puts into a map, such as a bulk import, allocates no more than a TreeMap would.
+ *
+ * Keys are compared in their natural order and may not be null. As with a TreeMap, views (sub
+ * maps, descending maps, and key and entry sets) write through to the map, entries handed out by
+ * iterators write through on {@code setValue}, and entries returned by the navigation methods are
+ * immutable snapshots. Like a TreeMap, the map is not synchronized, and must not be modified while
+ * it is being read, or iterated other than through the iterator.
+ */
+class PersistentTreeMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+    /**
+     * {@code Node} is one entry of the tree.
+     */
+    private static final class Node<K, V> {
+        final K key;
+        V value;
+        Node<K, V> left;
+        Node<K, V> right;
+        int height;
+
+        // Token of the map that created the node, which alone may change it
+        final Object owner;
+
+        Node(K key, V value, Object owner){
+            this.key = key;
+            this.value = value;
+            this.height = 1;
+            this.owner = owner;
+        }
+
+        Node(Node<K, V> n, Object owner){
+            this.key = n.key;
+            this.value = n.value;
+            this.left = n.left;
+            this.right = n.right;
+            this.height = n.height;
+            this.owner = owner;
+        }
+    }
+
+    private Node<K, V> root;
+    private int size;
+
+    // Token marking the nodes this map may change in place; replaced whenever the map is copied
+    private Object owner;
+
+    // View over every key, which the navigation methods delegate to
+    private final Range all;
+
+    /**
+     * Creates an empty map.
+     */
+    PersistentTreeMap(){
+        this.owner = new Object();
+        this.all = new Range(null, false, null, false, false);
+    }
+
+    /**
+     * Creates a copy sharing every node of another map. From then on neither map changes the
+     * shared nodes in place.
+     *
+     * @param m map to copy
+     */
+    PersistentTreeMap(PersistentTreeMap<K, V> m){
+        this();
+        this.root = m.root;
+        this.size = m.size;
+        m.owner = new Object();
+    }
+
+    /**
+     * Copies a map, sharing its nodes if it is a {@code PersistentTreeMap}.
+     *
+     * @param m map to copy
+     * @return the copy
+     */
+    static <K, V> PersistentTreeMap<K, V> copyOf(Map<K, V> m){
+        if(m instanceof PersistentTreeMap){
+            return new PersistentTreeMap<K, V>((PersistentTreeMap<K, V>) m);
+        }
+        PersistentTreeMap<K, V> copy = new PersistentTreeMap<K, V>();
+        copy.putAll(m);
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b){
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * Returns an immutable snapshot of a node's mapping, or null for no node.
+     */
+    private static <K, V> Map.Entry<K, V> snapshot(Node<K, V> n){
+        return n == null ? null : new AbstractMap.SimpleImmutableEntry<K, V>(n.key, n.value);
+    }
+
+    private static int height(Node<?, ?> n){
+        return n == null ? 0 : n.height;
+    }
+
+    private Node<K, V> find(Object key){
+        Node<K, V> n = this.root;
+        while(n != null){
+            int c = compare(key, n.key);
+            if(c == 0){
+                return n;
+            }
+            n = c < 0 ? n.left : n.right;
+        }
+        return null;
+    }
+
+    @Override
+    public int size(){
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty(){
+        return this.size == 0;
+    }
+
+    @Override
+    public V get(Object key){
+        Node<K, V> n = find(key);
+        return n == null ? null : n.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return find(key) != null;
+    }
+
+    @Override
+    public V put(K key, V value){
+        if(key == null){
+            throw new NullPointerException();
+        }
+        Node<K, V> n = find(key);
+        V old = n == null ? null : n.value;
+        if(n == null || old != value){
+            this.root = insert(this.root, key, value);
+        }
+        return old;
+    }
+
+    @Override
+    public V remove(Object key){
+        Node<K, V> n = find(key);
+        if(n == null){
+            return null;
+        }
+        V old = n.value;
+        this.root = delete(this.root, key);
+        this.size--;
+        return old;
+    }
+
+    @Override
+    public void clear(){
+        this.root = null;
+        this.size = 0;
+    }
+
+    /**
+     * Returns a node this map may change: the node itself if this map created it, otherwise a
+     * copy that this map then owns.
+     */
+    private Node<K, V> writable(Node<K, V> n){
+        return n.owner == this.owner ? n : new Node<K, V>(n, this.owner);
+    }
+
+    private Node<K, V> insert(Node<K, V> n, K key, V value){
+        if(n == null){
+            this.size++;
+            return new Node<K, V>(key, value, this.owner);
+        }
+        int c = compare(key, n.key);
+        Node<K, V> m = writable(n);
+        if(c == 0){
+            m.value = value;
+            return m;
+        }
+        if(c < 0){
+            m.left = insert(n.left, key, value);
+        }
+        else{
+            m.right = insert(n.right, key, value);
+        }
+        return balance(m);
+    }
+
+    /**
+     * Removes a key known to be in the subtree.
+     */
+    private Node<K, V> delete(Node<K, V> n, Object key){
+        int c = compare(key, n.key);
+        if(c == 0){
+            if(n.left == null){
+                return n.right;
+            }
+            if(n.right == null){
+                return n.left;
+            }
+            // the successor takes the removed node's place
+            Node<K, V> successor = n.right;
+            while(successor.left != null){
+                successor = successor.left;
+            }
+            Node<K, V> m = new Node<K, V>(successor.key, successor.value, this.owner);
+            m.left = n.left;
+            m.right = deleteFirst(n.right);
+            return balance(m);
+        }
+        Node<K, V> m = writable(n);
+        if(c < 0){
+            m.left = delete(n.left, key);
+        }
+        else{
+            m.right = delete(n.right, key);
+        }
+        return balance(m);
+    }
+
+    private Node<K, V> deleteFirst(Node<K, V> n){
+        if(n.left == null){
+            return n.right;
+        }
+        Node<K, V> m = writable(n);
+        m.left = deleteFirst(n.left);
+        return balance(m);
+    }
+
+    /**
+     * Restores the height balance of a node this map owns, whose subtrees differ in height by
+     * at most two.
+     */
+    private Node<K, V> balance(Node<K, V> n){
+        int lh = height(n.left);
+        int rh = height(n.right);
+        if(lh > rh + 1){
+            if(height(n.left.left) < height(n.left.right)){
+                n.left = rotateLeft(writable(n.left));
+            }
+            return rotateRight(n);
+        }
+        if(rh > lh + 1){
+            if(height(n.right.right) < height(n.right.left)){
+                n.right = rotateRight(writable(n.right));
+            }
+            return rotateLeft(n);
+        }
+        n.height = Math.max(lh, rh) + 1;
+        return n;
+    }
+
+    private Node<K, V> rotateRight(Node<K, V> n){
+        Node<K, V> l = writable(n.left);
+        n.left = l.right;
+        n.height = Math.max(height(n.left), height(n.right)) + 1;
+        l.right = n;
+        l.height = Math.max(height(l.left), height(l.right)) + 1;
+        return l;
+    }
+
+    private Node<K, V> rotateLeft(Node<K, V> n){
+        Node<K, V> r = writable(n.right);
+        n.right = r.left;
+        n.height = Math.max(height(n.left), height(n.right)) + 1;
+        r.left = n;
+        r.height = Math.max(height(r.left), height(r.right)) + 1;
+        return r;
+    }
+
+    /**
+     * Finds the node with the smallest key at or above a key, or strictly above it.
+     */
+    private Node<K, V> ceilingNode(Object key, boolean inclusive){
+        Node<K, V> found = null;
+        Node<K, V> n = this.root;
+        while(n != null){
+            int c = compare(key, n.key);
+            if(c < 0 || (c == 0 && inclusive)){
+                found = n;
+                if(c == 0){
+                    break;
+                }
+                n = n.left;
+            }
+            else{
+                n = n.right;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the node with the largest key at or below a key, or strictly below it.
+     */
+    private Node<K, V> floorNode(Object key, boolean inclusive){
+        Node<K, V> found = null;
+        Node<K, V> n = this.root;
+        while(n != null){
+            int c = compare(key, n.key);
+            if(c > 0 || (c == 0 && inclusive)){
+                found = n;
+                if(c == 0){
+                    break;
+                }
+                n = n.right;
+            }
+            else{
+                n = n.left;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet(){
+        return new EntrySet(this.all);
+    }
+
+    @Override
+    public Set<K> keySet(){
+        return navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet(){
+        return new KeySet(this.all);
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet(){
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public Collection<V> values(){
+        return new Values(this.all);
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap(){
+        return this.all.descendingMap();
+    }
+
+    @Override
+    public Comparator<? super K> comparator(){
+        return null;
+    }
+
+    @Override
+    public Map.Entry<K, V> firstEntry(){
+        return this.all.firstEntry();
+    }
+
+    @Override
+    public Map.Entry<K, V> lastEntry(){
+        return this.all.lastEntry();
+    }
+
+    @Override
+    public K firstKey(){
+        return this.all.firstKey();
+    }
+
+    @Override
+    public K lastKey(){
+        return this.all.lastKey();
+    }
+
+    @Override
+    public Map.Entry<K, V> pollFirstEntry(){
+        return this.all.pollFirstEntry();
+    }
+
+    @Override
+    public Map.Entry<K, V> pollLastEntry(){
+        return this.all.pollLastEntry();
+    }
+
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key){
+        return this.all.lowerEntry(key);
+    }
+
+    @Override
+    public K lowerKey(K key){
+        return this.all.lowerKey(key);
+    }
+
+    @Override
+    public Map.Entry<K, V> floorEntry(K key){
+        return this.all.floorEntry(key);
+    }
+
+    @Override
+    public K floorKey(K key){
+        return this.all.floorKey(key);
+    }
+
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key){
+        return this.all.ceilingEntry(key);
+    }
+
+    @Override
+    public K ceilingKey(K key){
+        return this.all.ceilingKey(key);
+    }
+
+    @Override
+    public Map.Entry<K, V> higherEntry(K key){
+        return this.all.higherEntry(key);
+    }
+
+    @Override
+    public K higherKey(K key){
+        return this.all.higherKey(key);
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive){
+        return this.all.subMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive){
+        return this.all.headMap(toKey, inclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive){
+        return this.all.tailMap(fromKey, inclusive);
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey){
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey){
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey){
+        return tailMap(fromKey, true);
+    }
+
+    /**
+     * {@code EntryIterator} walks the entries of a range in the range's key order, ascending or
+     * descending, keeping the nodes still to be visited on a stack. Removing through the iterator
+     * removes from the map and seeks the stack again to the next key, since the removal may have
+     * rebuilt the path to it.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final Range range;
+        private final ArrayDeque<Node<K, V>> stack;
+        private Node<K, V> next;
+        private Node<K, V> last;
+
+        EntryIterator(Range range){
+            this.range = range;
+            this.stack = new ArrayDeque<Node<K, V>>();
+            seek(null);
+        }
+
+        /**
+         * Stacks the nodes from a key on, in the range's order, or from the start of the range
+         * for a null key, and moves to the first of them.
+         */
+        private void seek(Object from){
+            this.stack.clear();
+            Node<K, V> n = root;
+            while(n != null){
+                boolean before;
+                if(from != null){
+                    int c = compare(n.key, from);
+                    before = this.range.descending ? c > 0 : c < 0;
+                }
+                else{
+                    before = this.range.descending ? this.range.tooHigh(n.key) : this.range.tooLow(n.key);
+                }
+                if(before){
+                    n = this.range.descending ? n.left : n.right;
+                }
+                else{
+                    this.stack.push(n);
+                    n = this.range.descending ? n.right : n.left;
+                }
+            }
+            advance();
+        }
+
+        private void advance(){
+            this.next = this.stack.poll();
+            if(this.next == null){
+                return;
+            }
+            if(this.range.descending ? this.range.tooLow(this.next.key) : this.range.tooHigh(this.next.key)){
+                this.next = null;
+                this.stack.clear();
+                return;
+            }
+            if(this.range.descending){
+                for(Node<K, V> n = this.next.left; n != null; n = n.right){
+                    this.stack.push(n);
+                }
+            }
+            else{
+                for(Node<K, V> n = this.next.right; n != null; n = n.left){
+                    this.stack.push(n);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            return this.next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next(){
+            Node<K, V> n = nextNode();
+            return new IteratorEntry(n.key, n.value);
+        }
+
+        /**
+         * Moves past the next node and returns it, for key and value iteration that needs no
+         * entry.
+         */
+        Node<K, V> nextNode(){
+            if(this.next == null){
+                throw new NoSuchElementException();
+            }
+            this.last = this.next;
+            advance();
+            return this.last;
+        }
+
+        @Override
+        public void remove(){
+            if(this.last == null){
+                throw new IllegalStateException();
+            }
+            PersistentTreeMap.this.remove(this.last.key);
+            this.last = null;
+            if(this.next != null){
+                seek(this.next.key);
+            }
+        }
+    }
+
+    /**
+     * {@code IteratorEntry} is an entry handed out by an iterator, whose {@code setValue} puts
+     * the new value into the map.
+     */
+    private final class IteratorEntry extends AbstractMap.SimpleEntry<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        IteratorEntry(K key, V value){
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value){
+            PersistentTreeMap.this.put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    /**
+     * {@code EntrySet} is a view of the entries of the map or of one of its ranges.
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        private final Range range;
+
+        EntrySet(Range range){
+            this.range = range;
+        }
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator(){
+            return new EntryIterator(this.range);
+        }
+
+        @Override
+        public int size(){
+            return this.range.size();
+        }
+
+        @Override
+        public boolean isEmpty(){
+            return this.range.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o){
+            if(!(o instanceof Map.Entry)){
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            if(e.getKey() == null || !this.range.containsKey(e.getKey())){
+                return false;
+            }
+            V value = PersistentTreeMap.this.get(e.getKey());
+            return value == null ? e.getValue() == null : value.equals(e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o){
+            if(!contains(o)){
+                return false;
+            }
+            PersistentTreeMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+            return true;
+        }
+
+        @Override
+        public void clear(){
+            this.range.clear();
+        }
+    }
+
+    /**
+     * {@code Values} is a view of the values of the map or of one of its ranges.
+     */
+    private final class Values extends AbstractCollection<V> {
+        private final Range range;
+
+        Values(Range range){
+            this.range = range;
+        }
+
+        @Override
+        public Iterator<V> iterator(){
+            final EntryIterator nodes = new EntryIterator(this.range);
+            return new Iterator<V>(){
+                @Override
+                public boolean hasNext(){
+                    return nodes.hasNext();
+                }
+
+                @Override
+                public V next(){
+                    return nodes.nextNode().value;
+                }
+
+                @Override
+                public void remove(){
+                    nodes.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size(){
+            return this.range.size();
+        }
+
+        @Override
+        public boolean isEmpty(){
+            return this.range.isEmpty();
+        }
+
+        @Override
+        public void clear(){
+            this.range.clear();
+        }
+    }
+
+    /**
+     * {@code Range} is a view of the keys between optional bounds, in ascending or descending
+     * order. The bounds are always in ascending terms: {@code lo} is the smallest key allowed
+     * whichever way the view runs, and a descending view answers each navigation method with
+     * its mirror image in the tree.
+     */
+    private final class Range extends AbstractMap<K, V> implements NavigableMap<K, V> {
+        // Bounds of the range; a null bound leaves that side open
+        private final K lo;
+        private final boolean loInclusive;
+        private final K hi;
+        private final boolean hiInclusive;
+
+        // Whether the view runs from the largest key down
+        private final boolean descending;
+
+        Range(K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean descending){
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.descending = descending;
+        }
+
+        boolean tooLow(Object key){
+            if(this.lo == null){
+                return false;
+            }
+            int c = compare(key, this.lo);
+            return c < 0 || (c == 0 && !this.loInclusive);
+        }
+
+        boolean tooHigh(Object key){
+            if(this.hi == null){
+                return false;
+            }
+            int c = compare(key, this.hi);
+            return c > 0 || (c == 0 && !this.hiInclusive);
+        }
+
+        private Node<K, V> lowest(){
+            Node<K, V> n;
+            if(this.lo == null){
+                n = root;
+                while(n != null && n.left != null){
+                    n = n.left;
+                }
+            }
+            else{
+                n = ceilingNode(this.lo, this.loInclusive);
+            }
+            return n == null || tooHigh(n.key) ? null : n;
+        }
+
+        private Node<K, V> highest(){
+            Node<K, V> n;
+            if(this.hi == null){
+                n = root;
+                while(n != null && n.right != null){
+                    n = n.right;
+                }
+            }
+            else{
+                n = floorNode(this.hi, this.hiInclusive);
+            }
+            return n == null || tooLow(n.key) ? null : n;
+        }
+
+        private Node<K, V> above(Object key, boolean inclusive){
+            if(tooLow(key)){
+                return lowest();
+            }
+            Node<K, V> n = ceilingNode(key, inclusive);
+            return n == null || tooHigh(n.key) ? null : n;
+        }
+
+        private Node<K, V> below(Object key, boolean inclusive){
+            if(tooHigh(key)){
+                return highest();
+            }
+            Node<K, V> n = floorNode(key, inclusive);
+            return n == null || tooLow(n.key) ? null : n;
+        }
+
+        private K key(Node<K, V> n){
+            return n == null ? null : n.key;
+        }
+
+        private K keyOrThrow(Node<K, V> n){
+            if(n == null){
+                throw new NoSuchElementException();
+            }
+            return n.key;
+        }
+
+        private Node<K, V> first(){
+            return this.descending ? highest() : lowest();
+        }
+
+        private Node<K, V> last(){
+            return this.descending ? lowest() : highest();
+        }
+
+        /**
+         * Finds the nearest node after a key in the view's order, or at it if inclusive.
+         */
+        private Node<K, V> after(Object key, boolean inclusive){
+            return this.descending ? below(key, inclusive) : above(key, inclusive);
+        }
+
+        /**
+         * Finds the nearest node before a key in the view's order, or at it if inclusive.
+         */
+        private Node<K, V> before(Object key, boolean inclusive){
+            return this.descending ? above(key, inclusive) : below(key, inclusive);
+        }
+
+        /**
+         * Checks a bound of a view within this one. An inclusive bound must be a key of this
+         * range; an exclusive bound may also fall on one of this range's exclusive bounds.
+         */
+        private void checkInRange(Object key, boolean inclusive){
+            boolean in;
+            if(inclusive){
+                in = !tooLow(key) && !tooHigh(key);
+            }
+            else{
+                in = (this.lo == null || compare(key, this.lo) >= 0) &&
+                     (this.hi == null || compare(key, this.hi) <= 0);
+            }
+            if(!in){
+                throw new IllegalArgumentException("key out of range");
+            }
+        }
+
+        @Override
+        public V get(Object key){
+            return tooLow(key) || tooHigh(key) ? null : PersistentTreeMap.this.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key){
+            return !tooLow(key) && !tooHigh(key) && PersistentTreeMap.this.containsKey(key);
+        }
+
+        @Override
+        public V put(K key, V value){
+            checkInRange(key, true);
+            return PersistentTreeMap.this.put(key, value);
+        }
+
+        @Override
+        public V remove(Object key){
+            return tooLow(key) || tooHigh(key) ? null : PersistentTreeMap.this.remove(key);
+        }
+
+        private boolean unbounded(){
+            return this.lo == null && this.hi == null;
+        }
+
+        @Override
+        public int size(){
+            if(unbounded()){
+                return PersistentTreeMap.this.size;
+            }
+            int count = 0;
+            for(EntryIterator i = new EntryIterator(this); i.hasNext(); i.nextNode()){
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isEmpty(){
+            return lowest() == null;
+        }
+
+        @Override
+        public void clear(){
+            if(unbounded()){
+                PersistentTreeMap.this.clear();
+                return;
+            }
+            for(EntryIterator i = new EntryIterator(this); i.hasNext(); ){
+                i.nextNode();
+                i.remove();
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet(){
+            return new EntrySet(this);
+        }
+
+        @Override
+        public Collection<V> values(){
+            return new Values(this);
+        }
+
+        @Override
+        public Set<K> keySet(){
+            return navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> navigableKeySet(){
+            return new KeySet(this);
+        }
+
+        @Override
+        public NavigableSet<K> descendingKeySet(){
+            return descendingMap().navigableKeySet();
+        }
+
+        @Override
+        public Range descendingMap(){
+            return new Range(this.lo, this.loInclusive, this.hi, this.hiInclusive, !this.descending);
+        }
+
+        @Override
+        public Comparator<? super K> comparator(){
+            return this.descending ? Collections.reverseOrder() : null;
+        }
+
+        @Override
+        public Map.Entry<K, V> firstEntry(){
+            return snapshot(first());
+        }
+
+        @Override
+        public Map.Entry<K, V> lastEntry(){
+            return snapshot(last());
+        }
+
+        @Override
+        public K firstKey(){
+            return keyOrThrow(first());
+        }
+
+        @Override
+        public K lastKey(){
+            return keyOrThrow(last());
+        }
+
+        @Override
+        public Map.Entry<K, V> pollFirstEntry(){
+            Map.Entry<K, V> first = firstEntry();
+            if(first != null){
+                PersistentTreeMap.this.remove(first.getKey());
+            }
+            return first;
+        }
+
+        @Override
+        public Map.Entry<K, V> pollLastEntry(){
+            Map.Entry<K, V> last = lastEntry();
+            if(last != null){
+                PersistentTreeMap.this.remove(last.getKey());
+            }
+            return last;
+        }
+
+        @Override
+        public Map.Entry<K, V> lowerEntry(K key){
+            return snapshot(before(key, false));
+        }
+
+        @Override
+        public K lowerKey(K key){
+            return key(before(key, false));
+        }
+
+        @Override
+        public Map.Entry<K, V> floorEntry(K key){
+            return snapshot(before(key, true));
+        }
+
+        @Override
+        public K floorKey(K key){
+            return key(before(key, true));
+        }
+
+        @Override
+        public Map.Entry<K, V> ceilingEntry(K key){
+            return snapshot(after(key, true));
+        }
+
+        @Override
+        public K ceilingKey(K key){
+            return key(after(key, true));
+        }
+
+        @Override
+        public Map.Entry<K, V> higherEntry(K key){
+            return snapshot(after(key, false));
+        }
+
+        @Override
+        public K higherKey(K key){
+            return key(after(key, false));
+        }
+
+        @Override
+        public Range subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive){
+            int c = compare(fromKey, toKey);
+            if(this.descending ? c < 0 : c > 0){
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            checkInRange(fromKey, fromInclusive);
+            checkInRange(toKey, toInclusive);
+            if(this.descending){
+                return new Range(toKey, toInclusive, fromKey, fromInclusive, true);
+            }
+            return new Range(fromKey, fromInclusive, toKey, toInclusive, false);
+        }
+
+        @Override
+        public Range headMap(K toKey, boolean inclusive){
+            checkInRange(toKey, inclusive);
+            if(this.descending){
+                return new Range(toKey, inclusive, this.hi, this.hiInclusive, true);
+            }
+            return new Range(this.lo, this.loInclusive, toKey, inclusive, false);
+        }
+
+        @Override
+        public Range tailMap(K fromKey, boolean inclusive){
+            checkInRange(fromKey, inclusive);
+            if(this.descending){
+                return new Range(this.lo, this.loInclusive, fromKey, inclusive, true);
+            }
+            return new Range(fromKey, inclusive, this.hi, this.hiInclusive, false);
+        }
+
+        @Override
+        public SortedMap<K, V> subMap(K fromKey, K toKey){
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedMap<K, V> headMap(K toKey){
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SortedMap<K, V> tailMap(K fromKey){
+            return tailMap(fromKey, true);
+        }
+    }
+
+    /**
+     * {@code KeySet} is a view of the keys of the map or of one of its ranges, in the order of
+     * the map or range it views.
+     */
+    private final class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+        private final Range map;
+
+        KeySet(Range map){
+            this.map = map;
+        }
+
+        @Override
+        public Iterator<K> iterator(){
+            final EntryIterator nodes = new EntryIterator(this.map);
+            return new Iterator<K>(){
+                @Override
+                public boolean hasNext(){
+                    return nodes.hasNext();
+                }
+
+                @Override
+                public K next(){
+                    return nodes.nextNode().key;
+                }
+
+                @Override
+                public void remove(){
+                    nodes.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size(){
+            return this.map.size();
+        }
+
+        @Override
+        public boolean isEmpty(){
+            return this.map.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object key){
+            return this.map.containsKey(key);
+        }
+
+        @Override
+        public boolean remove(Object key){
+            if(!this.map.containsKey(key)){
+                return false;
+            }
+            this.map.remove(key);
+            return true;
+        }
+
+        @Override
+        public void clear(){
+            this.map.clear();
+        }
+
+        @Override
+        public Comparator<? super K> comparator(){
+            return this.map.comparator();
+        }
+
+        @Override
+        public K first(){
+            return this.map.firstKey();
+        }
+
+        @Override
+        public K last(){
+            return this.map.lastKey();
+        }
+
+        @Override
+        public K lower(K key){
+            return this.map.lowerKey(key);
+        }
+
+        @Override
+        public K floor(K key){
+            return this.map.floorKey(key);
+        }
+
+        @Override
+        public K ceiling(K key){
+            return this.map.ceilingKey(key);
+        }
+
+        @Override
+        public K higher(K key){
+            return this.map.higherKey(key);
+        }
+
+        @Override
+        public K pollFirst(){
+            Map.Entry<K, V> first = this.map.pollFirstEntry();
+            return first == null ? null : first.getKey();
+        }
+
+        @Override
+        public K pollLast(){
+            Map.Entry<K, V> last = this.map.pollLastEntry();
+            return last == null ? null : last.getKey();
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet(){
+            return new KeySet(this.map.descendingMap());
+        }
+
+        @Override
+        public Iterator<K> descendingIterator(){
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive){
+            return new KeySet(this.map.subMap(fromKey, fromInclusive, toKey, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toKey, boolean inclusive){
+            return new KeySet(this.map.headMap(toKey, inclusive));
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromKey, boolean inclusive){
+            return new KeySet(this.map.tailMap(fromKey, inclusive));
+        }
+
+        @Override
+        public SortedSet<K> subSet(K fromKey, K toKey){
+            return subSet(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet(K toKey){
+            return headSet(toKey, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet(K fromKey){
+            return tailSet(fromKey, true);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code PriceRangeCriterion} is a price search criterion. Its posting lists come from one range
+ * scan over the exact prices in the price search map, and a single doc ID is checked by comparing
+ * the Content's price against the bounds rather than by looking through the posting lists.
+ */
+class PriceRangeCriterion extends SearchCriterion {
+    // Inclusive price bounds
+    private final float min;
+    private final float max;
+
+    // The catalog's Content, indexed by doc ID
+    private final List<Content> contentList;
+
+    /**
+     * Default PriceRangeCriterion constructor
+     *
+     * @param priceMap price search map, keyed on exact prices
+     * @param min inclusive minimum price
+     * @param max inclusive maximum price
+     * @param contentList the catalog's Content, indexed by doc ID
+     */
+    PriceRangeCriterion(NavigableMap<Float, DocIdBitmap> priceMap, float min, float max,
+                        List<Content> contentList){
+        super("price");
+        this.min = min;
+        this.max = max;
+        this.contentList = contentList;
+        if(min <= max){
+            for(DocIdBitmap posting : priceMap.subMap(min, true, max, true).values()){
+                addPosting(posting);
+            }
+        }
+    }
+
+    @Override
+    int probeCost(){
+        return 1;
+    }
+
+    @Override
+    boolean matches(int docId){
+        float price = this.contentList.get(docId).getPrice();
+        return price >= this.min && price <= this.max;
+    }
+}
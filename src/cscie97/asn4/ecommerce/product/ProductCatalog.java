@@ -2,8 +2,12 @@ package cscie97.asn4.ecommerce.product;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cscie97.asn4.ecommerce.authentication.*;
+import cscie97.asn4.ecommerce.csv.*;
+import cscie97.asn4.ecommerce.journal.*;
 
 /**
  * {@code ProductCatalog} maintains and provides access to Country, Device, and Content data.
@@ -16,18 +20,45 @@ public class ProductCatalog implements Catalog{
     // The active set of valid Devices
     private Map<String, Device> deviceMap;
    
-    // The active set of valid Content
-    private Map<String, Content> contentMap;
+    // The current catalog generation: Content and search indexes that searches read without
+    // locking; replaced, never modified, when an import publishes the next generation
+    private volatile CatalogSnapshot snapshot;
+    
+    // The next generation being built by the running Content import; only the importing
+    // thread touches it
+    private CatalogSnapshot.Builder pending;
    
-    // The lookup maps for search criteria
-    private Map<String, Set<Content>> searchCatMap;
-    private Map<String, Set<Content>> searchTextMap;
-    private Map<Integer, Set<Content>> searchRatingMap;
-    private Map<Integer, Set<Content>> searchPriceMap;
-    private Map<String, Set<Content>> searchLangMap;
-    private Map<String, Set<Content>> searchCountryMap;
-    private Map<String, Set<Content>> searchDeviceMap;
-    private Map<String, Set<Content>> searchTypeMap;
+    // Recent search results, invalidated when the search maps they read change
+    private SearchResultCache searchCache;
+    
+    // Maximum number of cached search results
+    private static final int SEARCH_CACHE_SIZE = 1024;
+    
+    // A price criterion matching at least 1/SCAN_FRACTION of the catalog is answered by a
+    // column scan rather than by merging posting lists
+    private static final int SCAN_FRACTION = 8;
+    
+    // Number of Content lines the import reader hands a parsing worker at a time
+    private static final int IMPORT_BATCH_SIZE = 256;
+    
+    // Removed Content is purged from the indexes once its tombstones make up 1/COMPACTION_FRACTION
+    // of the doc IDs
+    private static final int COMPACTION_FRACTION = 32;
+    
+    // Purges tombstoned Content in the background
+    private final ExecutorService compactor;
+    
+    // Whether a compaction has been handed to the compactor and not yet started
+    private boolean compactionQueued;
+    
+    // Service name the catalog's mutations are journaled under
+    static final String JOURNAL_SERVICE = "product";
+    
+    // Journal of Country, Device, and Content changes; null when changes are not journaled
+    private MutationJournal journal;
+    
+    // Sequence number of the last journaled mutation the catalog holds
+    private long journalSequence;
 
     /**
      * Private ProductCatalog constructor
@@ -35,19 +66,16 @@ public class ProductCatalog implements Catalog{
     private ProductCatalog(){
         this.countryMap = new TreeMap<String, Country>();
         this.deviceMap = new TreeMap<String, Device>();
-        this.contentMap = new TreeMap<String, Content>();
-        this.searchCatMap = new TreeMap<String, Set<Content>>();
-        this.searchTextMap = new TreeMap<String, Set<Content>>();
-        this.searchRatingMap = new TreeMap<Integer, Set<Content>>();
-        // Initialize searchRatingMap with keys from 0 - 5, which are the possible ratings
-        for(int i = 0; i <= 5; i++){
-            searchRatingMap.put(i, null);
-        }
-        this.searchPriceMap = new TreeMap<Integer, Set<Content>>();
-        this.searchLangMap = new TreeMap<String, Set<Content>>();
-        this.searchCountryMap = new TreeMap<String, Set<Content>>();
-        this.searchDeviceMap = new TreeMap<String, Set<Content>>();
-        this.searchTypeMap = new TreeMap<String, Set<Content>>();
+        this.snapshot = new CatalogSnapshot();
+        this.searchCache = new SearchResultCache(SEARCH_CACHE_SIZE);
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "catalog-compactor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
    
     /**
@@ -68,8 +96,34 @@ public class ProductCatalog implements Catalog{
         return ProductCatalogSingleton.pc;
     }   
 
+    /**
+     * Imports are serialized with each other; searches never wait for them. Content from one
+     * import becomes visible to searches all at once, when the import finishes. Content rows
+     * are parsed on one worker thread per processor; see 
+     * {@link #importCSV(String, String, String, int)}.
+     */
     @Override
     public void importCSV(String fileName, String dataType, String accessToken) 
+    	throws ImportException, PermissionException, InvalidAccessTokenException {
+        importCSV(fileName, dataType, accessToken, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Imports a Country, Device, or Content file. Content rows go through a staged pipeline: a
+     * reader thread batches the file's lines, a pool of workers parses and validates the batches
+     * into Content and analyzes their text, and the importing thread alone takes the batches in
+     * file order and assigns doc IDs. The search indexes are built for the whole file at the
+     * end, one field per worker. The first invalid row in file order stops the import and is
+     * reported with its line number, however the workers were scheduled.
+     * 
+     * @param fileName file to import
+     * @param dataType country, device, or content
+     * @param accessToken token restricting access to import
+     * @param parallelism number of Content parsing workers; at least 1
+     * @throws ImportException when the file cannot be read, a row is malformed, or parallelism
+     *         is less than 1
+     */
+    public synchronized void importCSV(String fileName, String dataType, String accessToken, int parallelism) 
     	throws ImportException, PermissionException, InvalidAccessTokenException {
 		try{
 	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
@@ -83,13 +137,18 @@ public class ProductCatalog implements Catalog{
 		} catch(InvalidAccessTokenException e){
 			throw e;
 		}          
+        if(parallelism < 1){
+            throw new ImportException("Error Importing: parallelism must be at least 1, not " +
+                                      parallelism, null, fileName);
+        }
     	try{           
             FileReader fr = new FileReader(fileName);
             BufferedReader br = new BufferedReader(fr);
            
             int lineNum = 0;
+            long journaled = 0;
             String line;
-            String delims = "(?<!\\\\),"; // negative lookbehind regex for comma not preceded by backslash
+            CsvTokenizer csv = new CsvTokenizer();
             String[] parsed;
            
             dataType = (dataType.toLowerCase()).trim();
@@ -101,7 +160,7 @@ public class ProductCatalog implements Catalog{
                         if((line.trim()).equals("")){
                             continue;
                         }
-                        parsed = line.split(delims);
+                        parsed = csv.split(line);
                         lineNum++;
                         if(parsed.length != 3){
                             throw new ImportException("Error Importing: Country data does not have correct " +
@@ -123,9 +182,10 @@ public class ProductCatalog implements Catalog{
                             }
                         }
                         else{
-                            addCountry(accessToken, parsed);
+                            journaled = Math.max(journaled, addCountry(accessToken, parsed));
                         }
                     }
+                    commitJournal(journaled, fileName);
                     if(lineNum == 2){
                         System.out.println("There was no Country data to import!");
                     }
@@ -142,7 +202,7 @@ public class ProductCatalog implements Catalog{
                     if((line.trim()).equals("")){
                         continue;
                     }
-                    parsed = line.split(delims);
+                    parsed = csv.split(line);
                     lineNum++;
                     if(parsed.length != 3){
                         throw new ImportException("Error Importing: Device data does not have correct " +
@@ -164,74 +224,41 @@ public class ProductCatalog implements Catalog{
                         }
                     }
                     else{
-                        addDevice(accessToken, parsed);
+                        try{
+                            journaled = Math.max(journaled, addDevice(accessToken, parsed));
+                        }
+                        catch(CatalogException ce){
+                            throw new ImportException(ce.getMessage(), line, fileName);
+                        }
                     }
                 }
+                commitJournal(journaled, fileName);
                 if(lineNum == 1){
                     System.out.println("There was no Device data to import!");
                 }              
             }
             else if(dataType.equals("content")){
+                // the file's Content is indexed all at once, when the import publishes it
+                this.pending = this.snapshot.toBulkBuilder(parallelism);
                 try{
-                    while((line = br.readLine()) != null){
-                        // skip blank lines
-                        if((line.trim()).equals("")){
-                            continue;
-                        }
-                        parsed = line.split(delims);
-                        lineNum++;
-                        if((lineNum == 2 && parsed.length != 13) ||
-                           (lineNum != 1 && parsed.length != 13 && parsed.length != 12)){ 
-                            throw new ImportException("Error Importing: Content does not have correct " +
-                            						  "number of fields", line, fileName);
-                        }
-                        if(lineNum == 1){ // check additional header line for asn3
-                        	continue;
-                        }	
-                        if(lineNum == 2){ // check header
-                            String headType = ((parsed[0].replace("#", "")).toLowerCase()).trim();
-                            String headId = (parsed[1].toLowerCase()).trim();
-                            String headName = (parsed[2].toLowerCase()).trim();
-                            String headDesc= (parsed[3].toLowerCase()).trim();
-                            String headAuth = (parsed[4].toLowerCase()).trim();
-                            String headRating = (parsed[5].toLowerCase()).trim();
-                            String headCat = (parsed[5].toLowerCase()).trim();
-                            String headCountries = (parsed[5].toLowerCase()).trim();
-                            String headDevices = (parsed[5].toLowerCase()).trim();
-                            String headPrice = (parsed[5].toLowerCase()).trim();
-                            String headLangs = (parsed[5].toLowerCase()).trim();
-                            String headUrl = (parsed[5].toLowerCase()).trim();
-                            String headSize = (parsed[5].toLowerCase()).trim();
-                            if(!headType.equals("content_type") && !headId.equals("content_id") &&
-                               !headName.equals("content_name") && !headDesc.equals("content_description") &&
-                               !headAuth.equals("author") && !headRating.equals("rating") &&
-                               !headCat.equals("categories") && !headCountries.equals("export_countries") &&
-                               !headDevices.equals("supported_devices") && !headPrice.equals("price") &&
-                               !headLangs.equals("supported_languages") && !headUrl.equals("image_url") &&
-                               !headSize.equals("application_size")){
-                                throw new ImportException("Error Importing: Content fields are not in " +
-                                						  "standard order of content_type, content_id, " +
-                                						  "content_name, content_description, " +
-                                                          "author, rating, categories, export_countries, " +
-                                                          "supported_devices, price, supported_languages, " +
-                                                          "image_url, and application_size",
-                                                          line, fileName);
-                            }
-                        }
-                        else{
-                            String type = (parsed[0].toLowerCase()).trim();
-                            addContent(accessToken, parsed, type);
-                        }
-                    }
-                    if(lineNum == 1){
-                        System.out.println("There was no Content data to import!");
-                    }
+                    importContent(br, fileName, accessToken, parallelism);
                 }
                 catch(CatalogException ce){
                 	System.out.println("Failure adding " + ce.getDataType() + " data: " + ce.getData());
                     System.out.println(ce.getMessage());
         			System.exit(1);
-                }                               
+                }
+                finally{
+                    // Content added before a failure stays in the catalog; it is made durable
+                    // before searches can see it
+                    try{
+                        commitJournal(this.journalSequence, fileName);
+                    }
+                    finally{
+                        publish(this.pending);
+                        this.pending = null;
+                    }
+                }
             }
             else{
                 throw new ImportException("Error Importing: " + dataType + " is not a currently supported " +
@@ -256,7 +283,7 @@ public class ProductCatalog implements Catalog{
            
             int lineNum = 0;
             String line;
-            String delims = "(?<!\\\\),"; // negative lookbehind regex for comma not preceded by backslash
+            CsvTokenizer csv = new CsvTokenizer();
             String[] parsed;
              
             while((line = br.readLine()) != null){
@@ -264,7 +291,7 @@ public class ProductCatalog implements Catalog{
                 if((line.trim()).equals("")){
                     continue;
                 }
-                parsed = line.split(delims);
+                parsed = csv.split(line);
                 lineNum++;
                 if(parsed.length != 8 && ((!(parsed[0].trim()).startsWith("#") && 
                    lineNum > 2) || lineNum == 2)){
@@ -277,35 +304,17 @@ public class ProductCatalog implements Catalog{
                 	continue;
                 }	
                 if(lineNum == 2){ // check header
-                    String headCat = ((parsed[0].replace("#", "")).toLowerCase()).trim();
-                    String headText = (parsed[1].toLowerCase()).trim();
-                    String headRating = (parsed[2].toLowerCase()).trim();
-                    String headPrice = (parsed[3].toLowerCase()).trim();
-                    String headLang = (parsed[4].toLowerCase()).trim();
-                    String headCtry = (parsed[5].toLowerCase()).trim();
-                    String headDev = (parsed[6].toLowerCase()).trim();
-                    String headContent = (parsed[7].toLowerCase()).trim();
-                    
-                    if(!headCat.equals("category list") && !headText.equals("text search") &&
-                       !headRating.equals("minimum rating") && !headPrice.equals("max price") &&
-                       !headLang.equals("language list") && !headCtry.equals("country code") &&
-                       !headDev.equals("device id") && !headContent.equals("content type list")){
-                        throw new SearchEngineException("Search fields are not in standard order of " +
-                                                        "category list, text search, minimum rating, " +
-                                                        "max price, language list, country_code, " +
-                                                        "device_id, and content type list.",
-                                                        line, fileName);
-                    }
+                    checkSearchHeader(parsed, line, fileName);
                 }
                 else{
                     // print out query description
                     if((parsed[0].trim()).startsWith("#")){
                         System.out.println(parsed[0].trim());
                     }
-                    // send search strings to executeSearch and display results
+                    // open a cursor for the search strings and stream the results
                     else{
-                        Set<Content> results = executeSearch(parsed);
-                        if(results != null){
+                        SearchCursor results = openSearchCursor(parsed, null);
+                        if(results.hasNext()){
                             displayResults(results);
                         }
                         else{
@@ -334,14 +343,425 @@ public class ProductCatalog implements Catalog{
         }
     }
    
+    /**
+     * Executes the searches in a search file in parallel. Lines are parsed in order and their
+     * searches run on a pool of worker threads, while the results are written in input order as
+     * soon as every earlier line's results are written. A line that cannot be searched, such as
+     * one with the wrong number of fields or a malformed rating, is reported with its line
+     * number and the rest of the file is still searched.
+     * 
+     * @param fileName search file
+     * @param parallelism number of worker threads; at least 1
+     * @throws SearchEngineException when the file cannot be read, its header is invalid, or
+     *         parallelism is less than 1
+     */
+    public void executeSearchFile(String fileName, int parallelism) throws SearchEngineException{
+        if(parallelism < 1){
+            throw new SearchEngineException("Search Error: parallelism must be at least 1, not " +
+                                            parallelism, null, fileName);
+        }
+        CsvTokenizer csv = new CsvTokenizer();
+        final AtomicInteger failures = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        // searches running or waiting to be written, in input order; bounded so that a large file
+        // is not held in memory all at once
+        Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+        try{
+            BufferedReader br = new BufferedReader(new FileReader(fileName));
+            try{
+                int lineNum = 0;
+                int fileLine = 0;
+                String line;
+                while((line = br.readLine()) != null){
+                    fileLine++;
+                    // skip blank lines
+                    if((line.trim()).equals("")){
+                        continue;
+                    }
+                    final String[] parsed = csv.split(line);
+                    lineNum++;
+                    if(lineNum <= 2){
+                        if(parsed.length != 8 && lineNum == 2){
+                            throw new SearchEngineException("Search Error: Search data does not have " +
+                                                            "correct number (8) of criteria fields", 
+                                                            line, fileName);
+                        }
+                        if(lineNum == 2){ // check header
+                            checkSearchHeader(parsed, line, fileName);
+                        }
+                        continue;
+                    }
+                    if(parsed.length > 0 && (parsed[0].trim()).startsWith("#")){
+                        // print out query description
+                        pending.add(CompletableFuture.completedFuture(parsed[0].trim() + "\n"));
+                    }
+                    else if(parsed.length != 8){
+                        failures.incrementAndGet();
+                        pending.add(CompletableFuture.completedFuture(
+                            "Error processing search on line " + fileLine + ": Search data does not " +
+                            "have correct number (8) of criteria fields\n"));
+                    }
+                    else{
+                        final int number = fileLine;
+                        pending.add(pool.submit(new Callable<String>(){
+                            @Override
+                            public String call(){
+                                return runSearchLine(parsed, number, failures);
+                            }
+                        }));
+                    }
+                    while(pending.size() > parallelism * 4){
+                        System.out.print(pending.poll().get());
+                    }
+                }
+                while(!pending.isEmpty()){
+                    System.out.print(pending.poll().get());
+                }
+                if(lineNum == 1){
+                    System.out.println("There were no searches to execute!");
+                }
+                if(failures.get() > 0){
+                    System.out.println(failures.get() + " search(es) in " + fileName + 
+                                       " could not be processed.");
+                }
+            }
+            finally{
+                br.close();
+            }
+        }
+        catch(IOException ioe){
+            throw new SearchEngineException("Error reading search file: " + ioe.getMessage(), null, fileName);
+        }
+        catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new SearchEngineException("Search interrupted", null, fileName);
+        }
+        catch(ExecutionException ee){
+            // runSearchLine reports its own failures, so this is unexpected
+            throw new SearchEngineException("Search Error: " + ee.getCause(), null, fileName);
+        }
+        finally{
+            pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Runs one search from a search file and formats its results the way displayResults prints
+     * them.
+     * 
+     * @param criteria search criteria
+     * @param lineNumber line of the search file the criteria came from
+     * @param failures counts the searches that failed
+     * @return formatted results, or the error for the line
+     */
+    private String runSearchLine(String[] criteria, int lineNumber, AtomicInteger failures){
+        StringBuilder out = new StringBuilder();
+        try{
+            Set<Content> results = executeSearch(criteria);
+            if(results == null){
+                out.append("There were no results for the provided criteria.\n");
+            }
+            else{
+                out.append("\nResults:\n\n");
+                for(Content c : results){
+                    out.append(c.toString()).append('\n');
+                }
+            }
+        }
+        catch(SearchEngineException see){
+            failures.incrementAndGet();
+            out.append("Error processing search on line " + lineNumber + ": " + see.getMessage() + "\n");
+        }
+        catch(RuntimeException re){
+            failures.incrementAndGet();
+            out.append("Error processing search on line " + lineNumber + ": " + re + "\n");
+        }
+        return out.toString();
+    }
+    
+    /**
+     * Checks the field header line of a search file.
+     * 
+     * @param parsed header fields
+     * @param line header line
+     * @param fileName search file
+     * @throws SearchEngineException when the fields are not in the standard order
+     */
+    private void checkSearchHeader(String[] parsed, String line, String fileName) 
+        throws SearchEngineException{
+        String headCat = ((parsed[0].replace("#", "")).toLowerCase()).trim();
+        String headText = (parsed[1].toLowerCase()).trim();
+        String headRating = (parsed[2].toLowerCase()).trim();
+        String headPrice = (parsed[3].toLowerCase()).trim();
+        String headLang = (parsed[4].toLowerCase()).trim();
+        String headCtry = (parsed[5].toLowerCase()).trim();
+        String headDev = (parsed[6].toLowerCase()).trim();
+        String headContent = (parsed[7].toLowerCase()).trim();
+        
+        if(!headCat.equals("category list") && !headText.equals("text search") &&
+           !headRating.equals("minimum rating") && !headPrice.equals("max price") &&
+           !headLang.equals("language list") && !headCtry.equals("country code") &&
+           !headDev.equals("device id") && !headContent.equals("content type list")){
+            throw new SearchEngineException("Search fields are not in standard order of " +
+                                            "category list, text search, minimum rating, " +
+                                            "max price, language list, country_code, " +
+                                            "device_id, and content type list.",
+                                            line, fileName);
+        }
+    }
+   
+    /**
+     * Runs the staged Content import pipeline over a Content file; see 
+     * {@link #importCSV(String, String, String, int)}. The pending generation receives the
+     * Content. At most four batches per worker are parsed or waiting for the writer, so a
+     * reader that outruns the writer blocks rather than filling memory.
+     * 
+     * @param br reader positioned at the start of the file
+     * @param fileName file being imported
+     * @param accessToken token restricting access to add data
+     * @param parallelism number of parsing workers
+     * @throws ImportException when the file cannot be read or a row has the wrong number of fields
+     * @throws CatalogException when a row's Content is invalid
+     */
+    private void importContent(BufferedReader br, String fileName, String accessToken, int parallelism)
+        throws ImportException, CatalogException, PermissionException, InvalidAccessTokenException, 
+               IOException{
+        CsvTokenizer csv = new CsvTokenizer();
+        int lineNum = 0;
+        int fileLine = 0;
+        String line;
+        // the two header lines are checked before the pipeline starts
+        while(lineNum < 2 && (line = br.readLine()) != null){
+            fileLine++;
+            // skip blank lines
+            if((line.trim()).equals("")){
+                continue;
+            }
+            String[] parsed = csv.split(line);
+            lineNum++;
+            if(lineNum == 2){ // check header
+                if(parsed.length != 13){
+                    throw new ImportException("Error Importing: Content does not have correct " +
+                                              "number of fields on line " + fileLine, line, fileName);
+                }
+                checkContentHeader(parsed, line, fileName);
+            }
+        }
+        if(lineNum < 2){
+            if(lineNum == 1){
+                System.out.println("There was no Content data to import!");
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        // parsed batches in file order, as the writer will apply them; a batch of null marks the
+        // end of the file
+        BlockingQueue<Future<List<ContentRow>>> batches = 
+            new ArrayBlockingQueue<Future<List<ContentRow>>>(parallelism * 4);
+        Thread reader = new Thread(new ContentReader(br, fileLine, fileName, pool, batches), 
+                                   "content-import-reader");
+        reader.setDaemon(true);
+        reader.start();
+        try{
+            List<ContentRow> batch;
+            while((batch = batches.take().get()) != null){
+                for(ContentRow row : batch){
+                    if(row.error instanceof ImportException){
+                        throw (ImportException) row.error;
+                    }
+                    if(row.error instanceof CatalogException){
+                        throw (CatalogException) row.error;
+                    }
+                    addContent(accessToken, row);
+                }
+            }
+        }
+        catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new ImportException("Error Importing: Import interrupted", null, fileName);
+        }
+        catch(ExecutionException ee){
+            if(ee.getCause() instanceof IOException){
+                throw (IOException) ee.getCause();
+            }
+            throw new ImportException("Error Importing: " + ee.getCause(), null, fileName);
+        }
+        finally{
+            // stop a reader still blocked on a full queue, and drop work the writer won't use
+            reader.interrupt();
+            pool.shutdownNow();
+            try{
+                reader.join();
+            }
+            catch(InterruptedException ie){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Checks that a Content file's header names the Content fields in the standard order.
+     * 
+     * @throws ImportException when the header does not match
+     */
+    private void checkContentHeader(String[] parsed, String line, String fileName) throws ImportException{
+        String headType = ((parsed[0].replace("#", "")).toLowerCase()).trim();
+        String headId = (parsed[1].toLowerCase()).trim();
+        String headName = (parsed[2].toLowerCase()).trim();
+        String headDesc= (parsed[3].toLowerCase()).trim();
+        String headAuth = (parsed[4].toLowerCase()).trim();
+        String headRating = (parsed[5].toLowerCase()).trim();
+        String headCat = (parsed[5].toLowerCase()).trim();
+        String headCountries = (parsed[5].toLowerCase()).trim();
+        String headDevices = (parsed[5].toLowerCase()).trim();
+        String headPrice = (parsed[5].toLowerCase()).trim();
+        String headLangs = (parsed[5].toLowerCase()).trim();
+        String headUrl = (parsed[5].toLowerCase()).trim();
+        String headSize = (parsed[5].toLowerCase()).trim();
+        if(!headType.equals("content_type") && !headId.equals("content_id") &&
+           !headName.equals("content_name") && !headDesc.equals("content_description") &&
+           !headAuth.equals("author") && !headRating.equals("rating") &&
+           !headCat.equals("categories") && !headCountries.equals("export_countries") &&
+           !headDevices.equals("supported_devices") && !headPrice.equals("price") &&
+           !headLangs.equals("supported_languages") && !headUrl.equals("image_url") &&
+           !headSize.equals("application_size")){
+            throw new ImportException("Error Importing: Content fields are not in " +
+            						  "standard order of content_type, content_id, " +
+            						  "content_name, content_description, " +
+                                      "author, rating, categories, export_countries, " +
+                                      "supported_devices, price, supported_languages, " +
+                                      "image_url, and application_size",
+                                      line, fileName);
+        }
+    }
+    
+    /**
+     * {@code ContentRow} is one line of a Content file as it moves through the import pipeline:
+     * filled in by a parsing worker, then written by the importing thread.
+     */
+    private static class ContentRow {
+        final int lineNumber;
+        final String line;
+        String[] fields;
+        String type;
+        Content content;
+        List<String> words;
+        List<Integer> positions;
+        // the row's ImportException or CatalogException, if it is invalid
+        Exception error;
+
+        ContentRow(int lineNumber, String line){
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+    }
+    
+    /**
+     * {@code ContentReader} is the reader stage of the Content import pipeline. It splits the
+     * rest of the file into batches of lines, submits each batch to the parsing workers, and
+     * queues the pending result in file order, blocking while the queue is full.
+     */
+    private class ContentReader implements Runnable {
+        private final BufferedReader br;
+        private int fileLine;
+        private final String fileName;
+        private final ForkJoinPool pool;
+        private final BlockingQueue<Future<List<ContentRow>>> batches;
+
+        ContentReader(BufferedReader br, int fileLine, String fileName, ForkJoinPool pool,
+                      BlockingQueue<Future<List<ContentRow>>> batches){
+            this.br = br;
+            this.fileLine = fileLine;
+            this.fileName = fileName;
+            this.pool = pool;
+            this.batches = batches;
+        }
+
+        @Override
+        public void run(){
+            try{
+                try{
+                    List<ContentRow> batch = new ArrayList<ContentRow>(IMPORT_BATCH_SIZE);
+                    String line;
+                    while(!Thread.currentThread().isInterrupted() && (line = this.br.readLine()) != null){
+                        this.fileLine++;
+                        // skip blank lines
+                        if((line.trim()).equals("")){
+                            continue;
+                        }
+                        batch.add(new ContentRow(this.fileLine, line));
+                        if(batch.size() == IMPORT_BATCH_SIZE){
+                            this.batches.put(this.pool.submit(parseBatch(batch, this.fileName)));
+                            batch = new ArrayList<ContentRow>(IMPORT_BATCH_SIZE);
+                        }
+                    }
+                    if(!batch.isEmpty()){
+                        this.batches.put(this.pool.submit(parseBatch(batch, this.fileName)));
+                    }
+                    this.batches.put(CompletableFuture.completedFuture((List<ContentRow>) null));
+                }
+                catch(IOException ioe){
+                    CompletableFuture<List<ContentRow>> failed = new CompletableFuture<List<ContentRow>>();
+                    failed.completeExceptionally(ioe);
+                    this.batches.put(failed);
+                }
+            }
+            catch(InterruptedException ie){
+                // the writer stopped and wants no more batches
+            }
+            catch(RejectedExecutionException ree){
+                // the writer stopped and shut the workers down
+            }
+        }
+    }
+    
+    /**
+     * Returns the parsing task for a batch of Content lines. Each row is split, checked, and
+     * turned into Content with its text analyzed; parsing stops at the batch's first invalid
+     * row, since the writer stops there too.
+     */
+    private Callable<List<ContentRow>> parseBatch(final List<ContentRow> batch, final String fileName){
+        return new Callable<List<ContentRow>>(){
+            @Override
+            public List<ContentRow> call(){
+                CsvTokenizer csv = new CsvTokenizer();
+                for(ContentRow row : batch){
+                    String[] parsed = csv.split(row.line);
+                    if(parsed.length != 13 && parsed.length != 12){
+                        row.error = new ImportException("Error Importing: Content does not have correct " +
+                                                        "number of fields on line " + row.lineNumber, 
+                                                        row.line, fileName);
+                        break;
+                    }
+                    row.fields = parsed;
+                    row.type = (parsed[0].toLowerCase()).trim();
+                    try{
+                        row.content = parseContent(parsed, row.type);
+                    }
+                    catch(CatalogException ce){
+                        row.error = new CatalogException(ce.getMessage() + " on line " + row.lineNumber, 
+                                                         ce.getDataType(), ce.getData());
+                        break;
+                    }
+                    row.words = new ArrayList<String>();
+                    row.positions = new ArrayList<Integer>();
+                    CatalogSnapshot.Builder.analyze(row.content, row.words, row.positions);
+                }
+                return batch;
+            }
+        };
+    }
+    
     /**
      * Creates new Country and adds to country map if it doesn't already exist.
      * 
      * @param accessToken token restricting access to add data
      * @param countryData Country data
+     * @return sequence number of the journaled addition, or 0 if nothing was journaled
      * @throws CatalogException when an error is encountered creating the Country
      */
-    private void addCountry(String accessToken, String[] countryData) 
+    private long addCountry(String accessToken, String[] countryData) 
     	throws CatalogException, PermissionException, InvalidAccessTokenException{
 		try{
 	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
@@ -354,7 +774,18 @@ public class ProductCatalog implements Catalog{
 			}			
 		} catch(InvalidAccessTokenException e){
 			throw e;
-		}           
+		}
+        return putCountry(countryData) ? journal("country", countryData) : 0;
+    }
+    
+    /**
+     * Adds a Country to the country map if it doesn't already exist.
+     * 
+     * @param countryData Country data
+     * @return true if the Country was added
+     * @throws CatalogException when an error is encountered creating the Country
+     */
+    private boolean putCountry(String[] countryData) throws CatalogException{
     	String code;
         String name;
         String status;
@@ -371,9 +802,11 @@ public class ProductCatalog implements Catalog{
             Country c = new Country(code, name, status);
             this.countryMap.put(code, c);
             System.out.println("Country " + code + " was added!");
+            return true;
         }
         else{
             System.out.println("Country " + code + " is already in system.");
+            return false;
         }
     }
    
@@ -382,9 +815,11 @@ public class ProductCatalog implements Catalog{
      * 
      * @param accessToken token restricting access to add data
      * @param deviceData Device data
+     * @return sequence number of the journaled addition, or 0 if nothing was journaled
+     * @throws CatalogException when the addition cannot be journaled
      */
-    private void addDevice(String accessToken, String[] deviceData)
-    	throws PermissionException, InvalidAccessTokenException{
+    private long addDevice(String accessToken, String[] deviceData)
+    	throws CatalogException, PermissionException, InvalidAccessTokenException{
 		try{
 	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
 			String perm = "create_device";
@@ -396,7 +831,17 @@ public class ProductCatalog implements Catalog{
 			}			
 		} catch(InvalidAccessTokenException e){
 			throw e;
-		}           
+		}
+        return putDevice(deviceData) ? journal("device", deviceData) : 0;
+    }
+    
+    /**
+     * Adds a Device to the device map if it doesn't already exist.
+     * 
+     * @param deviceData Device data
+     * @return true if the Device was added
+     */
+    private boolean putDevice(String[] deviceData){
     	String id;
         String name;
         String manufacturer;
@@ -409,138 +854,39 @@ public class ProductCatalog implements Catalog{
             Device d = new Device(id, name, manufacturer);
             this.deviceMap.put(id, d);
             System.out.println("Device " + id + " was added!");
+            return true;
         }
         else{
             System.out.println("Device " + id + " is already in system.");
+            return false;
         }    
     }
    
     /**
-     * Adds Content to the search maps.
+     * Publishes a new catalog generation. Cached results that read any posting list or price
+     * range the generation changed are invalidated first, so no search of the new generation
+     * can be answered from them.
      * 
-     * @param c Content to add to search maps
-     * @param type type of Content being added to search maps
+     * @param next builder holding the next generation
      */
-    private void updateSearchMaps(Content c, String type){     
-        // update category search map
-        Iterator<String> itCat = c.getCategories().iterator();
-        while(itCat.hasNext()){
-            Set<Content> setCat = new HashSet<Content>();
-            String keyCat = itCat.next();
-            if(this.searchCatMap.get(keyCat) == null || !this.searchCatMap.containsKey(keyCat)){
-                setCat.add(c);
-                this.searchCatMap.put(keyCat, setCat);
-            }
-            else{
-                this.searchCatMap.get(keyCat).add(c);
-            }
-        }
-        // update text search map
-        // remove punctuation and consider words as separated by whitespace
-        String[] parsedName = c.getName().replaceAll("\\p{P}", "").split(" +"); 
-        for(int i = 0; i < parsedName.length; i++){
-            Set<Content> setName = new HashSet<Content>();
-            String keyName = parsedName[i].trim().toLowerCase();
-            if(this.searchTextMap.get(keyName) == null || !this.searchTextMap.containsKey(keyName)){
-                setName.add(c);
-                this.searchTextMap.put(keyName, setName);
-            }
-            else{
-                this.searchTextMap.get(keyName).add(c);
-            }
-        }   
-        String[] parsedDesc = c.getDescription().replaceAll("\\p{P}","").split(" +");
-        for(int i = 0; i < parsedDesc.length; i++){
-            Set<Content> setDesc = new HashSet<Content>();  
-            String keyDesc = parsedDesc[i].trim().toLowerCase();
-            if(this.searchTextMap.get(keyDesc) == null || !this.searchTextMap.containsKey(keyDesc)){
-                setDesc.add(c);
-                this.searchTextMap.put(keyDesc, setDesc);
-            }
-            else{
-                this.searchTextMap.get(keyDesc).add(c);
-            }
-        }
-        // update rating search map
-        Set<Content> setRating = new HashSet<Content>();
-        int rating = c.getRating();
-        if(this.searchRatingMap.get(rating) == null || !this.searchRatingMap.containsKey(rating)){
-        	setRating.add(c);
-            this.searchRatingMap.put(rating, setRating);
-        }
-        else{
-            this.searchRatingMap.get(rating).add(c);
-        }
-        
-        // update price search map
-        Set<Content> setPrice = new HashSet<Content>();       
-        int keyPrice = Math.round(c.getPrice());
-        if(this.searchPriceMap.get(keyPrice) == null || !this.searchPriceMap.containsKey(keyPrice)){
-            setPrice.add(c);
-            this.searchPriceMap.put(keyPrice, setPrice);
-        }
-        else{
-            this.searchPriceMap.get(keyPrice).add(c);
-        } 
-        // update language search map
-        Iterator<String> itLang = c.getLanguages().iterator();
-        while(itLang.hasNext()){
-            Set<Content> setLang = new HashSet<Content>();
-            String keyLang = itLang.next();
-            if(this.searchLangMap.get(keyLang) == null || !this.searchLangMap.containsKey(keyLang)){
-                setLang.add(c);
-                this.searchLangMap.put(keyLang, setLang);
-            }
-            else{
-                this.searchLangMap.get(keyLang).add(c);
-            }
-        }
-        // update country search map
-        Iterator<Country> itCtry = c.getCountries().iterator();
-        while(itCtry.hasNext()){
-            Set<Content> setCtry = new HashSet<Content>();
-            String keyCtry = itCtry.next().getCountryCode();
-            if(this.searchCountryMap.get(keyCtry) == null || !this.searchCountryMap.containsKey(keyCtry)){
-                setCtry.add(c);
-                this.searchCountryMap.put(keyCtry, setCtry);
-            }
-            else{
-                this.searchCountryMap.get(keyCtry).add(c);
-            }
-        }
-        // update device search map
-        Iterator<Device> itDev = c.getDevices().iterator();
-        while(itDev.hasNext()){
-            Set<Content> setDev = new HashSet<Content>();
-            String keyDev = itDev.next().getDeviceId();
-            if(this.searchDeviceMap.get(keyDev) == null || !this.searchDeviceMap.containsKey(keyDev)){
-                setDev.add(c);
-                this.searchDeviceMap.put(keyDev, setDev);
-            }
-            else{
-                this.searchDeviceMap.get(keyDev).add(c);
-            }
-        }
-        // update content type search map
-        Set<Content> setTypes = new HashSet<Content>();
-        if(this.searchTypeMap.get(type) == null || !this.searchTypeMap.containsKey(type)){                       
-            setTypes.add(c);
-            this.searchTypeMap.put(type, setTypes);
-        }
-        else{
-            this.searchTypeMap.get(type).add(c);
-        }
+    private void publish(CatalogSnapshot.Builder next){
+        CatalogSnapshot built = next.build();
+        this.searchCache.beginGeneration(next.getGeneration());
+        this.searchCache.invalidate(next.getTouched());
+        this.searchCache.invalidateRange("price", next.getPrices());
+        this.snapshot = built;
     }
    
     /**
-     * Creates new Content and adds to content map and search maps if it doesn't already exist.
+     * Adds a parsed Content row to the pending generation and journals it, if the Content
+     * doesn't already exist.
      * 
      * @param accessToken token restricting access to add data
-     * @param contentData Content data
-     * @param type type of Content
-     * @throws CatalogException when an error is encountered creating the Content
+     * @param row parsed Content row
+     * @return sequence number of the journaled addition, or 0 if nothing was journaled
+     * @throws CatalogException when the addition cannot be journaled
      */
-    private void addContent(String accessToken, String[] contentData, String type) 
+    private long addContent(String accessToken, ContentRow row) 
     	throws CatalogException, PermissionException, InvalidAccessTokenException{
 		try{
 	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
@@ -553,7 +899,33 @@ public class ProductCatalog implements Catalog{
 			}			
 		} catch(InvalidAccessTokenException e){
 			throw e;
-		}          
+		}
+        return writeContent(row.content, row.type, row.words, row.positions) ? journal("content", row.fields) : 0;
+    }
+    
+    /**
+     * Parses Content data and adds the Content to the pending generation if it doesn't already
+     * exist.
+     * 
+     * @param contentData Content data
+     * @param type type of Content
+     * @return true if the Content was added
+     * @throws CatalogException when an error is encountered creating the Content
+     */
+    private boolean putContent(String[] contentData, String type) throws CatalogException{
+        return writeContent(parseContent(contentData, type), type, null, null);
+    }
+    
+    /**
+     * Creates Content from Content data. Only reads the country and device maps, so import
+     * workers may parse rows concurrently.
+     * 
+     * @param contentData Content data
+     * @param type type of Content
+     * @return the Content
+     * @throws CatalogException when an error is encountered creating the Content
+     */
+    private Content parseContent(String[] contentData, String type) throws CatalogException{
     	String id;
         String name;
         String desc;
@@ -566,7 +938,6 @@ public class ProductCatalog implements Catalog{
         Set<String> langs = new HashSet<String>();
         String url;
         byte size;
-        String delims = "\\|";
        
         if(type.equals("application") || type.equals("ringtone") || type.equals("wallpaper")){
             if((type.equals("application") && contentData.length == 13) ||
@@ -583,12 +954,12 @@ public class ProductCatalog implements Catalog{
                     						   "Content", contentData[5].trim());                   
                 }
 
-                String[] parseCats = (contentData[6].trim()).split(delims);
+                String[] parseCats = CsvTokenizer.splitList(contentData[6].trim());
                 for(int i = 0; i < parseCats.length; i++){
                     cats.add((parseCats[i].toLowerCase()).trim());
                 }
                 
-                String[] parseCountries = (contentData[7].trim()).split(delims);
+                String[] parseCountries = CsvTokenizer.splitList(contentData[7].trim());
                 for(int i = 0; i < parseCountries.length; i++){
                     String c = (parseCountries[i].toUpperCase()).trim();
                     if(this.countryMap.get(c) == null){
@@ -600,7 +971,7 @@ public class ProductCatalog implements Catalog{
                     }
                 }
                 
-                String[] parseDevices = (contentData[8].trim()).split(delims);
+                String[] parseDevices = CsvTokenizer.splitList(contentData[8].trim());
                 for(int i = 0; i < parseDevices.length; i++){
                     String d = (parseDevices[i].toLowerCase()).trim();
                     if(this.deviceMap.get(d) == null){
@@ -620,48 +991,31 @@ public class ProductCatalog implements Catalog{
                     						   "Content", contentData[9].trim());
                 }       
                 
-                String[] parseLangs = (contentData[10].trim()).split(delims);
+                String[] parseLangs = CsvTokenizer.splitList(contentData[10].trim());
                 for(int i = 0; i < parseLangs.length; i++){
                     langs.add((parseLangs[i].toLowerCase()).trim());
                 }
                 
                 url = contentData[11].trim();
                
-                if(this.contentMap.get(id) == null){
-                    if(type.equals("application")){
-                        try{
-                            size = (byte) Integer.parseInt(contentData[12].trim());                       
-                        }
-                        catch(NumberFormatException nfe){
-                            throw new CatalogException("Error adding to Catalog: Invalid size format", 
-                            						   "Content", contentData[12].trim());                       
-                        }
-                        Application a = new Application(id, name, desc, cats, author, rating, price, langs,
-                                                        url, countries, devices, size);
-                        this.contentMap.put(id, a);                       
-                        updateSearchMaps(a, "application");
-                       
-                        System.out.println("Application " + id + " was added!");
-                    }
-                    else if(type.equals("ringtone")){
-                        RingTone r = new RingTone(id, name, desc, cats, author, rating, price, langs,
-                                                  url, countries, devices);
-                        this.contentMap.put(id, r);          
-                        updateSearchMaps(r, "ringtone");
-                       
-                        System.out.println("RingTone " + id + " was added!");
+                if(type.equals("application")){
+                    try{
+                        size = (byte) Integer.parseInt(contentData[12].trim());                       
                     }
-                    else{
-                        Wallpaper w = new Wallpaper(id, name, desc, cats, author, rating, price, langs,
-                                  url, countries, devices);
-                        this.contentMap.put(id, w);               
-                        updateSearchMaps(w, "wallpaper");
-                       
-                        System.out.println("Wallpaper " + id + " was added!");
+                    catch(NumberFormatException nfe){
+                        throw new CatalogException("Error adding to Catalog: Invalid size format", 
+                        						   "Content", contentData[12].trim());                       
                     }
+                    return new Application(id, name, desc, cats, author, rating, price, langs,
+                                           url, countries, devices, size);
+                }
+                else if(type.equals("ringtone")){
+                    return new RingTone(id, name, desc, cats, author, rating, price, langs,
+                                        url, countries, devices);
                 }
                 else{
-                    System.out.println("Content" + id + " is already in system.");
+                    return new Wallpaper(id, name, desc, cats, author, rating, price, langs,
+                                         url, countries, devices);
                 }
             }
             else{
@@ -676,157 +1030,1184 @@ public class ProductCatalog implements Catalog{
     }
     
     /**
-     * Retrieves the Content with the given identifier from the contentMap
+     * Adds Content to the pending generation, assigning its doc ID and indexing it, if Content
+     * with its id doesn't already exist. A bulk import's Content is indexed when it is published.
      * 
-     * @param id id of the Content
-     * @return Content object having the id
+     * @param c Content to add
+     * @param type type of Content
+     * @param words analyzed text terms of the Content, or null to analyze them here
+     * @param positions positions of the terms
+     * @return true if the Content was added
      */
-    public Content getProduct(String id){
-    	return this.contentMap.get(id);
-    }
-    
-    /**
-     * 
-     * @param criteria search criteria
-     * @return Content matching the criteria
-     * @throws SearchEngineException when error is encountered processing the search
+    private boolean writeContent(Content c, String type, List<String> words, List<Integer> positions){
+        if(this.pending.getContent(c.getId()) != null){
+            System.out.println("Content" + c.getId() + " is already in system.");
+            return false;
+        }
+        if(words == null){
+            this.pending.add(c, type);
+        }
+        else{
+            this.pending.add(c, type, words, positions);
+        }
+        if(type.equals("application")){
+            System.out.println("Application " + c.getId() + " was added!");
+        }
+        else if(type.equals("ringtone")){
+            System.out.println("RingTone " + c.getId() + " was added!");
+        }
+        else{
+            System.out.println("Wallpaper " + c.getId() + " was added!");
+        }
+        return true;
+    }
+    
+    /**
+     * Replaces Content in the catalog with new values for it, given as a row of a Content file.
+     * The Content keeps its doc ID, and only the posting lists of the values it gained or lost
+     * are modified. Searches see the change once it is journaled.
+     * 
+     * @param accessToken token restricting access to update data
+     * @param contentData Content data, with the fields of a Content file row
+     * @throws CatalogException when the data is invalid, the Content is not in the catalog, or
+     *         the change cannot be journaled
      */
-    public Set<Content> executeSearch(String[] criteria) throws SearchEngineException{
-        int countCriteria = 0;
-        String delims = "\\|";
-        List<Set<Content>> resultSets = new ArrayList<Set<Content>>();
-        Set<Content> finalResults = new HashSet<Content>();
-        
-        // run category search
-        if(!(criteria[0].trim()).equals("")){
-            countCriteria++;
-            String[] parseCats = (criteria[0].trim()).split(delims);
-            Set<Content> setCat = new HashSet<Content>();
-            for(int i = 0; i < parseCats.length; i++){
-                String c = (parseCats[i].toLowerCase()).trim();
-                if(this.searchCatMap.containsKey(c)){
-                    setCat.addAll(this.searchCatMap.get(c));
-                }
-            }
-            resultSets.add(setCat);
-        }
-        // run text search
-        if(!(criteria[1].trim()).equals("")){  
-            countCriteria++;
-            String[] parseText = (criteria[1].trim()).split(" +");
-            Set<Content> setText = new HashSet<Content>();
-            for(int i = 0; i < parseText.length; i++){
-                String t = (parseText[i].toLowerCase()).trim();
-                if(this.searchTextMap.containsKey(t)){
-                    setText.addAll(this.searchTextMap.get(t));
-                }
-            }
-            resultSets.add(setText);
-        }
-        // run minimum rating search
-        if(!(criteria[2].trim()).equals("")){
-            countCriteria++;
-            Set<Content> setRating = new HashSet<Content>();
-            try{
-                int rating = Integer.parseInt(criteria[2].trim());
-                for(int i=rating; i<=5; i++){
-                	if(this.searchRatingMap.containsKey(i) && this.searchRatingMap.get(i) != null){
-                    setRating.addAll(this.searchRatingMap.get(i));
-                	}
-            	}
-                resultSets.add(setRating);
-            }
-            catch(NumberFormatException nfe){
-                throw new SearchEngineException("Error executing search: Invalid rating format", 
-                								null, null);
-            }
-        }
-        // run maximum price search
-        if(!(criteria[3].trim()).equals("")){
-            countCriteria++;
-            Set<Content> setPrice = new HashSet<Content>();
-            try{
-                float price = Float.parseFloat(criteria[3].trim());
-                int maxprice = Math.round(price);
-                for(int i=maxprice; i>=0; i--){
-	                if(this.searchPriceMap.containsKey(i) && this.searchPriceMap.get(i) != null){
-	                    setPrice.addAll(this.searchPriceMap.get(i));
-	                }
+    public synchronized void updateContent(String accessToken, String[] contentData) 
+        throws CatalogException, PermissionException, InvalidAccessTokenException{
+		try{
+	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
+			String perm = "update_product";
+			boolean hasAccess = as.verifyAccess(accessToken, perm);
+			
+			if(!hasAccess){
+				throw new PermissionException("User is not authorized to perform " +
+					"this function", null, perm);
+			}			
+		} catch(InvalidAccessTokenException e){
+			throw e;
+		}
+        String type = (contentData[0].toLowerCase()).trim();
+        Content c = parseContent(contentData, type);
+        this.pending = this.snapshot.toBuilder();
+        try{
+            replaceContent(c, type);
+            commitMutation(journal("content_update", contentData));
+            publish(this.pending);
+        }
+        finally{
+            this.pending = null;
+        }
+    }
+    
+    /**
+     * Removes Content from the catalog. The Content is tombstoned: it is gone from searches and
+     * lookups once the removal is journaled, and its postings are purged later, in the
+     * background, together with those of other removed Content.
+     * 
+     * @param accessToken token restricting access to remove data
+     * @param contentId id of the Content
+     * @throws CatalogException when the Content is not in the catalog, or the change cannot be
+     *         journaled
+     */
+    public synchronized void removeContent(String accessToken, String contentId) 
+        throws CatalogException, PermissionException, InvalidAccessTokenException{
+		try{
+	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
+			String perm = "delete_product";
+			boolean hasAccess = as.verifyAccess(accessToken, perm);
+			
+			if(!hasAccess){
+				throw new PermissionException("User is not authorized to perform " +
+					"this function", null, perm);
+			}			
+		} catch(InvalidAccessTokenException e){
+			throw e;
+		}
+        this.pending = this.snapshot.toBuilder();
+        try{
+            String id = tombstoneContent(contentId);
+            commitMutation(journal("content_remove", new String[]{id}));
+            publish(this.pending);
+        }
+        finally{
+            this.pending = null;
+        }
+        scheduleCompaction();
+    }
+    
+    /**
+     * Applies a batch of price and rating changes, such as a flash sale or a run of rating
+     * aggregates. Only the numeric columns and the price and rating posting lists of the changed
+     * Content are modified, in place in the pending generation; no Content is reparsed and no
+     * text is reindexed. The batch is journaled as one record and published as one generation,
+     * so searches see all of it or none of it.
+     * 
+     * @param accessToken token restricting access to update data
+     * @param contentIds ids of the Content to change; an id may appear more than once, and its
+     *        last change wins
+     * @param prices new price of each Content
+     * @param ratings new rating of each Content, from 0 to 5
+     * @throws CatalogException when the arrays differ in length, any Content is not in the
+     *         catalog, any rating is out of range, any price is negative or not a number, or the
+     *         batch cannot be journaled; no change is applied
+     */
+    public synchronized void updatePricesAndRatings(String accessToken, String[] contentIds, float[] prices,
+                                                    int[] ratings) 
+        throws CatalogException, PermissionException, InvalidAccessTokenException{
+		try{
+	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
+			String perm = "update_product";
+			boolean hasAccess = as.verifyAccess(accessToken, perm);
+			
+			if(!hasAccess){
+				throw new PermissionException("User is not authorized to perform " +
+					"this function", null, perm);
+			}			
+		} catch(InvalidAccessTokenException e){
+			throw e;
+		}
+        if(contentIds.length != prices.length || contentIds.length != ratings.length){
+            throw new CatalogException("Error updating Catalog: Price and rating batch lengths differ", 
+                                       "Content", null);
+        }
+        this.pending = this.snapshot.toBuilder();
+        try{
+            repriceContent(contentIds, prices, ratings);
+            if(this.journal != null){
+                String[] fields = new String[contentIds.length * 3];
+                for(int i = 0; i < contentIds.length; i++){
+                    fields[3 * i] = contentIds[i];
+                    fields[3 * i + 1] = Float.toString(prices[i]);
+                    fields[3 * i + 2] = Integer.toString(ratings[i]);
                 }
-                resultSets.add(setPrice);
+                commitMutation(journal("price_rating", fields));
             }
-            catch(NumberFormatException nfe){
-                throw new SearchEngineException("Error executing search: Invalid price format", null, null);
+            publish(this.pending);
+        }
+        finally{
+            this.pending = null;
+        }
+    }
+    
+    /**
+     * Applies price and rating changes to the pending generation. The whole batch is checked
+     * before any of it is applied, so a rejected batch leaves the pending generation as it was.
+     * 
+     * @throws CatalogException when any Content is not in the catalog, any rating is out of
+     *         range, or any price is negative or not a number
+     */
+    private void repriceContent(String[] contentIds, float[] prices, int[] ratings) throws CatalogException{
+        for(int i = 0; i < contentIds.length; i++){
+            String id = (contentIds[i].toLowerCase()).trim();
+            if(this.pending.getContent(id) == null){
+                throw new CatalogException("Error updating Catalog: Content does not exist", "Content", id);
+            }
+            if(ratings[i] < 0 || ratings[i] > CatalogSnapshot.MAX_RATING){
+                throw new CatalogException("Error updating Catalog: Invalid rating", "Content", 
+                                           id + " rating " + ratings[i]);
+            }
+            if(Float.isNaN(prices[i]) || prices[i] < 0){
+                throw new CatalogException("Error updating Catalog: Invalid price", "Content", 
+                                           id + " price " + prices[i]);
+            }
+        }
+        for(int i = 0; i < contentIds.length; i++){
+            // looked up again, as an id repeated in the batch must see its earlier change
+            String id = (contentIds[i].toLowerCase()).trim();
+            this.pending.reprice(this.pending.getContent(id), prices[i], ratings[i]);
+        }
+    }
+    
+    /**
+     * Replaces Content in the pending generation with an updated version.
+     * 
+     * @param c updated Content
+     * @param type type of the updated Content
+     * @throws CatalogException when no Content with its id is in the catalog
+     */
+    private void replaceContent(Content c, String type) throws CatalogException{
+        Content old = this.pending.getContent(c.getId());
+        if(old == null){
+            throw new CatalogException("Error updating Catalog: Content does not exist", "Content", 
+                                       c.getId());
+        }
+        this.pending.update(old, c, type);
+        System.out.println("Content " + c.getId() + " was updated!");
+    }
+    
+    /**
+     * Tombstones Content in the pending generation.
+     * 
+     * @param contentId id of the Content
+     * @return the normalized id
+     * @throws CatalogException when no Content with the id is in the catalog
+     */
+    private String tombstoneContent(String contentId) throws CatalogException{
+        String id = (contentId.toLowerCase()).trim();
+        Content old = this.pending.getContent(id);
+        if(old == null){
+            throw new CatalogException("Error removing from Catalog: Content does not exist", "Content", id);
+        }
+        this.pending.remove(old);
+        System.out.println("Content " + id + " was removed!");
+        return id;
+    }
+    
+    /**
+     * Hands a compaction to the compactor once enough removed Content awaits purging.
+     */
+    private synchronized void scheduleCompaction(){
+        CatalogSnapshot current = this.snapshot;
+        if(this.compactionQueued || 
+           (long) current.tombstones.cardinality() * COMPACTION_FRACTION < current.contentList.size()){
+            return;
+        }
+        this.compactionQueued = true;
+        this.compactor.execute(new Runnable(){
+            @Override
+            public void run(){
+                compactContent();
             }
+        });
+    }
+    
+    /**
+     * Purges removed Content from the posting lists, text index, and columns, and publishes the
+     * result as a new generation. Searches keep reading the current generation meanwhile; doc
+     * IDs do not change, so cached results and resume tokens stay valid. Runs in the background
+     * as Content is removed, and before a snapshot is saved.
+     */
+    public synchronized void compactContent(){
+        this.compactionQueued = false;
+        if(this.snapshot.tombstones.isEmpty()){
+            return;
         }
-        // run language search
-        if(!(criteria[4].trim()).equals("")){
-            countCriteria++;
-            String[] parseLangs = (criteria[4].trim()).split(delims);
-            Set<Content> setLang = new HashSet<Content>();
-            for(int i = 0; i < parseLangs.length; i++){
-                String l = (parseLangs[i].toLowerCase()).trim();
-                if(this.searchLangMap.containsKey(l)){
-                    setLang.addAll(this.searchLangMap.get(l));
+        CatalogSnapshot.Builder next = this.snapshot.toBuilder();
+        next.purgeTombstones();
+        publish(next);
+    }
+    
+    /**
+     * Journals Country, Device, and Content changes from now on, and registers the catalog to
+     * replay the journal's catalog records on restart. Replayed Content changes are published
+     * once per run of catalog records, and records a loaded snapshot already holds are skipped.
+     * 
+     * @param journal journal to record changes in
+     */
+    public synchronized void setJournal(MutationJournal journal){
+        this.journal = journal;
+        journal.register(JOURNAL_SERVICE, new MutationJournal.Replayer(){
+            @Override
+            public void replay(long sequence, String operation, String[] fields) throws JournalException{
+                replayMutation(sequence, operation, fields);
+            }
+
+            @Override
+            public void endBatch(){
+                endReplayBatch();
+            }
+        });
+    }
+    
+    /**
+     * Reapplies one journaled change without checking access or journaling it again.
+     */
+    private synchronized void replayMutation(long sequence, String operation, String[] fields) 
+        throws JournalException{
+        if(sequence <= this.journalSequence){
+            return;
+        }
+        try{
+            if(operation.equals("country")){
+                putCountry(fields);
+            }
+            else if(operation.equals("device")){
+                putDevice(fields);
+            }
+            else if(operation.equals("content")){
+                if(this.pending == null){
+                    this.pending = this.snapshot.toBuilder();
+                }
+                putContent(fields, (fields[0].toLowerCase()).trim());
+            }
+            else if(operation.equals("content_update")){
+                if(this.pending == null){
+                    this.pending = this.snapshot.toBuilder();
                 }
+                String type = (fields[0].toLowerCase()).trim();
+                replaceContent(parseContent(fields, type), type);
+            }
+            else if(operation.equals("content_remove")){
+                if(this.pending == null){
+                    this.pending = this.snapshot.toBuilder();
+                }
+                tombstoneContent(fields[0]);
+            }
+            else if(operation.equals("price_rating")){
+                if(this.pending == null){
+                    this.pending = this.snapshot.toBuilder();
+                }
+                int n = fields.length / 3;
+                String[] ids = new String[n];
+                float[] prices = new float[n];
+                int[] ratings = new int[n];
+                for(int i = 0; i < n; i++){
+                    ids[i] = fields[3 * i];
+                    prices[i] = Float.parseFloat(fields[3 * i + 1]);
+                    ratings[i] = Integer.parseInt(fields[3 * i + 2]);
+                }
+                repriceContent(ids, prices, ratings);
+            }
+            else{
+                throw new JournalException("Error replaying journal: unknown catalog operation " + operation +
+                                           " at record " + sequence, null);
+            }
+        }
+        catch(CatalogException ce){
+            throw new JournalException("Error replaying journal: " + ce.getMessage() + " at record " + 
+                                       sequence, null);
+        }
+        this.journalSequence = sequence;
+    }
+    
+    /**
+     * Publishes the Content replayed since the last batch ended.
+     */
+    private synchronized void endReplayBatch(){
+        if(this.pending != null){
+            publish(this.pending);
+            this.pending = null;
+            scheduleCompaction();
+        }
+    }
+    
+    /**
+     * Appends an addition to the journal, if there is one. The record is committed before the
+     * import finishes, and before the Content it adds is published.
+     * 
+     * @param operation kind of data added
+     * @param fields import fields of the addition
+     * @return sequence number of the record, or 0 if there is no journal
+     * @throws CatalogException when the record cannot be journaled
+     */
+    private long journal(String operation, String[] fields) throws CatalogException{
+        if(this.journal == null){
+            return 0;
+        }
+        try{
+            this.journalSequence = this.journal.append(JOURNAL_SERVICE, operation, fields);
+            return this.journalSequence;
+        }
+        catch(JournalException je){
+            throw new CatalogException("Error adding to Catalog: " + je.getMessage(), "Journal", 
+                                       je.getFileName());
+        }
+    }
+    
+    /**
+     * Makes a journaled Content update or removal durable.
+     * 
+     * @param sequence sequence number of the record; 0 if nothing was journaled
+     * @throws CatalogException when the record cannot be written
+     */
+    private void commitMutation(long sequence) throws CatalogException{
+        if(this.journal == null || sequence == 0){
+            return;
+        }
+        try{
+            this.journal.commit(sequence);
+        }
+        catch(JournalException je){
+            throw new CatalogException("Error updating Catalog: " + je.getMessage(), "Journal", 
+                                       je.getFileName());
+        }
+    }
+    
+    /**
+     * Makes the additions journaled by an import durable.
+     * 
+     * @param sequence sequence number of the import's last record; 0 if it journaled nothing
+     * @param fileName file being imported
+     * @throws ImportException when the records cannot be written
+     */
+    private void commitJournal(long sequence, String fileName) throws ImportException{
+        if(this.journal == null || sequence == 0){
+            return;
+        }
+        try{
+            this.journal.commit(sequence);
+        }
+        catch(JournalException je){
+            throw new ImportException("Error Importing: " + je.getMessage(), null, fileName);
+        }
+    }
+    
+    /**
+     * Writes the current catalog, its Countries, Devices, Content, and search indexes, to a
+     * binary snapshot file that {@link #loadSnapshot(String, String)} can reopen. The file
+     * records the last journaled addition it holds.
+     * 
+     * @param fileName file to write
+     * @throws CatalogException when an error is encountered writing the file
+     */
+    public synchronized void saveSnapshot(String fileName) throws CatalogException{
+        // the file holds no tombstones
+        compactContent();
+        try{
+            CatalogSnapshotFile.write(fileName, this.snapshot, this.countryMap.values(), 
+                                      this.deviceMap.values(), this.journalSequence);
+        }
+        catch(IOException ioe){
+            throw new CatalogException("Error writing catalog snapshot: " + ioe.getMessage(), 
+                                       "Snapshot", fileName);
+        }
+    }
+    
+    /**
+     * Checkpoints the catalog: saves a snapshot with {@link #saveSnapshot(String)}, then drops
+     * the journal records it holds, so that recovery loads the snapshot and replays only the
+     * additions made after it.
+     * 
+     * @param fileName snapshot file to write
+     * @throws CatalogException when the snapshot cannot be written or the journal compacted
+     */
+    public synchronized void checkpoint(String fileName) throws CatalogException{
+        saveSnapshot(fileName);
+        if(this.journal != null){
+            try{
+                this.journal.compact(JOURNAL_SERVICE, this.journalSequence);
             }
-            resultSets.add(setLang);
+            catch(JournalException je){
+                throw new CatalogException("Error compacting journal: " + je.getMessage(), "Journal", 
+                                           je.getFileName());
+            }
+        }
+        System.out.println("Catalog checkpoint " + fileName + " was written!");
+    }
+    
+    /**
+     * Replaces the catalog with one read from a snapshot file written by 
+     * {@link #saveSnapshot(String)}. The file is memory mapped: Countries, Devices, Content, and
+     * the search keys are read at once, and each posting list is decoded the first time a search
+     * touches it. Searches running while the catalog is replaced finish against the old one.
+     * 
+     * @param fileName snapshot file to load
+     * @param accessToken token restricting access to import
+     * @throws ImportException when the file cannot be read or is not a catalog snapshot
+     */
+    public synchronized void loadSnapshot(String fileName, String accessToken) 
+        throws ImportException, PermissionException, InvalidAccessTokenException{
+		try{
+	    	AuthenticationServiceAPI as = AuthenticationServiceAPI.getInstance();
+			String perm = "product_import";
+			boolean hasAccess = as.verifyAccess(accessToken, perm);
+			
+			if(!hasAccess){
+				throw new PermissionException("User is not authorized to perform " +
+					"this function", null, perm);
+			}			
+		} catch(InvalidAccessTokenException e){
+			throw e;
+		}
+        CatalogSnapshotFile.Opened opened;
+        try{
+            opened = CatalogSnapshotFile.open(fileName, this.snapshot.generation + 1);
+        }
+        catch(IOException ioe){
+            throw new ImportException("Error Importing: " + ioe.getMessage(), null, fileName);
+        }
+        this.countryMap.clear();
+        this.countryMap.putAll(opened.countries);
+        this.deviceMap.clear();
+        this.deviceMap.putAll(opened.devices);
+        this.searchCache.beginGeneration(opened.snapshot.generation);
+        this.searchCache.clear();
+        this.snapshot = opened.snapshot;
+        this.journalSequence = opened.journalSequence;
+        System.out.println("Catalog snapshot " + fileName + " was loaded!");
+    }
+    
+    /**
+     * Retrieves the Content with the given identifier from the contentMap
+     * 
+     * @param id id of the Content
+     * @return Content object having the id
+     */
+    public Content getProduct(String id){
+    	return this.snapshot.contentMap.get(id);
+    }
+    
+    /**
+     * Builds a criterion from the posting lists stored under the given keys in a search map.
+     * 
+     * @param field search field of the criterion
+     * @param map search map to read from
+     * @param keys search keys
+     * @param dependencies collects the posting keys read
+     * @return criterion satisfied by Content found under any of the keys
+     */
+    private SearchCriterion keyCriterion(String field, Map<String, DocIdBitmap> map, String[] keys,
+                                         SearchResultCache.Dependencies dependencies){
+        SearchCriterion criterion = new SearchCriterion(field);
+        for(int i = 0; i < keys.length; i++){
+            criterion.addPosting(map.get(keys[i]));
+            dependencies.addKey(field, keys[i]);
+        }
+        criterion.setKey(field + ":" + new TreeSet<String>(Arrays.asList(keys)));
+        return criterion;
+    }
+    
+    /**
+     * Parses a text criterion. Words match through the text search map, with fuzzy terms
+     * ({@code word~N}) expanded by walking the term dictionary with a Levenshtein automaton;
+     * phrases match through the positional postings of the text index.
+     * 
+     * @param snapshot catalog generation to search
+     * @param query parsed text criterion
+     * @param dependencies collects what the criterion read; a fuzzy term depends on every new
+     *        term added to the dictionary
+     * @return the text criterion
+     */
+    private SearchCriterion textCriterion(CatalogSnapshot snapshot, TextQuery query, 
+                                          SearchResultCache.Dependencies dependencies){
+        if(query.isFuzzy()){
+            dependencies.addNewKeys("text");
+        }
+        List<String> terms = query.expand(snapshot.searchTextMap.navigableKeySet());
+        SearchCriterion criterion = keyCriterion("text", snapshot.searchTextMap, 
+                                                 terms.toArray(new String[terms.size()]), dependencies);
+        for(TextQuery.Phrase phrase : query.getPhrases()){
+            for(String term : phrase.getTerms()){
+                dependencies.addKey("text", term);
+            }
+            criterion.addPosting(snapshot.textIndex.phrase(phrase.getTerms(), phrase.getOffsets(), 
+                                                           phrase.getSlop()));
+        }
+        criterion.setKey("text:" + query.canonical());
+        return criterion;
+    }
+    
+    /**
+     * Parses a price criterion. A single number is a maximum price; {@code min-max} gives both
+     * bounds, and either side of the dash may be left blank. A dash opening the criterion or
+     * following an exponent marker is a sign, so {@code -1-1e-5} is a range.
+     * 
+     * @param field price criterion
+     * @return inclusive {min, max} price bounds
+     * @throws NumberFormatException when a bound is not a number
+     */
+    static float[] parsePriceRange(String field){
+        field = field.trim();
+        int dash = -1;
+        for(int i = 1; i < field.length() && dash < 0; i++){
+            char previous = field.charAt(i - 1);
+            if(field.charAt(i) == '-' && previous != 'e' && previous != 'E'){
+                dash = i;
+            }
+        }
+        if(dash < 0){
+            return new float[]{Float.NEGATIVE_INFINITY, Float.parseFloat(field)};
+        }
+        String lo = field.substring(0, dash).trim();
+        String hi = field.substring(dash + 1).trim();
+        return new float[]{lo.equals("") ? Float.NEGATIVE_INFINITY : Float.parseFloat(lo),
+                           hi.equals("") ? Float.POSITIVE_INFINITY : Float.parseFloat(hi)};
+    }
+    
+    /**
+     * Materializes the Content objects for a bitmap of doc IDs.
+     * 
+     * @param snapshot catalog generation the doc IDs belong to
+     * @param docIds bitmap of doc IDs
+     * @return Content having the doc IDs, in doc ID order
+     */
+    private Set<Content> materialize(CatalogSnapshot snapshot, DocIdBitmap docIds){
+        int[] ids = docIds.toArray();
+        Set<Content> results = new LinkedHashSet<Content>(ids.length * 4 / 3 + 1);
+        for(int i = 0; i < ids.length; i++){
+            results.add(snapshot.contentList.get(ids[i]));
+        }
+        return results;
+    }
+    
+    /**
+     * Parses search criteria into the posting lists that satisfy each criterion.
+     * 
+     * @param snapshot catalog generation to search
+     * @param criteria search criteria
+     * @param dependencies collects the posting keys read, including those not yet in the maps
+     * @return parsed criteria; an unknown country or device is left out
+     * @throws SearchEngineException when no criteria are given or a number is malformed
+     */
+    private List<SearchCriterion> parseCriteria(CatalogSnapshot snapshot, String[] criteria, 
+                                                SearchResultCache.Dependencies dependencies) 
+        throws SearchEngineException{
+        return resolve(snapshot, ProductQuery.parse(criteria), dependencies);
+    }
+    
+    /**
+     * Resolves a parsed query to the posting lists that satisfy each of its criteria.
+     * 
+     * @param snapshot catalog generation to search
+     * @param query parsed query
+     * @param dependencies collects the posting keys read, including those not yet in the maps
+     * @return resolved criteria; an unknown country or device is left out
+     */
+    private List<SearchCriterion> resolve(CatalogSnapshot snapshot, ProductQuery query, 
+                                          SearchResultCache.Dependencies dependencies){
+        List<SearchCriterion> parsed = new ArrayList<SearchCriterion>();
+        
+        // category search
+        if(query.getCategories() != null){
+            parsed.add(keyCriterion("category", snapshot.searchCatMap, query.getCategories(), 
+                                    dependencies));
+        }
+        // text search
+        if(query.getText() != null){  
+            parsed.add(textCriterion(snapshot, query.getText(), dependencies));
+        }
+        // minimum rating search
+        if(query.getMinRating() >= 0){
+            // a single cumulative list answers the criterion; no union is needed
+            int rating = query.getMinRating();
+            SearchCriterion setRating = new SearchCriterion("rating");
+            if(rating <= CatalogSnapshot.MAX_RATING){
+                setRating.addPosting(snapshot.searchRatingMap[rating]);
+                dependencies.addKey("rating", rating);
+            }
+            setRating.setKey("rating:" + rating);
+            parsed.add(setRating);
+        }
+        // price range search
+        if(query.getPriceRange() != null){
+            float[] range = query.getPriceRange();
+            SearchCriterion price = new PriceRangeCriterion(snapshot.searchPriceMap, range[0], 
+                                                            range[1], snapshot.contentList);
+            price.setKey("price:" + range[0] + "~" + range[1]);
+            parsed.add(price);
+            dependencies.addRange("price", range[0], range[1]);
+        }
+        // language search
+        if(query.getLanguages() != null){
+            parsed.add(keyCriterion("language", snapshot.searchLangMap, query.getLanguages(), 
+                                    dependencies));
         }       
-        // run country search
-        if(!(criteria[5].trim()).equals("")){
-            countCriteria++;
-            String ctry = (criteria[5].toUpperCase()).trim();
-            Set<Content> setCtry = new HashSet<Content>();
-            if(this.searchCountryMap.containsKey(ctry)){
-                setCtry = this.searchCountryMap.get(ctry);
-                resultSets.add(setCtry);
+        // country search
+        if(query.getCountry() != null){
+            String ctry = query.getCountry();
+            dependencies.addKey("country", ctry);
+            if(snapshot.searchCountryMap.containsKey(ctry)){
+                parsed.add(keyCriterion("country", snapshot.searchCountryMap, new String[]{ctry}, 
+                                       dependencies));
             }      
         }         
-        // run device search
-        if(!(criteria[6].trim()).equals("")){
-            countCriteria++;
-            String dev = (criteria[6].toLowerCase()).trim();
-            Set<Content> setDev = new HashSet<Content>();
-            if(this.searchDeviceMap.containsKey(dev)){
-                setDev = this.searchDeviceMap.get(dev);
-                resultSets.add(setDev);
+        // device search
+        if(query.getDevice() != null){
+            String dev = query.getDevice();
+            dependencies.addKey("device", dev);
+            if(snapshot.searchDeviceMap.containsKey(dev)){
+                parsed.add(keyCriterion("device", snapshot.searchDeviceMap, new String[]{dev}, 
+                                       dependencies));
             }      
         }       
-        // run content type search
-        if(!(criteria[7].trim()).equals("")){  
-            countCriteria++;
-            String[] parseCont = (criteria[7].trim()).split(delims);
-            Set<Content> setCont = new HashSet<Content>();
-            for(int i = 0; i < parseCont.length; i++){
-                String ct = (parseCont[i].toLowerCase()).trim();
-                if(this.searchTypeMap.containsKey(ct)){
-                    setCont.addAll(this.searchTypeMap.get(ct));
+        // content type search
+        if(query.getTypes() != null){  
+            parsed.add(keyCriterion("type", snapshot.searchTypeMap, query.getTypes(), dependencies));
+        }
+        return scanUnselective(snapshot, query, parsed);
+    }
+    
+    /**
+     * Replaces an unselective price criterion, and the rating and type criteria alongside it,
+     * with a single scan over the catalog's columns. A price range covering a large share of
+     * the catalog spans many posting lists, and merging them costs more than one sequential pass
+     * over the price column.
+     * 
+     * @param snapshot catalog generation to search
+     * @param query parsed query
+     * @param parsed resolved criteria
+     * @return the criteria, with the fused scan in place of the criteria it covers
+     */
+    private List<SearchCriterion> scanUnselective(CatalogSnapshot snapshot, ProductQuery query, 
+                                                  List<SearchCriterion> parsed){
+        SearchCriterion price = null;
+        for(SearchCriterion c : parsed){
+            if(c.getField().equals("price")){
+                price = c;
+            }
+        }
+        if(price == null || (long) price.estimate() * SCAN_FRACTION < snapshot.columns.size()){
+            return parsed;
+        }
+        float[] range = query.getPriceRange();
+        int minRating = -1;
+        long typeMask = -1L;
+        int estimate = price.estimate();
+        StringBuilder key = new StringBuilder(price.getKey());
+        List<SearchCriterion> remaining = new ArrayList<SearchCriterion>();
+        for(SearchCriterion c : parsed){
+            if(c.getField().equals("rating")){
+                minRating = query.getMinRating();
+            }
+            else if(c.getField().equals("type")){
+                typeMask = 0L;
+                for(String t : query.getTypes()){
+                    int code = Content.TYPES.lookup(t);
+                    if(code >= 0){
+                        typeMask |= 1L << code;
+                    }
                 }
             }
-            resultSets.add(setCont);
+            else if(c != price){
+                remaining.add(c);
+                continue;
+            }
+            if(c != price){
+                estimate = Math.min(estimate, c.estimate());
+                key.append(" & ").append(c.getKey());
+            }
         }
-        
-        if(countCriteria == 0){
-            throw new SearchEngineException("Error executing search: You must provide at least one search " +
-            								"criterion.", null, null);
+        SearchCriterion scan = new ColumnScanCriterion(snapshot.columns, range[0], range[1], minRating, 
+                                                       typeMask, estimate);
+        scan.setKey(key.toString());
+        remaining.add(scan);
+        return remaining;
+    }
+    
+    /**
+     * Resolves a query against a catalog generation, reusing the posting lists it was last
+     * resolved to if that was the same generation.
+     * 
+     * @param snapshot catalog generation to search
+     * @param query parsed query
+     * @return the query resolved against the generation
+     */
+    private ProductQuery.Compiled compile(CatalogSnapshot snapshot, ProductQuery query){
+        ProductQuery.Compiled compiled = query.getCompiled();
+        if(compiled == null || compiled.generation != snapshot.generation){
+            SearchResultCache.Dependencies dependencies = new SearchResultCache.Dependencies();
+            List<SearchCriterion> parsed = resolve(snapshot, query, dependencies);
+            compiled = new ProductQuery.Compiled(snapshot.generation, 
+                                                 Collections.unmodifiableList(parsed), dependencies);
+            query.setCompiled(compiled);
         }
-        else if(resultSets.isEmpty() || resultSets.contains(null)){
+        return compiled;
+    }
+    
+    /**
+     * Resolves a query against the current catalog generation.
+     * 
+     * @param query parsed query
+     */
+    void compile(ProductQuery query){
+        compile(this.snapshot, query);
+    }
+    
+    /**
+     * Executes a search against the search maps. Results are served from the search cache when
+     * an equivalent search has already run; otherwise the criteria are handed to the
+     * {@code QueryPlanner}, which intersects them from most to least selective as bitmap
+     * operations over doc IDs. Content is only looked up for the final hits.
+     * 
+     * @param criteria search criteria
+     * @return Content matching the criteria
+     * @throws SearchEngineException when error is encountered processing the search
+     */
+    public Set<Content> executeSearch(String[] criteria) throws SearchEngineException{
+        CatalogSnapshot snapshot = this.snapshot;
+        DocIdBitmap finalResults = search(snapshot, criteria);
+        if(finalResults.isEmpty()){
             return null;
-        }    
+        }
+        else{
+            return materialize(snapshot, finalResults);
+        }
+    }
+    
+    /**
+     * Executes a parsed query. Repeated executions skip parsing entirely, and executions against
+     * the catalog generation the query was compiled for also skip resolving its terms.
+     * 
+     * @param query parsed query
+     * @return Content matching the query, or null if there is none
+     */
+    public Set<Content> executeSearch(ProductQuery query){
+        CatalogSnapshot snapshot = this.snapshot;
+        DocIdBitmap finalResults = this.searchCache.get(query.getCacheKey(), snapshot.generation);
+        if(finalResults == null){
+            ProductQuery.Compiled compiled = compile(snapshot, query);
+            if(compiled.criteria.isEmpty()){
+                finalResults = new DocIdBitmap();
+            }
+            else{
+                finalResults = QueryPlanner.execute(compiled.criteria);
+            }
+            this.searchCache.put(query.getCacheKey(), finalResults, compiled.dependencies, 
+                                 snapshot.generation);
+        }
+        finalResults = snapshot.live(finalResults);
+        if(finalResults.isEmpty()){
+            return null;
+        }
+        else{
+            return materialize(snapshot, finalResults);
+        }
+    }
+    
+    /**
+     * Finds the doc IDs matching the search criteria, from the search cache when an equivalent
+     * search has already run against the snapshot's generation.
+     * 
+     * @param snapshot catalog generation to search
+     * @param criteria search criteria
+     * @return bitmap of the matching doc IDs
+     * @throws SearchEngineException when error is encountered processing the search
+     */
+    private DocIdBitmap search(CatalogSnapshot snapshot, String[] criteria) throws SearchEngineException{
+        String cacheKey = SearchResultCache.canonicalKey(criteria);
+        DocIdBitmap finalResults = this.searchCache.get(cacheKey, snapshot.generation);
+        if(finalResults == null){
+            SearchResultCache.Dependencies dependencies = new SearchResultCache.Dependencies();
+            List<SearchCriterion> parsed = parseCriteria(snapshot, criteria, dependencies);
+            if(parsed.isEmpty()){
+                finalResults = new DocIdBitmap();
+            }
+            else{
+                finalResults = QueryPlanner.execute(parsed);
+            }
+            this.searchCache.put(cacheKey, finalResults, dependencies, snapshot.generation);
+        }
+        return snapshot.live(finalResults);
+    }
+    
+    /**
+     * Executes a search and counts its matches by facet, for a filter sidebar. The count for
+     * each category, language, device, and content type is the cardinality of the result's
+     * intersection with that value's posting list, so no search is re-run per facet value.
+     * Ratings are counted the same way against the cumulative rating lists.
+     * 
+     * @param criteria search criteria
+     * @param priceBounds ascending price bucket boundaries for the price histogram
+     * @return matching Content with facet counts and price and rating histograms
+     * @throws SearchEngineException when error is encountered processing the search, or the
+     *         price bounds are not ascending
+     */
+    public SearchFacets executeFacetedSearch(String[] criteria, float[] priceBounds) 
+        throws SearchEngineException{
+        for(int i = 1; i < priceBounds.length; i++){
+            if(!(priceBounds[i - 1] < priceBounds[i])){
+                throw new SearchEngineException("Error executing search: Price bucket bounds must be " +
+                                                "ascending.", null, null);
+            }
+        }
+        CatalogSnapshot snapshot = this.snapshot;
+        DocIdBitmap finalResults = search(snapshot, criteria);
+        
+        Map<String, SortedMap<String, Integer>> facets = new LinkedHashMap<String, SortedMap<String, Integer>>();
+        facets.put("category", facetCounts(finalResults, snapshot.searchCatMap));
+        facets.put("language", facetCounts(finalResults, snapshot.searchLangMap));
+        facets.put("device", facetCounts(finalResults, snapshot.searchDeviceMap));
+        facets.put("type", facetCounts(finalResults, snapshot.searchTypeMap));
+        
+        // searchRatingMap[r] holds every doc ID rated r or higher, so the number of matches rated
+        // exactly r is the difference of two neighbouring counts
+        int[] ratingCounts = new int[CatalogSnapshot.MAX_RATING + 1];
+        int above = 0;
+        for(int r = CatalogSnapshot.MAX_RATING; r >= 0; r--){
+            int atLeast = finalResults.andCardinality(snapshot.searchRatingMap[r]);
+            ratingCounts[r] = atLeast - above;
+            above = atLeast;
+        }
+        
+        // count by whichever is smaller: the matches, or the distinct prices
+        int[] priceCounts = new int[priceBounds.length + 1];
+        if(finalResults.cardinality() <= snapshot.searchPriceMap.size()){
+            int[] ids = finalResults.toArray();
+            for(int i = 0; i < ids.length; i++){
+                priceCounts[priceBucket(priceBounds, snapshot.contentList.get(ids[i]).getPrice())]++;
+            }
+        }
         else{
-            // get the intersection of the results and display them
-            // help from http://stackoverflow.com/questions/4009205/how-to-intersect-multiple-sets
-            finalResults.addAll(resultSets.get(0));
-            for(int i = 1; i < resultSets.size(); i++){
-            	finalResults.retainAll(resultSets.get(i));
+            for(Map.Entry<Float, DocIdBitmap> price : snapshot.searchPriceMap.entrySet()){
+                priceCounts[priceBucket(priceBounds, price.getKey())] += 
+                    finalResults.andCardinality(price.getValue());
+            }
+        }
+        
+        Set<Content> results = materialize(snapshot, finalResults);
+        return new SearchFacets(results, facets, priceBounds.clone(), priceCounts, ratingCounts);
+    }
+    
+    /**
+     * Counts the doc IDs of a result in each posting list of a search map.
+     * 
+     * @param result bitmap of matching doc IDs
+     * @param map search map of a facet field
+     * @return match count of each key having matches
+     */
+    private SortedMap<String, Integer> facetCounts(DocIdBitmap result, Map<String, DocIdBitmap> map){
+        SortedMap<String, Integer> counts = new TreeMap<String, Integer>();
+        if(result.isEmpty()){
+            return counts;
+        }
+        for(Map.Entry<String, DocIdBitmap> posting : map.entrySet()){
+            int count = result.andCardinality(posting.getValue());
+            if(count > 0){
+                counts.put(posting.getKey(), count);
             }
-            if(finalResults.isEmpty()){
-                return null;
+        }
+        return counts;
+    }
+    
+    /**
+     * Finds the price histogram bucket of a price.
+     * 
+     * @param bounds ascending bucket boundaries
+     * @param price price to place
+     * @return number of bounds at or below the price
+     */
+    private static int priceBucket(float[] bounds, float price){
+        int lo = 0;
+        int hi = bounds.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(bounds[mid] <= price){
+                lo = mid + 1;
             }
             else{
-                return finalResults;
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+    /**
+     * Executes a batch of related searches, such as the searches behind one storefront page. A
+     * criterion shared by several searches of the batch (the same country, device, or language
+     * list, for example) has its posting lists unioned once, and every search containing it
+     * intersects that one union. Identical searches in the batch are executed once, and searches
+     * already in the search cache are not executed at all.
+     * 
+     * @param criteriaList search criteria of each search
+     * @return Content matching each search, in the order of the searches; null for a search with
+     *         no results, as from executeSearch
+     * @throws SearchEngineException when error is encountered processing one of the searches
+     */
+    public List<Set<Content>> executeSearches(List<String[]> criteriaList) throws SearchEngineException{
+        CatalogSnapshot snapshot = this.snapshot;
+        int n = criteriaList.size();
+        String[] cacheKeys = new String[n];
+        DocIdBitmap[] finalResults = new DocIdBitmap[n];
+        Map<String, List<SearchCriterion>> toExecute = new LinkedHashMap<String, List<SearchCriterion>>();
+        Map<String, SearchResultCache.Dependencies> dependencies = 
+            new HashMap<String, SearchResultCache.Dependencies>();
+        // number of distinct searches each criterion appears in
+        Map<String, Integer> uses = new HashMap<String, Integer>();
+        for(int i = 0; i < n; i++){
+            cacheKeys[i] = SearchResultCache.canonicalKey(criteriaList.get(i));
+            finalResults[i] = this.searchCache.get(cacheKeys[i], snapshot.generation);
+            if(finalResults[i] != null || toExecute.containsKey(cacheKeys[i])){
+                continue;
+            }
+            SearchResultCache.Dependencies deps = new SearchResultCache.Dependencies();
+            List<SearchCriterion> parsed = parseCriteria(snapshot, criteriaList.get(i), deps);
+            toExecute.put(cacheKeys[i], parsed);
+            dependencies.put(cacheKeys[i], deps);
+            for(SearchCriterion c : parsed){
+                Integer count = uses.get(c.getKey());
+                uses.put(c.getKey(), count == null ? 1 : count + 1);
+            }
+        }
+        
+        // evaluate each shared criterion once, then execute the distinct searches against the
+        // shared unions
+        Map<String, DocIdBitmap> sharedUnions = new HashMap<String, DocIdBitmap>();
+        Map<String, DocIdBitmap> executed = new HashMap<String, DocIdBitmap>();
+        for(Map.Entry<String, List<SearchCriterion>> search : toExecute.entrySet()){
+            List<SearchCriterion> plan = new ArrayList<SearchCriterion>();
+            for(SearchCriterion c : search.getValue()){
+                if(c.getKey() == null || uses.get(c.getKey()) < 2){
+                    plan.add(c);
+                    continue;
+                }
+                DocIdBitmap union = sharedUnions.get(c.getKey());
+                if(union == null){
+                    union = c.evaluate();
+                    sharedUnions.put(c.getKey(), union);
+                }
+                SearchCriterion shared = new SearchCriterion(c.getField());
+                shared.addPosting(union);
+                shared.setKey(c.getKey());
+                plan.add(shared);
+            }
+            DocIdBitmap result = plan.isEmpty() ? new DocIdBitmap() : QueryPlanner.execute(plan);
+            executed.put(search.getKey(), result);
+            this.searchCache.put(search.getKey(), result, dependencies.get(search.getKey()), 
+                                 snapshot.generation);
+        }
+        
+        List<Set<Content>> results = new ArrayList<Set<Content>>(n);
+        for(int i = 0; i < n; i++){
+            DocIdBitmap result = snapshot.live(finalResults[i] != null ? finalResults[i] 
+                                                                        : executed.get(cacheKeys[i]));
+            results.add(result.isEmpty() ? null : materialize(snapshot, result));
+        }
+        return results;
+    }
+    
+    /**
+     * Opens a cursor over the Content matching the search criteria, in doc ID order. Matches are
+     * produced lazily from the posting lists as the cursor is read, unless the full result is
+     * already in the search cache.
+     * 
+     * @param criteria search criteria
+     * @param resumeToken token from an earlier cursor or page to resume after, or null to start
+     *        at the beginning
+     * @return cursor over the matching Content
+     * @throws SearchEngineException when error is encountered processing the search
+     */
+    public SearchCursor openSearchCursor(String[] criteria, String resumeToken) 
+        throws SearchEngineException{
+        CatalogSnapshot snapshot = this.snapshot;
+        int from = SearchCursor.parseResumeToken(resumeToken);
+        List<SearchCriterion> plan;
+        DocIdBitmap cached = this.searchCache.get(SearchResultCache.canonicalKey(criteria), 
+                                                  snapshot.generation);
+        if(cached != null){
+            SearchCriterion all = new SearchCriterion("cached");
+            all.addPosting(cached);
+            plan = Collections.singletonList(all);
+        }
+        else{
+            plan = QueryPlanner.plan(parseCriteria(snapshot, criteria, 
+                                                   new SearchResultCache.Dependencies()));
+        }
+        return new SearchCursor(plan, snapshot.contentList, snapshot.tombstones, from);
+    }
+    
+    /**
+     * Returns one page of the Content matching the search criteria, in doc ID order.
+     * 
+     * @param criteria search criteria
+     * @param offset number of matches to skip after the resume point
+     * @param limit maximum number of Content on the page
+     * @param resumeToken token from an earlier page to resume after, or null to start at the
+     *        beginning
+     * @return page of matching Content with the token for the next page
+     * @throws SearchEngineException when error is encountered processing the search
+     */
+    public SearchPage executeSearchPage(String[] criteria, int offset, int limit, String resumeToken)
+        throws SearchEngineException{
+        SearchCursor cursor = openSearchCursor(criteria, resumeToken);
+        for(int i = 0; i < offset && cursor.hasNext(); i++){
+            cursor.next();
+        }
+        List<Content> results = new ArrayList<Content>();
+        while(results.size() < limit && cursor.hasNext()){
+            results.add(cursor.next());
+        }
+        return new SearchPage(results, cursor.hasNext() ? cursor.getResumeToken() : null);
+    }
+    
+    /**
+     * Executes a ranked text search. The text criterion is scored with BM25 over Content names
+     * and descriptions and only the best K matches are returned; the remaining criteria act as
+     * filters on the ranked results.
+     * 
+     * @param criteria search criteria; the text criterion must not be blank
+     * @param k maximum number of results
+     * @return up to K Content matching the criteria, best match first
+     * @throws SearchEngineException when the criteria have too few fields, the text criterion is
+     *         blank, or another criterion is invalid
+     */
+    public List<Content> executeRankedSearch(String[] criteria, int k) throws SearchEngineException{
+        // validated like any other search before a field is read
+        ProductQuery.parse(criteria);
+        criteria = Arrays.copyOf(criteria, ProductQuery.FIELD_COUNT);
+        if((criteria[1].trim()).equals("")){
+            throw new SearchEngineException("Error executing search: Ranked search requires a text " +
+                                            "criterion.", null, null);
+        }
+        CatalogSnapshot snapshot = this.snapshot;
+        // phrase terms are scored like any other term, but only documents matching the text
+        // criterion as a whole, phrases included, may be ranked
+        TextQuery query = TextQuery.parse(criteria[1]);
+        List<String> terms = query.expand(snapshot.searchTextMap.navigableKeySet());
+        DocIdBitmap filter = null;
+        if(!query.getPhrases().isEmpty()){
+            for(TextQuery.Phrase phrase : query.getPhrases()){
+                terms.addAll(phrase.getTerms());
+            }
+            filter = textCriterion(snapshot, query, 
+                                   new SearchResultCache.Dependencies()).evaluate();
+        }
+        
+        // the other criteria, if any, are evaluated as a filter
+        String[] filterCriteria = criteria.clone();
+        filterCriteria[1] = "";
+        boolean hasFilter = false;
+        for(String f : filterCriteria){
+            hasFilter = hasFilter || !(f.trim()).equals("");
+        }
+        if(hasFilter){
+            List<SearchCriterion> parsed = parseCriteria(snapshot, filterCriteria, 
+                                                         new SearchResultCache.Dependencies());
+            if(!parsed.isEmpty()){
+                DocIdBitmap matches = QueryPlanner.execute(parsed);
+                filter = filter == null ? matches : filter.and(matches);
             }
         }
+        
+        int[] ids = snapshot.textIndex.topK(terms, k, filter, snapshot.tombstones);
+        List<Content> results = new ArrayList<Content>(ids.length);
+        for(int i = 0; i < ids.length; i++){
+            results.add(snapshot.contentList.get(ids[i]));
+        }
+        return results;
+    }
+    
+    /**
+     * Completes a partially typed word against the terms of Content names and descriptions.
+     * Only the last word of the prefix is completed, and it is folded to lowercase with its
+     * punctuation removed.
+     * 
+     * @param prefix text typed so far
+     * @param n maximum number of completions
+     * @param ranking whether to rank completions by the number of Content containing them, or by
+     *                the best rating among that Content
+     * @return up to N terms, best first
+     */
+    public List<String> completeText(String prefix, int n, CompletionIndex.Ranking ranking){
+        List<String> typed = TextAnalyzer.SIMPLE.analyze(prefix);
+        String last = typed.isEmpty() ? "" : typed.get(typed.size() - 1);
+        return this.snapshot.getTextCompletions().complete(last, n, ranking);
+    }
+    
+    /**
+     * Returns the number of searches answered from the search cache.
+     * 
+     * @return search cache hit count
+     */
+    public long getSearchCacheHits(){
+        return this.searchCache.getHits();
+    }
+    
+    /**
+     * Returns the number of searches that had to be executed against the search maps.
+     * 
+     * @return search cache miss count
+     */
+    public long getSearchCacheMisses(){
+        return this.searchCache.getMisses();
+    }
+    
+    /**
+     * Returns the number of cached search results dropped to make room for newer ones.
+     * 
+     * @return search cache eviction count
+     */
+    public long getSearchCacheEvictions(){
+        return this.searchCache.getEvictions();
     }
    
     /**
@@ -834,12 +2215,11 @@ public class ProductCatalog implements Catalog{
      * 
      * @param results search results
      */
-    private void displayResults(Set<Content> results){
+    private void displayResults(Iterator<Content> results){
         // iterate over the Content objects and print their properties
-        Iterator<Content> itRes = results.iterator();
         System.out.println("\nResults:\n");
-        while(itRes.hasNext()){
-            System.out.println((itRes.next()).toString());
+        while(results.hasNext()){
+            System.out.println((results.next()).toString());
         }
     }
 }
@@ -0,0 +1,361 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+import cscie97.asn4.ecommerce.csv.*;
+
+/**
+ * {@code ProductQuery} is a catalog search that has been parsed and validated once, so that it
+ * can be executed repeatedly without re-splitting, re-trimming, or re-parsing its criteria. A
+ * query is built from the eight search criteria fields with {@link #parse(String[])}, or field by
+ * field with a {@link Builder}.
+ *
+ * Compiling a query resolves its terms to the posting lists of the current catalog generation.
+ * Executions against that generation reuse the resolved posting lists; once an import publishes
+ * a new generation, the next execution resolves them again.
+ */
+public class ProductQuery {
+
+    // Number of fields in a search criteria line
+    static final int FIELD_COUNT = 8;
+
+    // The criteria the query was parsed from
+    private final String[] criteria;
+
+    // Parsed criteria; null (or -1 for the rating) when the field was left blank
+    private final String[] categories;
+    private final TextQuery text;
+    private final int minRating;
+    private final float[] priceRange;
+    private final String[] languages;
+    private final String country;
+    private final String device;
+    private final String[] types;
+
+    // Search result cache key, built on first use
+    private String cacheKey;
+
+    // Posting lists resolved against the most recent catalog generation the query ran on
+    private volatile Compiled compiled;
+
+    /**
+     * {@code Compiled} is a query resolved against one catalog generation: its criteria with
+     * their posting lists, and the posting keys they read.
+     */
+    static class Compiled {
+        final long generation;
+        final List<SearchCriterion> criteria;
+        final SearchResultCache.Dependencies dependencies;
+
+        Compiled(long generation, List<SearchCriterion> criteria,
+                 SearchResultCache.Dependencies dependencies){
+            this.generation = generation;
+            this.criteria = criteria;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * Private ProductQuery constructor; see {@link #parse(String[])}.
+     */
+    private ProductQuery(String[] criteria) throws SearchEngineException{
+        this(criteria, null);
+    }
+
+    /**
+     * Private ProductQuery constructor, taking price bounds already known to a builder.
+     *
+     * @param criteria the eight search criteria fields
+     * @param priceRange inclusive {min, max} price bounds, or null to parse the price criterion
+     */
+    private ProductQuery(String[] criteria, float[] priceRange) throws SearchEngineException{
+        this.criteria = criteria;
+        int countCriteria = 0;
+
+        // category search
+        this.categories = parseList(criteria[0]);
+        // text search
+        if(!(criteria[1].trim()).equals("")){
+            // text made up only of stopwords and punctuation has no terms, and matches nothing
+            this.text = TextQuery.parse(criteria[1]);
+        }
+        else{
+            this.text = null;
+        }
+        // minimum rating search
+        if(!(criteria[2].trim()).equals("")){
+            try{
+                this.minRating = Math.max(0, Integer.parseInt(criteria[2].trim()));
+            }
+            catch(NumberFormatException nfe){
+                throw new SearchEngineException("Error executing search: Invalid rating format",
+                                                null, null);
+            }
+        }
+        else{
+            this.minRating = -1;
+        }
+        // price range search
+        if(priceRange != null){
+            this.priceRange = priceRange;
+        }
+        else if(!(criteria[3].trim()).equals("")){
+            try{
+                this.priceRange = ProductCatalog.parsePriceRange(criteria[3]);
+            }
+            catch(NumberFormatException nfe){
+                throw new SearchEngineException("Error executing search: Invalid price format", null, null);
+            }
+        }
+        else{
+            this.priceRange = null;
+        }
+        // language search
+        this.languages = parseList(criteria[4]);
+        // country search
+        this.country = (criteria[5].trim()).equals("") ? null : (criteria[5].toUpperCase()).trim();
+        // device search
+        this.device = (criteria[6].trim()).equals("") ? null : (criteria[6].toLowerCase()).trim();
+        // content type search
+        this.types = parseList(criteria[7]);
+
+        for(String field : criteria){
+            if(!(field.trim()).equals("")){
+                countCriteria++;
+            }
+        }
+        if(countCriteria == 0){
+            throw new SearchEngineException("Error executing search: You must provide at least one search " +
+                                            "criterion.", null, null);
+        }
+    }
+
+    /**
+     * Splits a pipe separated criterion into its trimmed, lowercased values.
+     *
+     * @return the values, or null if the criterion is blank
+     */
+    private static String[] parseList(String field){
+        if((field.trim()).equals("")){
+            return null;
+        }
+        String[] values = CsvTokenizer.splitList(field.trim());
+        for(int i = 0; i < values.length; i++){
+            values[i] = (values[i].toLowerCase()).trim();
+        }
+        return values;
+    }
+
+    /**
+     * Parses and validates search criteria.
+     *
+     * @param criteria the eight search criteria fields: categories, text, minimum rating, price
+     *        range, languages, country, device, and content types
+     * @return the parsed query
+     * @throws SearchEngineException when no criteria are given or a number is malformed
+     */
+    public static ProductQuery parse(String[] criteria) throws SearchEngineException{
+        if(criteria == null || criteria.length < FIELD_COUNT){
+            throw new SearchEngineException("Error executing search: Incorrect number of fields (" +
+                                            FIELD_COUNT + ") in search criteria", null, null);
+        }
+        return new ProductQuery(Arrays.copyOf(criteria, FIELD_COUNT));
+    }
+
+    /**
+     * Starts building a query field by field.
+     *
+     * @return an empty builder
+     */
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    /**
+     * Resolves the query's terms to the posting lists of the current catalog generation, so
+     * that executing it against that generation does no term lookups. Executing an uncompiled
+     * query compiles it.
+     *
+     * @return this query
+     */
+    public ProductQuery compile(){
+        ProductCatalog.getInstance().compile(this);
+        return this;
+    }
+
+    /**
+     * Returns the search criteria fields the query was parsed from.
+     *
+     * @return copy of the eight search criteria fields
+     */
+    public String[] getCriteria(){
+        return this.criteria.clone();
+    }
+
+    String[] getCategories(){
+        return this.categories;
+    }
+
+    TextQuery getText(){
+        return this.text;
+    }
+
+    int getMinRating(){
+        return this.minRating;
+    }
+
+    float[] getPriceRange(){
+        return this.priceRange;
+    }
+
+    String[] getLanguages(){
+        return this.languages;
+    }
+
+    String getCountry(){
+        return this.country;
+    }
+
+    String getDevice(){
+        return this.device;
+    }
+
+    String[] getTypes(){
+        return this.types;
+    }
+
+    /**
+     * Returns the query's search result cache key. Racing threads may each build it; they
+     * build the same key.
+     *
+     * @return canonical key of the criteria
+     */
+    String getCacheKey(){
+        String key = this.cacheKey;
+        if(key == null){
+            key = SearchResultCache.canonicalKey(this.criteria);
+            this.cacheKey = key;
+        }
+        return key;
+    }
+
+    Compiled getCompiled(){
+        return this.compiled;
+    }
+
+    void setCompiled(Compiled compiled){
+        this.compiled = compiled;
+    }
+
+    @Override
+    public String toString(){
+        return Arrays.toString(this.criteria);
+    }
+
+    /**
+     * {@code Builder} assembles a query one criterion at a time. Criteria left unset are blank.
+     */
+    public static class Builder {
+        private final String[] criteria;
+
+        // Inclusive {min, max} price bounds; null if no price range was set
+        private float[] priceRange;
+
+        /**
+         * Private Builder constructor; see {@link ProductQuery#builder()}.
+         */
+        private Builder(){
+            this.criteria = new String[FIELD_COUNT];
+            Arrays.fill(this.criteria, "");
+        }
+
+        /**
+         * Restricts the search to Content in any of the categories.
+         */
+        public Builder categories(String... categories){
+            this.criteria[0] = join(categories);
+            return this;
+        }
+
+        /**
+         * Restricts the search to Content whose name or description matches the text.
+         */
+        public Builder text(String text){
+            this.criteria[1] = text;
+            return this;
+        }
+
+        /**
+         * Restricts the search to Content rated at least the minimum.
+         */
+        public Builder minRating(int rating){
+            this.criteria[2] = Integer.toString(rating);
+            return this;
+        }
+
+        /**
+         * Restricts the search to Content priced within the inclusive bounds; an infinite bound
+         * leaves that side open. The query keeps the bounds as given; its price criterion field
+         * spells both out, infinite ones as {@code Infinity}, so that it parses back to them.
+         */
+        public Builder priceRange(float min, float max){
+            this.priceRange = new float[]{min, max};
+            this.criteria[3] = Float.toString(min) + "-" + Float.toString(max);
+            return this;
+        }
+
+        /**
+         * Restricts the search to Content supporting any of the languages.
+         */
+        public Builder languages(String... languages){
+            this.criteria[4] = join(languages);
+            return this;
+        }
+
+        /**
+         * Restricts the search to Content exportable to the country.
+         */
+        public Builder country(String countryCode){
+            this.criteria[5] = countryCode;
+            return this;
+        }
+
+        /**
+         * Restricts the search to Content supporting the device.
+         */
+        public Builder device(String deviceId){
+            this.criteria[6] = deviceId;
+            return this;
+        }
+
+        /**
+         * Restricts the search to Content of any of the types.
+         */
+        public Builder types(String... types){
+            this.criteria[7] = join(types);
+            return this;
+        }
+
+        private static String join(String[] values){
+            StringBuilder joined = new StringBuilder();
+            for(int i = 0; i < values.length; i++){
+                if(i > 0){
+                    joined.append('|');
+                }
+                joined.append(values[i]);
+            }
+            return joined.toString();
+        }
+
+        /**
+         * Parses and validates the criteria set so far.
+         *
+         * @return the parsed query
+         * @throws SearchEngineException when no criteria were set
+         */
+        public ProductQuery build() throws SearchEngineException{
+            return new ProductQuery(this.criteria.clone(), 
+                                    this.priceRange == null ? null : this.priceRange.clone());
+        }
+    }
+}
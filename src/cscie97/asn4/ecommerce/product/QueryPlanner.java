@@ -0,0 +1,89 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code QueryPlanner} orders and evaluates the criteria of a catalog search. Criteria are
+ * evaluated from most to least selective using cardinality estimates taken from the posting list
+ * sizes; evaluation stops as soon as the running intersection is empty, and once the candidate
+ * set is small enough the remaining criteria are checked by probing each candidate instead of
+ * building their unions.
+ */
+class QueryPlanner {
+
+    // Relative cost of probing one candidate against one posting list, measured in the
+    // posting entries a union build would visit
+    private static final int PROBE_COST = 16;
+
+    // Orders criteria by ascending estimated cardinality
+    private static final Comparator<SearchCriterion> BY_ESTIMATE = new Comparator<SearchCriterion>(){
+        @Override
+        public int compare(SearchCriterion a, SearchCriterion b){
+            return Integer.compare(a.estimate(), b.estimate());
+        }
+    };
+
+    private QueryPlanner(){
+    }
+
+    /**
+     * Orders the criteria from most to least selective.
+     *
+     * @param criteria criteria to order
+     * @return new list of the criteria in evaluation order
+     */
+    static List<SearchCriterion> plan(List<SearchCriterion> criteria){
+        List<SearchCriterion> plan = new ArrayList<SearchCriterion>(criteria);
+        Collections.sort(plan, BY_ESTIMATE);
+        return plan;
+    }
+
+    /**
+     * Evaluates the intersection of the criteria.
+     *
+     * @param criteria criteria to intersect; must not be empty
+     * @return bitmap of doc IDs satisfying every criterion; read-only
+     */
+    static DocIdBitmap execute(List<SearchCriterion> criteria){
+        List<SearchCriterion> plan = plan(criteria);
+        DocIdBitmap candidates = plan.get(0).evaluate();
+        for(int i = 1; i < plan.size() && !candidates.isEmpty(); i++){
+            candidates = intersect(candidates, plan.get(i));
+        }
+        return candidates;
+    }
+
+    /**
+     * Intersects the candidates with a criterion, either by probing each candidate or by building
+     * the criterion's union, whichever is estimated to be cheaper.
+     *
+     * @param candidates current candidate doc IDs
+     * @param criterion criterion to apply
+     * @return candidates satisfying the criterion
+     */
+    static DocIdBitmap intersect(DocIdBitmap candidates, SearchCriterion criterion){
+        long probeCost = (long) candidates.cardinality() * criterion.probeCost() * PROBE_COST;
+        if(probeCost < criterion.estimate()){
+            return probe(candidates, criterion);
+        }
+        return candidates.and(criterion.evaluate());
+    }
+
+    /**
+     * Filters the candidates by checking each one against the criterion's posting lists.
+     *
+     * @param candidates current candidate doc IDs
+     * @param criterion criterion to apply
+     * @return candidates satisfying the criterion
+     */
+    private static DocIdBitmap probe(DocIdBitmap candidates, SearchCriterion criterion){
+        int[] ids = candidates.toArray();
+        DocIdBitmap result = new DocIdBitmap();
+        for(int i = 0; i < ids.length; i++){
+            if(criterion.matches(ids[i])){
+                result.add(ids[i]);
+            }
+        }
+        return result;
+    }
+}
@@ -26,4 +26,13 @@ public class RingTone extends Content{
 					   Set<Device> devices){
 		super(id, name, desc, cats, auth, rating, price, langs, url, countries, devices);
 	}
+	
+	private RingTone(RingTone r, float price, int rating){
+		super(r, price, rating);
+	}
+	
+	@Override
+	Content repriced(float price, int rating) {
+		return new RingTone(this, price, rating);
+	}
 }
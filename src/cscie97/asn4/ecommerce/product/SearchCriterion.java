@@ -0,0 +1,150 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code SearchCriterion} is a single parsed criterion of a catalog search. A Content item
+ * satisfies the criterion when its doc ID is in any one of the criterion's posting lists.
+ */
+class SearchCriterion {
+    // The search field the criterion applies to
+    private final String field;
+
+    // The posting lists whose union satisfies the criterion
+    private final List<DocIdBitmap> postings;
+
+    // Cached cardinality estimate; -1 until computed
+    private int estimate;
+
+    // Criteria with more posting lists than this are unioned once before being stepped through
+    private static final int LAZY_UNION_MAX = 8;
+
+    // Union of the posting lists, built on first use by nextMatch
+    private DocIdBitmap union;
+
+    // Identifies what the criterion matches, so that equal criteria of different searches can
+    // share one evaluation; null when unknown
+    private String key;
+
+    /**
+     * Default SearchCriterion constructor
+     *
+     * @param field search field the criterion applies to
+     */
+    SearchCriterion(String field){
+        this.field = field;
+        this.postings = new ArrayList<DocIdBitmap>();
+        this.estimate = -1;
+    }
+
+    /**
+     * Adds a posting list to the criterion; missing (null) posting lists are ignored.
+     *
+     * @param posting posting list to add
+     */
+    void addPosting(DocIdBitmap posting){
+        if(posting != null){
+            this.postings.add(posting);
+            this.estimate = -1;
+            this.union = null;
+        }
+    }
+
+    /**
+     * Estimates the number of matching doc IDs as the sum of the posting list sizes, which is an
+     * upper bound on the size of their union.
+     *
+     * @return estimated cardinality of the criterion
+     */
+    int estimate(){
+        if(this.estimate < 0){
+            long sum = 0;
+            for(DocIdBitmap p : this.postings){
+                sum += p.cardinality();
+            }
+            this.estimate = (int) Math.min(sum, Integer.MAX_VALUE);
+        }
+        return this.estimate;
+    }
+
+    /**
+     * Estimates the cost of checking one doc ID with {@link #matches(int)}, in posting list
+     * lookups.
+     *
+     * @return probe cost of the criterion
+     */
+    int probeCost(){
+        return this.postings.size();
+    }
+
+    String getField(){
+        return this.field;
+    }
+
+    /**
+     * Returns the criterion's key. Within one catalog generation, criteria with equal keys are
+     * satisfied by the same doc IDs.
+     *
+     * @return key of the criterion, or null if it has none
+     */
+    String getKey(){
+        return this.key;
+    }
+
+    void setKey(String key){
+        this.key = key;
+    }
+
+    /**
+     * Builds the set of doc IDs satisfying the criterion. When there is a single posting list it
+     * is returned as is, so the result must be treated as read-only.
+     *
+     * @return bitmap of matching doc IDs
+     */
+    DocIdBitmap evaluate(){
+        if(this.postings.size() == 1){
+            return this.postings.get(0);
+        }
+        return DocIdBitmap.union(this.postings);
+    }
+
+    /**
+     * Checks a single doc ID against the criterion without building the union.
+     *
+     * @param docId doc ID to check
+     * @return true if the doc ID satisfies the criterion
+     */
+    boolean matches(int docId){
+        for(int i = 0; i < this.postings.size(); i++){
+            if(this.postings.get(i).contains(docId)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the smallest doc ID satisfying the criterion at or after a starting point, stepping
+     * through the posting lists without building their union. Criteria with many posting lists
+     * (such as a wide price range) are unioned once on first use instead.
+     *
+     * @param from doc ID to start from
+     * @return the next matching doc ID, or -1 if there is none
+     */
+    int nextMatch(int from){
+        if(this.postings.size() > LAZY_UNION_MAX){
+            if(this.union == null){
+                this.union = evaluate();
+            }
+            return this.union.nextSetBit(from);
+        }
+        int next = -1;
+        for(int i = 0; i < this.postings.size(); i++){
+            int d = this.postings.get(i).nextSetBit(from);
+            if(d >= 0 && (next < 0 || d < next)){
+                next = d;
+            }
+        }
+        return next;
+    }
+}
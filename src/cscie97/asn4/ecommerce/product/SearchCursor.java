@@ -0,0 +1,126 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code SearchCursor} iterates over the Content matching a catalog search in ascending doc ID
+ * order. Matches are found one at a time by leapfrogging through the criteria's posting lists, so
+ * a broad search only does the work for the results actually read. The position of the cursor
+ * can be saved as a resume token and a later cursor opened from it.
+ */
+public class SearchCursor implements Iterator<Content> {
+
+    // Criteria in evaluation order, most selective first
+    private final List<SearchCriterion> plan;
+
+    // The catalog's Content, indexed by doc ID
+    private final List<Content> contentList;
+
+    // Doc IDs of removed Content, skipped even when every criterion matches them
+    private final DocIdBitmap tombstones;
+
+    // Next doc ID to search from
+    private int from;
+
+    // Next matching doc ID, -1 when exhausted, or -2 when not yet found
+    private int nextDoc;
+
+    /**
+     * Default SearchCursor constructor
+     *
+     * @param plan criteria in evaluation order; an empty plan matches nothing
+     * @param contentList the catalog's Content, indexed by doc ID
+     * @param tombstones doc IDs of removed Content
+     * @param from doc ID to start searching from
+     */
+    SearchCursor(List<SearchCriterion> plan, List<Content> contentList, DocIdBitmap tombstones, int from){
+        this.plan = plan;
+        this.contentList = contentList;
+        this.tombstones = tombstones;
+        this.from = from;
+        this.nextDoc = plan.isEmpty() ? -1 : -2;
+    }
+
+    /**
+     * Parses a resume token into the doc ID a cursor should start from.
+     *
+     * @param resumeToken token from {@link #getResumeToken()}, or null to start at the beginning
+     * @return doc ID to start from
+     * @throws SearchEngineException when the token is malformed
+     */
+    static int parseResumeToken(String resumeToken) throws SearchEngineException{
+        if(resumeToken == null || (resumeToken.trim()).equals("")){
+            return 0;
+        }
+        try{
+            int from = Integer.parseInt(resumeToken.trim(), Character.MAX_RADIX);
+            if(from >= 0){
+                return from;
+            }
+        }
+        catch(NumberFormatException nfe){
+            // fall through to the exception below
+        }
+        throw new SearchEngineException("Error executing search: Invalid resume token", 
+                                        resumeToken, null);
+    }
+
+    /**
+     * Finds the next doc ID satisfying every criterion at or after the given doc ID. The lead
+     * criterion proposes a doc ID and each other criterion either agrees or moves it forward,
+     * until all criteria agree on the same doc ID.
+     *
+     * @param target doc ID to start from
+     * @return the next matching doc ID, or -1 if there is none
+     */
+    private int leapfrog(int target){
+        int n = this.plan.size();
+        int doc = this.plan.get(0).nextMatch(target);
+        int agree = 1;
+        for(int i = 1; doc >= 0 && agree < n; i++){
+            int d = this.plan.get(i % n).nextMatch(doc);
+            if(d == doc){
+                agree++;
+            }
+            else{
+                doc = d;
+                agree = 1;
+            }
+        }
+        return doc;
+    }
+
+    @Override
+    public boolean hasNext(){
+        if(this.nextDoc == -2){
+            this.nextDoc = leapfrog(this.from);
+            while(this.nextDoc >= 0 && this.tombstones.contains(this.nextDoc)){
+                this.nextDoc = leapfrog(this.nextDoc + 1);
+            }
+        }
+        return this.nextDoc >= 0;
+    }
+
+    @Override
+    public Content next(){
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+        Content c = this.contentList.get(this.nextDoc);
+        this.from = this.nextDoc + 1;
+        this.nextDoc = -2;
+        return c;
+    }
+
+    /**
+     * Returns a token from which a later search with the same criteria resumes right after the
+     * last Content returned by this cursor. Content added to the catalog afterwards is given
+     * higher doc IDs, and Content keeps its doc ID when it is updated or others are removed, so a
+     * token stays valid as the catalog changes.
+     *
+     * @return resume token
+     */
+    public String getResumeToken(){
+        return Integer.toString(this.from, Character.MAX_RADIX);
+    }
+}
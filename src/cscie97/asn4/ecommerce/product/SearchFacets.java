@@ -0,0 +1,90 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code SearchFacets} is the result of a faceted catalog search: the matching Content, the
+ * number of matches having each category, language, device, and content type, and histograms of
+ * the matches' prices and ratings.
+ */
+public class SearchFacets {
+    // The matching Content, in doc ID order
+    private final Set<Content> results;
+
+    // Match counts for each facet field, keyed on facet value; values without matches are left out
+    private final Map<String, SortedMap<String, Integer>> facets;
+
+    // Ascending price bucket boundaries
+    private final float[] priceBounds;
+
+    // Match counts for each price bucket
+    private final int[] priceCounts;
+
+    // Match counts for each rating, indexed by rating
+    private final int[] ratingCounts;
+
+    /**
+     * Default SearchFacets constructor
+     *
+     * @param results matching Content
+     * @param facets match counts for each facet field
+     * @param priceBounds ascending price bucket boundaries
+     * @param priceCounts match counts for each price bucket
+     * @param ratingCounts match counts for each rating
+     */
+    protected SearchFacets(Set<Content> results, Map<String, SortedMap<String, Integer>> facets,
+                           float[] priceBounds, int[] priceCounts, int[] ratingCounts){
+        this.results = results;
+        this.facets = facets;
+        this.priceBounds = priceBounds;
+        this.priceCounts = priceCounts;
+        this.ratingCounts = ratingCounts;
+    }
+
+    public Set<Content> getResults(){
+        return this.results;
+    }
+
+    /**
+     * Returns the facet fields counted: category, language, device, and type.
+     *
+     * @return names of the facet fields
+     */
+    public Set<String> getFacetNames(){
+        return this.facets.keySet();
+    }
+
+    /**
+     * Returns the match counts for a facet field.
+     *
+     * @param field facet field: category, language, device, or type
+     * @return match count of each facet value having matches, or null for an unknown field
+     */
+    public SortedMap<String, Integer> getFacet(String field){
+        return this.facets.get(field);
+    }
+
+    public float[] getPriceBounds(){
+        return this.priceBounds.clone();
+    }
+
+    /**
+     * Returns the price histogram. Bucket 0 counts the matches priced below the first bound,
+     * bucket i the matches priced from bound i - 1 up to but excluding bound i, and the last
+     * bucket the matches priced at or above the last bound.
+     *
+     * @return match counts for each price bucket; one more bucket than there are bounds
+     */
+    public int[] getPriceCounts(){
+        return this.priceCounts.clone();
+    }
+
+    /**
+     * Returns the rating histogram.
+     *
+     * @return match counts indexed by rating, from 0 to 5
+     */
+    public int[] getRatingCounts(){
+        return this.ratingCounts.clone();
+    }
+}
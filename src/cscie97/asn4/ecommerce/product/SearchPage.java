@@ -0,0 +1,37 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code SearchPage} is one page of catalog search results and the token for the next page.
+ */
+public class SearchPage {
+    // The Content on this page, in doc ID order
+    private final List<Content> results;
+
+    // Token to resume from after this page; null when there are no more results
+    private final String resumeToken;
+
+    /**
+     * Default SearchPage constructor
+     *
+     * @param results Content on the page
+     * @param resumeToken token for the next page, or null if this is the last page
+     */
+    protected SearchPage(List<Content> results, String resumeToken){
+        this.results = results;
+        this.resumeToken = resumeToken;
+    }
+
+    public List<Content> getResults(){
+        return this.results;
+    }
+
+    public String getResumeToken(){
+        return this.resumeToken;
+    }
+
+    public boolean hasMore(){
+        return this.resumeToken != null;
+    }
+}
@@ -0,0 +1,369 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import cscie97.asn4.ecommerce.csv.*;
+
+/**
+ * {@code SearchResultCache} is a bounded cache of catalog search results. Results are keyed
+ * on a canonical form of the search criteria, so field order within a list, case, and whitespace
+ * do not produce separate entries. Each entry records the posting keys ("field:value") and value
+ * ranges its search read, and is dropped as soon as a catalog mutation touches one of them.
+ * Entries are stamped with the catalog generation they were computed on, so searches still
+ * reading an older generation neither see newer results nor cache stale ones.
+ *
+ * Lookups take no lock: they read a concurrent map and mark the entry they hit as used. Caching,
+ * eviction, and invalidation are synchronized. A full cache evicts with the clock algorithm,
+ * which approximates least recently used: the oldest entry is evicted unless it was used since
+ * it was last passed over, in which case it moves to the back of the queue.
+ */
+class SearchResultCache {
+
+    // Separates the criteria fields in a canonical key
+    private static final char FIELD_SEP = '\u0001';
+
+    // Stands in for text criteria that analyze to no terms
+    private static final char NO_TERMS = '\u0002';
+
+    // Newest catalog generation whose changes have begun invalidation
+    private long generation;
+
+    // Maximum number of cached results
+    private final int capacity;
+
+    // Cached results, read without locking
+    private final ConcurrentHashMap<String, Entry> entries;
+
+    // Cache keys in eviction order, oldest first; guarded by the cache's lock
+    private final LinkedHashSet<String> order;
+
+    // Cache keys of the entries that depend on each posting key
+    private final Map<String, Set<String>> dependents;
+
+    // Cache keys of the entries that depend on a value range
+    private final Set<String> rangeDependents;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * {@code Dependencies} collects the posting keys and value ranges read by a search.
+     */
+    static class Dependencies {
+        private final Set<String> keys = new HashSet<String>();
+        private final Map<String, float[]> ranges = new HashMap<String, float[]>();
+
+        /**
+         * Records that the search read the posting list for a field value.
+         *
+         * @param field search field
+         * @param value field value
+         */
+        void addKey(String field, Object value){
+            this.keys.add(field + ":" + value);
+        }
+
+        /**
+         * Records that the search depends on which values a field's search map holds, so that
+         * adding a posting list under a new value must invalidate it.
+         *
+         * @param field search field
+         */
+        void addNewKeys(String field){
+            this.keys.add(newKeysDependency(field));
+        }
+
+        /**
+         * Records that the search read every posting list of a numeric field in a range.
+         *
+         * @param field search field
+         * @param lo inclusive lower bound
+         * @param hi inclusive upper bound
+         */
+        void addRange(String field, float lo, float hi){
+            this.ranges.put(field, new float[]{lo, hi});
+        }
+    }
+
+    /**
+     * Names the dependency on new values being added to a field's search map.
+     *
+     * @param field search field
+     * @return dependency key, distinct from every "field:value" posting key
+     */
+    static String newKeysDependency(String field){
+        return field + "*";
+    }
+
+    /**
+     * {@code Entry} is a cached search result and the posting keys and ranges it depends on.
+     */
+    private static class Entry {
+        private final DocIdBitmap result;
+        private final Dependencies dependencies;
+        private final long generation;
+
+        // Whether a lookup hit the entry since eviction last passed it over
+        private volatile boolean used;
+
+        Entry(DocIdBitmap result, Dependencies dependencies, long generation){
+            this.result = result;
+            this.dependencies = dependencies;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Default SearchResultCache constructor
+     *
+     * @param capacity maximum number of cached results
+     */
+    SearchResultCache(int capacity){
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<String, Entry>();
+        this.order = new LinkedHashSet<String>();
+        this.dependents = new HashMap<String, Set<String>>();
+        this.rangeDependents = new HashSet<String>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    /**
+     * Builds the canonical cache key for search criteria. Fields are trimmed and lowercased,
+     * text is reduced to its canonical query, pipe lists are sorted and de-duplicated, and
+     * numbers are re-printed from their parsed values.
+     *
+     * @param criteria search criteria
+     * @return canonical key
+     */
+    static String canonicalKey(String[] criteria){
+        StringBuilder key = new StringBuilder();
+        for(int i = 0; i < criteria.length; i++){
+            String field = criteria[i].trim().toLowerCase();
+            if(i > 0){
+                key.append(FIELD_SEP);
+            }
+            if(field.equals("")){
+                continue;
+            }
+            if(i == 1){
+                TextQuery query = TextQuery.parse(field);
+                if(query.isEmpty()){
+                    // text with no terms matches nothing, unlike a blank text criterion
+                    key.append(NO_TERMS);
+                }
+                else{
+                    key.append(query.canonical());
+                }
+            }
+            else if(i == 2){
+                try{
+                    key.append(Integer.parseInt(field));
+                }
+                catch(NumberFormatException nfe){
+                    key.append(field);
+                }
+            }
+            else if(i == 3){
+                try{
+                    float[] range = ProductCatalog.parsePriceRange(field);
+                    key.append(range[0]).append('~').append(range[1]);
+                }
+                catch(NumberFormatException nfe){
+                    key.append(field);
+                }
+            }
+            else if(i == 5 || i == 6){
+                key.append(field);
+            }
+            else{
+                appendSorted(key, CsvTokenizer.splitList(field));
+            }
+        }
+        return key.toString();
+    }
+
+    private static void appendSorted(StringBuilder key, String[] values){
+        SortedSet<String> sorted = new TreeSet<String>();
+        for(String v : values){
+            sorted.add(v.trim());
+        }
+        boolean first = true;
+        for(String v : sorted){
+            if(!first){
+                key.append('|');
+            }
+            key.append(v);
+            first = false;
+        }
+    }
+
+    /**
+     * Looks up a cached result without locking.
+     *
+     * @param key canonical key
+     * @return cached result, or null on a miss
+     */
+    DocIdBitmap get(String key, long generation){
+        Entry e = this.entries.get(key);
+        // a result computed on a newer catalog generation may hold doc IDs the reader's
+        // generation does not have
+        if(e == null || e.generation > generation){
+            this.misses.increment();
+            return null;
+        }
+        if(!e.used){
+            // only the first hit since eviction passed the entry over writes to it
+            e.used = true;
+        }
+        this.hits.increment();
+        return e.result;
+    }
+
+    /**
+     * Caches a result, evicting an entry not used recently when the cache is full.
+     *
+     * @param key canonical key
+     * @param result search result; treated as read-only
+     * @param dependencies posting keys and ranges the search read
+     * @param generation catalog generation the search read
+     */
+    synchronized void put(String key, DocIdBitmap result, Dependencies dependencies, long generation){
+        if(generation < this.generation){
+            // a newer generation may already have changed what the search read
+            return;
+        }
+        remove(key);
+        if(this.order.size() >= this.capacity){
+            evict();
+        }
+        this.order.add(key);
+        this.entries.put(key, new Entry(result, dependencies, generation));
+        if(!dependencies.ranges.isEmpty()){
+            this.rangeDependents.add(key);
+        }
+        for(String dep : dependencies.keys){
+            Set<String> keys = this.dependents.get(dep);
+            if(keys == null){
+                keys = new HashSet<String>();
+                this.dependents.put(dep, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Starts invalidation for a new catalog generation. From now on, results computed on older
+     * generations are no longer cached; results already cached stay until invalidated. Call this
+     * before invalidating the new generation's changes, and publish the generation after.
+     *
+     * @param generation catalog generation about to be published
+     */
+    synchronized void beginGeneration(long generation){
+        this.generation = Math.max(this.generation, generation);
+    }
+
+    /**
+     * Drops every cached result that depends on one of the touched posting keys.
+     *
+     * @param touched posting keys modified by a catalog mutation
+     */
+    synchronized void invalidate(Collection<String> touched){
+        for(String dep : touched){
+            Set<String> keys = this.dependents.remove(dep);
+            if(keys != null){
+                for(String key : keys){
+                    remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every cached result whose search read a range of a numeric field containing one of
+     * the touched values.
+     *
+     * @param field numeric search field
+     * @param values values indexed or removed by a catalog mutation
+     */
+    synchronized void invalidateRange(String field, NavigableSet<Float> values){
+        List<String> stale = new ArrayList<String>();
+        for(String key : this.rangeDependents){
+            float[] range = this.entries.get(key).dependencies.ranges.get(field);
+            if(range != null){
+                Float value = values.ceiling(range[0]);
+                if(value != null && value <= range[1]){
+                    stale.add(key);
+                }
+            }
+        }
+        for(String key : stale){
+            remove(key);
+        }
+    }
+
+    /**
+     * Drops every cached result, for when the whole catalog is replaced.
+     */
+    synchronized void clear(){
+        this.entries.clear();
+        this.order.clear();
+        this.dependents.clear();
+        this.rangeDependents.clear();
+    }
+
+    /**
+     * Evicts the oldest entry not used since eviction last passed it over. Entries used since
+     * then are moved to the back of the queue, so the sweep ends within one pass of the cache.
+     */
+    private void evict(){
+        while(!this.order.isEmpty()){
+            String key = this.order.iterator().next();
+            Entry e = this.entries.get(key);
+            if(e.used){
+                e.used = false;
+                this.order.remove(key);
+                this.order.add(key);
+            }
+            else{
+                remove(key);
+                this.evictions.increment();
+                return;
+            }
+        }
+    }
+
+    private void remove(String key){
+        Entry e = this.entries.remove(key);
+        if(e == null){
+            return;
+        }
+        this.order.remove(key);
+        this.rangeDependents.remove(key);
+        for(String dep : e.dependencies.keys){
+            Set<String> keys = this.dependents.get(dep);
+            if(keys != null){
+                keys.remove(key);
+                if(keys.isEmpty()){
+                    this.dependents.remove(dep);
+                }
+            }
+        }
+    }
+
+    long getHits(){
+        return this.hits.sum();
+    }
+
+    long getMisses(){
+        return this.misses.sum();
+    }
+
+    long getEvictions(){
+        return this.evictions.sum();
+    }
+}
@@ -0,0 +1,226 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code TextAnalyzer} turns name, description, and query text into search terms. It is shared
+ * by the Product Catalog and the Collection Service, at index time and at query time, so both
+ * sides always see the same terms. A single pass over the characters splits the text on
+ * whitespace, drops punctuation, and optionally folds case; the resulting tokens then pass
+ * through a chain of {@code TokenFilter}s such as stopword removal and light stemming.
+ */
+public class TextAnalyzer {
+
+    /**
+     * Common English words that are too frequent to be useful search terms.
+     */
+    public static final Set<String> ENGLISH_STOPWORDS = Collections.unmodifiableSet(
+        new HashSet<String>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into",
+            "is", "it", "no", "not", "of", "on", "or", "such", "that", "the", "their", "then",
+            "there", "these", "they", "this", "to", "was", "will", "with")));
+
+    /**
+     * The analyzer used by the catalog and collection search maps: lowercase folding, English
+     * stopword removal, and light plural stemming.
+     */
+    public static final TextAnalyzer STANDARD = new Builder()
+        .lowercase(true)
+        .addFilter(new StopwordFilter(ENGLISH_STOPWORDS))
+        .addFilter(new LightStemFilter())
+        .build();
+
+    /**
+     * An analyzer that only folds case and drops punctuation, for partial terms such as
+     * type-ahead prefixes, which must not be stemmed or dropped as stopwords.
+     */
+    public static final TextAnalyzer SIMPLE = new Builder().lowercase(true).build();
+
+    // Whether the tokenizer folds tokens to lowercase
+    private final boolean lowercase;
+
+    // Filters applied to each token, in order
+    private final TokenFilter[] filters;
+
+    /**
+     * TextAnalyzer constructor; analyzers are created through the {@code Builder}.
+     * 
+     * @param builder builder holding the analyzer configuration
+     */
+    private TextAnalyzer(Builder builder){
+        this.lowercase = builder.lowercase;
+        this.filters = builder.filters.toArray(new TokenFilter[builder.filters.size()]);
+    }
+
+    /**
+     * Analyzes text into search terms.
+     * 
+     * @param text text to analyze
+     * @return terms in the order they appear in the text
+     */
+    public List<String> analyze(String text){
+        List<String> terms = new ArrayList<String>();
+        analyze(text, terms);
+        return terms;
+    }
+
+    /**
+     * Analyzes text into search terms, appending them to a list.
+     * 
+     * @param text text to analyze
+     * @param terms list the terms are appended to, in the order they appear in the text
+     */
+    public void analyze(String text, List<String> terms){
+        analyze(text, 0, terms, null);
+    }
+
+    /**
+     * Analyzes text into search terms and their positions. Every whitespace separated token
+     * takes a position, including tokens the filters drop, so the gaps left by stopwords are
+     * kept and phrases match only where the original words were that far apart.
+     * 
+     * @param text text to analyze
+     * @param position position of the first token
+     * @param terms list the terms are appended to, in the order they appear in the text
+     * @param positions list the position of each term is appended to, or null
+     * @return position following the last token
+     */
+    public int analyze(String text, int position, List<String> terms, List<Integer> positions){
+        int length = text.length();
+        char[] buffer = new char[Math.min(length, 64)];
+        int len = 0;
+        for(int i = 0; i <= length; i++){
+            char ch = i < length ? text.charAt(i) : ' ';
+            if(Character.isWhitespace(ch)){
+                if(len > 0){
+                    String term = applyFilters(new String(buffer, 0, len));
+                    if(term != null){
+                        terms.add(term);
+                        if(positions != null){
+                            positions.add(position);
+                        }
+                    }
+                    position++;
+                    len = 0;
+                }
+            }
+            else if(!isPunctuation(ch)){
+                if(len == buffer.length){
+                    buffer = Arrays.copyOf(buffer, len * 2);
+                }
+                buffer[len++] = this.lowercase ? Character.toLowerCase(ch) : ch;
+            }
+        }
+        return position;
+    }
+
+    private String applyFilters(String token){
+        for(int i = 0; i < this.filters.length && token != null; i++){
+            token = this.filters[i].filter(token);
+        }
+        return token;
+    }
+
+    /**
+     * Checks whether a character is punctuation (the same characters as the regex \p{P}).
+     * 
+     * @param ch character to check
+     * @return true if the character is punctuation
+     */
+    private static boolean isPunctuation(char ch){
+        switch(Character.getType(ch)){
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * {@code Builder} assembles a {@code TextAnalyzer} chain.
+     */
+    public static class Builder {
+        private boolean lowercase;
+        private final List<TokenFilter> filters = new ArrayList<TokenFilter>();
+
+        /**
+         * Sets whether the tokenizer folds tokens to lowercase.
+         * 
+         * @param lowercase true to fold tokens to lowercase
+         * @return this builder
+         */
+        public Builder lowercase(boolean lowercase){
+            this.lowercase = lowercase;
+            return this;
+        }
+
+        /**
+         * Appends a filter to the end of the chain.
+         * 
+         * @param filter filter to append
+         * @return this builder
+         */
+        public Builder addFilter(TokenFilter filter){
+            this.filters.add(filter);
+            return this;
+        }
+
+        public TextAnalyzer build(){
+            return new TextAnalyzer(this);
+        }
+    }
+
+    /**
+     * {@code StopwordFilter} drops tokens that are in a stopword set.
+     */
+    public static class StopwordFilter implements TokenFilter {
+        private final Set<String> stopwords;
+
+        public StopwordFilter(Set<String> stopwords){
+            this.stopwords = stopwords;
+        }
+
+        @Override
+        public String filter(String token){
+            return this.stopwords.contains(token) ? null : token;
+        }
+    }
+
+    /**
+     * {@code LightStemFilter} reduces English plurals to their singular form ("editors" to
+     * "editor", "stories" to "story") and leaves every other token alone.
+     */
+    public static class LightStemFilter implements TokenFilter {
+
+        @Override
+        public String filter(String token){
+            int len = token.length();
+            if(len < 3 || token.charAt(len - 1) != 's'){
+                return token;
+            }
+            char beforeS = token.charAt(len - 2);
+            if(beforeS == 'u' || beforeS == 's'){
+                return token;
+            }
+            if(beforeS == 'e'){
+                char c3 = token.charAt(len - 3);
+                if(len > 3 && c3 == 'i'){
+                    char c4 = token.charAt(len - 4);
+                    if(c4 != 'a' && c4 != 'e'){
+                        return token.substring(0, len - 3) + "y";
+                    }
+                }
+                if(c3 == 'i' || c3 == 'a' || c3 == 'o' || c3 == 'e'){
+                    return token;
+                }
+            }
+            return token.substring(0, len - 1);
+        }
+    }
+}
@@ -0,0 +1,825 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * {@code TextIndex} keeps the term frequencies, term positions, and document lengths of the
+ * Content name and description text, ranks text searches with BM25, and matches phrases. Top-K retrieval uses MaxScore: terms whose
+ * combined score upper bound cannot lift a document into the current top K are only probed for
+ * documents found through the other terms, so queries containing common words do not have to
+ * score every document those words appear in.
+ */
+class TextIndex {
+
+    // BM25 term frequency saturation
+    private static final double K1 = 1.2;
+
+    // BM25 document length normalization
+    private static final double B = 0.75;
+
+    // Postings for each term
+    private final Map<String, TermPostings> terms;
+
+    // Number of documents in each block of document lengths
+    private static final int LENGTH_BLOCK_BITS = 12;
+    private static final int LENGTH_BLOCK = 1 << LENGTH_BLOCK_BITS;
+    private static final int LENGTH_BLOCK_MASK = LENGTH_BLOCK - 1;
+
+    // Number of terms in each document, in blocks indexed by doc ID; a copied index shares the
+    // blocks, and copies one before writing to it
+    private int[][] docLengths;
+
+    // Whether this index created or copied each block of document lengths
+    private boolean[] lengthsOwned;
+
+    // Number of indexed documents
+    private int docCount;
+
+    // One more than the highest doc ID indexed; doc IDs of removed documents stay counted
+    private int docIdLimit;
+
+    // Total number of terms across all documents
+    private long totalLength;
+
+    /**
+     * {@code TermPostings} holds the doc IDs containing a term, in ascending order, with the
+     * term's frequency and positions in each. Positions are stored as varint-encoded gaps, and
+     * each document's positions start where the previous document's end. Postings read from a
+     * mapped catalog snapshot file are decoded when their term is first looked up.
+     */
+    static class TermPostings {
+        private int[] docs = new int[2];
+        private int[] freqs = new int[2];
+        private int[] positionStarts = new int[2];
+        private byte[] positions = new byte[8];
+        private int positionsSize;
+        private int size;
+        private int maxFreq;
+        private int minDocLength = Integer.MAX_VALUE;
+
+        // Serialized form not yet decoded; null once decoded
+        private volatile ByteBuffer source;
+
+        /**
+         * Writes the postings in the serialized form read back by {@link #mapped(ByteBuffer)}.
+         *
+         * @param out output to write to
+         * @throws IOException when the output cannot be written
+         */
+        void writeTo(DataOutput out) throws IOException{
+            ensureLoaded();
+            out.writeInt(this.size);
+            out.writeInt(this.maxFreq);
+            out.writeInt(this.minDocLength);
+            out.writeInt(this.positionsSize);
+            for(int i = 0; i < this.size; i++){
+                out.writeInt(this.docs[i]);
+                out.writeInt(this.freqs[i]);
+                out.writeInt(this.positionStarts[i]);
+            }
+            out.write(this.positions, 0, this.positionsSize);
+        }
+
+        /**
+         * Creates postings over their serialized form, which is decoded on first use.
+         *
+         * @param data serialized postings, starting at position 0
+         * @return the postings
+         */
+        static TermPostings mapped(ByteBuffer data){
+            TermPostings postings = new TermPostings();
+            postings.source = data;
+            return postings;
+        }
+
+        /**
+         * Decodes the serialized form, if the postings still have one.
+         *
+         * @return these postings
+         */
+        TermPostings ensureLoaded(){
+            if(this.source != null){
+                load();
+            }
+            return this;
+        }
+
+        private synchronized void load(){
+            ByteBuffer data = this.source;
+            if(data == null){
+                return;
+            }
+            int n = data.getInt(0);
+            this.maxFreq = data.getInt(4);
+            this.minDocLength = data.getInt(8);
+            this.positionsSize = data.getInt(12);
+            this.docs = new int[Math.max(2, n)];
+            this.freqs = new int[this.docs.length];
+            this.positionStarts = new int[this.docs.length];
+            int pos = 16;
+            for(int i = 0; i < n; i++){
+                this.docs[i] = data.getInt(pos);
+                this.freqs[i] = data.getInt(pos + 4);
+                this.positionStarts[i] = data.getInt(pos + 8);
+                pos += 12;
+            }
+            this.positions = new byte[Math.max(8, this.positionsSize)];
+            for(int i = 0; i < this.positionsSize; i++){
+                this.positions[i] = data.get(pos + i);
+            }
+            this.size = n;
+            this.source = null;
+        }
+
+        /**
+         * Adds a document's positions. Documents are usually added in ascending doc ID order and
+         * appended; a document updated in place is inserted at its doc ID's place.
+         */
+        void add(int docId, int[] docPositions, int freq, int docLength){
+            if(this.size == this.docs.length){
+                this.docs = Arrays.copyOf(this.docs, this.size * 2);
+                this.freqs = Arrays.copyOf(this.freqs, this.size * 2);
+                this.positionStarts = Arrays.copyOf(this.positionStarts, this.size * 2);
+            }
+            int index = this.size;
+            if(index > 0 && this.docs[index - 1] > docId){
+                index = -Arrays.binarySearch(this.docs, 0, this.size, docId) - 1;
+                System.arraycopy(this.docs, index, this.docs, index + 1, this.size - index);
+                System.arraycopy(this.freqs, index, this.freqs, index + 1, this.size - index);
+                System.arraycopy(this.positionStarts, index, this.positionStarts, index + 1, 
+                                 this.size - index);
+            }
+            this.docs[index] = docId;
+            this.freqs[index] = freq;
+            this.positionStarts[index] = this.positionsSize;
+            int previous = 0;
+            for(int i = 0; i < freq; i++){
+                writeVarint(docPositions[i] - previous);
+                previous = docPositions[i];
+            }
+            this.size++;
+            this.maxFreq = Math.max(this.maxFreq, freq);
+            this.minDocLength = Math.min(this.minDocLength, docLength);
+        }
+
+        /**
+         * Removes a document and the bytes of its positions. The frequency and document length
+         * bounds are left as they are; they remain valid bounds for the documents left.
+         *
+         * @param docId doc ID of the document
+         * @return true if the document was in the postings
+         */
+        boolean remove(int docId){
+            ensureLoaded();
+            int index = Arrays.binarySearch(this.docs, 0, this.size, docId);
+            if(index < 0){
+                return false;
+            }
+            int start = this.positionStarts[index];
+            int end = start;
+            for(int i = 0; i < this.freqs[index]; i++){
+                // a varint's bytes with the high bit set are followed by more of it
+                while(this.positions[end] < 0){
+                    end++;
+                }
+                end++;
+            }
+            int length = end - start;
+            System.arraycopy(this.positions, end, this.positions, start, this.positionsSize - end);
+            this.positionsSize -= length;
+            System.arraycopy(this.docs, index + 1, this.docs, index, this.size - index - 1);
+            System.arraycopy(this.freqs, index + 1, this.freqs, index, this.size - index - 1);
+            System.arraycopy(this.positionStarts, index + 1, this.positionStarts, index, 
+                             this.size - index - 1);
+            this.size--;
+            for(int i = 0; i < this.size; i++){
+                if(this.positionStarts[i] > start){
+                    this.positionStarts[i] -= length;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Grows the postings to hold more documents and positions without growing again.
+         *
+         * @param moreDocs number of documents about to be added
+         * @param morePositions number of positions those documents hold in total
+         */
+        void reserve(int moreDocs, int morePositions){
+            ensureLoaded();
+            if(this.size + moreDocs > this.docs.length){
+                this.docs = Arrays.copyOf(this.docs, this.size + moreDocs);
+                this.freqs = Arrays.copyOf(this.freqs, this.size + moreDocs);
+                this.positionStarts = Arrays.copyOf(this.positionStarts, this.size + moreDocs);
+            }
+            // most position gaps are small, and encode in one or two bytes
+            if(this.positionsSize + morePositions * 2 > this.positions.length){
+                this.positions = Arrays.copyOf(this.positions, this.positionsSize + morePositions * 2 + 5);
+            }
+        }
+
+        TermPostings copy(){
+            ensureLoaded();
+            TermPostings copy = new TermPostings();
+            copy.docs = this.docs.clone();
+            copy.freqs = this.freqs.clone();
+            copy.positionStarts = this.positionStarts.clone();
+            copy.positions = this.positions.clone();
+            copy.positionsSize = this.positionsSize;
+            copy.size = this.size;
+            copy.maxFreq = this.maxFreq;
+            copy.minDocLength = this.minDocLength;
+            return copy;
+        }
+
+        private void writeVarint(int value){
+            if(this.positionsSize + 5 > this.positions.length){
+                this.positions = Arrays.copyOf(this.positions, this.positions.length * 2 + 5);
+            }
+            while((value & ~0x7F) != 0){
+                this.positions[this.positionsSize++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.positions[this.positionsSize++] = (byte) value;
+        }
+
+        /**
+         * Decodes the term's positions in one document.
+         *
+         * @param index index of the document in the postings
+         * @return positions in ascending order
+         */
+        int[] positions(int index){
+            int[] decoded = new int[this.freqs[index]];
+            int offset = this.positionStarts[index];
+            int position = 0;
+            for(int i = 0; i < decoded.length; i++){
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do{
+                    b = this.positions[offset++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while(b < 0);
+                position += gap;
+                decoded[i] = position;
+            }
+            return decoded;
+        }
+
+        /**
+         * Finds the first document at or after a position in the postings whose doc ID is at
+         * least the target, galloping then binary searching.
+         *
+         * @param from index to start from
+         * @param target smallest doc ID wanted
+         * @return index of that document, or size if there is none
+         */
+        int advance(int from, int target){
+            if(from >= this.size || this.docs[from] >= target){
+                return from;
+            }
+            int step = 1;
+            int lo = from;
+            int hi = from + 1;
+            while(hi < this.size && this.docs[hi] < target){
+                lo = hi;
+                step <<= 1;
+                hi = lo + step;
+            }
+            hi = Math.min(hi, this.size);
+            while(lo < hi){
+                int mid = (lo + hi) >>> 1;
+                if(this.docs[mid] < target){
+                    lo = mid + 1;
+                }
+                else{
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        int size(){
+            return this.size;
+        }
+    }
+
+    // Postings created or copied by this index, which it may modify in place; postings shared
+    // with the index it was copied from are copied before they are modified
+    private final Set<TermPostings> owned;
+
+    /**
+     * Default TextIndex constructor
+     */
+    TextIndex(){
+        this(new PersistentTreeMap<String, TermPostings>());
+    }
+
+    private TextIndex(Map<String, TermPostings> terms){
+        this.terms = terms;
+        this.docLengths = new int[4][];
+        this.lengthsOwned = new boolean[4];
+        this.owned = Collections.newSetFromMap(new IdentityHashMap<TermPostings, Boolean>());
+    }
+
+    /**
+     * Creates an index over postings read from a catalog snapshot file.
+     *
+     * @param terms postings for each term, possibly not yet decoded
+     * @param docLengths number of terms in each document, indexed by doc ID
+     * @param docIdLimit one more than the highest doc ID
+     * @param docCount number of indexed documents
+     * @param totalLength total number of terms across all documents
+     */
+    TextIndex(Map<String, TermPostings> terms, int[] docLengths, int docIdLimit, int docCount, 
+              long totalLength){
+        this();
+        this.terms.putAll(terms);
+        for(int docId = 0; docId < docIdLimit; docId++){
+            setDocLength(docId, docLengths[docId]);
+        }
+        this.docIdLimit = docIdLimit;
+        this.docCount = docCount;
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * Looks up a term's postings, decoding them if they were read from a snapshot file.
+     *
+     * @param term indexed term
+     * @return the term's postings, or null if the term is not indexed
+     */
+    private TermPostings postings(String term){
+        TermPostings p = this.terms.get(term);
+        return p == null ? null : p.ensureLoaded();
+    }
+
+    /**
+     * Returns the number of terms in each document.
+     *
+     * @return document lengths, indexed by doc ID; 0 for a removed document
+     */
+    int[] getDocLengths(){
+        int[] lengths = new int[this.docIdLimit];
+        for(int b = 0; b << LENGTH_BLOCK_BITS < lengths.length; b++){
+            if(this.docLengths[b] == null){
+                continue;
+            }
+            System.arraycopy(this.docLengths[b], 0, lengths, b << LENGTH_BLOCK_BITS,
+                             Math.min(LENGTH_BLOCK, lengths.length - (b << LENGTH_BLOCK_BITS)));
+        }
+        return lengths;
+    }
+
+    private int docLength(int docId){
+        int[] block = this.docLengths[docId >>> LENGTH_BLOCK_BITS];
+        return block == null ? 0 : block[docId & LENGTH_BLOCK_MASK];
+    }
+
+    /**
+     * Sets a document's length, adding its block or copying it if this index does not own it.
+     */
+    private void setDocLength(int docId, int length){
+        int b = docId >>> LENGTH_BLOCK_BITS;
+        if(b >= this.docLengths.length){
+            int capacity = Math.max(b + 1, this.docLengths.length * 2);
+            this.docLengths = Arrays.copyOf(this.docLengths, capacity);
+            this.lengthsOwned = Arrays.copyOf(this.lengthsOwned, capacity);
+        }
+        if(this.docLengths[b] == null){
+            this.docLengths[b] = new int[LENGTH_BLOCK];
+            this.lengthsOwned[b] = true;
+        }
+        else if(!this.lengthsOwned[b]){
+            this.docLengths[b] = this.docLengths[b].clone();
+            this.lengthsOwned[b] = true;
+        }
+        this.docLengths[b][docId & LENGTH_BLOCK_MASK] = length;
+    }
+
+    int getDocCount(){
+        return this.docCount;
+    }
+
+    long getTotalLength(){
+        return this.totalLength;
+    }
+
+    /**
+     * Returns the terms and their postings, for writing to a snapshot file.
+     *
+     * @return postings for each term
+     */
+    Map<String, TermPostings> getTerms(){
+        return Collections.unmodifiableMap(this.terms);
+    }
+
+    /**
+     * Copies the index. The copy shares this index's term map, postings, and document length
+     * blocks until it changes them, so this index is unchanged by documents added to the copy.
+     *
+     * @return the copy
+     */
+    TextIndex copy(){
+        TextIndex copy = new TextIndex(PersistentTreeMap.copyOf(this.terms));
+        copy.docLengths = this.docLengths.clone();
+        copy.lengthsOwned = new boolean[copy.docLengths.length];
+        copy.docIdLimit = this.docIdLimit;
+        copy.docCount = this.docCount;
+        copy.totalLength = this.totalLength;
+        return copy;
+    }
+
+    /**
+     * Indexes the terms of a document. Doc IDs must be added in ascending order.
+     *
+     * @param docId doc ID of the document
+     * @param tokens the document's terms, in order
+     * @param positions position of each term, in ascending order
+     */
+    void addDocument(int docId, List<String> tokens, List<Integer> positions){
+        Map<String, int[]> freqs = termPositions(tokens, positions);
+        setDocLength(docId, tokens.size());
+        this.docIdLimit = Math.max(this.docIdLimit, docId + 1);
+        this.docCount++;
+        this.totalLength += tokens.size();
+        for(Map.Entry<String, int[]> e : freqs.entrySet()){
+            TermPostings p = writablePostings(e.getKey());
+            int[] f = e.getValue();
+            p.add(docId, f, f[f.length - 1], tokens.size());
+        }
+    }
+
+    /**
+     * Collects each term's positions in a document.
+     *
+     * @param tokens the document's terms, in order
+     * @param positions position of each term, in ascending order
+     * @return each term's positions, with the term's frequency in the array's last slot
+     */
+    private static Map<String, int[]> termPositions(List<String> tokens, List<Integer> positions){
+        Map<String, int[]> freqs = new LinkedHashMap<String, int[]>();
+        for(int i = 0; i < tokens.size(); i++){
+            int[] f = freqs.get(tokens.get(i));
+            if(f == null){
+                f = new int[2];
+                freqs.put(tokens.get(i), f);
+            }
+            else if(f[f.length - 1] == f.length - 1){
+                int[] grown = Arrays.copyOf(f, f.length * 2);
+                grown[grown.length - 1] = f[f.length - 1];
+                f = grown;
+                freqs.put(tokens.get(i), f);
+            }
+            f[f[f.length - 1]++] = positions.get(i);
+        }
+        return freqs;
+    }
+
+    /**
+     * Reindexes a document whose text changed, keeping its doc ID. Only the postings of terms
+     * the document gained, lost, or now has at different positions are modified; a term whose
+     * positions are unchanged only has its document length bound lowered, if the document got
+     * shorter.
+     *
+     * @param docId doc ID of the document
+     * @param oldTokens the document's previous terms, in order
+     * @param oldPositions position of each previous term
+     * @param tokens the document's new terms, in order
+     * @param positions position of each new term
+     */
+    void updateDocument(int docId, List<String> oldTokens, List<Integer> oldPositions, 
+                        List<String> tokens, List<Integer> positions){
+        Map<String, int[]> before = termPositions(oldTokens, oldPositions);
+        Map<String, int[]> after = termPositions(tokens, positions);
+        for(String term : before.keySet()){
+            if(!after.containsKey(term)){
+                removePosting(term, docId);
+            }
+        }
+        for(Map.Entry<String, int[]> e : after.entrySet()){
+            int[] f = e.getValue();
+            int freq = f[f.length - 1];
+            int[] old = before.get(e.getKey());
+            if(old != null && old[old.length - 1] == freq && 
+               Arrays.equals(Arrays.copyOf(old, freq), Arrays.copyOf(f, freq))){
+                if(tokens.size() < postings(e.getKey()).minDocLength){
+                    writablePostings(e.getKey()).minDocLength = tokens.size();
+                }
+                continue;
+            }
+            TermPostings p = writablePostings(e.getKey());
+            if(old != null){
+                p.remove(docId);
+            }
+            p.add(docId, f, freq, tokens.size());
+        }
+        this.totalLength += tokens.size() - docLength(docId);
+        setDocLength(docId, tokens.size());
+    }
+
+    /**
+     * Removes a document from the index. Terms left without documents are dropped.
+     *
+     * @param docId doc ID of the document
+     * @param tokens the document's terms
+     */
+    void removeDocument(int docId, List<String> tokens){
+        for(String term : new HashSet<String>(tokens)){
+            removePosting(term, docId);
+        }
+        this.totalLength -= docLength(docId);
+        setDocLength(docId, 0);
+        this.docCount--;
+    }
+
+    private void removePosting(String term, int docId){
+        TermPostings p = writablePostings(term);
+        p.remove(docId);
+        if(p.size() == 0){
+            this.terms.remove(term);
+            this.owned.remove(p);
+        }
+    }
+
+    /**
+     * Indexes the terms of consecutive documents, as {@link #addDocument(int, List, List)} does
+     * one at a time. The documents and positions each term gains are counted first and its
+     * postings grown once to hold them, so a bulk load does not repeatedly copy growing arrays.
+     *
+     * @param firstDocId doc ID of the first document; the rest follow it in order
+     * @param tokens each document's terms, in order
+     * @param positions position of each document's terms, in ascending order
+     */
+    void addDocuments(int firstDocId, List<List<String>> tokens, List<List<Integer>> positions){
+        // for each term: documents containing it, positions it has, and last document counted
+        Map<String, int[]> counts = new HashMap<String, int[]>();
+        for(int d = 0; d < tokens.size(); d++){
+            for(String term : tokens.get(d)){
+                int[] count = counts.get(term);
+                if(count == null){
+                    count = new int[]{0, 0, -1};
+                    counts.put(term, count);
+                }
+                if(count[2] != d){
+                    count[0]++;
+                    count[2] = d;
+                }
+                count[1]++;
+            }
+        }
+        for(Map.Entry<String, int[]> e : counts.entrySet()){
+            writablePostings(e.getKey()).reserve(e.getValue()[0], e.getValue()[1]);
+        }
+        for(int d = 0; d < tokens.size(); d++){
+            addDocument(firstDocId + d, tokens.get(d), positions.get(d));
+        }
+    }
+
+    /**
+     * Returns a term's postings for adding to: the postings themselves if this index owns them,
+     * otherwise a copy that it then owns, or new postings for a new term.
+     *
+     * @param term term being indexed
+     * @return postings this index may modify
+     */
+    private TermPostings writablePostings(String term){
+        TermPostings p = postings(term);
+        if(p == null || !this.owned.contains(p)){
+            p = p == null ? new TermPostings() : p.copy();
+            this.owned.add(p);
+            this.terms.put(term, p);
+        }
+        return p;
+    }
+
+    /**
+     * {@code TermCursor} walks one query term's postings during top-K retrieval.
+     */
+    private class TermCursor {
+        private final TermPostings postings;
+        private final double idf;
+        private final double upperBound;
+        private int pos;
+
+        TermCursor(TermPostings postings){
+            this.postings = postings;
+            this.idf = Math.log(1 + (docCount - postings.size + 0.5) / (postings.size + 0.5));
+            this.upperBound = this.idf * termWeight(postings.maxFreq, postings.minDocLength);
+        }
+
+        int doc(){
+            return this.pos < this.postings.size ? this.postings.docs[this.pos] : Integer.MAX_VALUE;
+        }
+
+        /**
+         * Moves the cursor to the first doc ID at or after the target.
+         */
+        void advance(int target){
+            this.pos = this.postings.advance(this.pos, target);
+        }
+
+        double score(){
+            int docLength = docLength(this.postings.docs[this.pos]);
+            return this.idf * termWeight(this.postings.freqs[this.pos], docLength);
+        }
+    }
+
+    /**
+     * Finds the documents containing a phrase. The phrase terms must appear in order, each at
+     * least as far after the one before as in the phrase, and the whole match may be spread
+     * over at most {@code slop} more positions than the phrase itself; a slop of 0 requires the
+     * exact phrase. Documents are found by intersecting the terms' postings, and only the
+     * documents common to every term have their positions decoded.
+     *
+     * @param phraseTerms terms of the phrase, in order
+     * @param offsets position of each term within the phrase, in ascending order
+     * @param slop number of extra positions the match may be spread over
+     * @return doc IDs of the documents containing the phrase
+     */
+    DocIdBitmap phrase(List<String> phraseTerms, int[] offsets, int slop){
+        DocIdBitmap matches = new DocIdBitmap();
+        int n = phraseTerms.size();
+        TermPostings[] postings = new TermPostings[n];
+        for(int i = 0; i < n; i++){
+            postings[i] = postings(phraseTerms.get(i));
+            if(postings[i] == null){
+                return matches;
+            }
+        }
+        int[] index = new int[n];
+        int doc = 0;
+        while(true){
+            // leapfrog until every term's cursor is on the same document
+            boolean aligned = false;
+            while(!aligned){
+                aligned = true;
+                for(int i = 0; i < n; i++){
+                    index[i] = postings[i].advance(index[i], doc);
+                    if(index[i] >= postings[i].size){
+                        return matches;
+                    }
+                    if(postings[i].docs[index[i]] != doc){
+                        doc = postings[i].docs[index[i]];
+                        aligned = false;
+                    }
+                }
+            }
+            int[][] positions = new int[n][];
+            for(int i = 0; i < n; i++){
+                positions[i] = postings[i].positions(index[i]);
+            }
+            if(matchesPhrase(positions, offsets, slop)){
+                matches.add(doc);
+            }
+            doc++;
+        }
+    }
+
+    /**
+     * Checks one document's term positions against a phrase. For each position of the first
+     * term, every later term takes its earliest position that keeps the phrase order and gaps;
+     * taking the earliest positions gives the tightest match starting there.
+     */
+    private static boolean matchesPhrase(int[][] positions, int[] offsets, int slop){
+        int n = offsets.length;
+        int span = offsets[n - 1] - offsets[0];
+        int[] next = new int[n];
+        for(int start : positions[0]){
+            int last = start;
+            boolean complete = true;
+            for(int i = 1; i < n && complete; i++){
+                int wanted = last + offsets[i] - offsets[i - 1];
+                while(next[i] < positions[i].length && positions[i][next[i]] < wanted){
+                    next[i]++;
+                }
+                if(next[i] == positions[i].length){
+                    return false;
+                }
+                last = positions[i][next[i]];
+                complete = last - start - span <= slop;
+            }
+            if(complete){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * BM25 term frequency component for a term in a document.
+     *
+     * @param freq term frequency in the document
+     * @param docLength number of terms in the document
+     * @return weight of the term in the document, before idf
+     */
+    private double termWeight(int freq, int docLength){
+        double avgLength = this.docCount == 0 ? 1 : (double) this.totalLength / this.docCount;
+        return freq * (K1 + 1) / (freq + K1 * (1 - B + B * docLength / avgLength));
+    }
+
+    /**
+     * Returns the top K documents for the query terms ranked by BM25.
+     *
+     * @param queryTerms query terms
+     * @param k maximum number of results
+     * @param filter doc IDs allowed in the results, or null to allow all
+     * @param excluded doc IDs never allowed in the results, or null
+     * @return doc IDs of the best scoring documents, best first
+     */
+    int[] topK(Collection<String> queryTerms, int k, DocIdBitmap filter, DocIdBitmap excluded){
+        List<TermCursor> cursors = new ArrayList<TermCursor>();
+        // no more documents can be ranked than the query terms have postings
+        long postingCount = 0;
+        for(String t : new LinkedHashSet<String>(queryTerms)){
+            TermPostings p = postings(t);
+            if(p != null && p.size > 0){
+                cursors.add(new TermCursor(p));
+                postingCount += p.size;
+            }
+        }
+        if(k <= 0 || cursors.isEmpty()){
+            return new int[0];
+        }
+        // order terms by ascending upper bound, and keep the running sums of the bounds
+        Collections.sort(cursors, new Comparator<TermCursor>(){
+            @Override
+            public int compare(TermCursor a, TermCursor b){
+                return Double.compare(a.upperBound, b.upperBound);
+            }
+        });
+        int n = cursors.size();
+        double[] boundSums = new double[n];
+        for(int i = 0; i < n; i++){
+            boundSums[i] = cursors.get(i).upperBound + (i > 0 ? boundSums[i - 1] : 0);
+        }
+
+        // min-heap of the current top K by score; ties favor the lower doc ID
+        PriorityQueue<double[]> heap = new PriorityQueue<double[]>((int) Math.min(k, postingCount),
+                                                                   new Comparator<double[]>(){
+            @Override
+            public int compare(double[] a, double[] b){
+                int c = Double.compare(a[0], b[0]);
+                return c != 0 ? c : Double.compare(b[1], a[1]);
+            }
+        });
+        double threshold = 0;
+        // cursors [0, firstEssential) are non-essential: together they cannot reach the threshold
+        int firstEssential = 0;
+
+        while(firstEssential < n){
+            int doc = Integer.MAX_VALUE;
+            for(int i = firstEssential; i < n; i++){
+                doc = Math.min(doc, cursors.get(i).doc());
+            }
+            if(doc == Integer.MAX_VALUE){
+                break;
+            }
+            double score = 0;
+            for(int i = firstEssential; i < n; i++){
+                TermCursor c = cursors.get(i);
+                if(c.doc() == doc){
+                    score += c.score();
+                    c.pos++;
+                }
+            }
+            if((filter != null && !filter.contains(doc)) || (excluded != null && excluded.contains(doc))){
+                continue;
+            }
+            for(int i = firstEssential - 1; i >= 0; i--){
+                if(heap.size() >= k && score + boundSums[i] <= threshold){
+                    break;
+                }
+                TermCursor c = cursors.get(i);
+                c.advance(doc);
+                if(c.doc() == doc){
+                    score += c.score();
+                }
+            }
+            if(heap.size() < k){
+                heap.add(new double[]{score, doc});
+            }
+            else if(score > threshold){
+                heap.poll();
+                heap.add(new double[]{score, doc});
+            }
+            if(heap.size() >= k && heap.peek()[0] > threshold){
+                threshold = heap.peek()[0];
+                while(firstEssential < n && boundSums[firstEssential] <= threshold){
+                    firstEssential++;
+                }
+            }
+        }
+
+        int[] result = new int[heap.size()];
+        for(int i = result.length - 1; i >= 0; i--){
+            result[i] = (int) heap.poll()[1];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.*;
+
+/**
+ * {@code TextQuery} is a parsed text criterion. Each whitespace separated word is analyzed into
+ * exact terms, except that a word ending in {@code ~} or {@code ~N} is a fuzzy term matching
+ * every indexed term within N edits (2 when N is left out; at most 2). Text in double quotes is
+ * a phrase, matched only where its words appear together and in order; a phrase followed by
+ * {@code ~N} is a proximity query, which lets the words be spread over N more positions.
+ */
+class TextQuery {
+
+    // Largest edit distance a fuzzy term may use
+    static final int MAX_EDITS = 2;
+
+    // Terms that must match exactly
+    private final List<String> terms;
+
+    // Fuzzy terms and the maximum edit distance of each
+    private final Map<String, Integer> fuzzyTerms;
+
+    // Phrases and proximity queries
+    private final List<Phrase> phrases;
+
+    /**
+     * {@code Phrase} is a quoted phrase: its analyzed terms, their positions within the phrase,
+     * and the number of extra positions a match may be spread over.
+     */
+    static class Phrase {
+        private final List<String> terms;
+        private final int[] offsets;
+        private final int slop;
+
+        Phrase(List<String> terms, int[] offsets, int slop){
+            this.terms = terms;
+            this.offsets = offsets;
+            this.slop = slop;
+        }
+
+        List<String> getTerms(){
+            return this.terms;
+        }
+
+        int[] getOffsets(){
+            return this.offsets;
+        }
+
+        int getSlop(){
+            return this.slop;
+        }
+    }
+
+    /**
+     * Private TextQuery constructor
+     */
+    private TextQuery(){
+        this.terms = new ArrayList<String>();
+        this.fuzzyTerms = new TreeMap<String, Integer>();
+        this.phrases = new ArrayList<Phrase>();
+    }
+
+    /**
+     * Parses a text criterion.
+     *
+     * @param text text criterion
+     * @return the parsed query
+     */
+    static TextQuery parse(String text){
+        TextQuery query = new TextQuery();
+        int i = 0;
+        while(i < text.length()){
+            char ch = text.charAt(i);
+            if(Character.isWhitespace(ch)){
+                i++;
+            }
+            else if(ch == '"'){
+                int close = text.indexOf('"', i + 1);
+                if(close < 0){
+                    close = text.length();
+                }
+                String phrase = text.substring(i + 1, close);
+                i = Math.min(close + 1, text.length());
+                int end = i;
+                while(end < text.length() && !Character.isWhitespace(text.charAt(end)) 
+                      && text.charAt(end) != '"'){
+                    end++;
+                }
+                int slop = 0;
+                if(text.substring(i, end).matches("~[0-9]{1,4}")){
+                    slop = Integer.parseInt(text.substring(i + 1, end));
+                    i = end;
+                }
+                query.addPhrase(phrase, slop);
+            }
+            else{
+                int end = i;
+                while(end < text.length() && !Character.isWhitespace(text.charAt(end)) 
+                      && text.charAt(end) != '"'){
+                    end++;
+                }
+                query.addWord(text.substring(i, end));
+                i = end;
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Adds an unquoted word, which is fuzzy if it ends in {@code ~} or {@code ~N}.
+     */
+    private void addWord(String word){
+        int tilde = word.lastIndexOf('~');
+        String edits = tilde < 0 ? null : word.substring(tilde + 1);
+        if(edits == null || !(edits.equals("") || edits.matches("[0-9]"))){
+            TextAnalyzer.STANDARD.analyze(word, this.terms);
+            return;
+        }
+        int maxEdits = edits.equals("") ? MAX_EDITS : Math.min(edits.charAt(0) - '0', MAX_EDITS);
+        for(String term : TextAnalyzer.STANDARD.analyze(word.substring(0, tilde))){
+            if(maxEdits == 0){
+                this.terms.add(term);
+            }
+            else{
+                Integer previous = this.fuzzyTerms.get(term);
+                this.fuzzyTerms.put(term, Math.max(maxEdits, previous == null ? 0 : previous));
+            }
+        }
+    }
+
+    /**
+     * Adds a quoted phrase. A phrase that analyzes to a single term is just that term.
+     */
+    private void addPhrase(String phrase, int slop){
+        List<String> phraseTerms = new ArrayList<String>();
+        List<Integer> positions = new ArrayList<Integer>();
+        TextAnalyzer.STANDARD.analyze(phrase, 0, phraseTerms, positions);
+        if(phraseTerms.size() == 1){
+            this.terms.add(phraseTerms.get(0));
+        }
+        else if(phraseTerms.size() > 1){
+            int[] offsets = new int[positions.size()];
+            for(int i = 0; i < offsets.length; i++){
+                offsets[i] = positions.get(i) - positions.get(0);
+            }
+            this.phrases.add(new Phrase(phraseTerms, offsets, slop));
+        }
+    }
+
+    /**
+     * Checks whether the query has any terms at all.
+     *
+     * @return true if the text analyzed to no terms
+     */
+    boolean isEmpty(){
+        return this.terms.isEmpty() && this.fuzzyTerms.isEmpty() && this.phrases.isEmpty();
+    }
+
+    /**
+     * Returns the phrases and proximity queries.
+     *
+     * @return quoted phrases, in query order
+     */
+    List<Phrase> getPhrases(){
+        return this.phrases;
+    }
+
+    /**
+     * Expands the query into the indexed terms it matches: its exact terms, and every dictionary
+     * term within the edit distance of one of its fuzzy terms. Phrase terms are not included.
+     *
+     * @param dictionary indexed terms in ascending order
+     * @return matching terms
+     */
+    List<String> expand(NavigableSet<String> dictionary){
+        List<String> expanded = new ArrayList<String>(this.terms);
+        for(Map.Entry<String, Integer> fuzzy : this.fuzzyTerms.entrySet()){
+            LevenshteinAutomaton automaton = new LevenshteinAutomaton(fuzzy.getKey(), fuzzy.getValue());
+            expanded.addAll(automaton.expand(dictionary));
+        }
+        return expanded;
+    }
+
+    /**
+     * Checks whether the query has fuzzy terms, whose matches change as terms are indexed.
+     *
+     * @return true if the query has fuzzy terms
+     */
+    boolean isFuzzy(){
+        return !this.fuzzyTerms.isEmpty();
+    }
+
+    /**
+     * Returns the canonical form of the query: its exact terms, sorted and de-duplicated,
+     * followed by its fuzzy terms with their edit distances, then its phrases with their term
+     * offsets and slop.
+     *
+     * @return canonical form of the query
+     */
+    String canonical(){
+        StringBuilder canonical = new StringBuilder();
+        for(String term : new TreeSet<String>(this.terms)){
+            canonical.append(term).append(' ');
+        }
+        for(Map.Entry<String, Integer> fuzzy : this.fuzzyTerms.entrySet()){
+            canonical.append(fuzzy.getKey()).append('~').append(fuzzy.getValue()).append(' ');
+        }
+        SortedSet<String> phraseKeys = new TreeSet<String>();
+        for(Phrase phrase : this.phrases){
+            StringBuilder key = new StringBuilder("\"");
+            for(int i = 0; i < phrase.terms.size(); i++){
+                key.append(phrase.terms.get(i)).append('@').append(phrase.offsets[i]).append(' ');
+            }
+            phraseKeys.add(key.append("\"~").append(phrase.slop).toString());
+        }
+        for(String key : phraseKeys){
+            canonical.append(key).append(' ');
+        }
+        return canonical.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package cscie97.asn4.ecommerce.product;
+
+/**
+ * {@code TokenFilter} is one stage of a {@code TextAnalyzer} chain. It receives each token
+ * produced by the earlier stages and returns the token to pass on, a rewritten token, or null to
+ * drop the token.
+ */
+public interface TokenFilter {
+
+    /**
+     * Filters a token.
+     * 
+     * @param token token from the earlier stages of the chain
+     * @return token to pass on, or null to drop it
+     */
+    public String filter(String token);
+}
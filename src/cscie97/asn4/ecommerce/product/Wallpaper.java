@@ -26,4 +26,13 @@ public class Wallpaper extends Content{
 						Set<Device> devices){
 		super(id, name, desc, cats, auth, rating, price, langs, url, countries, devices);
 	}
+	
+	private Wallpaper(Wallpaper w, float price, int rating){
+		super(w, price, rating);
+	}
+	
+	@Override
+	Content repriced(float price, int rating) {
+		return new Wallpaper(this, price, rating);
+	}
 }
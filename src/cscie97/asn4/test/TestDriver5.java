@@ -0,0 +1,202 @@
+package cscie97.asn4.test;
+
+import java.io.*;
+import java.util.*;
+
+import cscie97.asn4.ecommerce.csv.*;
+import cscie97.asn4.ecommerce.product.*;
+import cscie97.asn4.ecommerce.authentication.*;
+
+
+/**
+ * {@code TestDriver5} tests the price criteria of Product Catalog searches
+ */
+public class TestDriver5 {
+
+	/**
+	 * Accepts command line parameters for files containing Country, Device,
+	 * and Content data.
+	 *
+	 * Logs in as the admin super user and imports the data into the
+	 * ProductCatalog. Runs searches with price criteria, and checks each
+	 * result against the Content whose price lies within the bounds the
+	 * criterion should have been read as.
+	 */
+	public static void main(String args[]){
+		if(args.length != 3){
+			System.err.println("You must provide the Country, Device, and " +
+							   "Content CSV files in order to test the price " +
+							   "criteria of the Product Catalog.");
+			System.exit(1);
+		}
+
+		String fileCountry = args[0];
+		String fileDevice = args[1];
+		String fileContent = args[2];
+
+		// instantiate the ProductCatalog
+		ProductCatalog pc = ProductCatalog.getInstance();
+		// instantiate the AuthenticationServiceAPI
+		AuthenticationServiceAPI asa = AuthenticationServiceAPI.getInstance();
+		int failures = 0;
+		try {
+			// login as the super user
+			System.out.println("Logging in...");
+			String token = asa.login("super", "999");
+			System.out.println("Importing Country, Device, and Content data into ProductCatalog...");
+			pc.importCSV(fileCountry, "country", token);
+			pc.importCSV(fileDevice, "device", token);
+			pc.importCSV(fileContent, "content", token);
+			System.out.println("Logging out...");
+			asa.logout(token);
+
+			List<Content> all = readContent(pc, fileContent);
+			float inf = Float.POSITIVE_INFINITY;
+
+			// a dash after an exponent marker is the exponent's sign
+			System.out.println("Searching with prices in scientific notation...");
+			failures += checkPrice(pc, all, "1e-5", -inf, 1e-5f);
+			failures += checkPrice(pc, all, "0-1e1", 0f, 10f);
+			failures += checkPrice(pc, all, "1e-5-5", 1e-5f, 5f);
+			failures += checkPrice(pc, all, "2.5E-1-3E0", 0.25f, 3f);
+			failures += checkPrice(pc, all, "-1-1e-5", -1f, 1e-5f);
+			failures += checkPrice(pc, all, "5", -inf, 5f);
+			failures += checkPrice(pc, all, "2-", 2f, inf);
+
+			// a built query keeps its bounds, and its criteria parse back to them
+			System.out.println("Searching with price ranges from a query builder...");
+			failures += checkBuiltPrice(pc, all, -inf, 5f);
+			failures += checkBuiltPrice(pc, all, 5f, inf);
+			failures += checkBuiltPrice(pc, all, -inf, inf);
+			failures += checkBuiltPrice(pc, all, 1e-5f, 3f);
+		} catch (AuthenticationException e) {
+			System.out.println("Error logging in with user " + e.getUserName() + ":");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (InvalidAccessTokenException e) {
+			System.out.println("Error for user " + e.getUser() + ":");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (PermissionException e) {
+			System.out.println("Error for user " + e.getUser() + " on action " +
+							   e.getPermission());
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (ImportException e) {
+			System.out.println("Error importing file " + e.getFailedFile() +
+							   " on line " + e.getFailedLine());
+		    System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (SearchEngineException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error reading file " + fileContent);
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+
+		if(failures > 0){
+			System.out.println(failures + " price search(es) failed");
+			System.exit(1);
+		}
+		System.out.println("All price searches passed");
+	}
+
+	/**
+	 * Looks up the imported Content listed in a Content file.
+	 *
+	 * @param pc the ProductCatalog
+	 * @param fileContent Content CSV file
+	 * @return the Content in the catalog
+	 * @throws IOException when the file cannot be read
+	 */
+	static List<Content> readContent(ProductCatalog pc, String fileContent) throws IOException{
+		List<Content> all = new ArrayList<Content>();
+		CsvTokenizer csv = new CsvTokenizer();
+		BufferedReader reader = new BufferedReader(new FileReader(fileContent));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				if(line.trim().equals("") || line.startsWith("#")){
+					continue;
+				}
+				Content c = pc.getProduct((csv.split(line)[1].toLowerCase()).trim());
+				if(c != null){
+					all.add(c);
+				}
+			}
+		}
+		finally{
+			reader.close();
+		}
+		return all;
+	}
+
+	/**
+	 * Searches on a price criterion alone, and compares the results with the
+	 * Content priced within the expected bounds.
+	 *
+	 * @param pc the ProductCatalog
+	 * @param all all Content in the catalog
+	 * @param criterion price criterion to search on
+	 * @param min expected inclusive minimum price
+	 * @param max expected inclusive maximum price
+	 * @return 1 if the results differ from the expected Content, otherwise 0
+	 * @throws SearchEngineException when the search fails
+	 */
+	private static int checkPrice(ProductCatalog pc, List<Content> all, String criterion,
+								  float min, float max) throws SearchEngineException{
+		Set<Content> results = pc.executeSearch(new String[]{"", "", "", criterion, "", "", "", ""});
+		return compare("price " + criterion, results, all, min, max);
+	}
+
+	/**
+	 * Searches on a price range set through a query builder, both with the
+	 * built query and with one parsed from the built query's criteria, and
+	 * compares the results with the Content priced within the range.
+	 *
+	 * @param pc the ProductCatalog
+	 * @param all all Content in the catalog
+	 * @param min inclusive minimum price; negative infinity leaves it open
+	 * @param max inclusive maximum price; positive infinity leaves it open
+	 * @return number of searches whose results differ from the expected Content
+	 * @throws SearchEngineException when a search fails
+	 */
+	private static int checkBuiltPrice(ProductCatalog pc, List<Content> all, float min,
+									   float max) throws SearchEngineException{
+		ProductQuery query = ProductQuery.builder().priceRange(min, max).build();
+		ProductQuery parsed = ProductQuery.parse(query.getCriteria());
+		String name = "built price range [" + min + ", " + max + "]";
+		return compare(name, pc.executeSearch(query), all, min, max) +
+			   compare(name + " parsed from " + query.getCriteria()[3], pc.executeSearch(parsed),
+					   all, min, max);
+	}
+
+	/**
+	 * Compares search results with the Content priced within bounds.
+	 *
+	 * @return 1 if the results differ from the expected Content, otherwise 0
+	 */
+	static int compare(String name, Set<Content> results, List<Content> all, float min, float max){
+		Set<String> expected = new TreeSet<String>();
+		for(Content c : all){
+			if(c.getPrice() >= min && c.getPrice() <= max){
+				expected.add(c.getId());
+			}
+		}
+		Set<String> found = new TreeSet<String>();
+		if(results != null){
+			for(Content c : results){
+				found.add(c.getId());
+			}
+		}
+		if(!found.equals(expected)){
+			System.out.println("FAIL " + name + ": expected " + expected.size() +
+							   " results, found " + found.size());
+			return 1;
+		}
+		System.out.println("PASS " + name + ": " + found.size() + " results");
+		return 0;
+	}
+}
@@ -0,0 +1,468 @@
+package cscie97.asn4.test;
+
+import java.io.*;
+import java.util.*;
+
+import cscie97.asn4.ecommerce.csv.*;
+import cscie97.asn4.ecommerce.product.*;
+import cscie97.asn4.ecommerce.authentication.*;
+
+
+/**
+ * {@code TestDriver6} tests Content updates, removals, and batched price and
+ * rating changes against a catalog rebuilt from scratch
+ */
+public class TestDriver6 {
+
+	// Fields of a Content file row
+	private static final int NAME = 2;
+	private static final int DESCRIPTION = 3;
+	private static final int RATING = 5;
+	private static final int CATEGORIES = 6;
+	private static final int PRICE = 9;
+
+	// Price histogram bounds for the faceted searches
+	private static final float[] PRICE_BOUNDS = {1f, 2f, 5f};
+
+	/**
+	 * Accepts command line parameters for files containing Country, Device,
+	 * and Content data.
+	 *
+	 * Logs in as the admin super user and imports the data into the
+	 * ProductCatalog. Lowers the rating of the Content holding one term's best
+	 * rating, drops another term from the text of the Content holding its best
+	 * rating, changes one Content's categories and price, and removes two more,
+	 * so that both terms' best ratings must fall back to the Content left.
+	 * Then reprices Content in one batch, lowering the ratings of the Content
+	 * holding a third term's best rating, and checks that batches holding an
+	 * out of range rating or an invalid price are rejected whole.
+	 * Searches, facet counts, and completions are recorded after the changes
+	 * and again after the removed Content is compacted, and each is checked
+	 * against a catalog rebuilt by importing the changed Content file into an
+	 * empty catalog.
+	 */
+	public static void main(String args[]){
+		if(args.length != 3){
+			System.err.println("You must provide the Country, Device, and " +
+							   "Content CSV files in order to test Content " +
+							   "updates and removals in the Product Catalog.");
+			System.exit(1);
+		}
+
+		String fileCountry = args[0];
+		String fileDevice = args[1];
+		String fileContent = args[2];
+
+		// instantiate the ProductCatalog
+		ProductCatalog pc = ProductCatalog.getInstance();
+		// instantiate the AuthenticationServiceAPI
+		AuthenticationServiceAPI asa = AuthenticationServiceAPI.getInstance();
+		int failures = 0;
+		try {
+			// login as the super user
+			System.out.println("Logging in...");
+			String token = asa.login("super", "999");
+			System.out.println("Importing Country and Device data into ProductCatalog...");
+			pc.importCSV(fileCountry, "country", token);
+			pc.importCSV(fileDevice, "device", token);
+			File empty = File.createTempFile("catalog", ".snapshot");
+			empty.deleteOnExit();
+			pc.saveSnapshot(empty.getPath());
+			System.out.println("Importing Content data into ProductCatalog...");
+			pc.importCSV(fileContent, "content", token);
+
+			List<String> header = new ArrayList<String>();
+			Map<String, String[]> rows = readRows(fileContent, header);
+			List<String[]> original = new ArrayList<String[]>();
+			for(String[] row : rows.values()){
+				original.add(row.clone());
+			}
+			List<String[]> ids = new ArrayList<String[]>(rows.values());
+
+			System.out.println("Updating and removing Content...");
+			Map<String, Integer> best = bestRatings(ids);
+			// lower the rating of the Content holding the best rating of the
+			// best rated Content's first term
+			String[] top = ids.get(0);
+			for(String[] row : ids){
+				if(rating(row) > rating(top)){
+					top = row;
+				}
+			}
+			String lowered = terms(top).get(0);
+			for(String[] row : holders(ids, best, lowered)){
+				row[RATING] = "0";
+				pc.updateContent(token, row);
+			}
+			// drop another term from the text of the Content holding its best
+			// rating
+			String dropped = null;
+			for(String term : new TreeSet<String>(best.keySet())){
+				if(dropped == null && !term.equals(lowered)){
+					dropped = term;
+				}
+			}
+			for(String[] row : holders(ids, best, dropped)){
+				row[NAME] = without(row[NAME], dropped);
+				row[DESCRIPTION] = without(row[DESCRIPTION], dropped);
+				pc.updateContent(token, row);
+			}
+			System.out.println("Lowered the best rating of '" + lowered + 
+							   "', dropped '" + dropped + "'");
+			// move Content to other categories and another price
+			String[] moved = ids.get(ids.size() / 2);
+			moved[CATEGORIES] = ids.get(ids.size() / 2 + 1)[CATEGORIES];
+			moved[PRICE] = "9.99";
+			pc.updateContent(token, moved);
+			// remove two more
+			for(int i = ids.size() - 2; i < ids.size(); i++){
+				pc.removeContent(token, ids.get(i)[1].trim());
+				rows.remove(ids.get(i)[1].toLowerCase().trim());
+			}
+
+			System.out.println("Repricing Content in one batch...");
+			List<String[]> live = new ArrayList<String[]>(rows.values());
+			best = bestRatings(live);
+			String rerated = null;
+			for(String term : new TreeSet<String>(best.keySet())){
+				if(rerated == null && !term.equals(lowered) && !term.equals(dropped) &&
+				   !terms(moved).contains(term)){
+					rerated = term;
+				}
+			}
+			// lower the ratings holding the third term's best rating, raise
+			// the moved Content's rating, and reprice the first holder twice,
+			// so that its last change must win
+			List<String[]> batch = new ArrayList<String[]>(holders(live, best, rerated));
+			List<String> ratings = new ArrayList<String>();
+			List<String> prices = new ArrayList<String>();
+			for(String[] row : batch){
+				ratings.add(Integer.toString(Math.max(0, rating(row) - 1)));
+				prices.add(row[PRICE]);
+			}
+			batch.add(moved);
+			ratings.add("5");
+			prices.add("0.5");
+			batch.add(batch.get(0));
+			ratings.add(ratings.get(0));
+			prices.add("1.25");
+			String[] contentIds = new String[batch.size()];
+			float[] newPrices = new float[batch.size()];
+			int[] newRatings = new int[batch.size()];
+			for(int i = 0; i < batch.size(); i++){
+				contentIds[i] = batch.get(i)[1].trim();
+				newPrices[i] = Float.parseFloat(prices.get(i));
+				newRatings[i] = Integer.parseInt(ratings.get(i));
+				batch.get(i)[PRICE] = prices.get(i);
+				batch.get(i)[RATING] = ratings.get(i);
+			}
+			pc.updatePricesAndRatings(token, contentIds, newPrices, newRatings);
+			System.out.println("Lowered the best rating of '" + rerated + "' in a batch of " +
+							   batch.size());
+			// batches holding an out of range rating or an invalid price are
+			// rejected whole, so even their valid first change is not applied
+			String[] badIds = {moved[1].trim(), batch.get(0)[1].trim()};
+			float[][] badPrices = {{0.75f, 1f}, {0.75f, 1f}, {0.75f, Float.NaN}, {0.75f, -1f}};
+			int[][] badRatings = {{1, 9}, {1, -1}, {1, 1}, {1, 1}};
+			for(int i = 0; i < badPrices.length; i++){
+				try{
+					pc.updatePricesAndRatings(token, badIds, badPrices[i], badRatings[i]);
+					System.out.println("FAIL invalid batch " + i + " was accepted");
+					failures++;
+				} catch(CatalogException e){
+					System.out.println("PASS invalid batch rejected: " + e.getMessage() +
+									   " (" + e.getData() + ")");
+				}
+			}
+			Content kept = pc.getProduct(moved[1].toLowerCase().trim());
+			if(kept.getPrice() != 0.5f || kept.getRating() != 5){
+				System.out.println("FAIL rejected batches changed " + kept.getId());
+				failures++;
+			}
+
+			List<String[]> queries = queries(original);
+			Set<String> prefixes = prefixes(original);
+			List<String> updated = describe(pc, queries, prefixes);
+			pc.compactContent();
+			List<String> compacted = describe(pc, queries, prefixes);
+
+			System.out.println("Rebuilding the catalog from the changed Content...");
+			File changed = File.createTempFile("content", ".csv");
+			changed.deleteOnExit();
+			writeRows(changed, header, rows.values());
+			pc.loadSnapshot(empty.getPath(), token);
+			pc.importCSV(changed.getPath(), "content", token);
+			List<String> rebuilt = describe(pc, queries, prefixes);
+			System.out.println("Logging out...");
+			asa.logout(token);
+
+			failures += compare("after updates, removals, and repricing", updated, rebuilt);
+			failures += compare("after compaction", compacted, rebuilt);
+		} catch (AuthenticationException e) {
+			System.out.println("Error logging in with user " + e.getUserName() + ":");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (InvalidAccessTokenException e) {
+			System.out.println("Error for user " + e.getUser() + ":");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (PermissionException e) {
+			System.out.println("Error for user " + e.getUser() + " on action " +
+							   e.getPermission());
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (ImportException e) {
+			System.out.println("Error importing file " + e.getFailedFile() +
+							   " on line " + e.getFailedLine());
+		    System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (CatalogException e) {
+			System.out.println("Error changing " + e.getDataType() + " " + e.getData());
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (SearchEngineException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error reading or writing Content file");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+
+		if(failures > 0){
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * Reads the rows of a Content file.
+	 *
+	 * @param fileContent Content CSV file
+	 * @param header receives the file's comment lines
+	 * @return the fields of each row, keyed on Content id, in file order
+	 * @throws IOException when the file cannot be read
+	 */
+	static Map<String, String[]> readRows(String fileContent, List<String> header) throws IOException{
+		Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+		CsvTokenizer csv = new CsvTokenizer();
+		BufferedReader reader = new BufferedReader(new FileReader(fileContent));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				if(line.startsWith("#")){
+					header.add(line);
+				}
+				else if(!line.trim().equals("")){
+					String[] row = csv.splitAll(line);
+					rows.put((row[1].toLowerCase()).trim(), row);
+				}
+			}
+		}
+		finally{
+			reader.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes rows to a Content file.
+	 *
+	 * @param file file to write
+	 * @param header comment lines to start the file with
+	 * @param rows fields of each row
+	 * @throws IOException when the file cannot be written
+	 */
+	static void writeRows(File file, List<String> header, Collection<String[]> rows) throws IOException{
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try{
+			for(String line : header){
+				writer.println(line);
+			}
+			for(String[] row : rows){
+				StringBuilder line = new StringBuilder();
+				for(int i = 0; i < row.length; i++){
+					line.append(i == 0 ? "" : ",").append(row[i]);
+				}
+				writer.println(line);
+			}
+		}
+		finally{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Returns the best rating among the rows containing each term.
+	 *
+	 * @param rows fields of each row
+	 * @return best rating of each term
+	 */
+	static Map<String, Integer> bestRatings(List<String[]> rows){
+		Map<String, Integer> best = new HashMap<String, Integer>();
+		for(String[] row : rows){
+			for(String term : terms(row)){
+				Integer rating = best.get(term);
+				if(rating == null || rating < rating(row)){
+					best.put(term, rating(row));
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the rows containing a term that hold its best rating.
+	 */
+	private static List<String[]> holders(List<String[]> rows, Map<String, Integer> best, String term){
+		List<String[]> holders = new ArrayList<String[]>();
+		for(String[] row : rows){
+			if(rating(row) == best.get(term) && terms(row).contains(term)){
+				holders.add(row);
+			}
+		}
+		return holders;
+	}
+
+	/**
+	 * Removes the words analyzed into a term from text.
+	 */
+	private static String without(String text, String term){
+		StringBuilder kept = new StringBuilder();
+		for(String word : text.trim().split(" ")){
+			if(!TextAnalyzer.STANDARD.analyze(word).contains(term)){
+				kept.append(kept.length() == 0 ? "" : " ").append(word);
+			}
+		}
+		return kept.toString();
+	}
+
+	private static int rating(String[] row){
+		return Integer.parseInt(row[RATING].trim());
+	}
+
+	/**
+	 * Returns the terms of the name and description of a row, as the catalog
+	 * indexes them.
+	 */
+	private static List<String> terms(String[] row){
+		return TextAnalyzer.STANDARD.analyze(row[NAME] + " " + row[DESCRIPTION]);
+	}
+
+	/**
+	 * Returns the searches to check: each term and category of the Content
+	 * before it changed, each rating, and every price.
+	 *
+	 * @param rows fields of each row before the changes
+	 * @return search criteria
+	 */
+	static List<String[]> queries(List<String[]> rows){
+		Set<String> terms = new TreeSet<String>();
+		Set<String> categories = new TreeSet<String>();
+		for(String[] row : rows){
+			terms.addAll(terms(row));
+			categories.addAll(Arrays.asList(row[CATEGORIES].trim().split("\\|")));
+		}
+		List<String[]> queries = new ArrayList<String[]>();
+		for(String term : terms){
+			queries.add(new String[]{"", term, "", "", "", "", "", ""});
+		}
+		for(String category : categories){
+			queries.add(new String[]{category, "", "", "", "", "", "", ""});
+		}
+		for(int rating = 0; rating <= 5; rating++){
+			queries.add(new String[]{"", "", Integer.toString(rating), "", "", "", "", ""});
+		}
+		queries.add(new String[]{"", "", "", "0-", "", "", "", ""});
+		return queries;
+	}
+
+	/**
+	 * Returns the completion prefixes to check: the empty prefix, which every
+	 * term completes, and the first one to three characters of each term of
+	 * the Content before it changed.
+	 *
+	 * @param rows fields of each row before the changes
+	 * @return completion prefixes
+	 */
+	static Set<String> prefixes(List<String[]> rows){
+		Set<String> prefixes = new TreeSet<String>();
+		prefixes.add("");
+		for(String[] row : rows){
+			for(String term : terms(row)){
+				for(int n = 1; n <= Math.min(3, term.length()); n++){
+					prefixes.add(term.substring(0, n));
+				}
+			}
+		}
+		return prefixes;
+	}
+
+	/**
+	 * Records the catalog's answers to searches, faceted searches, and
+	 * completions, one line each.
+	 *
+	 * @param pc the ProductCatalog
+	 * @param queries search criteria
+	 * @param prefixes completion prefixes
+	 * @return the answers
+	 * @throws SearchEngineException when a search fails
+	 */
+	static List<String> describe(ProductCatalog pc, List<String[]> queries, Set<String> prefixes)
+		throws SearchEngineException{
+		List<String> lines = new ArrayList<String>();
+		for(String[] criteria : queries){
+			String name = Arrays.toString(criteria);
+			lines.add("search " + name + ": " + describe(pc.executeSearch(criteria)));
+			SearchFacets facets = pc.executeFacetedSearch(criteria, PRICE_BOUNDS);
+			StringBuilder counts = new StringBuilder();
+			for(String field : facets.getFacetNames()){
+				counts.append(field).append(facets.getFacet(field)).append(' ');
+			}
+			counts.append("price").append(Arrays.toString(facets.getPriceCounts()));
+			counts.append(" rating").append(Arrays.toString(facets.getRatingCounts()));
+			lines.add("facets " + name + ": " + counts);
+		}
+		for(String prefix : prefixes){
+			for(CompletionIndex.Ranking ranking : CompletionIndex.Ranking.values()){
+				lines.add("complete " + prefix + " by " + ranking + ": " +
+						  pc.completeText(prefix, Integer.MAX_VALUE, ranking));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Describes search results by the id, name, rating, and price of each
+	 * Content found, in id order.
+	 */
+	private static String describe(Set<Content> results){
+		Set<String> found = new TreeSet<String>();
+		if(results != null){
+			for(Content c : results){
+				found.add(c.getId() + "/" + c.getName() + "/" + c.getRating() + "/" + c.getPrice());
+			}
+		}
+		return found.toString();
+	}
+
+	/**
+	 * Compares a catalog's answers with the answers expected of it, such as
+	 * those of a catalog rebuilt from scratch.
+	 *
+	 * @return 1 if any answer differs, otherwise 0
+	 */
+	static int compare(String name, List<String> actual, List<String> expected){
+		for(int i = 0; i < expected.size(); i++){
+			if(!actual.get(i).equals(expected.get(i))){
+				System.out.println("FAIL " + name + ":");
+				System.out.println("  expected " + expected.get(i));
+				System.out.println("  found    " + actual.get(i));
+				return 1;
+			}
+		}
+		System.out.println("PASS " + name + ": " + expected.size() + " answers match");
+		return 0;
+	}
+}
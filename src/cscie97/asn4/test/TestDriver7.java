@@ -0,0 +1,248 @@
+package cscie97.asn4.test;
+
+import java.io.*;
+import java.util.*;
+
+import cscie97.asn4.ecommerce.journal.*;
+import cscie97.asn4.ecommerce.product.*;
+import cscie97.asn4.ecommerce.authentication.*;
+
+
+/**
+ * {@code TestDriver7} tests recovering the Product Catalog from a checkpoint
+ * and the mutation journal after a crash
+ */
+public class TestDriver7 {
+
+	// Fields of a Content file row
+	private static final int ID = 1;
+	private static final int NAME = 2;
+	private static final int RATING = 5;
+
+	// Service the driver journals its own records under, beside the catalog's
+	private static final String LEDGER = "ledger";
+
+	/**
+	 * Accepts command line parameters for files containing Country, Device,
+	 * and Content data.
+	 *
+	 * Logs in as the admin super user and journals the catalog to a new
+	 * journal file, which the driver also journals its own ledger records to.
+	 * Imports the data, updates and removes Content, and checkpoints the
+	 * catalog, which compacts only the catalog's records away. Then imports
+	 * more Content, updates, reprices, and removes Content, and records the
+	 * catalog's searches, facet counts, and completions.
+	 *
+	 * The crash leaves a torn final record and a record that was never
+	 * committed. On restart the journal must be truncated after its last
+	 * intact record, and loading the checkpoint and replaying the journal
+	 * must give back every answer recorded before the crash, and every
+	 * ledger record, in order.
+	 */
+	public static void main(String args[]){
+		if(args.length != 3){
+			System.err.println("You must provide the Country, Device, and " +
+							   "Content CSV files in order to test recovery " +
+							   "of the Product Catalog.");
+			System.exit(1);
+		}
+
+		String fileCountry = args[0];
+		String fileDevice = args[1];
+		String fileContent = args[2];
+
+		// instantiate the ProductCatalog
+		ProductCatalog pc = ProductCatalog.getInstance();
+		// instantiate the AuthenticationServiceAPI
+		AuthenticationServiceAPI asa = AuthenticationServiceAPI.getInstance();
+		int failures = 0;
+		try {
+			// login as the super user
+			System.out.println("Logging in...");
+			String token = asa.login("super", "999");
+
+			File journalFile = File.createTempFile("catalog", ".journal");
+			journalFile.deleteOnExit();
+			File checkpoint = File.createTempFile("catalog", ".checkpoint");
+			checkpoint.deleteOnExit();
+			MutationJournal journal = MutationJournal.open(journalFile.getPath());
+			pc.setJournal(journal);
+			journal.register(LEDGER, recorder(new ArrayList<String>()));
+
+			System.out.println("Importing Country, Device, and Content data into ProductCatalog...");
+			pc.importCSV(fileCountry, "country", token);
+			pc.importCSV(fileDevice, "device", token);
+			pc.importCSV(fileContent, "content", token);
+			journal.commit(journal.append(LEDGER, "entry", "1"));
+
+			List<String> header = new ArrayList<String>();
+			Map<String, String[]> rows = TestDriver6.readRows(fileContent, header);
+			List<String[]> ids = new ArrayList<String[]>(rows.values());
+			List<String[]> seen = new ArrayList<String[]>();
+			for(String[] row : ids){
+				seen.add(row.clone());
+			}
+
+			System.out.println("Updating and removing Content before the checkpoint...");
+			String[] renamed = ids.get(0);
+			renamed[NAME] = renamed[NAME] + " checkpointed";
+			pc.updateContent(token, renamed);
+			pc.removeContent(token, ids.get(1)[ID].trim());
+			journal.commit(journal.append(LEDGER, "entry", "2"));
+
+			System.out.println("Checkpointing the catalog...");
+			pc.checkpoint(checkpoint.getPath());
+			long checkpointed = journal.lastSequence();
+
+			System.out.println("Importing, updating, repricing, and removing Content after the checkpoint...");
+			List<String[]> added = new ArrayList<String[]>();
+			for(int i = 2; i < Math.min(ids.size(), 22); i++){
+				String[] row = ids.get(i).clone();
+				row[ID] = row[ID].trim() + "r";
+				row[NAME] = row[NAME] + " recovered";
+				added.add(row);
+			}
+			File more = File.createTempFile("content", ".csv");
+			more.deleteOnExit();
+			TestDriver6.writeRows(more, header, added);
+			pc.importCSV(more.getPath(), "content", token);
+			seen.addAll(added);
+			String[] updated = ids.get(ids.size() / 2);
+			updated[NAME] = updated[NAME] + " journaled";
+			pc.updateContent(token, updated);
+			journal.commit(journal.append(LEDGER, "entry", "3"));
+			String[] repriced = {ids.get(0)[ID].trim(), added.get(0)[ID].trim(), updated[ID].trim()};
+			pc.updatePricesAndRatings(token, repriced, new float[]{0.25f, 7.5f, 3f}, new int[]{1, 5, 0});
+			pc.removeContent(token, added.get(1)[ID].trim());
+			pc.removeContent(token, ids.get(ids.size() - 1)[ID].trim());
+
+			List<String[]> queries = TestDriver6.queries(seen);
+			Set<String> prefixes = TestDriver6.prefixes(seen);
+			List<String> expected = TestDriver6.describe(pc, queries, prefixes);
+
+			System.out.println("Crashing with a torn final record and an uncommitted record...");
+			long intactSequence = journal.lastSequence();
+			long intactLength = journalFile.length();
+			journal.commit(journal.append(LEDGER, "entry", "torn"));
+			RandomAccessFile torn = new RandomAccessFile(journalFile, "rw");
+			try{
+				torn.setLength(journalFile.length() - 3);
+			}
+			finally{
+				torn.close();
+			}
+			journal.append(LEDGER, "entry", "uncommitted");
+
+			System.out.println("Restarting from the checkpoint and the journal...");
+			MutationJournal reopened = MutationJournal.open(journalFile.getPath());
+			if(reopened.lastSequence() != intactSequence || journalFile.length() != intactLength){
+				System.out.println("FAIL torn record was not truncated: last sequence " +
+								   reopened.lastSequence() + ", expected " + intactSequence +
+								   "; length " + journalFile.length() + ", expected " + intactLength);
+				failures++;
+			}
+			else{
+				System.out.println("PASS torn record truncated at sequence " + intactSequence);
+			}
+			List<String> ledger = new ArrayList<String>();
+			pc.setJournal(reopened);
+			reopened.register(LEDGER, recorder(ledger));
+			pc.loadSnapshot(checkpoint.getPath(), token);
+			if(TestDriver6.describe(pc, queries, prefixes).equals(expected)){
+				System.out.println("FAIL checkpoint already holds the changes made after it");
+				failures++;
+			}
+			long replayed = reopened.replay();
+
+			// the checkpoint dropped the catalog's records before it, and
+			// only those; the ledger records before it are still replayed
+			if(!ledger.equals(Arrays.asList("1", "2", "3"))){
+				System.out.println("FAIL ledger records replayed: " + ledger);
+				failures++;
+			}
+			else{
+				System.out.println("PASS ledger records replayed in order: " + ledger);
+			}
+			long expectedRecords = intactSequence - checkpointed + 2;
+			if(replayed != expectedRecords){
+				System.out.println("FAIL replayed " + replayed + " records, expected " + expectedRecords);
+				failures++;
+			}
+			else{
+				System.out.println("PASS replayed " + replayed + " records after compaction");
+			}
+			List<String> recovered = TestDriver6.describe(pc, queries, prefixes);
+			failures += TestDriver6.compare("after recovery", recovered, expected);
+
+			// the recovered journal takes new records after the intact ones
+			pc.updatePricesAndRatings(token, new String[]{added.get(0)[ID].trim()}, new float[]{7.5f},
+									  new int[]{Integer.parseInt(added.get(0)[RATING].trim())});
+			if(reopened.lastSequence() != intactSequence + 1){
+				System.out.println("FAIL journaled after recovery at sequence " + reopened.lastSequence());
+				failures++;
+			}
+			reopened.close();
+			System.out.println("Logging out...");
+			asa.logout(token);
+		} catch (AuthenticationException e) {
+			System.out.println("Error logging in with user " + e.getUserName() + ":");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (InvalidAccessTokenException e) {
+			System.out.println("Error for user " + e.getUser() + ":");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (PermissionException e) {
+			System.out.println("Error for user " + e.getUser() + " on action " +
+							   e.getPermission());
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (ImportException e) {
+			System.out.println("Error importing file " + e.getFailedFile() +
+							   " on line " + e.getFailedLine());
+		    System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (CatalogException e) {
+			System.out.println("Error changing " + e.getDataType() + " " + e.getData());
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (SearchEngineException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (JournalException e) {
+			System.out.println("Error with journal " + e.getFileName());
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error reading or writing a test file");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+
+		if(failures > 0){
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * Returns a replayer that records the first field of each ledger record
+	 * it replays.
+	 *
+	 * @param ledger receives the replayed records
+	 * @return the replayer
+	 */
+	private static MutationJournal.Replayer recorder(final List<String> ledger){
+		return new MutationJournal.Replayer(){
+			@Override
+			public void replay(long sequence, String operation, String[] fields){
+				ledger.add(fields[0]);
+			}
+
+			@Override
+			public void endBatch(){
+			}
+		};
+	}
+}
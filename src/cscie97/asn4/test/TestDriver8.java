@@ -0,0 +1,171 @@
+package cscie97.asn4.test;
+
+import java.io.*;
+import java.util.*;
+
+import cscie97.asn4.ecommerce.product.*;
+import cscie97.asn4.ecommerce.authentication.*;
+
+
+/**
+ * {@code TestDriver8} tests saving the Product Catalog to a snapshot file
+ * and loading it back
+ */
+public class TestDriver8 {
+
+	// Fields of a Content file row
+	private static final int ID = 1;
+	private static final int NAME = 2;
+	private static final int DESCRIPTION = 3;
+
+	/**
+	 * Accepts command line parameters for files containing Country, Device,
+	 * and Content data.
+	 *
+	 * Logs in as the admin super user, imports the data, and updates,
+	 * reprices, and removes Content, so that the snapshot holds changed and
+	 * compacted Content. Saves a snapshot and records the catalog's searches,
+	 * facet counts, and completions, then changes the catalog further. The
+	 * snapshot loaded over the changed catalog must answer as the catalog did
+	 * when it was saved, as must a snapshot saved from the loaded catalog.
+	 * Making the same further changes to the loaded catalog must give the
+	 * answers of the changed catalog.
+	 */
+	public static void main(String args[]){
+		if(args.length != 3){
+			System.err.println("You must provide the Country, Device, and " +
+							   "Content CSV files in order to test snapshots " +
+							   "of the Product Catalog.");
+			System.exit(1);
+		}
+
+		String fileCountry = args[0];
+		String fileDevice = args[1];
+		String fileContent = args[2];
+
+		// instantiate the ProductCatalog
+		ProductCatalog pc = ProductCatalog.getInstance();
+		// instantiate the AuthenticationServiceAPI
+		AuthenticationServiceAPI asa = AuthenticationServiceAPI.getInstance();
+		int failures = 0;
+		try {
+			// login as the super user
+			System.out.println("Logging in...");
+			String token = asa.login("super", "999");
+			System.out.println("Importing Country, Device, and Content data into ProductCatalog...");
+			pc.importCSV(fileCountry, "country", token);
+			pc.importCSV(fileDevice, "device", token);
+			pc.importCSV(fileContent, "content", token);
+
+			List<String> header = new ArrayList<String>();
+			Map<String, String[]> rows = TestDriver6.readRows(fileContent, header);
+			List<String[]> ids = new ArrayList<String[]>(rows.values());
+			List<String[]> seen = new ArrayList<String[]>();
+			for(String[] row : ids){
+				seen.add(row.clone());
+			}
+
+			System.out.println("Updating, repricing, and removing Content...");
+			// one new term is held by a single top rated Content and another
+			// by two unrated ones, so completions ranked by best rating and by
+			// document frequency put them in opposite orders
+			String[] renamed = {"snapone", "snaptwo", "snaptwo"};
+			String[] renamedIds = new String[renamed.length];
+			for(int i = 0; i < renamed.length; i++){
+				String[] row = ids.get(i);
+				row[NAME] = row[NAME] + " " + renamed[i];
+				pc.updateContent(token, row);
+				seen.add(row.clone());
+				renamedIds[i] = row[ID].trim();
+			}
+			pc.updatePricesAndRatings(token, renamedIds, new float[]{0.5f, 12f, 3f}, new int[]{5, 0, 0});
+			pc.removeContent(token, ids.get(3)[ID].trim());
+
+			List<String[]> queries = TestDriver6.queries(seen);
+			Set<String> prefixes = TestDriver6.prefixes(seen);
+			List<String> saved = TestDriver6.describe(pc, queries, prefixes);
+			System.out.println("Saving a snapshot...");
+			File snapshot = File.createTempFile("catalog", ".snapshot");
+			snapshot.deleteOnExit();
+			pc.saveSnapshot(snapshot.getPath());
+
+			System.out.println("Changing the catalog after the snapshot...");
+			changeFurther(pc, token, ids);
+			List<String> changed = TestDriver6.describe(pc, queries, prefixes);
+			if(changed.equals(saved)){
+				System.out.println("FAIL changes after the snapshot changed no answer");
+				failures++;
+			}
+
+			System.out.println("Loading the snapshot over the changed catalog...");
+			pc.loadSnapshot(snapshot.getPath(), token);
+			failures += TestDriver6.compare("after loading the snapshot",
+											TestDriver6.describe(pc, queries, prefixes), saved);
+
+			System.out.println("Saving and loading the loaded catalog...");
+			File resaved = File.createTempFile("catalog", ".snapshot");
+			resaved.deleteOnExit();
+			pc.saveSnapshot(resaved.getPath());
+			pc.loadSnapshot(resaved.getPath(), token);
+			failures += TestDriver6.compare("after loading a snapshot of the loaded catalog",
+											TestDriver6.describe(pc, queries, prefixes), saved);
+
+			System.out.println("Changing the loaded catalog...");
+			changeFurther(pc, token, ids);
+			failures += TestDriver6.compare("after changing the loaded catalog",
+											TestDriver6.describe(pc, queries, prefixes), changed);
+			System.out.println("Logging out...");
+			asa.logout(token);
+		} catch (AuthenticationException e) {
+			System.out.println("Error logging in with user " + e.getUserName() + ":");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (InvalidAccessTokenException e) {
+			System.out.println("Error for user " + e.getUser() + ":");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (PermissionException e) {
+			System.out.println("Error for user " + e.getUser() + " on action " +
+							   e.getPermission());
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (ImportException e) {
+			System.out.println("Error importing file " + e.getFailedFile() +
+							   " on line " + e.getFailedLine());
+		    System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (CatalogException e) {
+			System.out.println("Error changing " + e.getDataType() + " " + e.getData());
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (SearchEngineException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Error reading or writing a test file");
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+
+		if(failures > 0){
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * Makes the changes that follow the snapshot: gives one Content the
+	 * description of the next, reprices the Content holding "snapone", and
+	 * removes the last Content.
+	 */
+	private static void changeFurther(ProductCatalog pc, String token, List<String[]> ids)
+		throws CatalogException, PermissionException, InvalidAccessTokenException{
+		String[] row = ids.get(ids.size() / 2).clone();
+		row[DESCRIPTION] = ids.get(ids.size() / 2 + 1)[DESCRIPTION];
+		pc.updateContent(token, row);
+		pc.updatePricesAndRatings(token, new String[]{ids.get(0)[ID].trim()}, new float[]{2f},
+								  new int[]{1});
+		pc.removeContent(token, ids.get(ids.size() - 1)[ID].trim());
+	}
+}